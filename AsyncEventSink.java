@@ -0,0 +1,233 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventSink that never blocks the threads reporting the events. Each kind of event has its own counter and the events are placed in a bounded lock free queue,
+ * a background daemon thread takes them from the queue and writes them, so the slow and synchronized System.err is only used by that thread.
+ * When the queue is full the new events are dropped (they are still counted), and with the COUNT_ONLY policy the events are only counted.
+ * The queue is a ring of slots where each slot has a sequence number telling if it is free or full for a given position, so producers and the consumer
+ * only use compare and set and no objects are created for each event
+ * @author nsalgueiro
+ *
+ */
+public class AsyncEventSink implements EventSink {
+
+	/**
+	 * Policies to decide what is done with the events besides counting them
+	 */
+	public static enum DropPolicy {
+		DROP_NEWEST,	// the events are queued and written, the new events are dropped while the queue is full
+		COUNT_ONLY		// the events are only counted, nothing is written
+	};
+
+	private static final int _DEFAULT_CAPACITY = 1024;
+	private static final long _IDLE_PARK_NANOS = 1000000;	// The writer thread checks the queue every millisecond when it is empty
+
+	private static final AsyncEventSink defaultSink = new AsyncEventSink(_DEFAULT_CAPACITY, DropPolicy.DROP_NEWEST, System.err);
+
+	private DropPolicy dropPolicy;
+	private PrintStream output;
+
+	private int mask;						// Capacity - 1, the capacity is a power of two
+	private AtomicLongArray sequences;		// Sequence of each slot, it is equal to the position when the slot is free and to the position + 1 when it is full
+	private ResultCode[] codes;
+	private String[] symbols;
+	private String[] details;
+
+	private AtomicLong tail;	// Next position to be written by the producers
+	private long head;			// Next position to be read, only used by the writer thread
+
+	private LongAdder[] counters;	// Number of events of each kind
+	private LongAdder dropped;		// Number of events that were not written
+
+	private volatile boolean running;	// The writer thread stops once this is false and the queue is empty
+
+	/**
+	 * Method to retrieve the sink shared by all the stock exchanges and stocks that don't have their own, it writes the events to System.err
+	 * @return the default sink
+	 */
+	public static AsyncEventSink getDefault() {
+		return defaultSink;
+	}
+
+	/**
+	 * Constructor for the class, it starts the writer thread unless the policy is COUNT_ONLY
+	 * @param capacity		- Maximum number of queued events, it is rounded up to a power of two
+	 * @param dropPolicy	- What to do with the events
+	 * @param output		- Stream where the events are written
+	 */
+	public AsyncEventSink(int capacity, DropPolicy dropPolicy, PrintStream output) {
+
+		if(capacity<=0 || capacity>(1 << 30)) {
+			throw new IllegalArgumentException("Invalid argument capacity, it must be between 1 and 2^30");
+		}
+
+		if(dropPolicy==null || output==null) {
+			throw new IllegalArgumentException("No null values allowed");
+		}
+
+		this.dropPolicy = dropPolicy;
+		this.output = output;
+
+		int size = Integer.highestOneBit(capacity);
+		size = (size<capacity ? size << 1 : size);
+
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		this.codes = new ResultCode[size];
+		this.symbols = new String[size];
+		this.details = new String[size];
+
+		for(int i=0; i<size; i++) {
+			sequences.set(i, i);
+		}
+
+		this.tail = new AtomicLong();
+		this.head = 0;
+
+		this.counters = new LongAdder[ResultCode.values().length];
+
+		for(int i=0; i<counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+
+		this.dropped = new LongAdder();
+
+		this.running = (dropPolicy!=DropPolicy.COUNT_ONLY);
+
+		if(running) {
+
+			Thread writer = new Thread(this::writeEvents, "AsyncEventSinkWriter");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	@Override
+	public void report(ResultCode code, String stockSymbol, String detail) {
+
+		counters[code.ordinal()].increment();
+
+		if(!running || !offer(code, stockSymbol, detail)) {
+
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * Method to place an event in the queue
+	 * @return false if the queue is full
+	 */
+	private boolean offer(ResultCode code, String stockSymbol, String detail) {
+
+		long position = tail.get();
+
+		while(true) {
+
+			int index = (int) (position & mask);
+			long difference = sequences.get(index) - position;
+
+			if(difference==0) {	// the slot is free, we try to claim it
+
+				if(tail.compareAndSet(position, position + 1)) {
+
+					codes[index] = code;
+					symbols[index] = stockSymbol;
+					details[index] = detail;
+					sequences.lazySet(index, position + 1);	// publishes the event to the writer thread
+					return true;
+				}
+
+				position = tail.get();	// another thread claimed it
+
+			} else if(difference<0) {	// the slot still has the event of the previous round, the queue is full
+
+				return false;
+
+			} else {	// another thread claimed this position after we read the tail
+
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Loop of the writer thread
+	 */
+	private void writeEvents() {
+
+		while(true) {
+
+			if(!writeNextEvent()) {
+
+				if(!running) {
+					return;
+				}
+
+				LockSupport.parkNanos(_IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Method to stop the writer thread, the events already queued are still written. The events reported afterwards are only counted
+	 */
+	public void shutdown() {
+
+		running = false;
+	}
+
+	/**
+	 * Method to write the oldest event of the queue
+	 * @return false if the queue is empty
+	 */
+	private boolean writeNextEvent() {
+
+		int index = (int) (head & mask);
+
+		if(sequences.get(index)!=head + 1) {
+			return false;
+		}
+
+		ResultCode code = codes[index];
+		String stockSymbol = symbols[index];
+		String detail = details[index];
+
+		symbols[index] = null;
+		details[index] = null;
+		sequences.lazySet(index, head + mask + 1);	// the slot is free for the next round
+		head++;
+
+		output.println(code.getMessage() + (stockSymbol!=null ? " [" + stockSymbol + "]" : "") + (detail!=null ? ": " + detail : ""));
+
+		return true;
+	}
+
+	/**
+	 * Method to retrieve the number of events of a kind
+	 * @param code	- Kind of event
+	 * @return the number of events reported since the sink was created
+	 */
+	public long getCount(ResultCode code) {
+		return counters[code.ordinal()].sum();
+	}
+
+	/**
+	 * Method to retrieve the number of events that were not written because the queue was full or because of the COUNT_ONLY policy
+	 * @return the number of dropped events
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Method to retrieve the drop policy
+	 * @return the policy
+	 */
+	public DropPolicy getDropPolicy() {
+		return dropPolicy;
+	}
+}
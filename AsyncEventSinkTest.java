@@ -0,0 +1,121 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class AsyncEventSinkTest {
+
+	@Test
+	public void testEventsAreCountedAndWritten() throws InterruptedException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		AsyncEventSink sink = new AsyncEventSink(16, AsyncEventSink.DropPolicy.DROP_NEWEST, new PrintStream(bytes, true));
+
+		sink.report(ResultCode.STOCK_NOT_FOUND, "TEA", null);
+		sink.report(ResultCode.STOCK_NOT_FOUND, "POP", null);
+		sink.report(ResultCode.JOURNAL_ERROR, null, "disk full");
+
+		assertEquals("Stock not found count ", 2, sink.getCount(ResultCode.STOCK_NOT_FOUND));
+		assertEquals("Journal error count ", 1, sink.getCount(ResultCode.JOURNAL_ERROR));
+		assertEquals("Other count ", 0, sink.getCount(ResultCode.INVALID_VALUE));
+
+		// the events are written by the background thread in the order they were reported
+		String expected = "No stock found [TEA]" + System.lineSeparator() + "No stock found [POP]" + System.lineSeparator() + "Error writing to the journal: disk full" + System.lineSeparator();
+
+		for(int i=0; i<200 && !bytes.toString().equals(expected); i++) {
+			Thread.sleep(10);
+		}
+
+		assertEquals("Written events ", expected, bytes.toString());
+		assertEquals("Dropped events ", 0, sink.getDroppedCount());
+		sink.shutdown();
+	}
+
+	@Test
+	public void testFullQueueDropsNewEvents() throws InterruptedException {
+
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		// a stream that blocks the writer thread so the queue fills up
+		OutputStream blocking = new OutputStream() {
+
+			@Override
+			public void write(int b) {
+
+				writing.countDown();
+
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+
+		AsyncEventSink sink = new AsyncEventSink(4, AsyncEventSink.DropPolicy.DROP_NEWEST, new PrintStream(blocking));
+
+		sink.report(ResultCode.INVALID_VALUE, "TEA", null);
+		writing.await();	// the writer took the first event and is blocked
+
+		for(int i=0; i<10; i++) {
+			sink.report(ResultCode.INVALID_VALUE, "TEA", null);	// these never block
+		}
+
+		assertEquals("Counted events ", 11, sink.getCount(ResultCode.INVALID_VALUE));
+		assertEquals("Dropped events ", 6, sink.getDroppedCount());	// 4 fit in the queue
+
+		sink.shutdown();
+		release.countDown();
+	}
+
+	@Test
+	public void testCountOnly() {
+
+		AsyncEventSink sink = new AsyncEventSink(4, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err);
+
+		for(int i=0; i<100; i++) {
+			sink.report(ResultCode.NO_TRADES, "TEA", null);
+		}
+
+		assertEquals("Counted events ", 100, sink.getCount(ResultCode.NO_TRADES));
+		assertEquals("Dropped events ", 100, sink.getDroppedCount());
+	}
+
+	@Test
+	public void testResultCodes() {
+
+		AsyncEventSink sink = new AsyncEventSink(16, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err);
+		StockExchange myStockExchange = new StockExchange();
+		myStockExchange.setEventSink(sink);
+
+		assertEquals("Empty symbol ", ResultCode.EMPTY_STOCK_SYMBOL, myStockExchange.tryAddStock("", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100)));
+		assertEquals("Null value ", ResultCode.NULL_VALUE, myStockExchange.tryAddStock("TEA", null, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100)));
+		assertEquals("Stock added ", ResultCode.OK, myStockExchange.tryAddStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100)));
+		assertEquals("Stock exists ", ResultCode.STOCK_ALREADY_EXISTS, myStockExchange.tryAddStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100)));
+
+		StockElement tea = myStockExchange.getStock("TEA");
+		assertEquals("Invalid timestamp ", ResultCode.INVALID_TIMESTAMP, tea.tryAddTradeAction(0, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("10")));
+		assertEquals("Invalid quantity ", ResultCode.INVALID_QUANTITY, tea.tryAddTradeAction(0, StockTradeAction.actionTypes.BUY, new BigDecimal("10")));
+		assertEquals("Invalid value ", ResultCode.INVALID_VALUE, tea.tryAddTradeAction(100, 10, StockTradeAction.actionTypes.BUY, 0L));
+		assertEquals("Null value ", ResultCode.INVALID_VALUE, tea.tryAddTradeAction(10, StockTradeAction.actionTypes.BUY, null));
+		assertNull("No price ", tea.calculateStockPrice());
+
+		// a trade without action type is only a warning
+		assertEquals("No action type ", ResultCode.OK, tea.tryAddTradeAction(10, null, new BigDecimal("10")));
+
+		assertNull("Unknown stock ", myStockExchange.getStock("XXX"));
+		assertEquals("Remove unknown stock ", ResultCode.STOCK_NOT_FOUND, myStockExchange.tryRemoveStock("XXX"));
+		assertEquals("Remove stock ", ResultCode.OK, myStockExchange.tryRemoveStock("TEA"));
+
+		assertEquals("Stock not found events ", 2, sink.getCount(ResultCode.STOCK_NOT_FOUND));
+		assertEquals("No trades events ", 1, sink.getCount(ResultCode.NO_TRADES));
+		assertEquals("Null action type events ", 1, sink.getCount(ResultCode.NULL_ACTION_TYPE));
+		assertEquals("Invalid value events ", 2, sink.getCount(ResultCode.INVALID_VALUE));
+	}
+}
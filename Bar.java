@@ -0,0 +1,171 @@
+import java.math.BigDecimal;
+
+/**
+ * Open, high, low, close and volume of the trades of a stock during one interval, the bars are kept by the BarSeries of each stock
+ * and returned by StockElement.getBars. The prices are kept with the fixed point scale of the stock and converted to BigDecimal on demand
+ * @author nsalgueiro
+ *
+ */
+public class Bar {
+
+	private long start;
+	private long end;
+	private int scale;
+	private long scaledOpen;
+	private long scaledHigh;
+	private long scaledLow;
+	private long scaledClose;
+	private long volume;
+	private int tradeCount;
+	private boolean complete;
+
+	/**
+	 * Constructor for the class
+	 * @param start			- Start of the interval in milliseconds, included
+	 * @param end			- End of the interval in milliseconds, not included
+	 * @param scale			- Scale of the prices
+	 * @param scaledOpen	- Price of the oldest trade of the interval
+	 * @param scaledHigh	- Highest price
+	 * @param scaledLow		- Lowest price
+	 * @param scaledClose	- Price of the newest trade of the interval
+	 * @param volume		- Sum of the quantities of the trades
+	 * @param tradeCount	- Number of trades
+	 * @param complete		- True if trades of a later interval were already received
+	 */
+	public Bar(long start, long end, int scale, long scaledOpen, long scaledHigh, long scaledLow, long scaledClose, long volume, int tradeCount, boolean complete) {
+
+		this.start = start;
+		this.end = end;
+		this.scale = scale;
+		this.scaledOpen = scaledOpen;
+		this.scaledHigh = scaledHigh;
+		this.scaledLow = scaledLow;
+		this.scaledClose = scaledClose;
+		this.volume = volume;
+		this.tradeCount = tradeCount;
+		this.complete = complete;
+	}
+
+	/**
+	 * Getter for the start of the interval
+	 * @return the start in milliseconds, included
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Getter for the end of the interval
+	 * @return the end in milliseconds, not included
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Getter for the scale of the fixed point prices
+	 * @return the scale
+	 */
+	public int getScale() {
+		return scale;
+	}
+
+	/**
+	 * Getter for the open price
+	 * @return the price of the oldest trade of the interval
+	 */
+	public BigDecimal getOpen() {
+		return FixedPointPrice.toBigDecimal(scaledOpen, scale);
+	}
+
+	/**
+	 * Getter for the high price
+	 * @return the highest price of the interval
+	 */
+	public BigDecimal getHigh() {
+		return FixedPointPrice.toBigDecimal(scaledHigh, scale);
+	}
+
+	/**
+	 * Getter for the low price
+	 * @return the lowest price of the interval
+	 */
+	public BigDecimal getLow() {
+		return FixedPointPrice.toBigDecimal(scaledLow, scale);
+	}
+
+	/**
+	 * Getter for the close price
+	 * @return the price of the newest trade of the interval
+	 */
+	public BigDecimal getClose() {
+		return FixedPointPrice.toBigDecimal(scaledClose, scale);
+	}
+
+	/**
+	 * Getter for the open price as a fixed point value
+	 * @return the price multiplied by 10^getScale()
+	 */
+	public long getScaledOpen() {
+		return scaledOpen;
+	}
+
+	/**
+	 * Getter for the high price as a fixed point value
+	 * @return the price multiplied by 10^getScale()
+	 */
+	public long getScaledHigh() {
+		return scaledHigh;
+	}
+
+	/**
+	 * Getter for the low price as a fixed point value
+	 * @return the price multiplied by 10^getScale()
+	 */
+	public long getScaledLow() {
+		return scaledLow;
+	}
+
+	/**
+	 * Getter for the close price as a fixed point value
+	 * @return the price multiplied by 10^getScale()
+	 */
+	public long getScaledClose() {
+		return scaledClose;
+	}
+
+	/**
+	 * Getter for the volume
+	 * @return the sum of the quantities of the trades
+	 */
+	public long getVolume() {
+		return volume;
+	}
+
+	/**
+	 * Getter for the number of trades
+	 * @return the number of trades of the interval
+	 */
+	public int getTradeCount() {
+		return tradeCount;
+	}
+
+	/**
+	 * Method to know if the interval is over, a complete bar can still change if a late trade with an older timestamp arrives
+	 * @return true if trades of a later interval were already received
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	@Override
+	public String toString() {
+		return "Bar [start=" + start
+				+ ", open=" + getOpen()
+				+ ", high=" + getHigh()
+				+ ", low=" + getLow()
+				+ ", close=" + getClose()
+				+ ", volume=" + volume
+				+ ", tradeCount=" + tradeCount + "]";
+	}
+}
@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * OHLCV bars of one interval of a stock, updated with every trade instead of going through all the trades each time the bars are needed.
+ * The bars are kept in a ring of primitive arrays with one slot per interval, the slot of a trade is its interval number modulo the capacity,
+ * so a trade with an old timestamp updates the bar of its own interval directly as long as that interval is still in the ring.
+ * The ring always covers the last capacity intervals until the newest trade, intervals without trades have no bar.
+ * Trades older than the ring are dropped and counted.
+ * Objects of this class are not thread safe, StockElement only uses them while holding the lock on its trades
+ * @author nsalgueiro
+ *
+ */
+public class BarSeries {
+
+	private static final long _EMPTY = Long.MIN_VALUE;	// Start of the slots without a bar
+
+	private long interval;
+	private int capacity;
+	private int scale;
+
+	// One slot per interval, the start tells which interval the bar of the slot belongs to
+	private long[] starts;
+	private long[] opens;
+	private long[] highs;
+	private long[] lows;
+	private long[] closes;
+	private long[] volumes;
+	private int[] tradeCounts;
+	private long[] openTimes;	// Timestamp of the trade that set the open price
+	private long[] closeTimes;	// Timestamp of the trade that set the close price
+
+	private long newestStart;		// Start of the interval of the newest trade or _EMPTY if there were no trades
+	private long droppedTrades;		// Trades older than the ring or with a price that doesn't fit in a fixed point value
+
+	/**
+	 * Constructor for the class
+	 * @param interval	- Length of the interval in milliseconds
+	 * @param capacity	- Number of intervals kept
+	 * @param scale		- Scale of the fixed point prices
+	 */
+	public BarSeries(long interval, int capacity, int scale) {
+
+		if(interval<=0) {
+			throw new IllegalArgumentException("Invalid argument interval, it must be greater than 0");
+		}
+
+		if(capacity<=0) {
+			throw new IllegalArgumentException("Invalid argument capacity, it must be greater than 0");
+		}
+
+		this.interval = interval;
+		this.capacity = capacity;
+		this.scale = FixedPointPrice.checkScale(scale);
+
+		this.starts = new long[capacity];
+		this.opens = new long[capacity];
+		this.highs = new long[capacity];
+		this.lows = new long[capacity];
+		this.closes = new long[capacity];
+		this.volumes = new long[capacity];
+		this.tradeCounts = new int[capacity];
+		this.openTimes = new long[capacity];
+		this.closeTimes = new long[capacity];
+
+		Arrays.fill(starts, _EMPTY);
+		this.newestStart = _EMPTY;
+	}
+
+	/**
+	 * Getter for the length of the interval
+	 * @return the interval in milliseconds
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Getter for the number of intervals kept
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Getter for the number of trades that were not added to a bar because they were older than the ring or their price didn't fit in a fixed point value
+	 * @return the number of dropped trades
+	 */
+	public long getDroppedTrades() {
+		return droppedTrades;
+	}
+
+	/**
+	 * Method to add a trade to the bar of its interval
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param scaledValue	- Share value multiplied by 10^scale or FixedPointPrice.NOT_REPRESENTABLE
+	 * @return false if the trade was dropped
+	 */
+	public boolean add(long timestamp, long quantity, long scaledValue) {
+
+		long number = Math.floorDiv(timestamp, interval);
+		long start = number * interval;
+
+		if(scaledValue==FixedPointPrice.NOT_REPRESENTABLE || (newestStart!=_EMPTY && start<=newestStart - capacity * interval)) {
+
+			droppedTrades++;
+			return false;
+		}
+
+		if(newestStart==_EMPTY || start>newestStart) {
+			newestStart = start;
+		}
+
+		int slot = (int) Math.floorMod(number, (long) capacity);
+
+		if(starts[slot]!=start) {	// first trade of the interval, the slot had nothing or a bar older than the ring
+
+			starts[slot] = start;
+			opens[slot] = scaledValue;
+			highs[slot] = scaledValue;
+			lows[slot] = scaledValue;
+			closes[slot] = scaledValue;
+			volumes[slot] = quantity;
+			tradeCounts[slot] = 1;
+			openTimes[slot] = timestamp;
+			closeTimes[slot] = timestamp;
+
+			return true;
+		}
+
+		highs[slot] = Math.max(highs[slot], scaledValue);
+		lows[slot] = Math.min(lows[slot], scaledValue);
+		volumes[slot] += quantity;
+		tradeCounts[slot]++;
+
+		// the open and close prices come from the oldest and newest timestamps and not from the order of arrival, with equal timestamps the first trade received opens and the last one closes
+		if(timestamp<openTimes[slot]) {
+
+			opens[slot] = scaledValue;
+			openTimes[slot] = timestamp;
+		}
+
+		if(timestamp>=closeTimes[slot]) {
+
+			closes[slot] = scaledValue;
+			closeTimes[slot] = timestamp;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Method to retrieve the bar of the interval of a timestamp
+	 * @param timestamp	- Any time inside the interval
+	 * @return the bar or null if the interval had no trades or it is older than the ring
+	 */
+	public Bar getBar(long timestamp) {
+
+		long number = Math.floorDiv(timestamp, interval);
+		int slot = (int) Math.floorMod(number, (long) capacity);
+
+		// a slot keeps an old bar until a later interval with the same slot has trades, so the bars older than the ring are checked too
+		if(newestStart==_EMPTY || starts[slot]!=number * interval || number<=Math.floorDiv(newestStart, interval) - capacity) {
+			return null;
+		}
+
+		return createBar(slot);
+	}
+
+	/**
+	 * Method to retrieve the bars of the intervals that start inside a time range
+	 * @param from	- Start of the range, included
+	 * @param to	- End of the range, not included
+	 * @return List with the bars sorted by start, the intervals without trades are skipped
+	 */
+	public List<Bar> getBars(long from, long to) {
+
+		List<Bar> bars = new ArrayList<Bar>();
+
+		if(newestStart==_EMPTY || from>=to) {
+			return bars;
+		}
+
+		// only the intervals still in the ring are visited, so the cost doesn't depend on the length of the range
+		long newestNumber = Math.floorDiv(newestStart, interval);
+		long first = Math.max(Math.floorDiv(from, interval) + (Math.floorMod(from, interval)==0 ? 0 : 1), newestNumber - capacity + 1);
+		long last = Math.min(Math.floorDiv(to - 1, interval), newestNumber);
+
+		for(long number = first; number<=last; number++) {
+
+			int slot = (int) Math.floorMod(number, (long) capacity);
+
+			if(starts[slot]==number * interval) {
+				bars.add(createBar(slot));
+			}
+		}
+
+		return bars;
+	}
+
+	private Bar createBar(int slot) {
+
+		return new Bar(starts[slot], starts[slot] + interval, scale, opens[slot], highs[slot], lows[slot], closes[slot], volumes[slot], tradeCounts[slot], starts[slot]<newestStart);
+	}
+}
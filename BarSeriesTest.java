@@ -0,0 +1,100 @@
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class BarSeriesTest {
+
+	@Test
+	public void testBarsOfOneInterval() {
+
+		BarSeries series = new BarSeries(1000, 10, 2);
+
+		series.add(10100, 5, 10000);
+		series.add(10500, 10, 10300);
+		series.add(10900, 1, 9900);
+		series.add(11200, 7, 10100);
+
+		Bar bar = series.getBar(10000);
+
+		assertEquals("Start ", 10000, bar.getStart());
+		assertEquals("End ", 11000, bar.getEnd());
+		assertEquals("Open ", 10000, bar.getScaledOpen());
+		assertEquals("High ", 10300, bar.getScaledHigh());
+		assertEquals("Low ", 9900, bar.getScaledLow());
+		assertEquals("Close ", 9900, bar.getScaledClose());
+		assertEquals("Volume ", 16, bar.getVolume());
+		assertEquals("Trades ", 3, bar.getTradeCount());
+		assertEquals("BigDecimal close ", "99.00", bar.getClose().toString());
+		assertTrue("A later interval started ", bar.isComplete());
+		assertFalse("Current bar ", series.getBar(11999).isComplete());
+		assertNull("No trades ", series.getBar(12000));
+	}
+
+	@Test
+	public void testOutOfOrderTrades() {
+
+		BarSeries series = new BarSeries(1000, 10, 2);
+
+		series.add(5500, 1, 200);
+		series.add(7200, 1, 300);
+
+		// late trades of an older interval change its open or close only when their timestamp is older or newer
+		assertTrue(series.add(5100, 2, 100));
+		assertTrue(series.add(5800, 3, 400));
+		assertTrue(series.add(5300, 4, 150));
+
+		Bar bar = series.getBar(5000);
+
+		assertEquals("Open from the oldest timestamp ", 100, bar.getScaledOpen());
+		assertEquals("Close from the newest timestamp ", 400, bar.getScaledClose());
+		assertEquals("Low ", 100, bar.getScaledLow());
+		assertEquals("Volume ", 10, bar.getVolume());
+
+		// an interval without trades between two others gets its bar when a late trade arrives
+		series.add(6400, 1, 250);
+
+		List<Bar> bars = series.getBars(0, Long.MAX_VALUE);
+
+		assertEquals("Bars ", 3, bars.size());
+		assertEquals("Sorted by start ", 6000, bars.get(1).getStart());
+		assertEquals("No dropped trades ", 0, series.getDroppedTrades());
+	}
+
+	@Test
+	public void testRingOverwritesOldIntervals() {
+
+		BarSeries series = new BarSeries(1000, 3, 2);
+
+		for(int i=0; i<6; i++) {
+			series.add(i * 1000, 1, 100 + i);
+		}
+
+		List<Bar> bars = series.getBars(Long.MIN_VALUE, Long.MAX_VALUE);
+
+		assertEquals("Only the capacity is kept ", 3, bars.size());
+		assertEquals("Oldest kept ", 3000, bars.get(0).getStart());
+		assertNull("Overwritten ", series.getBar(1000));
+
+		// a trade older than the ring is dropped
+		assertFalse(series.add(2500, 1, 100));
+		assertEquals("Dropped ", 1, series.getDroppedTrades());
+
+		// a gap longer than the ring leaves the old bars out of the queries even if their slots weren't overwritten
+		series.add(10000, 1, 200);
+
+		assertEquals("Only the new bar ", 1, series.getBars(0, 20000).size());
+		assertNull("Slot of an old interval ", series.getBar(5000));
+
+		// the range selects the bars by their start
+		assertEquals("Empty range ", 0, series.getBars(10001, 20000).size());
+		assertEquals("Range with the start ", 1, series.getBars(10000, 10001).size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidInterval() {
+
+		new BarSeries(0, 10, 2);
+	}
+}
@@ -0,0 +1,75 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Clock whose time is read from the system by a background daemon thread every few milliseconds, so reading it on the hot path of the trades is just
+ * reading a volatile field. The time can be behind the system time by up to the resolution, which is much less than the stock price window.
+ * The shared instance returned by getDefault has a resolution of 1 millisecond
+ * @author nsalgueiro
+ *
+ */
+public class CoarseClock implements StockClock, AutoCloseable {
+
+	private static final class DefaultHolder {	// created the first time it is used
+
+		private static final CoarseClock defaultClock = new CoarseClock(1);
+	}
+
+	private long resolutionNanos;
+	private volatile long time;			// Last time read by the ticker thread
+	private volatile boolean running;	// The ticker thread stops once this is false
+
+	/**
+	 * Method to retrieve the clock shared by all the stock exchanges that don't need their own, with a resolution of 1 millisecond
+	 * @return the shared clock
+	 */
+	public static CoarseClock getDefault() {
+		return DefaultHolder.defaultClock;
+	}
+
+	/**
+	 * Constructor for the class, it starts the ticker thread
+	 * @param resolutionMillis	- Milliseconds between two updates of the time
+	 */
+	public CoarseClock(long resolutionMillis) {
+
+		if(resolutionMillis<=0) {
+			throw new IllegalArgumentException("Invalid argument resolutionMillis, it must be greater than 0");
+		}
+
+		this.resolutionNanos = TimeUnit.MILLISECONDS.toNanos(resolutionMillis);
+		this.time = System.currentTimeMillis();
+		this.running = true;
+
+		Thread ticker = new Thread(this::tick, "CoarseClockTicker");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	private void tick() {
+
+		while(running) {
+
+			time = System.currentTimeMillis();
+			LockSupport.parkNanos(resolutionNanos);
+		}
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return time;
+	}
+
+	/**
+	 * Method to stop the ticker thread, afterwards the time doesn't change. The shared clock must not be closed
+	 */
+	@Override
+	public void close() {
+
+		if(this==getDefault()) {
+			throw new IllegalStateException("The shared clock can't be closed");
+		}
+
+		running = false;
+	}
+}
@@ -0,0 +1,79 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe version of the LatencyHistogram used by the ExchangeMetrics, many threads can record values at the same time without locks.
+ * It uses the same log-linear buckets, each bucket is an element of an AtomicLongArray and the total count and sum are striped counters,
+ * so recording a value creates no objects. A snapshot copies the buckets to a LatencyHistogram to calculate the percentiles, since the values keep
+ * being recorded while it is copied the snapshot can be a few values behind but it is never corrupted
+ * @author nsalgueiro
+ *
+ */
+public class ConcurrentLatencyHistogram {
+
+	private AtomicLongArray counts;
+	private LongAdder totalCount;
+	private LongAdder sum;
+	private AtomicLong max;
+
+	/**
+	 * Constructor for the class
+	 */
+	public ConcurrentLatencyHistogram() {
+
+		this.counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+		this.totalCount = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Method to count a value, it can be called by many threads at the same time
+	 * @param value	- The value, negative values are counted as 0
+	 */
+	public void recordValue(long value) {
+
+		if(value<0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(LatencyHistogram.bucketOf(value));
+		totalCount.increment();
+		sum.add(value);
+
+		// the maximum is read first so it is only written by the few values that are higher
+		long currentMax = max.get();
+
+		while(value>currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Method to copy the values counted so far
+	 * @return a new histogram with the values
+	 */
+	public LatencyHistogram snapshot() {
+
+		long[] copy = new long[LatencyHistogram.BUCKETS];
+		long copyCount = 0;
+
+		for(int i=0; i<copy.length; i++) {
+
+			copy[i] = counts.get(i);
+			copyCount += copy[i];
+		}
+
+		// the total is calculated from the copied buckets so the percentiles are coherent with it
+		return new LatencyHistogram(copy, copyCount, max.get(), sum.sum());
+	}
+
+	/**
+	 * Method to retrieve the number of values
+	 * @return number of values
+	 */
+	public long getTotalCount() {
+		return totalCount.sum();
+	}
+}
@@ -0,0 +1,16 @@
+/**
+ * Interface for receiving the errors and warnings of the stock exchange and its stocks, it replaces the messages printed to System.err.
+ * It is called by the trading threads so the implementations must not block, AsyncEventSink is the default one
+ * @author nsalgueiro
+ *
+ */
+public interface EventSink {
+
+	/**
+	 * Method called for every error or warning, the parameters are existing objects so reporting an event doesn't need to create any
+	 * @param code			- Kind of event
+	 * @param stockSymbol	- Symbol of the stock or null if the event is not for a stock
+	 * @param detail		- Additional information like the message of an exception, usually null
+	 */
+	void report(ResultCode code, String stockSymbol, String detail);
+}
@@ -0,0 +1,191 @@
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and throughput metrics of a StockExchange and its stocks. Every operation has a lock free histogram of its latencies, whose count is a striped counter,
+ * the time waited for the locks of the stocks has its own histograms, and every stock keeps striped counters of its own operations.
+ * Recording only reads the clock and increments counters, nothing is created, and when the metrics are disabled the clock is not even read.
+ * The values are read with a MetricsSnapshot or through JMX with MetricsDynamicMBean
+ * @author nsalgueiro
+ *
+ */
+public class ExchangeMetrics {
+
+	/**
+	 * Measured operations
+	 */
+	public static enum Operation {
+		ADD_TRADE,			// StockElement.addTradeAction
+		ADD_TRADE_BATCH,	// StockElement.addTradeActions for the trades of one stock and the fills of each order of the OrderBook
+		STOCK_PRICE,		// StockElement.calculateStockPrice
+		DIVIDEND_YIELD,		// StockElement.getDividendYield
+		PE_RATIO,			// StockElement.getPERatio
+		GBCE_INDEX,			// StockExchange.calculateGBCEAllShareIndex
+		GET_STOCK,			// StockExchange.getStock
+		ADD_STOCK,			// StockExchange.addStock
+		REMOVE_STOCK		// StockExchange.removeStock
+	};
+
+	/**
+	 * Locks whose wait time is measured
+	 */
+	public static enum Lock {
+		TRADES			// lock of the trades of a stock, the dividends, par value and type are read without a lock
+	};
+
+	// Shared instance used by the stocks that don't belong to a StockExchange, nothing is recorded
+	static final ExchangeMetrics DISABLED = new ExchangeMetrics(false);
+
+	private volatile boolean enabled;
+
+	private ConcurrentLatencyHistogram[] latencies;
+	private ConcurrentLatencyHistogram[] lockWaits;
+
+	/**
+	 * Constructor for the class, the metrics are enabled
+	 */
+	public ExchangeMetrics() {
+
+		this(true);
+	}
+
+	/**
+	 * Constructor for the class
+	 * @param enabled	- true to start recording right away
+	 */
+	public ExchangeMetrics(boolean enabled) {
+
+		this.enabled = enabled;
+
+		this.latencies = new ConcurrentLatencyHistogram[Operation.values().length];
+		this.lockWaits = new ConcurrentLatencyHistogram[Lock.values().length];
+
+		for(int i=0; i<latencies.length; i++) {
+			latencies[i] = new ConcurrentLatencyHistogram();
+		}
+
+		for(int i=0; i<lockWaits.length; i++) {
+			lockWaits[i] = new ConcurrentLatencyHistogram();
+		}
+	}
+
+	/**
+	 * Method to create the counters that each stock keeps of its own operations
+	 * @return one counter for each operation
+	 */
+	static LongAdder[] newCounters() {
+
+		LongAdder[] counters = new LongAdder[Operation.values().length];
+
+		for(int i=0; i<counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+
+		return counters;
+	}
+
+	/**
+	 * Method to enable or disable the recording, the values recorded so far are kept
+	 * @param pEnabled	- true to record
+	 */
+	public void setEnabled(boolean pEnabled) {
+
+		if(this==DISABLED) {
+			throw new IllegalStateException("The shared disabled metrics cannot be enabled");
+		}
+
+		this.enabled = pEnabled;
+	}
+
+	/**
+	 * Method to know if the metrics are being recorded
+	 * @return true if they are enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Method called when an operation starts or before waiting for a lock
+	 * @return the current nanoTime or 0 when the metrics are disabled, the other methods record nothing when they receive 0
+	 */
+	long start() {
+
+		return (enabled ? System.nanoTime() : 0);
+	}
+
+	/**
+	 * Method called once a lock is acquired to record how long the thread waited for it
+	 * @param lock		- The lock
+	 * @param requested	- Value returned by start() before waiting for the lock
+	 */
+	void lockAcquired(Lock lock, long requested) {
+
+		if(requested!=0) {
+			lockWaits[lock.ordinal()].recordValue(System.nanoTime() - requested);
+		}
+	}
+
+	/**
+	 * Method called when an operation finishes to record its latency
+	 * @param operation		- The operation
+	 * @param started		- Value returned by start() when the operation started
+	 * @param stockCounters	- Counters of the stock of the operation or null if it is not an operation of a stock
+	 */
+	void record(Operation operation, long started, LongAdder[] stockCounters) {
+
+		if(started!=0) {
+
+			latencies[operation.ordinal()].recordValue(System.nanoTime() - started);
+
+			if(stockCounters!=null) {
+				stockCounters[operation.ordinal()].increment();
+			}
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of times an operation was recorded
+	 * @param operation	- The operation
+	 * @return the count
+	 */
+	public long getCount(Operation operation) {
+		return latencies[operation.ordinal()].getTotalCount();
+	}
+
+	/**
+	 * Method to copy the current values
+	 * @param stocks	- Stocks whose counters are included in the snapshot
+	 * @return the snapshot
+	 */
+	public MetricsSnapshot snapshot(Collection<StockElement> stocks) {
+
+		Map<Operation, LatencyHistogram> operationLatencies = new HashMap<Operation, LatencyHistogram>();
+		Map<Lock, LatencyHistogram> lockLatencies = new HashMap<Lock, LatencyHistogram>();
+		Map<String, long[]> stockCounts = new HashMap<String, long[]>();
+
+		for(Operation operation: Operation.values()) {
+			operationLatencies.put(operation, latencies[operation.ordinal()].snapshot());
+		}
+
+		for(Lock lock: Lock.values()) {
+			lockLatencies.put(lock, lockWaits[lock.ordinal()].snapshot());
+		}
+
+		for(StockElement stock: stocks) {
+
+			LongAdder[] counters = stock.getOperationCounters();
+			long[] values = new long[counters.length];
+
+			for(int i=0; i<values.length; i++) {
+				values[i] = counters[i].sum();
+			}
+
+			stockCounts.put(stock.getStockSymbol(), values);
+		}
+
+		return new MetricsSnapshot(System.currentTimeMillis(), operationLatencies, lockLatencies, stockCounts);
+	}
+}
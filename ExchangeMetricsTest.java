@@ -0,0 +1,136 @@
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class ExchangeMetricsTest {
+
+	private static StockExchange newExchange() {
+
+		StockExchange stockExchange = new StockExchange();
+		stockExchange.setEventSink(new AsyncEventSink(16, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err));
+
+		stockExchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		stockExchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+
+		return stockExchange;
+	}
+
+	@Test
+	public void testOperationsAreCounted() {
+
+		StockExchange stockExchange = newExchange();
+		StockElement pop = stockExchange.getStock("POP");
+		long now = System.currentTimeMillis();
+
+		for(int i=0; i<10; i++) {
+			pop.addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, new BigDecimal(100 + i));
+		}
+
+		pop.addTradeAction(0, 10, StockTradeAction.actionTypes.BUY, 100L);	// rejected trades are measured as well
+		pop.calculateStockPrice();
+		pop.getDividendYield();
+		pop.getPERatio();
+		stockExchange.calculateGBCEAllShareIndex();
+
+		MetricsSnapshot snapshot = stockExchange.getMetricsSnapshot();
+
+		assertEquals("Trades ", 11, snapshot.getCount(ExchangeMetrics.Operation.ADD_TRADE));
+		assertEquals("Stock price ", 1, snapshot.getCount(ExchangeMetrics.Operation.STOCK_PRICE));
+		assertEquals("Dividend yield ", 1, snapshot.getCount(ExchangeMetrics.Operation.DIVIDEND_YIELD));
+		assertEquals("P/E ratio ", 1, snapshot.getCount(ExchangeMetrics.Operation.PE_RATIO));
+		assertEquals("GBCE index ", 1, snapshot.getCount(ExchangeMetrics.Operation.GBCE_INDEX));
+		assertEquals("Added stocks ", 2, snapshot.getCount(ExchangeMetrics.Operation.ADD_STOCK));
+		assertEquals("Stock lookups ", 1, snapshot.getCount(ExchangeMetrics.Operation.GET_STOCK));
+
+		// only the trades that took the lock have a wait
+		assertEquals("Trades lock waits ", 11, snapshot.getLockWaits(ExchangeMetrics.Lock.TRADES).getTotalCount());
+
+		assertEquals("POP trades ", 11, snapshot.getStockCount("POP", ExchangeMetrics.Operation.ADD_TRADE));
+		assertEquals("TEA trades ", 0, snapshot.getStockCount("TEA", ExchangeMetrics.Operation.ADD_TRADE));
+		assertEquals("Unknown stock ", 0, snapshot.getStockCount("XXX", ExchangeMetrics.Operation.ADD_TRADE));
+
+		assertTrue("Latency ", snapshot.getLatencies(ExchangeMetrics.Operation.ADD_TRADE).getMax()>0);
+	}
+
+	@Test
+	public void testDisabledMetrics() {
+
+		StockExchange stockExchange = newExchange();
+		stockExchange.getMetrics().setEnabled(false);
+
+		stockExchange.getStock("POP").addTradeAction(System.currentTimeMillis(), 10, StockTradeAction.actionTypes.BUY, new BigDecimal(100));
+
+		MetricsSnapshot snapshot = stockExchange.getMetricsSnapshot();
+
+		assertEquals("Trades ", 0, snapshot.getCount(ExchangeMetrics.Operation.ADD_TRADE));
+		assertEquals("POP trades ", 0, snapshot.getStockCount("POP", ExchangeMetrics.Operation.ADD_TRADE));
+
+		// a stock outside of an exchange records nothing
+		StockElement stock = new StockElement("ALE", StockElement.StockTypes.COMMON, new BigDecimal(23), new BigDecimal(0), new BigDecimal(60));
+		stock.calculateStockPrice();
+
+		assertEquals("Stock outside of an exchange ", 0, stock.getOperationCounters()[ExchangeMetrics.Operation.STOCK_PRICE.ordinal()].sum());
+	}
+
+	@Test
+	public void testConcurrentHistogram() throws InterruptedException {
+
+		final ConcurrentLatencyHistogram histogram = new ConcurrentLatencyHistogram();
+		Thread[] threads = new Thread[4];
+
+		for(int t=0; t<threads.length; t++) {
+
+			threads[t] = new Thread(() -> {
+
+				for(long value=1; value<=100000; value++) {
+					histogram.recordValue(value);
+				}
+			});
+			threads[t].start();
+		}
+
+		for(Thread thread: threads) {
+			thread.join();
+		}
+
+		LatencyHistogram snapshot = histogram.snapshot();
+
+		assertEquals("Count ", 400000, snapshot.getTotalCount());
+		assertEquals("Max ", 100000, snapshot.getMax());
+		assertEquals("Mean ", 50000.5, snapshot.getMean(), 0.01);
+		assertTrue("Median ", Math.abs(snapshot.getValueAtPercentile(50) - 50000)<=50000 * 0.016);
+	}
+
+	@Test
+	public void testMBean() throws Exception {
+
+		StockExchange stockExchange = newExchange();
+		stockExchange.getStock("POP").calculateStockPrice();
+
+		ObjectName name = stockExchange.registerMetricsMBean("ExchangeMetricsTest");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+
+			assertEquals("Count ", 1L, server.getAttribute(name, "StockPriceCount"));
+			assertEquals("Lock waits ", 1L, server.getAttribute(name, "TradesLockWaitCount"));
+			assertTrue("P99 ", (Long) server.getAttribute(name, "StockPriceP99Nanos")>0);
+			assertEquals("Stock counts ", "POP ADD_TRADE=0 ADD_TRADE_BATCH=0 STOCK_PRICE=1 DIVIDEND_YIELD=0 PE_RATIO=0 GBCE_INDEX=0 GET_STOCK=0 ADD_STOCK=0 REMOVE_STOCK=0",
+					server.invoke(name, "getStockCounts", new Object[] {"POP"}, new String[] {"java.lang.String"}));
+
+			server.setAttribute(name, new Attribute("Enabled", false));
+			assertFalse("Disabled ", stockExchange.getMetrics().isEnabled());
+
+		} finally {
+
+			server.unregisterMBean(name);
+		}
+	}
+}
@@ -0,0 +1,476 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snapshot of all the stocks of a StockExchange in a compact binary file, so a process can start from the snapshot instead of adding the trades one by one.
+ * For each stock it keeps the reference data, the ticker price, the trades and the sums of the stock price window, the trades are written column by column
+ * (all the timestamps, then all the quantities, prices, sides and value scales) and restored straight into the chunks of the TradeStore with bulk copies.
+ *
+ * Writing a snapshot doesn't stop the trading: the state of each stock is captured while holding its lock only for the time needed to copy the references
+ * to its chunks of trades (the chunks are copy on write), all the stocks are captured first and then written without any lock. Each stock is consistent
+ * on its own, the trades that arrive while the stocks are being captured may be in the snapshot of some stocks and not of others.
+ * The file is written with another name and renamed at the end so a crash never leaves a half written snapshot.
+ *
+ * Layout (little endian):
+ *   header		- int magic "JPSS", int version, long time of the snapshot, int number of stocks
+ *   stock		- symbol, byte stock type, decimal lastDividend, fixedDividend and parValue, int price scale,
+ *				  long scaled ticker price, byte 1 and a decimal if the ticker price is kept as a BigDecimal or 0,
+ *				  int window start, long quantity sum, long scaled price*quantity sum, decimal rest of the price*quantity sum,
+ *				  int number of trades, the five columns, int number of prices not representable as fixed point values and for each one int position and decimal
+ *   symbol		- short length and UTF-8 bytes
+ *   decimal	- int scale, short length and the bytes of the unscaled value
+ * The bar series and the order books are not part of the snapshot
+ * @author nsalgueiro
+ *
+ */
+public class ExchangeSnapshot {
+
+	static final int MAGIC = 0x4A505353;	// "JPSS"
+	static final int VERSION = 1;
+
+	private static final int _BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Method to write a snapshot of all the stocks of a stock exchange, the stocks keep trading while it is written
+	 * @param exchange	- The stock exchange
+	 * @param file		- File of the snapshot, it is replaced if it exists
+	 * @return the number of trades written
+	 * @throws IOException when the file can't be written
+	 */
+	public static long write(StockExchange exchange, Path file) throws IOException {
+
+		if(exchange==null || file==null) {
+			throw new IllegalArgumentException("Invalid arguments, no null values allowed");
+		}
+
+		long time = exchange.getClock().currentTimeMillis();
+
+		// all the stocks are captured before anything is written so the time between the first and the last one is as short as possible
+		List<StockElement> stocks = exchange.getAllStocks();
+		List<StockElement.SnapshotState> states = new ArrayList<StockElement.SnapshotState>(stocks.size());
+
+		for(StockElement stock: stocks) {
+			states.add(stock.captureSnapshot());
+		}
+
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		long trades = 0;
+
+		try(Output out = new Output(FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putLong(time);
+			out.putInt(stocks.size());
+
+			for(int i=0; i<stocks.size(); i++) {
+				trades += writeStock(out, stocks.get(i), states.get(i));
+			}
+
+			out.force();
+		}
+
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		return trades;
+	}
+
+	private static int writeStock(Output out, StockElement stock, StockElement.SnapshotState state) throws IOException {
+
+		out.putSymbol(stock.getStockSymbol());
+		out.put((byte) stock.getStockType().ordinal());
+		out.putDecimal(stock.getLastDividend());
+		out.putDecimal(stock.getFixedDividend());
+		out.putDecimal(stock.getParValue());
+		out.putInt(stock.getPriceScale());
+
+		out.putLong(state.scaledTickerPrice);
+		out.put((byte) (state.tickerPrice!=null ? 1 : 0));
+
+		if(state.tickerPrice!=null) {
+			out.putDecimal(state.tickerPrice);
+		}
+
+		out.putInt(state.windowStart);
+		out.putLong(state.quantitySum);
+		out.putLong(state.scaledPriceTimesQuantitySum);
+		out.putDecimal(state.priceTimesQuantitySum);
+
+		List<StockTradeAction> trades = state.trades;
+
+		out.putInt(trades.size());
+		TradeStore.writeColumns(trades, out);
+
+		// the prices that are not fixed point values go at the end, they are very rare
+		int[] bigPositions = TradeStore.findNotRepresentable(trades);
+
+		out.putInt(bigPositions.length);
+
+		for(int position: bigPositions) {
+
+			out.putInt(position);
+			out.putDecimal(trades.get(position).getValue());
+		}
+
+		return trades.size();
+	}
+
+	/**
+	 * Method to add the stocks of a snapshot to a stock exchange, the exchange must not have a journal. The stocks that already exist are not changed.
+	 * The settings of the exchange (clock, retention policy, event sink...) should be set before so the restored stocks use them
+	 * @param exchange	- The stock exchange
+	 * @param file		- File of the snapshot
+	 * @return the number of stocks restored
+	 * @throws IOException when the file can't be read or is not a valid snapshot
+	 */
+	public static int restore(StockExchange exchange, Path file) throws IOException {
+
+		if(exchange==null || file==null) {
+			throw new IllegalArgumentException("Invalid arguments, no null values allowed");
+		}
+
+		int restored = 0;
+
+		try(Input in = new Input(FileChannel.open(file, StandardOpenOption.READ))) {
+
+			if(in.getInt()!=MAGIC || in.getInt()!=VERSION) {
+				throw new IOException("The file " + file + " is not a snapshot of a stock exchange");
+			}
+
+			in.getLong();	// time of the snapshot
+
+			int stockCount = in.getInt();
+
+			for(int i=0; i<stockCount; i++) {
+
+				StockElement stock = readStock(in);
+
+				if(exchange.addRestoredStock(stock)==ResultCode.OK) {
+					restored++;
+				}
+			}
+		}
+
+		return restored;
+	}
+
+	/**
+	 * Method to read the time when a snapshot was written
+	 * @param file	- File of the snapshot
+	 * @return the time in milliseconds, the time of the clock of the stock exchange
+	 */
+	public static long readTime(Path file) throws IOException {
+
+		try(Input in = new Input(FileChannel.open(file, StandardOpenOption.READ))) {
+
+			if(in.getInt()!=MAGIC || in.getInt()!=VERSION) {
+				throw new IOException("The file " + file + " is not a snapshot of a stock exchange");
+			}
+
+			return in.getLong();
+		}
+	}
+
+	private static StockElement readStock(Input in) throws IOException {
+
+		String stockSymbol = in.getSymbol();
+		int stockType = in.get();
+
+		if(stockType<0 || stockType>=StockElement.StockTypes.values().length) {
+			throw new IOException("Invalid stock type " + stockType + " for the stock " + stockSymbol);
+		}
+
+		BigDecimal lastDividend = in.getDecimal();
+		BigDecimal fixedDividend = in.getDecimal();
+		BigDecimal parValue = in.getDecimal();
+		int priceScale = in.getInt();
+
+		StockElement stock = new StockElement(stockSymbol, StockElement.StockTypes.values()[stockType], lastDividend, fixedDividend, parValue, priceScale);
+		StockElement.SnapshotState state = new StockElement.SnapshotState();
+
+		state.scaledTickerPrice = in.getLong();
+		state.tickerPrice = (in.get()!=0 ? in.getDecimal() : null);
+		state.windowStart = in.getInt();
+		state.quantitySum = in.getLong();
+		state.scaledPriceTimesQuantitySum = in.getLong();
+		state.priceTimesQuantitySum = in.getDecimal();
+
+		final int tradeCount = in.getInt();
+
+		if(tradeCount<0 || state.windowStart<0 || state.windowStart>tradeCount) {
+			throw new IOException("Invalid number of trades for the stock " + stockSymbol);
+		}
+
+		stock.restoreSnapshot(state, store -> {
+
+			store.readColumns(tradeCount, in);
+
+			int bigCount = in.getInt();
+
+			for(int i=0; i<bigCount; i++) {
+
+				int position = in.getInt();
+
+				if(position<0 || position>=tradeCount) {
+					throw new IOException("Invalid trade position for the stock " + stockSymbol);
+				}
+
+				store.restoreValue(position, in.getDecimal());
+			}
+		});
+
+		return stock;
+	}
+
+	/**
+	 * Buffered writer of the file, the columns of the trades are copied to the direct buffer with bulk copies
+	 */
+	private static final class Output implements TradeStore.Columns, AutoCloseable {
+
+		private FileChannel channel;
+		private ByteBuffer buffer;
+
+		private Output(FileChannel channel) {
+
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		private void ensure(int bytes) throws IOException {
+
+			if(buffer.remaining()<bytes) {
+				flush();
+			}
+		}
+
+		private void flush() throws IOException {
+
+			buffer.flip();
+
+			while(buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+
+			buffer.clear();
+		}
+
+		private void put(byte value) throws IOException {
+
+			ensure(1);
+			buffer.put(value);
+		}
+
+		private void putInt(int value) throws IOException {
+
+			ensure(4);
+			buffer.putInt(value);
+		}
+
+		private void putLong(long value) throws IOException {
+
+			ensure(8);
+			buffer.putLong(value);
+		}
+
+		private void putBytes(byte[] bytes) throws IOException {
+			bytes(bytes, 0, bytes.length);
+		}
+
+		private void putSymbol(String stockSymbol) throws IOException {
+
+			byte[] bytes = stockSymbol.getBytes(StandardCharsets.UTF_8);
+
+			ensure(2);
+			buffer.putShort((short) bytes.length);
+			putBytes(bytes);
+		}
+
+		private void putDecimal(BigDecimal value) throws IOException {
+
+			byte[] unscaled = value.unscaledValue().toByteArray();
+
+			putInt(value.scale());
+			ensure(2);
+			buffer.putShort((short) unscaled.length);
+			putBytes(unscaled);
+		}
+
+		@Override
+		public void longs(long[] values, int offset, int length) throws IOException {
+
+			while(length>0) {
+
+				ensure(8);
+
+				int count = Math.min(length, buffer.remaining() / 8);
+
+				buffer.asLongBuffer().put(values, offset, count);
+				buffer.position(buffer.position() + count * 8);
+				offset += count;
+				length -= count;
+			}
+		}
+
+		@Override
+		public void bytes(byte[] values, int offset, int length) throws IOException {
+
+			while(length>0) {
+
+				ensure(1);
+
+				int count = Math.min(length, buffer.remaining());
+
+				buffer.put(values, offset, count);
+				offset += count;
+				length -= count;
+			}
+		}
+
+		private void force() throws IOException {
+
+			flush();
+			channel.force(false);
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			flush();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Buffered reader of the file, the buffer is filled with large reads and the columns are copied from it with bulk copies
+	 */
+	private static final class Input implements TradeStore.Columns, AutoCloseable {
+
+		private FileChannel channel;
+		private ByteBuffer buffer;
+
+		private Input(FileChannel channel) {
+
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			this.buffer.flip();	// empty
+		}
+
+		private void require(int bytes) throws IOException {
+
+			if(buffer.remaining()>=bytes) {
+				return;
+			}
+
+			buffer.compact();
+
+			try {
+
+				while(buffer.position()<bytes) {
+
+					if(channel.read(buffer)<0) {
+						throw new EOFException("The snapshot is truncated");
+					}
+				}
+
+			} finally {
+
+				buffer.flip();
+			}
+		}
+
+		private byte get() throws IOException {
+
+			require(1);
+			return buffer.get();
+		}
+
+		private int getInt() throws IOException {
+
+			require(4);
+			return buffer.getInt();
+		}
+
+		private long getLong() throws IOException {
+
+			require(8);
+			return buffer.getLong();
+		}
+
+		private byte[] getBytes(int length) throws IOException {
+
+			byte[] bytes = new byte[length];
+
+			bytes(bytes, 0, length);
+			return bytes;
+		}
+
+		private String getSymbol() throws IOException {
+
+			require(2);
+			return new String(getBytes(buffer.getShort() & 0xFFFF), StandardCharsets.UTF_8);
+		}
+
+		private BigDecimal getDecimal() throws IOException {
+
+			int scale = getInt();
+
+			require(2);
+
+			int length = buffer.getShort() & 0xFFFF;
+
+			if(length==0) {
+				throw new IOException("Invalid decimal value in the snapshot");
+			}
+
+			return new BigDecimal(new BigInteger(getBytes(length)), scale);
+		}
+
+		@Override
+		public void longs(long[] values, int offset, int length) throws IOException {
+
+			while(length>0) {
+
+				require(8);
+
+				int count = Math.min(length, buffer.remaining() / 8);
+
+				buffer.asLongBuffer().get(values, offset, count);
+				buffer.position(buffer.position() + count * 8);
+				offset += count;
+				length -= count;
+			}
+		}
+
+		@Override
+		public void bytes(byte[] values, int offset, int length) throws IOException {
+
+			while(length>0) {
+
+				require(1);
+
+				int count = Math.min(length, buffer.remaining());
+
+				buffer.get(values, offset, count);
+				offset += count;
+				length -= count;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
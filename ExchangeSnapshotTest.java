@@ -0,0 +1,198 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExchangeSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final long NOW = 1700000000000L;
+
+	private static StockExchange newExchange(ManualClock clock) {
+
+		StockExchange exchange = new StockExchange();
+
+		exchange.setEventSink(new AsyncEventSink(1024, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err));
+		exchange.setClock(clock);
+
+		return exchange;
+	}
+
+	private static void assertSameTrades(List<StockTradeAction> expected, List<StockTradeAction> actual) {
+
+		assertEquals(expected.size(), actual.size());
+
+		for(int i=0; i<expected.size(); i++) {
+
+			assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+			assertEquals(expected.get(i).getQuantity(), actual.get(i).getQuantity());
+			assertEquals(expected.get(i).getAction(), actual.get(i).getAction());
+			assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+		}
+	}
+
+	@Test
+	public void testWriteAndRestore() throws IOException {
+
+		ManualClock clock = new ManualClock(NOW);
+		StockExchange exchange = newExchange(clock);
+
+		exchange.setRetentionPolicy(RetentionPolicy.keepTrades(100000));	// so the trades outside the window are kept
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, BigDecimal.ZERO, BigDecimal.ZERO, new BigDecimal(100));
+		exchange.addStock("GIN", StockElement.StockTypes.PREFERRED, new BigDecimal(8), new BigDecimal("0.02"), new BigDecimal(100));
+
+		StockElement gin = exchange.getStock("GIN");
+
+		// more than one chunk of trades, some of them out of order, one outside the window and one with a price that is not a fixed point value
+		for(int i=0; i<3000; i++) {
+			gin.addTradeAction(NOW - 1000 - (i % 7) * 10, 1 + i % 5, (i % 2==0 ? StockTradeAction.actionTypes.BUY : StockTradeAction.actionTypes.SELL), new BigDecimal(100 + i % 13));
+		}
+
+		gin.addTradeAction(NOW - 60L * 60 * 1000, 10, null, new BigDecimal("99.5"));
+		gin.addTradeAction(NOW, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("101.12345678901234567890"));
+		exchange.getStock("TEA").addTradeAction(NOW, 5, StockTradeAction.actionTypes.SELL, new BigDecimal("1.25"));
+
+		Path file = folder.getRoot().toPath().resolve("exchange.snapshot");
+
+		assertEquals(3003, ExchangeSnapshot.write(exchange, file));
+		assertEquals(NOW, ExchangeSnapshot.readTime(file));
+		assertFalse(Files.exists(file.resolveSibling("exchange.snapshot.tmp")));
+
+		StockExchange restored = newExchange(new ManualClock(NOW));
+
+		restored.setRetentionPolicy(RetentionPolicy.keepTrades(100000));
+		assertEquals(2, ExchangeSnapshot.restore(restored, file));
+
+		for(String symbol: new String[] {"TEA", "GIN"}) {
+
+			StockElement original = exchange.getStock(symbol);
+			StockElement copy = restored.getStock(symbol);
+
+			assertEquals(original.getStockType(), copy.getStockType());
+			assertEquals(original.getLastDividend(), copy.getLastDividend());
+			assertEquals(original.getFixedDividend(), copy.getFixedDividend());
+			assertEquals(original.getParValue(), copy.getParValue());
+			assertEquals(original.getTickerPrice(), copy.getTickerPrice());
+			assertEquals(original.calculateStockPrice(), copy.calculateStockPrice());
+			assertEquals(original.getDividendYield(), copy.getDividendYield());
+			assertSameTrades(original.getTradeActions(), copy.getTradeActions());
+			assertTrue(copy.getStockId()>=0);
+		}
+
+		// the stock prices reached the index of the new exchange
+		assertEquals(exchange.calculateGBCEAllShareIndex(), restored.calculateGBCEAllShareIndex());
+
+		// the restored stocks keep trading and their window keeps working
+		restored.getStock("TEA").addTradeAction(NOW, 5, StockTradeAction.actionTypes.BUY, new BigDecimal("1.75"));
+		assertEquals(0, new BigDecimal("1.5").compareTo(restored.getStock("TEA").calculateStockPrice()));
+
+		// the stocks that already exist are not replaced
+		assertEquals(0, ExchangeSnapshot.restore(restored, file));
+		assertEquals(2, restored.getStock("TEA").getTradeActions().size());
+	}
+
+	@Test
+	public void testRestoreOverAnExistingStock() throws IOException {
+
+		StockExchange exchange = newExchange(new ManualClock(NOW));
+
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, BigDecimal.ZERO, BigDecimal.ZERO, new BigDecimal(100));
+		exchange.addStock("GIN", StockElement.StockTypes.PREFERRED, new BigDecimal(8), new BigDecimal("0.02"), new BigDecimal(100));
+		exchange.getStock("TEA").addTradeAction(NOW, 5, StockTradeAction.actionTypes.SELL, new BigDecimal("1.25"));
+		exchange.getStock("GIN").addTradeAction(NOW, 5, StockTradeAction.actionTypes.BUY, new BigDecimal("9"));
+
+		Path file = folder.getRoot().toPath().resolve("exchange.snapshot");
+		ExchangeSnapshot.write(exchange, file);
+
+		// the exchange already has TEA with another price, the restored TEA is not added and its price must not reach the index
+		StockExchange restored = newExchange(new ManualClock(NOW));
+
+		restored.addStock("TEA", StockElement.StockTypes.COMMON, BigDecimal.ZERO, BigDecimal.ZERO, new BigDecimal(100));
+		restored.getStock("TEA").addTradeAction(NOW, 5, StockTradeAction.actionTypes.BUY, new BigDecimal("4"));
+
+		assertEquals(1, ExchangeSnapshot.restore(restored, file));
+		assertEquals(2, restored.getGBCEIndex().size());
+		assertEquals(0, new BigDecimal("6").compareTo(restored.calculateGBCEAllShareIndex()));
+	}
+
+	@Test
+	public void testWriteWhileTrading() throws Exception {
+
+		ManualClock clock = new ManualClock(NOW);
+		StockExchange exchange = newExchange(clock);
+
+		exchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100));
+
+		final StockElement pop = exchange.getStock("POP");
+
+		for(int i=0; i<10000; i++) {
+			pop.addTradeAction(NOW, 1, StockTradeAction.actionTypes.BUY, 100000000L + i);
+		}
+
+		final AtomicBoolean stop = new AtomicBoolean();
+
+		Thread trader = new Thread(() -> {
+
+			long i = 0;
+
+			while(!stop.get()) {
+				pop.addTradeAction(NOW, 1, StockTradeAction.actionTypes.SELL, 100000000L + (i++ % 1000));
+			}
+		});
+
+		trader.start();
+
+		Path file = folder.getRoot().toPath().resolve("trading.snapshot");
+
+		try {
+
+			for(int run=0; run<5; run++) {
+
+				long written = ExchangeSnapshot.write(exchange, file);
+
+				StockExchange restored = newExchange(new ManualClock(NOW));
+				ExchangeSnapshot.restore(restored, file);
+
+				StockElement copy = restored.getStock("POP");
+				List<StockTradeAction> trades = copy.getTradeActions();
+
+				assertEquals(written, trades.size());
+
+				// the sums of the window written with the trades must be the ones of those trades
+				StockElement rebuilt = new StockElement("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100));
+				rebuilt.setClock(new ManualClock(NOW));
+
+				for(StockTradeAction trade: trades) {
+					rebuilt.addTradeAction(trade.getTimestamp(), trade.getQuantity(), trade.getAction(), trade.getValue());
+				}
+
+				assertEquals(rebuilt.calculateStockPrice(), copy.calculateStockPrice());
+			}
+
+		} finally {
+
+			stop.set(true);
+			trader.join();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidFile() throws IOException {
+
+		Path file = folder.newFile("invalid.snapshot").toPath();
+
+		Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+
+		ExchangeSnapshot.restore(new StockExchange(), file);
+	}
+}
@@ -0,0 +1,156 @@
+import java.math.BigDecimal;
+
+/**
+ * Helper methods for the fixed point representation of prices used in the hot path of the trades, a price is kept in a long as its value multiplied by 10^scale
+ * (for example 50.5 with scale 6 is kept as 50500000) so the calculations don't need to create BigDecimal objects.
+ * Prices that can't be represented exactly with the scale or that don't fit in a long are marked as NOT_REPRESENTABLE and the callers use BigDecimal for them,
+ * this way the results are always exactly the same as the ones calculated only with BigDecimal
+ * @author nsalgueiro
+ *
+ */
+public final class FixedPointPrice {
+
+	public static final long NOT_REPRESENTABLE = Long.MIN_VALUE;	// Value used when a price can't be kept as a scaled long
+
+	public static final int MAX_SCALE = 18;	// 10^18 is the largest power of ten that fits in a long
+
+	// The default scale can be changed with the system property stock.priceScale, 6 decimal places are enough for the prices used in this exercise
+	public static final int DEFAULT_SCALE = readDefaultScale();
+
+	private static final long[] POWERS_OF_TEN = new long[MAX_SCALE + 1];
+
+	static {
+
+		POWERS_OF_TEN[0] = 1;
+
+		for(int i=1; i<=MAX_SCALE; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i-1] * 10;
+		}
+	}
+
+	private FixedPointPrice() {
+		// only static methods
+	}
+
+	private static int readDefaultScale() {
+
+		int scale = Integer.getInteger("stock.priceScale", 6);
+
+		if(scale<0 || scale>MAX_SCALE) {
+			throw new IllegalArgumentException("Invalid system property stock.priceScale, it must be between 0 and " + MAX_SCALE);
+		}
+
+		return scale;
+	}
+
+	/**
+	 * Method to check that a scale can be used for fixed point prices
+	 * @param scale	- The scale to check
+	 * @return the same scale
+	 */
+	public static int checkScale(int scale) {
+
+		if(scale<0 || scale>MAX_SCALE) {
+			throw new IllegalArgumentException("Invalid argument scale, it must be between 0 and " + MAX_SCALE);
+		}
+
+		return scale;
+	}
+
+	/**
+	 * Method to retrieve 10^exponent as a long
+	 * @param exponent	- Exponent between 0 and MAX_SCALE
+	 * @return the power of ten
+	 */
+	public static long powerOfTen(int exponent) {
+		return POWERS_OF_TEN[exponent];
+	}
+
+	/**
+	 * Method to convert a BigDecimal to a scaled long
+	 * @param value	- The value to convert
+	 * @param scale	- The scale of the result
+	 * @return the scaled value or NOT_REPRESENTABLE if it is null, if it can't be converted without losing precision or if it doesn't fit in a long
+	 */
+	public static long toScaled(BigDecimal value, int scale) {
+
+		if(value==null) {
+			return NOT_REPRESENTABLE;
+		}
+
+		// We first discard the values that would need rounding so we don't rely on exceptions for them, they are common when prices come from doubles
+		if(value.scale()>scale && value.stripTrailingZeros().scale()>scale) {
+			return NOT_REPRESENTABLE;
+		}
+
+		try {
+
+			long scaled = value.movePointRight(scale).longValueExact();
+			return (scaled==NOT_REPRESENTABLE ? NOT_REPRESENTABLE : scaled);
+
+		} catch (ArithmeticException e) {	// the value doesn't fit in a long
+
+			return NOT_REPRESENTABLE;
+		}
+	}
+
+	/**
+	 * Method to convert a scaled long to a BigDecimal, this is only done when a value leaves the fixed point calculations
+	 * @param scaled	- The scaled value
+	 * @param scale		- The scale of the value
+	 * @return the BigDecimal value
+	 */
+	public static BigDecimal toBigDecimal(long scaled, int scale) {
+
+		return BigDecimal.valueOf(scaled, scale);
+	}
+
+	/**
+	 * Method to change the scale of a scaled long
+	 * @param scaled	- The scaled value
+	 * @param fromScale	- The current scale of the value
+	 * @param toScale	- The new scale
+	 * @return the value with the new scale or NOT_REPRESENTABLE if it would lose precision or overflow
+	 */
+	public static long rescale(long scaled, int fromScale, int toScale) {
+
+		if(scaled==NOT_REPRESENTABLE || fromScale==toScale) {
+			return scaled;
+		}
+
+		if(toScale>fromScale) {
+
+			long factor = POWERS_OF_TEN[toScale - fromScale];
+			long result = scaled * factor;
+
+			// overflow detection without exceptions, the division must give back the original value
+			return (result / factor == scaled && result!=NOT_REPRESENTABLE ? result : NOT_REPRESENTABLE);
+
+		} else {
+
+			long factor = POWERS_OF_TEN[fromScale - toScale];
+
+			return (scaled % factor == 0 ? scaled / factor : NOT_REPRESENTABLE);
+		}
+	}
+
+	/**
+	 * Method to divide two longs rounding the result with the half up rule (ties away from zero), the same rule of BigDecimal.ROUND_HALF_UP
+	 * @param dividend	- The dividend
+	 * @param divisor	- The divisor, it can't be 0
+	 * @return the rounded quotient
+	 */
+	public static long divideHalfUp(long dividend, long divisor) {
+
+		long quotient = dividend / divisor;
+		long remainder = Math.abs(dividend % divisor);
+
+		// the remainder is at least half of the divisor, written this way so it can't overflow
+		if(remainder >= Math.abs(divisor) - remainder) {
+
+			quotient += ((dividend < 0) == (divisor < 0) ? 1 : -1);
+		}
+
+		return quotient;
+	}
+}
@@ -0,0 +1,56 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FixedPointPriceTest {
+
+	@Test
+	public void testToScaledAndBack() {
+
+		// values that can be represented with 6 decimal places
+		assertEquals("Integer value ", 95000000, FixedPointPrice.toScaled(new BigDecimal("95"), 6));
+		assertEquals("Decimal value ", 50500000, FixedPointPrice.toScaled(new BigDecimal("50.5"), 6));
+		assertEquals("Value with trailing zeros ", 1500000, FixedPointPrice.toScaled(new BigDecimal("1.50000000"), 6));
+		assertEquals("Back to BigDecimal ", 0, FixedPointPrice.toBigDecimal(50500000, 6).compareTo(new BigDecimal("50.5")));
+
+		// values that can't be represented
+		assertEquals("Too many decimal places ", FixedPointPrice.NOT_REPRESENTABLE, FixedPointPrice.toScaled(new BigDecimal("0.1234567"), 6));
+		assertEquals("Value from a double ", FixedPointPrice.NOT_REPRESENTABLE, FixedPointPrice.toScaled(new BigDecimal(0.1), 6));
+		assertEquals("Too big for a long ", FixedPointPrice.NOT_REPRESENTABLE, FixedPointPrice.toScaled(new BigDecimal("100000000000000"), 6));
+		assertEquals("Null value ", FixedPointPrice.NOT_REPRESENTABLE, FixedPointPrice.toScaled(null, 6));
+	}
+
+	@Test
+	public void testRescale() {
+
+		assertEquals("Bigger scale ", 50500000, FixedPointPrice.rescale(505, 1, 6));
+		assertEquals("Smaller scale ", 505, FixedPointPrice.rescale(50500000, 6, 1));
+		assertEquals("Smaller scale losing precision ", FixedPointPrice.NOT_REPRESENTABLE, FixedPointPrice.rescale(50500001, 6, 1));
+		assertEquals("Overflow ", FixedPointPrice.NOT_REPRESENTABLE, FixedPointPrice.rescale(Long.MAX_VALUE / 10, 0, 2));
+	}
+
+	@Test
+	public void testDivideHalfUpMatchesBigDecimal() {
+
+		Random random = new Random(12345);
+
+		// the result must always be the same as BigDecimal with ROUND_HALF_UP, including negative values and ties
+		for(int i=0; i<100000; i++) {
+
+			long dividend = random.nextInt(2000001) - 1000000;
+			long divisor = random.nextInt(2001) - 1000;
+
+			if(divisor==0) {
+				continue;
+			}
+
+			long expected = new BigDecimal(dividend).divide(new BigDecimal(divisor), 0, BigDecimal.ROUND_HALF_UP).longValueExact();
+
+			assertEquals("Division of " + dividend + " by " + divisor, expected, FixedPointPrice.divideHalfUp(dividend, divisor));
+		}
+	}
+
+}
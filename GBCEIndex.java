@@ -0,0 +1,372 @@
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Incrementally maintained GBCE All Share Index, the geometric mean of the prices of all the stocks that have trades inside their price window.
+ * Instead of multiplying all the prices every time (the product overflows a double with a few hundred stocks) the index keeps the sum of the
+ * logarithms of the prices, each stock sends the changes of its price as a StockPriceListener and only its term of the sum is replaced,
+ * so reading the index doesn't depend on the number of stocks or trades.
+ * The sum is kept with compensated (Kahan) summation and recalculated from the individual terms from time to time so the rounding errors
+ * of millions of updates never accumulate.
+ * Since the price of a stock also changes when its trades get old, each stock tells until when its price is valid and the stocks whose price expired
+ * are refreshed when the index is read
+ * @author nsalgueiro
+ *
+ */
+public class GBCEIndex implements StockPriceListener {
+
+	/**
+	 * Interface for receiving the changes of the index value
+	 */
+	public static interface Listener {
+
+		/**
+		 * Method called every time the index value changes, it is called while holding the lock of the index so it must be fast
+		 * @param oldValue	- The previous value or null if there were no prices
+		 * @param newValue	- The new value or null if there are no prices
+		 */
+		void indexChanged(BigDecimal oldValue, BigDecimal newValue);
+	}
+
+	private static final int _PRECISION = 3;	// Decimal places of the index value, the same as the stock prices
+	private static final long _RESUM_UPDATES = 1000000;	// Number of updates after which the sum is recalculated from the individual terms
+
+	private static final double _LN_10 = Math.log(10);
+
+	/**
+	 * Term of the sum for one stock
+	 */
+	private static class Constituent {
+
+		private double logPrice;	// Natural logarithm of the price
+		private long validUntil;	// Time when the price changes without new trades
+	}
+
+	// The stocks are identified by the object and not by the symbol, so a stock removed and added again with the same symbol is a different constituent
+	private Map<StockElement, Constituent> constituents;
+
+	private double logSum;			// Sum of the logarithms of all the prices
+	private double compensation;	// Lost low order bits of logSum for the compensated summation
+	private long updates;			// Updates since the sum was last recalculated
+
+	private volatile long nextExpiry;		// Lower bound of the validUntil times of all the constituents
+	private volatile long roundedValue;		// Index value multiplied by 10^_PRECISION, only valid if value is not null
+	private volatile BigDecimal value;		// Current index value or null if there are no prices
+
+	private List<Listener> listeners;
+
+	private volatile StockClock clock;	// Clock used to find the prices that expired, the same one of the stocks
+
+	/**
+	 * Constructor for the class
+	 */
+	public GBCEIndex() {
+
+		this.constituents = new IdentityHashMap<StockElement, Constituent>();
+		this.nextExpiry = Long.MAX_VALUE;
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+		this.clock = StockClock.SYSTEM;
+	}
+
+	/**
+	 * Setter method to set the clock used to find the prices that expired, it must be the clock of the stocks of the index
+	 * @param pClock	- The clock, it cannot be null
+	 */
+	public void setClock(StockClock pClock) {
+
+		if(pClock==null) {
+			throw new IllegalArgumentException("Invalid argument clock, it cannot be null");
+		}
+
+		this.clock = pClock;
+	}
+
+	/**
+	 * Method to add a listener that will receive the changes of the index value
+	 * @param listener	- The listener
+	 */
+	public void addListener(Listener listener) {
+
+		if(listener==null) {
+			throw new IllegalArgumentException("Invalid argument listener, it cannot be null");
+		}
+
+		listeners.add(listener);
+	}
+
+	/**
+	 * Method to remove a listener
+	 * @param listener	- The listener
+	 */
+	public void removeListener(Listener listener) {
+
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Method to retrieve the number of stocks with a price that are part of the index
+	 * @return number of stocks
+	 */
+	public synchronized int size() {
+
+		return constituents.size();
+	}
+
+	/**
+	 * Method to retrieve the current index value, when no stock price expired since the last change this just returns the cached value
+	 * @return BigDecimal containing the index value or null if there are no trades for any of the stocks
+	 */
+	public BigDecimal getValue() {
+
+		long now = clock.currentTimeMillis();
+
+		if(now>=nextExpiry) {
+			refreshExpired(now);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Method that recalculates the price of the stocks whose oldest trades left their price window, the stocks send the new prices as usual.
+	 * This is the only place where the index goes through all the constituents and it only happens when a price expired
+	 * @param now	- Current time
+	 */
+	private void refreshExpired(long now) {
+		List<StockElement> expired = new ArrayList<StockElement>();
+
+		synchronized (this) {
+
+			long minValidUntil = Long.MAX_VALUE;
+
+			for(Map.Entry<StockElement, Constituent> entry: constituents.entrySet()) {
+
+				if(entry.getValue().validUntil<=now) {
+					expired.add(entry.getKey());
+				} else {
+					minValidUntil = Math.min(minValidUntil, entry.getValue().validUntil);
+				}
+			}
+
+			nextExpiry = minValidUntil;
+		}
+
+		// The stocks are called without holding our lock since they call us back while holding theirs, with many stocks they are calculated in parallel.
+		// peekStockPrice doesn't report the stocks without trades or record the latency, reading the index is not an operation of each stock
+		ParallelStocks.reduce(expired, (stocks, from, to) -> {
+
+			for(int i=from; i<to; i++) {
+				stocks.get(i).peekStockPrice();
+			}
+
+			return null;
+
+		}, (first, second) -> null);
+
+		if(ParallelStocks.isParallel(expired.size())) {
+
+			// the new prices arrived in any order, the sum is calculated again so it doesn't depend on the order of the additions
+			synchronized (this) {
+
+				resum();
+				updateValue();
+			}
+		}
+	}
+
+	/**
+	 * Method to calculate the index from scratch with the current stock price of each stock instead of the sum kept by the index, it is used to check
+	 * the incremental value. The prices and their logarithms are calculated in groups of stocks by the common fork-join pool when there are many stocks,
+	 * the partial sums are always combined in the same order so the result is the same with or without the pool
+	 * @param stocks	- The stocks
+	 * @return BigDecimal containing the index value or null if there are no trades for any of the stocks
+	 */
+	static BigDecimal calculate(List<StockElement> stocks) {
+
+		// each group returns the sum of the logarithms of its prices and the number of prices
+		double[] total = ParallelStocks.reduce(stocks, (list, from, to) -> {
+
+			double sum = 0;
+			double groupCompensation = 0;
+			int count = 0;
+
+			for(int i=from; i<to; i++) {
+
+				BigDecimal price = list.get(i).peekStockPrice();
+
+				if(price!=null && price.signum()>0) {
+
+					// the same logarithm as stockPriceChanged, the stock prices have few digits so the unscaled value always fits in a double
+					double corrected = Math.log(price.unscaledValue().doubleValue()) - price.scale() * _LN_10 - groupCompensation;
+					double newSum = sum + corrected;
+
+					groupCompensation = (newSum - sum) - corrected;
+					sum = newSum;
+					count++;
+				}
+			}
+
+			return new double[] {sum - groupCompensation, count};
+
+		}, (first, second) -> new double[] {first[0] + second[0], first[1] + second[1]});
+
+		if(total[1]==0) {
+			return null;
+		}
+
+		// the same rounding as updateValue
+		return BigDecimal.valueOf(Math.round(Math.exp(total[0] / total[1]) * FixedPointPrice.powerOfTen(_PRECISION)), _PRECISION);
+	}
+
+	/**
+	 * Method to calculate the index of the stocks of several partial indexes, used by the ShardedEngine where the stocks of each shard only update
+	 * the index of their shard. Each partial sum is read under the lock of its index, so a reader only waits for the worker of one shard at a time
+	 * @param partials	- The partial indexes, a stock must not be in more than one of them
+	 * @return BigDecimal containing the index value or null if there are no trades for any of the stocks
+	 */
+	static BigDecimal combine(GBCEIndex[] partials) {
+
+		double logSum = 0;
+		int count = 0;
+
+		for(GBCEIndex partial: partials) {
+
+			long now = partial.clock.currentTimeMillis();
+
+			if(now>=partial.nextExpiry) {
+				partial.refreshExpired(now);
+			}
+
+			synchronized (partial) {
+
+				logSum += partial.logSum;
+				count += partial.constituents.size();
+			}
+		}
+
+		if(count==0) {
+			return null;
+		}
+
+		// the same rounding as updateValue so a single index and the partials of the same stocks give the same value
+		return BigDecimal.valueOf(Math.round(Math.exp(logSum / count) * FixedPointPrice.powerOfTen(_PRECISION)), _PRECISION);
+	}
+
+	/**
+	 * Method to remove a stock from the index, it must be called after the stock stopped sending its price changes
+	 * @param stock	- The stock
+	 */
+	public void removeStock(StockElement stock) {
+
+		updateConstituent(stock, 0, 0, Long.MAX_VALUE);
+	}
+
+	@Override
+	public void stockPriceChanged(StockElement stock, long unscaledPrice, int scale, long validUntil) {
+
+		updateConstituent(stock, unscaledPrice, scale, validUntil);
+	}
+
+	private synchronized void updateConstituent(StockElement stock, long unscaledPrice, int scale, long validUntil) {
+
+		Constituent constituent = constituents.get(stock);
+
+		if(constituent!=null) {	// the old term is removed from the sum
+
+			add(-constituent.logPrice);
+		}
+
+		if(unscaledPrice>0) {
+
+			if(constituent==null) {
+
+				constituent = new Constituent();
+				constituents.put(stock, constituent);
+			}
+
+			constituent.logPrice = Math.log(unscaledPrice) - scale * _LN_10;
+			constituent.validUntil = validUntil;
+			add(constituent.logPrice);
+
+			if(validUntil<nextExpiry) {
+				nextExpiry = validUntil;
+			}
+
+		} else if(constituent!=null) {
+
+			constituents.remove(stock);
+		}
+
+		if(++updates>=_RESUM_UPDATES || constituents.isEmpty()) {
+			resum();
+		}
+
+		updateValue();
+	}
+
+	/**
+	 * Method to add a term to the sum using compensated summation
+	 * @param term	- The term to add
+	 */
+	private void add(double term) {
+
+		double corrected = term - compensation;
+		double sum = logSum + corrected;
+
+		compensation = (sum - logSum) - corrected;
+		logSum = sum;
+	}
+
+	/**
+	 * Method to calculate the sum again from the individual terms, this removes any error accumulated by the updates
+	 */
+	private void resum() {
+
+		logSum = 0;
+		compensation = 0;
+		updates = 0;
+
+		for(Constituent constituent: constituents.values()) {
+			add(constituent.logPrice);
+		}
+	}
+
+	/**
+	 * Method to calculate the index value from the sum and notify the listeners if it changed, it must be called while holding the lock
+	 */
+	private void updateValue() {
+
+		BigDecimal oldValue = value;
+		BigDecimal newValue = null;
+		long newRoundedValue = 0;
+
+		if(!constituents.isEmpty()) {
+
+			// the geometric mean is the exponential of the mean of the logarithms, only the rounded value is compared so no objects are created if it didn't move
+			double mean = Math.exp(logSum / constituents.size());
+			newRoundedValue = Math.round(mean * FixedPointPrice.powerOfTen(_PRECISION));
+
+			if(oldValue!=null && newRoundedValue==roundedValue) {
+				return;
+			}
+
+			newValue = BigDecimal.valueOf(newRoundedValue, _PRECISION);
+
+		} else if(oldValue==null) {
+
+			return;
+		}
+
+		roundedValue = newRoundedValue;
+		value = newValue;
+
+		for(Listener listener: listeners) {
+
+			listener.indexChanged(oldValue, newValue);
+		}
+	}
+}
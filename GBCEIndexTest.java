@@ -0,0 +1,111 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GBCEIndexTest {
+
+	@Test
+	public void testIndexFollowsStockPrices() {
+
+		GBCEIndex index = new GBCEIndex();
+		final List<BigDecimal> changes = new ArrayList<BigDecimal>();
+		index.addListener((oldValue, newValue) -> changes.add(newValue));
+
+		StockElement tea = new StockElement("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		StockElement pop = new StockElement("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+		tea.setPriceListener(index);
+		pop.setPriceListener(index);
+
+		assertNull("No prices ", index.getValue());
+		assertEquals("No changes ", 0, changes.size());
+
+		tea.addTradeAction(100, StockTradeAction.actionTypes.BUY, new BigDecimal("80"));
+		tea.addTradeAction(100, StockTradeAction.actionTypes.BUY, new BigDecimal("90"));
+		assertEquals("Only TEA ", new BigDecimal("85.000"), index.getValue());
+
+		pop.addTradeAction(200, StockTradeAction.actionTypes.BUY, new BigDecimal("1"));
+		pop.addTradeAction(200, StockTradeAction.actionTypes.BUY, new BigDecimal("7"));
+		assertEquals("TEA and POP ", new BigDecimal("18.439"), index.getValue());
+
+		// a trade with the same price doesn't move the index
+		int notifications = changes.size();
+		pop.addTradeAction(100, StockTradeAction.actionTypes.SELL, new BigDecimal("4"));
+		assertEquals("No notification ", notifications, changes.size());
+		assertEquals("Last notified value ", index.getValue(), changes.get(changes.size() - 1));
+
+		// a stock that stops sending its price and is removed leaves the index
+		pop.setPriceListener(null);
+		index.removeStock(pop);
+		assertEquals("Only TEA again ", new BigDecimal("85.000"), index.getValue());
+		assertEquals("Stocks in the index ", 1, index.size());
+	}
+
+	@Test
+	public void testExpiredPricesLeaveTheIndex() throws InterruptedException {
+
+		GBCEIndex index = new GBCEIndex();
+		StockElement tea = new StockElement("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		tea.setPriceListener(index);
+
+		final List<ResultCode> events = new ArrayList<ResultCode>();
+		tea.setEventSink((code, stockSymbol, detail) -> events.add(code));
+
+		// this trade leaves the 15 minutes window 200 milliseconds from now
+		long timestamp = System.currentTimeMillis() - 16 * 60000 + 200;
+		tea.addTradeAction(timestamp, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("50"));
+		assertEquals("Price inside the window ", new BigDecimal("50.000"), index.getValue());
+
+		Thread.sleep(400);
+		assertNull("Price outside the window ", index.getValue());
+		assertEquals("Stocks in the index ", 0, index.size());
+
+		// refreshing the expired prices is not a request for the stock price of the stock so it doesn't report that it has no trades
+		assertEquals("Events of the stock ", 0, events.size());
+	}
+
+	@Test
+	public void testManyConstituentsAreStable() {
+
+		GBCEIndex index = new GBCEIndex();
+		Random random = new Random(2016);
+		StockElement[] stocks = new StockElement[2000];
+		double[] logs = new double[stocks.length];
+		long now = System.currentTimeMillis();
+
+		// the product of these prices overflows a double so the original calculation could not be used with them,
+		// each round replaces all the stocks so the sum receives many updates
+		for(int round=0; round<5; round++) {
+
+			for(int i=0; i<stocks.length; i++) {
+
+				if(stocks[i]!=null) {
+
+					stocks[i].setPriceListener(null);
+					index.removeStock(stocks[i]);
+				}
+
+				long price = 1000 + random.nextInt(100000000);	// between 1 and 100000 with 3 decimal places
+
+				stocks[i] = new StockElement("S" + i, StockElement.StockTypes.COMMON, new BigDecimal(1), new BigDecimal(0), new BigDecimal(100));
+				stocks[i].setPriceListener(index);
+				stocks[i].addTradeAction(now, 1, StockTradeAction.actionTypes.BUY, price * 1000L);
+				logs[i] = Math.log(price / 1000.0);
+			}
+		}
+
+		double sum = 0;
+
+		for(double log: logs) {
+			sum += log;
+		}
+
+		BigDecimal expected = new BigDecimal(Math.exp(sum / logs.length)).setScale(3, BigDecimal.ROUND_HALF_UP);
+		assertEquals("Stocks in the index ", stocks.length, index.size());
+		assertTrue("Index close to the exact value ", index.getValue().subtract(expected).abs().compareTo(new BigDecimal("0.002"))<=0);
+	}
+}
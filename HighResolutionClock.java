@@ -0,0 +1,31 @@
+/**
+ * Clock with nanosecond resolution, the time is the system time when the clock was created plus the System.nanoTime elapsed since then,
+ * so it never goes backwards when the system time is adjusted. Since it doesn't follow those adjustments it can drift from the system time
+ * over long periods, a new clock can be set on the exchange to catch up
+ * @author nsalgueiro
+ *
+ */
+public class HighResolutionClock implements StockClock {
+
+	private long baseEpochNanos;	// System time when the clock was created in nanoseconds
+	private long baseNanoTime;		// System.nanoTime when the clock was created
+
+	/**
+	 * Constructor for the class
+	 */
+	public HighResolutionClock() {
+
+		this.baseNanoTime = System.nanoTime();
+		this.baseEpochNanos = System.currentTimeMillis() * 1000000;
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return currentTimeNanos() / 1000000;
+	}
+
+	@Override
+	public long currentTimeNanos() {
+		return baseEpochNanos + (System.nanoTime() - baseNanoTime);
+	}
+}
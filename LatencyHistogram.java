@@ -0,0 +1,158 @@
+/**
+ * Histogram of latencies in nanoseconds used by the LoadDriver and the metrics snapshots to report percentiles. The values are counted in log-linear buckets:
+ * every power of two is split in 64 buckets, so recording a value is a few shifts and an array increment and the percentiles
+ * have an error below 1.6% whatever the range of the values. Values below 128 are counted exactly.
+ * This class is not thread safe, each thread records in its own histogram and they are added at the end, ConcurrentLatencyHistogram can be shared
+ * @author nsalgueiro
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int _SUB_BUCKET_BITS = 6;
+	private static final int _SUB_BUCKETS = 1 << _SUB_BUCKET_BITS;	// Buckets for each power of two
+	static final int BUCKETS = (64 - _SUB_BUCKET_BITS + 1) * _SUB_BUCKETS;	// Also used by ConcurrentLatencyHistogram
+
+	private long[] counts;
+	private long totalCount;
+	private long max;
+	private double sum;
+
+	/**
+	 * Constructor for the class
+	 */
+	public LatencyHistogram() {
+
+		this.counts = new long[BUCKETS];
+	}
+
+	/**
+	 * Constructor used by ConcurrentLatencyHistogram to create a snapshot of its values
+	 * @param counts		- Count of each bucket, the array is kept
+	 * @param totalCount	- Number of values
+	 * @param max			- Highest value
+	 * @param sum			- Sum of the values
+	 */
+	LatencyHistogram(long[] counts, long totalCount, long max, double sum) {
+
+		this.counts = counts;
+		this.totalCount = totalCount;
+		this.max = max;
+		this.sum = sum;
+	}
+
+	/**
+	 * Method to count a value
+	 * @param value	- The value, negative values are counted as 0
+	 */
+	public void recordValue(long value) {
+
+		if(value<0) {
+			value = 0;
+		}
+
+		counts[bucketOf(value)]++;
+		totalCount++;
+		sum += value;
+
+		if(value>max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Method to retrieve the bucket where a value is counted
+	 * @param value	- The value, it can't be negative
+	 * @return the bucket
+	 */
+	static int bucketOf(long value) {
+
+		if(value<_SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);	// position of the highest bit, at least _SUB_BUCKET_BITS
+		int subBucket = (int) (value >>> (exponent - _SUB_BUCKET_BITS)) & (_SUB_BUCKETS - 1);
+
+		return (exponent - _SUB_BUCKET_BITS + 1) * _SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Method to retrieve the highest value counted in a bucket
+	 */
+	private static long highestValueOf(int bucket) {
+
+		if(bucket<_SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int block = bucket / _SUB_BUCKETS;
+		long lowest = (long) (_SUB_BUCKETS + bucket % _SUB_BUCKETS) << (block - 1);
+
+		return lowest + (1L << (block - 1)) - 1;
+	}
+
+	/**
+	 * Method to add the values of another histogram to this one
+	 * @param other	- The other histogram
+	 */
+	public void add(LatencyHistogram other) {
+
+		for(int i=0; i<BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+
+		totalCount += other.totalCount;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Method to retrieve the value below which a percentage of the values are
+	 * @param percentile	- The percentage, between 0 and 100
+	 * @return the value or 0 if the histogram is empty, it is never higher than the maximum value
+	 */
+	public long getValueAtPercentile(double percentile) {
+
+		if(totalCount==0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+		long seen = 0;
+
+		for(int i=0; i<BUCKETS; i++) {
+
+			seen += counts[i];
+
+			if(seen>=rank) {
+				return Math.min(highestValueOf(i), max);
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * Method to retrieve the number of values
+	 * @return number of values
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Method to retrieve the highest value
+	 * @return the maximum or 0 if the histogram is empty
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Method to retrieve the mean of the values
+	 * @return the mean or 0 if the histogram is empty
+	 */
+	public double getMean() {
+		return (totalCount>0 ? sum / totalCount : 0);
+	}
+}
@@ -0,0 +1,65 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testPercentiles() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals("Empty histogram ", 0, histogram.getValueAtPercentile(99));
+
+		for(long value=1; value<=100000; value++) {
+			histogram.recordValue(value * 1000);	// from 1 to 100 microseconds
+		}
+
+		assertEquals("Count ", 100000, histogram.getTotalCount());
+		assertEquals("Max ", 100000000, histogram.getMax());
+		assertEquals("Mean ", 50000500, histogram.getMean(), 0.5);
+
+		// the percentiles can't be more than 1.6% above the exact values
+		assertPercentile(histogram, 50, 50000000);
+		assertPercentile(histogram, 90, 90000000);
+		assertPercentile(histogram, 99, 99000000);
+		assertPercentile(histogram, 99.9, 99900000);
+		assertEquals("100th percentile ", 100000000, histogram.getValueAtPercentile(100));
+	}
+
+	private static void assertPercentile(LatencyHistogram histogram, double percentile, long exact) {
+
+		long value = histogram.getValueAtPercentile(percentile);
+
+		assertTrue("Percentile " + percentile + " = " + value, value>=exact && value<=exact * 1.016);
+	}
+
+	@Test
+	public void testSmallValuesAreExact() {
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		for(long value=0; value<128; value++) {
+			histogram.recordValue(value);
+		}
+
+		assertEquals("Median ", 63, histogram.getValueAtPercentile(50));
+		assertEquals("Max ", 127, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void testAdd() {
+
+		LatencyHistogram first = new LatencyHistogram();
+		LatencyHistogram second = new LatencyHistogram();
+
+		first.recordValue(10);
+		second.recordValue(Long.MAX_VALUE);
+		first.add(second);
+
+		assertEquals("Count ", 2, first.getTotalCount());
+		assertEquals("Max ", Long.MAX_VALUE, first.getMax());
+		assertEquals("Max percentile ", Long.MAX_VALUE, first.getValueAtPercentile(100));
+		assertEquals("Min percentile ", 10, first.getValueAtPercentile(50));
+	}
+}
@@ -0,0 +1,390 @@
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator for the StockExchange used as a smoke load test instead of starting one platform thread per operation like Main does.
+ * A fixed number of workers run on virtual threads, a fixed thread pool or a fork-join pool, each of them performing a mix of trades (writes)
+ * and price reads on random symbols for the configured time, optionally paced to a target rate. All the workers start together after a latch
+ * and the driver waits for them with another latch, the first seconds are a warm up that is not measured.
+ * The latency of every measured operation is recorded in a histogram of each worker. When there is a target rate the latency is measured from the
+ * moment the operation should have started, so a stall also counts for the operations that were delayed by it.
+ * Usage: java LoadDriver [mode=virtual|pool|forkjoin] [workers=N] [rate=operationsPerSecond] [symbols=N] [writes=percentage] [duration=seconds] [warmup=seconds]
+ * @author nsalgueiro
+ *
+ */
+public class LoadDriver {
+
+	/**
+	 * Where the workers are run
+	 */
+	public static enum Mode {
+		VIRTUAL,	// one virtual thread per worker, it needs Java 21, with older versions a cached pool of platform threads is used
+		POOL,		// a fixed pool with one platform thread per worker
+		FORKJOIN	// a fork-join pool with one thread per worker
+	};
+
+	private static final int _READS_PER_INDEX_READ = 16;	// One of every 16 reads calculates the GBCE index instead of a stock price
+
+	private Mode mode;
+	private int workers;
+	private long rate;				// Target operations per second of all the workers or 0 to run as fast as possible
+	private int symbols;
+	private int writePercentage;	// Percentage of the operations that are trades
+	private long durationMillis;
+	private long warmupMillis;
+
+	/**
+	 * Results of a run
+	 */
+	public static class Result {
+
+		private long durationMillis;
+		private LatencyHistogram writes = new LatencyHistogram();
+		private LatencyHistogram reads = new LatencyHistogram();
+		private int failedWorkers;
+
+		/**
+		 * Method to retrieve the latencies of the trades
+		 * @return histogram with the latencies in nanoseconds
+		 */
+		public LatencyHistogram getWrites() {
+			return writes;
+		}
+
+		/**
+		 * Method to retrieve the latencies of the reads
+		 * @return histogram with the latencies in nanoseconds
+		 */
+		public LatencyHistogram getReads() {
+			return reads;
+		}
+
+		/**
+		 * Method to retrieve the number of workers stopped by an exception before the end of the run, their operations until then are still counted
+		 * @return number of failed workers
+		 */
+		public int getFailedWorkers() {
+			return failedWorkers;
+		}
+
+		/**
+		 * Method to retrieve the throughput of the measured part of the run
+		 * @return operations per second
+		 */
+		public double getThroughput() {
+			return (writes.getTotalCount() + reads.getTotalCount()) * 1000.0 / durationMillis;
+		}
+
+		/**
+		 * Method to print the results
+		 * @param out	- Where the results are printed
+		 */
+		public void print(PrintStream out) {
+
+			out.println(String.format("Throughput: %.0f operations/s (%d trades, %d reads in %d ms)", getThroughput(), writes.getTotalCount(), reads.getTotalCount(), durationMillis));
+			out.println(String.format("%-8s %10s %10s %10s %10s %10s %10s %10s", "latency", "mean", "p50", "p90", "p99", "p99.9", "p99.99", "max"));
+			print(out, "trades", writes);
+			print(out, "reads", reads);
+
+			if(failedWorkers>0) {
+				out.println("Failed workers: " + failedWorkers + ", see the errors above");
+			}
+		}
+
+		private static void print(PrintStream out, String name, LatencyHistogram histogram) {
+
+			out.println(String.format("%-8s %10s %10s %10s %10s %10s %10s %10s", name, format((long) histogram.getMean()), format(histogram.getValueAtPercentile(50)),
+					format(histogram.getValueAtPercentile(90)), format(histogram.getValueAtPercentile(99)), format(histogram.getValueAtPercentile(99.9)),
+					format(histogram.getValueAtPercentile(99.99)), format(histogram.getMax())));
+		}
+
+		private static String format(long nanos) {
+
+			return (nanos<10000 ? nanos + "ns" : (nanos<10000000 ? nanos/1000 + "us" : nanos/1000000 + "ms"));
+		}
+	}
+
+	/**
+	 * Constructor for the class
+	 * @param mode				- Where the workers are run
+	 * @param workers			- Number of workers running at the same time
+	 * @param rate				- Target operations per second of all the workers or 0 to run as fast as possible
+	 * @param symbols			- Number of stocks
+	 * @param writePercentage	- Percentage of the operations that are trades, the rest read prices
+	 * @param durationMillis	- Measured time
+	 * @param warmupMillis		- Time before the measured time where the results are discarded
+	 */
+	public LoadDriver(Mode mode, int workers, long rate, int symbols, int writePercentage, long durationMillis, long warmupMillis) {
+
+		if(mode==null) {
+			throw new IllegalArgumentException("Invalid argument mode, it cannot be null");
+		}
+
+		if(workers<=0 || symbols<=0 || durationMillis<=0) {
+			throw new IllegalArgumentException("Invalid arguments, workers, symbols and duration must be greater than 0");
+		}
+
+		if(rate<0 || warmupMillis<0 || writePercentage<0 || writePercentage>100) {
+			throw new IllegalArgumentException("Invalid arguments, rate and warmup cannot be negative and writes must be a percentage");
+		}
+
+		this.mode = mode;
+		this.workers = workers;
+		this.rate = rate;
+		this.symbols = symbols;
+		this.writePercentage = writePercentage;
+		this.durationMillis = durationMillis;
+		this.warmupMillis = warmupMillis;
+	}
+
+	/**
+	 * Method to run the load against a new stock exchange
+	 * @return the results
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 */
+	public Result run() throws InterruptedException {
+
+		StockExchange exchange = new StockExchange();
+		String[] stockSymbols = new String[symbols];
+		long now = System.currentTimeMillis();
+
+		for(int i=0; i<symbols; i++) {
+
+			stockSymbols[i] = "S" + i;
+			exchange.addStock(stockSymbols[i], StockElement.StockTypes.COMMON, new BigDecimal(i % 10), BigDecimal.ZERO, new BigDecimal(100));
+			exchange.getStock(stockSymbols[i]).addTradeAction(now, 1, StockTradeAction.actionTypes.BUY, 100000000L);	// so every stock has a price from the start
+		}
+
+		return run(exchange, stockSymbols);
+	}
+
+	/**
+	 * Method to run the load against an existing stock exchange
+	 * @param exchange		- The stock exchange
+	 * @param stockSymbols	- Symbols of its stocks used by the workers
+	 * @return the results
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 */
+	public Result run(final StockExchange exchange, final String[] stockSymbols) throws InterruptedException {
+
+		final CountDownLatch ready = new CountDownLatch(workers);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(workers);
+		final AtomicInteger failedWorkers = new AtomicInteger();
+
+		final LatencyHistogram[] writes = new LatencyHistogram[workers];
+		final LatencyHistogram[] reads = new LatencyHistogram[workers];
+
+		// each worker does its part of the rate, the interval between its operations is workers/rate seconds
+		final long interval = (rate>0 ? Math.max(1, workers * 1000000000L / rate) : 0);
+		final long[] startTime = new long[1];
+
+		ExecutorService executor = newExecutor();
+
+		try {
+
+			for(int w=0; w<workers; w++) {
+
+				final int worker = w;
+				writes[w] = new LatencyHistogram();
+				reads[w] = new LatencyHistogram();
+
+				executor.execute(() -> {
+
+					try {
+
+						ready.countDown();
+						start.await();
+
+						runWorker(exchange, stockSymbols, startTime[0], interval, writes[worker], reads[worker]);
+
+					} catch (InterruptedException e) {
+
+						Thread.currentThread().interrupt();
+
+					} catch (RuntimeException e) {	// the executor would drop the exception, the worker is counted so the results show it stopped early
+
+						failedWorkers.incrementAndGet();
+						System.err.println("Worker " + worker + " failed: " + e);
+
+					} finally {
+
+						finished.countDown();
+					}
+				});
+			}
+
+			ready.await();
+
+			startTime[0] = System.nanoTime();	// published to the workers by the latch
+			start.countDown();
+			finished.await();
+
+		} finally {
+
+			executor.shutdownNow();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+
+		Result result = new Result();
+		result.durationMillis = durationMillis;
+		result.failedWorkers = failedWorkers.get();
+
+		for(int w=0; w<workers; w++) {
+
+			result.writes.add(writes[w]);
+			result.reads.add(reads[w]);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Loop of a worker
+	 */
+	private void runWorker(StockExchange exchange, String[] stockSymbols, long startTime, long interval, LatencyHistogram writes, LatencyHistogram reads) {
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		long measureStart = startTime + warmupMillis * 1000000;
+		long end = measureStart + durationMillis * 1000000;
+		long next = startTime + (interval>0 ? random.nextLong(interval) : 0);	// the workers don't start all at the same nanosecond
+		long readCount = 0;
+		long blackhole = 0;
+
+		while(true) {
+
+			long intendedStart;
+
+			if(interval>0) {
+
+				long wait = next - System.nanoTime();
+
+				if(wait>0) {
+					LockSupport.parkNanos(wait);
+				}
+
+				intendedStart = next;
+				next += interval;
+
+			} else {
+
+				intendedStart = System.nanoTime();
+			}
+
+			if(intendedStart>=end || Thread.currentThread().isInterrupted()) {
+				break;
+			}
+
+			StockElement stock = exchange.getStock(stockSymbols[random.nextInt(stockSymbols.length)]);
+			boolean write = random.nextInt(100)<writePercentage;
+
+			if(write) {
+
+				stock.addTradeAction(System.currentTimeMillis(), 1 + random.nextInt(1000), (random.nextBoolean() ? StockTradeAction.actionTypes.BUY : StockTradeAction.actionTypes.SELL),
+						90000000L + random.nextInt(20000000));
+
+			} else {
+
+				// the values are null while there are no trades in the window, for example in an existing exchange
+				BigDecimal value = (++readCount % _READS_PER_INDEX_READ==0 ? exchange.calculateGBCEAllShareIndex() : stock.calculateStockPrice());
+
+				if(value!=null) {
+					blackhole += value.scale();
+				}
+			}
+
+			long latency = System.nanoTime() - intendedStart;
+
+			if(intendedStart>=measureStart) {
+				(write ? writes : reads).recordValue(latency);
+			}
+		}
+
+		if(blackhole==42) {	// only keeps the JIT from removing the reads
+			System.out.print("");
+		}
+	}
+
+	/**
+	 * Method to create the executor of the workers
+	 */
+	private ExecutorService newExecutor() {
+
+		switch(mode) {
+
+		case VIRTUAL :
+
+			try {
+
+				// Executors.newVirtualThreadPerTaskExecutor exists since Java 21, it is called by reflection so the project still builds with older versions
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+			} catch (ReflectiveOperationException e) {
+
+				System.err.println("Virtual threads are not available in this Java version, using platform threads");
+
+				return Executors.newCachedThreadPool(LoadDriver::newDaemonThread);
+			}
+
+		case FORKJOIN :
+
+			return new ForkJoinPool(workers);
+
+		default :
+
+			return Executors.newFixedThreadPool(workers, LoadDriver::newDaemonThread);
+		}
+	}
+
+	private static Thread newDaemonThread(Runnable runnable) {
+
+		Thread thread = new Thread(runnable, "LoadDriverWorker");
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		Mode mode = Mode.VIRTUAL;
+		int workers = 1000;
+		long rate = 0;
+		int symbols = 10;
+		int writePercentage = 50;
+		long duration = 10;
+		long warmup = 5;
+
+		for(String arg: args) {
+
+			String[] keyValue = arg.split("=", 2);
+
+			if(keyValue.length!=2) {
+				throw new IllegalArgumentException("Invalid argument " + arg + ", the arguments are key=value");
+			}
+
+			switch(keyValue[0]) {
+			case "mode" : mode = Mode.valueOf(keyValue[1].toUpperCase()); break;
+			case "workers" : workers = Integer.parseInt(keyValue[1]); break;
+			case "rate" : rate = Long.parseLong(keyValue[1]); break;
+			case "symbols" : symbols = Integer.parseInt(keyValue[1]); break;
+			case "writes" : writePercentage = Integer.parseInt(keyValue[1]); break;
+			case "duration" : duration = Long.parseLong(keyValue[1]); break;
+			case "warmup" : warmup = Long.parseLong(keyValue[1]); break;
+			default : throw new IllegalArgumentException("Unknown argument " + keyValue[0]);
+			}
+		}
+
+		System.out.println("Running " + workers + " workers (" + mode + ") on " + symbols + " symbols, " + writePercentage + "% trades, "
+				+ (rate>0 ? rate + " operations/s" : "no rate limit") + ", " + warmup + "s warm up and " + duration + "s measured");
+
+		new LoadDriver(mode, workers, rate, symbols, writePercentage, duration * 1000, warmup * 1000).run().print(System.out);
+	}
+}
@@ -0,0 +1,56 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class LoadDriverTest {
+
+	@Test
+	public void testAllModes() throws InterruptedException {
+
+		for(LoadDriver.Mode mode: LoadDriver.Mode.values()) {
+
+			LoadDriver.Result result = new LoadDriver(mode, 4, 0, 5, 50, 300, 100).run();
+
+			assertTrue(mode + " trades ", result.getWrites().getTotalCount()>0);
+			assertTrue(mode + " reads ", result.getReads().getTotalCount()>0);
+			assertTrue(mode + " throughput ", result.getThroughput()>0);
+			assertEquals(mode + " failed workers ", 0, result.getFailedWorkers());
+		}
+	}
+
+	@Test
+	public void testTargetRate() throws InterruptedException {
+
+		// 2000 operations per second during half a second
+		LoadDriver.Result result = new LoadDriver(LoadDriver.Mode.POOL, 4, 2000, 5, 100, 500, 100).run();
+
+		long operations = result.getWrites().getTotalCount() + result.getReads().getTotalCount();
+
+		assertEquals("Only trades ", 0, result.getReads().getTotalCount());
+		assertTrue("Operations at the target rate " + operations, operations>=900 && operations<=1100);
+	}
+
+	@Test
+	public void testReadsWithoutPrices() throws InterruptedException {
+
+		StockExchange exchange = new StockExchange();
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100));
+
+		// only reads of a stock without trades, the stock price and the index are null
+		LoadDriver.Result result = new LoadDriver(LoadDriver.Mode.POOL, 2, 0, 1, 0, 200, 0).run(exchange, new String[] {"TEA"});
+
+		assertTrue("Reads ", result.getReads().getTotalCount()>0);
+		assertEquals("Failed workers ", 0, result.getFailedWorkers());
+	}
+
+	@Test
+	public void testFailedWorkers() throws InterruptedException {
+
+		// the symbol doesn't exist so every worker stops at its first operation
+		LoadDriver.Result result = new LoadDriver(LoadDriver.Mode.POOL, 3, 0, 1, 50, 200, 0).run(new StockExchange(), new String[] {"MISSING"});
+
+		assertEquals("Failed workers ", 3, result.getFailedWorkers());
+	}
+}
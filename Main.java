@@ -1,8 +1,10 @@
 import java.math.BigDecimal;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * This is a simple multi-threading class that uses the StockExchange we will launch a series of threads that will randomly perform some actions in the class
+ * This is a simple multi-threading class that uses the StockExchange we will launch a series of threads that will randomly perform some actions in the class.
+ * For load testing run it with the LoadDriver arguments instead (java Main load [key=value...]), the threads of this demo are too many and too noisy to measure anything
  * @author nsalgueiro
  *
  */
@@ -12,6 +14,7 @@ public class Main implements Runnable {
 	private static final String[] stockSymbols = {"TEA", "POP", "ALE", "GIN", "JOE", "ABC", "BCD", "CDE", "DEF", "EFG"};
 	
 	private StockExchange myStockExchange;
+	private CountDownLatch finishedThreads;
 	
 	private void execute() {
 		
@@ -20,26 +23,22 @@ public class Main implements Runnable {
 		// First we will create an instance of our stock exchange class
 		myStockExchange = new StockExchange();
 		
-		ThreadGroup tg = new ThreadGroup("StocksThreadGroup");
+		finishedThreads = new CountDownLatch(_NUMBER_OF_THREADS);
 		
 		// we will launch a given number of threads
 		for(int i = 0; i<_NUMBER_OF_THREADS; i++) {
 			
-			new Thread(tg, this).start();
+			new Thread(this).start();
 		}
 		
-		// now we will wait for all of them to finish
-		while (tg.activeCount()>0) {
-			
-			try {
-			
-				Thread.sleep(200);
+		// now we will wait for all of them to finish, each thread counts down the latch when it ends so we know right away
+		try {
 
-			} catch (InterruptedException e) {
+			finishedThreads.await();
 
-				e.printStackTrace();
-			}
-			
+		} catch (InterruptedException e) {
+
+			e.printStackTrace();
 		}
 		
 		// Show the final status
@@ -53,8 +52,17 @@ public class Main implements Runnable {
 		System.out.println("Took " + ((endTime-startTime)/1000) + " seconds and " + ((endTime-startTime)%1000) + " miliseconds to process the results for " + _NUMBER_OF_THREADS + " threads");
 	}
 	
-	public static void main(String[] args) {
+	public static void main(String[] args) throws InterruptedException {
 		
+		if(args.length>0 && args[0].equals("load")) {	// load test mode, the rest of the arguments are for the LoadDriver
+
+			String[] loadArgs = new String[args.length - 1];
+			System.arraycopy(args, 1, loadArgs, 0, loadArgs.length);
+
+			LoadDriver.main(loadArgs);
+			System.exit(0);
+		}
+
 		Main stockExchangeMain = new Main();
 		
 		stockExchangeMain.execute();
@@ -64,6 +72,18 @@ public class Main implements Runnable {
 
 	@Override
 	public void run() {
+
+		try {
+
+			runActions();
+
+		} finally {
+
+			finishedThreads.countDown();
+		}
+	}
+
+	private void runActions() {
 		
 		ThreadLocalRandom random = ThreadLocalRandom.current();
 		
@@ -85,15 +105,18 @@ public class Main implements Runnable {
 		
 		System.out.println("[" + Thread.currentThread().getName() + "] " + stockSymbols[rnd] + " creation " + (creationResult?" was successful": " failed"));
 		
-		// Now we will try to create a trade action for this stock (even if it failed it should have no problem)
+		// Now we will try to create a trade action for this stock (even if it failed it should have no problem), the symbol is only looked up once and the rest uses its ID
+		int stockId = myStockExchange.getStockId(stockSymbols[rnd]);
 		
-		Boolean addActionResult = myStockExchange.getStock(stockSymbols[rnd]).addTradeAction(random.nextInt(100), StockTradeAction.actionTypes.BUY, new BigDecimal(random.nextDouble(200d)));
+		Boolean addActionResult = myStockExchange.tryAddTradeAction(stockId, random.nextInt(100), StockTradeAction.actionTypes.BUY, new BigDecimal(random.nextDouble(200d)))==ResultCode.OK;
 		
 		System.out.println("[" + Thread.currentThread().getName() + "] " + stockSymbols[rnd] + " - adding trade action " + (addActionResult?" was successful": " failed"));
 		
 		// Finally we will check for this stock value and dividend yield
-		System.out.println("[" + Thread.currentThread().getName() + "] value for stock " + stockSymbols[rnd] + " is " + myStockExchange.getStock(stockSymbols[rnd]).calculateStockPrice());
-		System.out.println("[" + Thread.currentThread().getName() + "] dividend yield for stock " + stockSymbols[rnd] + " is " + myStockExchange.getStock(stockSymbols[rnd]).getDividendYield());
+		StockElement stock = myStockExchange.getStock(stockId);
+		
+		System.out.println("[" + Thread.currentThread().getName() + "] value for stock " + stockSymbols[rnd] + " is " + stock.calculateStockPrice());
+		System.out.println("[" + Thread.currentThread().getName() + "] dividend yield for stock " + stockSymbols[rnd] + " is " + stock.getDividendYield());
 		
 		System.out.println("[" + Thread.currentThread().getName() + "] has finished");
 	}
@@ -0,0 +1,59 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock whose time only changes when it is told to, used when old trades are replayed so the stock price window is calculated at the time
+ * of the replayed trades and not at the time of the replay, and by the tests that need the time to stand still
+ * @author nsalgueiro
+ *
+ */
+public class ManualClock implements StockClock {
+
+	private AtomicLong time;
+
+	/**
+	 * Constructor for the class
+	 * @param startTime	- Initial time in milliseconds since the epoch
+	 */
+	public ManualClock(long startTime) {
+
+		this.time = new AtomicLong(startTime);
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return time.get();
+	}
+
+	/**
+	 * Method to set the time, it can go backwards
+	 * @param pTime	- The new time in milliseconds since the epoch
+	 */
+	public void setTime(long pTime) {
+
+		time.set(pTime);
+	}
+
+	/**
+	 * Method to move the time forward
+	 * @param millis	- Milliseconds to add, they can't be negative
+	 * @return the new time
+	 */
+	public long advance(long millis) {
+
+		if(millis<0) {
+			throw new IllegalArgumentException("Invalid argument millis, it can't be negative");
+		}
+
+		return time.addAndGet(millis);
+	}
+
+	/**
+	 * Method to move the time forward to a given time, nothing changes if the clock is already past it. Several threads can call it at the same time
+	 * @param pTime	- The time in milliseconds since the epoch
+	 * @return the time of the clock after the call
+	 */
+	public long advanceTo(long pTime) {
+
+		return time.accumulateAndGet(pTime, Math::max);
+	}
+}
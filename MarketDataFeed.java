@@ -0,0 +1,192 @@
+import java.lang.invoke.VarHandle;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Publish/subscribe layer of a StockExchange for the changes of the ticker prices, the stock prices and the GBCE All Share Index, so the clients
+ * don't need to poll the stocks. The stocks publish their changes in a bounded ring shared by all the subscriptions (a multicast ring), every
+ * subscription keeps its own position in the ring and reads it at its own pace.
+ * Publishing never waits for the subscriptions: a publisher claims a position with a single atomic increment and writes the slot, and when
+ * the ring is full the oldest updates are overwritten. Each slot has a sequence number written before and after its values (a seqlock),
+ * so a subscription that fell behind detects that the slot was overwritten instead of reading mixed values.
+ * Subscriptions in CONFLATING mode never lose the current state, when they fall behind they read the current prices from the stocks.
+ * The feed of an exchange is created with StockExchange.getMarketDataFeed
+ * @author nsalgueiro
+ *
+ */
+public class MarketDataFeed implements GBCEIndex.Listener {
+
+	/**
+	 * Kinds of updates
+	 */
+	static final byte STOCK_UPDATE = 0;
+	static final byte INDEX_UPDATE = 1;
+
+	private StockExchange exchange;	// Exchange whose stocks are read when a conflating subscription falls behind
+
+	private int mask;						// Capacity - 1, the capacity is a power of two
+	private AtomicLongArray sequences;		// 2 * position + 1 while a slot is written, 2 * position + 2 once it is published and 0 if it was never written
+	private byte[] types;
+	private String[] symbols;
+	private long[] tickerPrices;
+	private int[] tickerScales;
+	private long[] stockPrices;
+	private int[] stockPriceScales;
+	private long[] timestamps;
+
+	private AtomicLong tail;	// Next position to be claimed by the publishers
+
+	/**
+	 * Constructor for the class
+	 * @param pExchange	- The exchange of the stocks
+	 * @param capacity	- Number of updates kept in the ring, it is rounded up to a power of two
+	 */
+	MarketDataFeed(StockExchange pExchange, int capacity) {
+
+		if(capacity<=0 || capacity>(1 << 30)) {
+			throw new IllegalArgumentException("Invalid argument capacity, it must be between 1 and 2^30");
+		}
+
+		int size = Integer.highestOneBit(capacity);
+		size = (size<capacity ? size << 1 : size);
+
+		this.exchange = pExchange;
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		this.types = new byte[size];
+		this.symbols = new String[size];
+		this.tickerPrices = new long[size];
+		this.tickerScales = new int[size];
+		this.stockPrices = new long[size];
+		this.stockPriceScales = new int[size];
+		this.timestamps = new long[size];
+		this.tail = new AtomicLong();
+	}
+
+	/**
+	 * Getter for the number of updates kept in the ring
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Getter for the number of updates published since the feed was created
+	 * @return the number of updates
+	 */
+	public long getPublishedCount() {
+		return tail.get();
+	}
+
+	/**
+	 * Method to subscribe to the updates of some stocks and optionally the index
+	 * @param stockSymbols	- Symbols of the stocks, null for all the stocks and an empty collection for none
+	 * @param index			- True to receive the changes of the GBCE All Share Index
+	 * @param mode			- SEQUENTIAL to receive every update or CONFLATING to receive only the latest values when polling
+	 * @return the subscription, it only receives the updates published after this call
+	 */
+	public MarketDataSubscription subscribe(Collection<String> stockSymbols, boolean index, MarketDataSubscription.Mode mode) {
+
+		if(mode==null) {
+			throw new IllegalArgumentException("Invalid argument mode, it cannot be null");
+		}
+
+		return new MarketDataSubscription(this, stockSymbols, index, mode, tail.get());
+	}
+
+	/**
+	 * Method called by the stocks while holding the lock on their trades when their ticker price or stock price changed, it never blocks
+	 * @param stockSymbol			- Symbol of the stock
+	 * @param unscaledTickerPrice	- Unscaled ticker price
+	 * @param tickerScale			- Scale of the ticker price
+	 * @param unscaledStockPrice	- Unscaled stock price or 0 if there are no trades inside the window
+	 * @param stockPriceScale		- Scale of the stock price
+	 */
+	void publishStock(String stockSymbol, long unscaledTickerPrice, int tickerScale, long unscaledStockPrice, int stockPriceScale) {
+
+		publish(STOCK_UPDATE, stockSymbol, unscaledTickerPrice, tickerScale, unscaledStockPrice, stockPriceScale);
+	}
+
+	@Override
+	public void indexChanged(BigDecimal oldValue, BigDecimal newValue) {
+
+		if(newValue==null) {
+			publish(INDEX_UPDATE, null, 0, 0, 0, 0);
+		} else {
+			publish(INDEX_UPDATE, null, newValue.unscaledValue().longValue(), newValue.scale(), 0, 0);
+		}
+	}
+
+	private void publish(byte type, String stockSymbol, long price, int scale, long secondPrice, int secondScale) {
+
+		long position = tail.getAndIncrement();
+		int index = (int) (position & mask);
+
+		sequences.set(index, 2 * position + 1);	// the readers of this slot will see that it is being written
+		VarHandle.storeStoreFence();			// so the values are not written before the mark
+
+		types[index] = type;
+		symbols[index] = stockSymbol;
+		tickerPrices[index] = price;
+		tickerScales[index] = scale;
+		stockPrices[index] = secondPrice;
+		stockPriceScales[index] = secondScale;
+		timestamps[index] = exchange.getClock().currentTimeMillis();
+
+		// if a publisher was stopped for a whole round of the ring a newer one owns the slot now, the values of the old one are lost
+		sequences.compareAndSet(index, 2 * position + 1, 2 * position + 2);
+	}
+
+	/**
+	 * Getter for the next position to be claimed by the publishers, used by the subscriptions
+	 * @return the position
+	 */
+	long getTail() {
+		return tail.get();
+	}
+
+	/**
+	 * Method used by the subscriptions to copy an update of the ring
+	 * @param position	- Position of the update
+	 * @param update	- Array where the values are copied: type, ticker price, ticker scale, stock price, stock price scale and timestamp
+	 * @param symbol	- Array where the symbol is copied
+	 * @return 1 if the update was copied, 0 if it is not published yet and -1 if it was overwritten
+	 */
+	int read(long position, long[] update, String[] symbol) {
+
+		int index = (int) (position & mask);
+		long published = 2 * position + 2;
+		long sequence = sequences.get(index);
+
+		if(sequence<published) {
+			return (position<tail.get() - (mask + 1) ? -1 : 0);	// still being written, unless the position is older than the ring
+		}
+
+		if(sequence>published) {
+			return -1;
+		}
+
+		update[0] = types[index];
+		update[1] = tickerPrices[index];
+		update[2] = tickerScales[index];
+		update[3] = stockPrices[index];
+		update[4] = stockPriceScales[index];
+		update[5] = timestamps[index];
+		symbol[0] = symbols[index];
+
+		VarHandle.loadLoadFence();	// so the values are read before the sequence is checked again
+
+		return (sequences.get(index)==published ? 1 : -1);
+	}
+
+	/**
+	 * Getter for the exchange of the stocks, used by the conflating subscriptions when they fall behind
+	 * @return the exchange
+	 */
+	StockExchange getExchange() {
+		return exchange;
+	}
+}
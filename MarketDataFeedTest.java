@@ -0,0 +1,165 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MarketDataFeedTest {
+
+	StockExchange exchange;
+
+	/**
+	 * Listener that keeps the updates as text
+	 */
+	static class RecordingListener implements MarketDataListener {
+
+		List<String> updates = new ArrayList<String>();
+		long lost;
+
+		@Override
+		public void stockUpdated(String stockSymbol, long unscaledTickerPrice, int tickerScale, long unscaledStockPrice, int stockPriceScale, long timestamp) {
+			updates.add(stockSymbol + " " + BigDecimal.valueOf(unscaledTickerPrice, tickerScale).stripTrailingZeros().toPlainString()
+					+ " " + BigDecimal.valueOf(unscaledStockPrice, stockPriceScale).stripTrailingZeros().toPlainString());
+		}
+
+		@Override
+		public void indexUpdated(long unscaledValue, int scale, long timestamp) {
+			updates.add("INDEX " + BigDecimal.valueOf(unscaledValue, scale).stripTrailingZeros().toPlainString());
+		}
+
+		@Override
+		public void updatesLost(long count) {
+			lost += count;
+		}
+	}
+
+	@Before
+	public void setup() {
+
+		exchange = new StockExchange();
+		exchange.setEventSink(new AsyncEventSink(16, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err));
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		exchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+	}
+
+	@Test
+	public void testSequentialSubscription() {
+
+		MarketDataFeed feed = exchange.getMarketDataFeed();
+		MarketDataSubscription tea = feed.subscribe(Arrays.asList("TEA"), true, MarketDataSubscription.Mode.SEQUENTIAL);
+		MarketDataSubscription all = feed.subscribe(null, false, MarketDataSubscription.Mode.SEQUENTIAL);
+		RecordingListener teaListener = new RecordingListener();
+		RecordingListener allListener = new RecordingListener();
+
+		exchange.getStock("TEA").addTradeAction(10, StockTradeAction.actionTypes.BUY, new BigDecimal("80"));
+		exchange.getStock("POP").addTradeAction(10, StockTradeAction.actionTypes.BUY, new BigDecimal("20"));
+		exchange.getStock("TEA").addTradeAction(30, StockTradeAction.actionTypes.SELL, new BigDecimal("90"));
+
+		// a trade that changes nothing is not published
+		exchange.getStock("TEA").addTradeAction(0, StockTradeAction.actionTypes.SELL, new BigDecimal("90"));
+
+		assertEquals("TEA and index updates ", 5, tea.poll(teaListener));
+		assertEquals(Arrays.asList("TEA 80 80", "INDEX 80", "INDEX 40", "TEA 90 87.5", "INDEX 41.833"), teaListener.updates);
+
+		assertEquals("Stock updates ", 3, all.poll(allListener));
+		assertEquals(Arrays.asList("TEA 80 80", "POP 20 20", "TEA 90 87.5"), allListener.updates);
+
+		assertEquals("Nothing new ", 0, tea.poll(teaListener));
+		assertEquals("No backlog ", 0, tea.getBacklog());
+	}
+
+	@Test
+	public void testSlowSubscriptions() {
+
+		MarketDataFeed feed = exchange.getMarketDataFeed();
+		MarketDataSubscription sequential = feed.subscribe(Arrays.asList("TEA"), false, MarketDataSubscription.Mode.SEQUENTIAL);
+		MarketDataSubscription conflating = feed.subscribe(null, true, MarketDataSubscription.Mode.CONFLATING);
+		RecordingListener sequentialListener = new RecordingListener();
+		RecordingListener conflatingListener = new RecordingListener();
+
+		// a few updates are conflated to the latest values of each stock
+		for(int i=1; i<=10; i++) {
+			exchange.getStock("TEA").addTradeAction(10, StockTradeAction.actionTypes.BUY, new BigDecimal(i));
+		}
+
+		assertEquals("One update per stock and the index ", 2, conflating.poll(conflatingListener));
+		assertEquals(Arrays.asList("TEA 10 5.5", "INDEX 5.5"), conflatingListener.updates);
+
+		// more updates than the ring can keep
+		int trades = feed.getCapacity() + 100;
+		long now = System.currentTimeMillis();
+
+		for(int i=1; i<=trades; i++) {
+			exchange.getStock("POP").addTradeAction(now, 1, StockTradeAction.actionTypes.BUY, new BigDecimal(i));
+		}
+
+		conflatingListener.updates.clear();
+
+		assertEquals("Current values read from the stocks ", 3, conflating.poll(conflatingListener));
+		assertTrue("Current POP price ", conflatingListener.updates.contains("POP " + trades + " " + new BigDecimal(trades + 1).divide(new BigDecimal(2)).stripTrailingZeros().toPlainString()));
+		assertEquals("Nothing lost after catching up ", 0, conflating.getBacklog());
+
+		// the sequential subscription receives what is left of the ring and knows how many updates it lost
+		sequential.poll(sequentialListener);
+
+		assertTrue("Lost updates ", sequential.getLostUpdates()>0);
+		assertEquals("Lost updates told to the listener ", sequential.getLostUpdates(), sequentialListener.lost);
+		assertEquals("No TEA updates left in the ring ", 0, sequentialListener.updates.size());
+	}
+
+	@Test
+	public void testConcurrentPublishers() throws InterruptedException {
+
+		MarketDataFeed feed = exchange.getMarketDataFeed();
+		MarketDataSubscription subscription = feed.subscribe(null, false, MarketDataSubscription.Mode.SEQUENTIAL);
+		RecordingListener listener = new RecordingListener();
+		Thread[] threads = new Thread[4];
+
+		for(int t=0; t<threads.length; t++) {
+
+			final String symbol = "S" + t;
+			exchange.addStock(symbol, StockElement.StockTypes.COMMON, new BigDecimal(1), new BigDecimal(0), new BigDecimal(100));
+
+			threads[t] = new Thread(() -> {
+
+				for(int i=1; i<=1000; i++) {
+					exchange.getStock(symbol).addTradeAction(1, StockTradeAction.actionTypes.BUY, new BigDecimal(i));
+				}
+			});
+		}
+
+		subscription.poll(listener);	// the initial values of the new stocks
+		listener.updates.clear();
+
+		for(Thread thread: threads) {
+			thread.start();
+		}
+
+		for(Thread thread: threads) {
+			thread.join();
+		}
+
+		subscription.poll(listener);
+
+		assertEquals("Every update received ", 4000, listener.updates.size());
+		assertEquals("Nothing lost ", 0, listener.lost);
+		// the ticker prices of each stock are received in the order of its trades
+		for(int t=0; t<threads.length; t++) {
+
+			int expected = 1;
+
+			for(String update: listener.updates) {
+
+				if(update.startsWith("S" + t + " ")) {
+					assertEquals("Ticker of S" + t, String.valueOf(expected++), update.split(" ")[1]);
+				}
+			}
+
+			assertEquals("Updates of S" + t, 1001, expected);
+		}
+	}
+}
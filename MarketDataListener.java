@@ -0,0 +1,35 @@
+/**
+ * Interface for receiving the market data of a MarketDataSubscription, the methods are called by the thread that polls the subscription.
+ * The prices are received as unscaled values and scales (the price is unscaledValue / 10^scale) so no objects are created for each update
+ * @author nsalgueiro
+ *
+ */
+public interface MarketDataListener {
+
+	/**
+	 * Method called when the ticker price or the stock price of a stock changed
+	 * @param stockSymbol			- Symbol of the stock
+	 * @param unscaledTickerPrice	- Unscaled ticker price
+	 * @param tickerScale			- Scale of the ticker price
+	 * @param unscaledStockPrice	- Unscaled stock price, 0 if there are no trades inside the stock price window
+	 * @param stockPriceScale		- Scale of the stock price
+	 * @param timestamp				- Time when the change was published in milliseconds
+	 */
+	void stockUpdated(String stockSymbol, long unscaledTickerPrice, int tickerScale, long unscaledStockPrice, int stockPriceScale, long timestamp);
+
+	/**
+	 * Method called when the GBCE All Share Index changed
+	 * @param unscaledValue	- Unscaled index value, 0 if there are no prices
+	 * @param scale			- Scale of the index value
+	 * @param timestamp		- Time when the change was published in milliseconds
+	 */
+	void indexUpdated(long unscaledValue, int scale, long timestamp);
+
+	/**
+	 * Method called when a subscription without conflation fell so far behind that the oldest updates it didn't read were overwritten
+	 * @param count	- Number of updates lost
+	 */
+	default void updatesLost(long count) {
+		// nothing by default
+	}
+}
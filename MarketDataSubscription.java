@@ -0,0 +1,269 @@
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Subscription to the updates of a MarketDataFeed, it keeps its own position in the ring of the feed and the updates are received by calling poll.
+ * In SEQUENTIAL mode every update is received in the order it was published, when the subscription falls more than the capacity of the ring behind
+ * the overwritten updates are lost and the listener is told how many.
+ * In CONFLATING mode each poll only gives the latest values of each stock and of the index, this is the mode for slow consumers like screens,
+ * and when the subscription falls behind it reads the current values from the stocks so it never misses the current state.
+ * Objects of this class are not thread safe, each consumer polls its own subscription
+ * @author nsalgueiro
+ *
+ */
+public class MarketDataSubscription {
+
+	/**
+	 * Ways of delivering the updates
+	 */
+	public static enum Mode {
+		SEQUENTIAL,	// every update in order
+		CONFLATING	// only the latest values of each stock
+	};
+
+	private MarketDataFeed feed;
+	private Set<String> stockSymbols;	// Symbols of the stocks received or null for all of them
+	private boolean index;
+	private Mode mode;
+
+	private long position;		// Next position of the ring to read
+	private long lostUpdates;	// Updates overwritten before they were read in SEQUENTIAL mode
+
+	private long[] update;		// Values of the update being read, reused for every update
+	private String[] symbol;
+
+	// Latest values of each stock while conflating, the arrays are reused from one poll to the next
+	private Map<String, long[]> latest;
+	private List<String> changed;	// Stocks with new values in the current poll, in the order of their first update
+	private long[] latestIndex;
+	private boolean indexChanged;
+
+	MarketDataSubscription(MarketDataFeed pFeed, Collection<String> pStockSymbols, boolean pIndex, Mode pMode, long pPosition) {
+
+		this.feed = pFeed;
+		this.stockSymbols = (pStockSymbols!=null ? new HashSet<String>(pStockSymbols) : null);
+		this.index = pIndex;
+		this.mode = pMode;
+		this.position = pPosition;
+
+		this.update = new long[6];
+		this.symbol = new String[1];
+
+		if(mode==Mode.CONFLATING) {
+
+			this.latest = new HashMap<String, long[]>();
+			this.changed = new ArrayList<String>();
+			this.latestIndex = new long[6];
+		}
+	}
+
+	/**
+	 * Getter for the delivery mode
+	 * @return the mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Getter for the number of updates lost because they were overwritten before they were read, only in SEQUENTIAL mode
+	 * @return the number of lost updates
+	 */
+	public long getLostUpdates() {
+		return lostUpdates;
+	}
+
+	/**
+	 * Getter for the number of updates published and not read yet, including the ones of other stocks
+	 * @return the number of pending updates
+	 */
+	public long getBacklog() {
+		return Math.max(feed.getTail() - position, 0);
+	}
+
+	/**
+	 * Method to deliver the updates published since the last poll to a listener
+	 * @param listener	- The listener
+	 * @return number of updates delivered
+	 */
+	public int poll(MarketDataListener listener) {
+
+		if(listener==null) {
+			throw new IllegalArgumentException("Invalid argument listener, it cannot be null");
+		}
+
+		return (mode==Mode.SEQUENTIAL ? pollSequential(listener) : pollConflating(listener));
+	}
+
+	private int pollSequential(MarketDataListener listener) {
+
+		long end = feed.getTail();
+		int delivered = 0;
+
+		while(position<end) {
+
+			int result = feed.read(position, update, symbol);
+
+			if(result==0) {	// not published yet, the next poll will continue from here
+				break;
+			}
+
+			if(result<0) {	// overwritten, we continue with the oldest update still in the ring
+
+				long oldest = Math.max(feed.getTail() - feed.getCapacity(), position + 1);
+
+				lostUpdates += oldest - position;
+				listener.updatesLost(oldest - position);
+				position = oldest;
+				continue;
+			}
+
+			position++;
+
+			if(isSubscribed()) {
+
+				deliver(listener, update, symbol[0]);
+				delivered++;
+			}
+		}
+
+		return delivered;
+	}
+
+	private int pollConflating(MarketDataListener listener) {
+
+		long end = feed.getTail();
+
+		if(end - position>feed.getCapacity()) {	// we are behind, the current values are read from the stocks and the updates in the ring are older than them
+			return resynchronize(listener, end);
+		}
+
+		while(position<end) {
+
+			int result = feed.read(position, update, symbol);
+
+			if(result==0) {
+				break;
+			}
+
+			if(result<0) {	// overwritten while we were reading
+				return resynchronize(listener, feed.getTail());
+			}
+
+			position++;
+
+			if(isSubscribed()) {
+
+				if(update[0]==MarketDataFeed.INDEX_UPDATE) {
+
+					System.arraycopy(update, 0, latestIndex, 0, update.length);
+					indexChanged = true;
+
+				} else {
+
+					long[] values = latest.get(symbol[0]);
+
+					if(values==null) {
+
+						values = new long[6];
+						latest.put(symbol[0], values);
+					}
+
+					if(values[0]>=0) {	// first update of the stock in this poll
+						changed.add(symbol[0]);
+					}
+
+					System.arraycopy(update, 0, values, 0, update.length);
+					values[0] = -1;	// the type is used to mark the stocks already in changed
+				}
+			}
+		}
+
+		int delivered = 0;
+
+		for(String stockSymbol: changed) {
+
+			long[] values = latest.get(stockSymbol);
+
+			values[0] = MarketDataFeed.STOCK_UPDATE;
+			deliver(listener, values, stockSymbol);
+			delivered++;
+		}
+
+		changed.clear();
+
+		if(indexChanged) {
+
+			deliver(listener, latestIndex, null);
+			indexChanged = false;
+			delivered++;
+		}
+
+		return delivered;
+	}
+
+	/**
+	 * Method to deliver the current values of the stocks and the index instead of the updates of the ring
+	 * @param listener	- The listener
+	 * @param end		- Position of the ring read before the current values, the updates from this position are newer than them
+	 * @return number of updates delivered
+	 */
+	private int resynchronize(MarketDataListener listener, long end) {
+
+		StockExchange exchange = feed.getExchange();
+		long now = exchange.getClock().currentTimeMillis();
+		int delivered = 0;
+
+		changed.clear();
+		indexChanged = false;
+
+		for(StockElement stock: exchange.getAllStocks()) {
+
+			if(stockSymbols==null || stockSymbols.contains(stock.getStockSymbol())) {
+
+				StockQuote quote = stock.getQuote();
+				BigDecimal stockPrice = quote.getStockPrice();
+
+				listener.stockUpdated(quote.getStockSymbol(), quote.getTickerPrice().unscaledValue().longValue(), quote.getTickerPrice().scale(),
+						(stockPrice!=null ? stockPrice.unscaledValue().longValue() : 0), (stockPrice!=null ? stockPrice.scale() : 0), now);
+				delivered++;
+			}
+		}
+
+		if(index) {
+
+			BigDecimal value = exchange.calculateGBCEAllShareIndex();
+
+			listener.indexUpdated((value!=null ? value.unscaledValue().longValue() : 0), (value!=null ? value.scale() : 0), now);
+			delivered++;
+		}
+
+		position = end;
+
+		return delivered;
+	}
+
+	private boolean isSubscribed() {
+
+		if(update[0]==MarketDataFeed.INDEX_UPDATE) {
+			return index;
+		}
+
+		return (stockSymbols==null || stockSymbols.contains(symbol[0]));
+	}
+
+	private static void deliver(MarketDataListener listener, long[] values, String stockSymbol) {
+
+		if(values[0]==MarketDataFeed.INDEX_UPDATE) {
+			listener.indexUpdated(values[1], (int) values[2], values[5]);
+		} else {
+			listener.stockUpdated(stockSymbol, values[1], (int) values[2], values[3], (int) values[4], values[5]);
+		}
+	}
+}
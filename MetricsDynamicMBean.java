@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InvalidAttributeValueException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+/**
+ * MBean that publishes the ExchangeMetrics of a StockExchange through JMX, it is registered with StockExchange.registerMetricsMBean.
+ * The attributes are built from the operations and locks, for example AddTradeCount, AddTradeP50Nanos, AddTradeP99Nanos, AddTradeP999Nanos,
+ * AddTradeMaxNanos or TradesLockWaitP99Nanos, so a new operation is published without changing this class. Enabled can be written to stop and
+ * resume the recording, and the operation getStockCounts returns the operation counts of a stock
+ * @author nsalgueiro
+ *
+ */
+public class MetricsDynamicMBean implements DynamicMBean {
+
+	private static final String _ENABLED = "Enabled";
+	private static final String _LOCK_WAIT = "LockWait";
+	private static final String _GET_STOCK_COUNTS = "getStockCounts";
+
+	// Suffixes of the attributes of every histogram, in the same order used by getValue
+	private static final String[] _SUFFIXES = {"Count", "P50Nanos", "P99Nanos", "P999Nanos", "MaxNanos"};
+
+	private StockExchange stockExchange;
+	private MBeanInfo info;
+
+	/**
+	 * Constructor for the class
+	 * @param stockExchange	- Stock exchange whose metrics are published
+	 */
+	public MetricsDynamicMBean(StockExchange stockExchange) {
+
+		if(stockExchange==null) {
+			throw new IllegalArgumentException("Invalid argument stockExchange, it cannot be null");
+		}
+
+		this.stockExchange = stockExchange;
+
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		attributes.add(new MBeanAttributeInfo(_ENABLED, "boolean", "true while the metrics are recorded", true, true, true));
+
+		for(ExchangeMetrics.Operation operation: ExchangeMetrics.Operation.values()) {
+			addHistogramAttributes(attributes, toCamelCase(operation.name()), "latency of " + operation.name());
+		}
+
+		for(ExchangeMetrics.Lock lock: ExchangeMetrics.Lock.values()) {
+			addHistogramAttributes(attributes, toCamelCase(lock.name()) + _LOCK_WAIT, "wait for the " + lock.name() + " lock");
+		}
+
+		MBeanOperationInfo getStockCounts = new MBeanOperationInfo(_GET_STOCK_COUNTS, "Operation counts of a stock",
+				new MBeanParameterInfo[] {new MBeanParameterInfo("stockSymbol", "java.lang.String", "Symbol of the stock")}, "java.lang.String", MBeanOperationInfo.INFO);
+
+		this.info = new MBeanInfo(getClass().getName(), "Metrics of a StockExchange", attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[] {getStockCounts}, null);
+	}
+
+	private static void addHistogramAttributes(List<MBeanAttributeInfo> attributes, String prefix, String description) {
+
+		for(String suffix: _SUFFIXES) {
+			attributes.add(new MBeanAttributeInfo(prefix + suffix, "long", description + " " + suffix, true, false, false));
+		}
+	}
+
+	/**
+	 * Method to convert the name of an enumeration value to the one used in the attributes, ADD_TRADE is AddTrade
+	 */
+	private static String toCamelCase(String name) {
+
+		StringBuilder result = new StringBuilder();
+
+		for(String word: name.split("_")) {
+			result.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+		}
+
+		return result.toString();
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+
+		if(attribute.equals(_ENABLED)) {
+			return stockExchange.getMetrics().isEnabled();
+		}
+
+		return getAttribute(attribute, stockExchange.getMetricsSnapshot());
+	}
+
+	/**
+	 * Method to read an attribute from a snapshot
+	 */
+	private static Object getAttribute(String attribute, MetricsSnapshot snapshot) throws AttributeNotFoundException {
+
+		for(int i=0; i<_SUFFIXES.length; i++) {
+
+			if(!attribute.endsWith(_SUFFIXES[i])) {
+				continue;
+			}
+
+			String prefix = attribute.substring(0, attribute.length() - _SUFFIXES[i].length());
+			LatencyHistogram histogram = null;
+
+			for(ExchangeMetrics.Operation operation: ExchangeMetrics.Operation.values()) {
+
+				if(prefix.equals(toCamelCase(operation.name()))) {
+					histogram = snapshot.getLatencies(operation);
+				}
+			}
+
+			for(ExchangeMetrics.Lock lock: ExchangeMetrics.Lock.values()) {
+
+				if(prefix.equals(toCamelCase(lock.name()) + _LOCK_WAIT)) {
+					histogram = snapshot.getLockWaits(lock);
+				}
+			}
+
+			if(histogram!=null) {
+				return getValue(histogram, i);
+			}
+		}
+
+		throw new AttributeNotFoundException("Unknown attribute " + attribute);
+	}
+
+	/**
+	 * Method to read the value of a histogram for one of the suffixes
+	 */
+	private static long getValue(LatencyHistogram histogram, int suffix) {
+
+		switch(suffix) {
+		case 0 : return histogram.getTotalCount();
+		case 1 : return histogram.getValueAtPercentile(50);
+		case 2 : return histogram.getValueAtPercentile(99);
+		case 3 : return histogram.getValueAtPercentile(99.9);
+		default : return histogram.getMax();
+		}
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+
+		MetricsSnapshot snapshot = stockExchange.getMetricsSnapshot();	// a single snapshot so all the values are coherent
+		AttributeList result = new AttributeList();
+
+		for(String attribute: attributes) {
+
+			try {
+
+				result.add(new Attribute(attribute, (attribute.equals(_ENABLED) ? stockExchange.getMetrics().isEnabled() : getAttribute(attribute, snapshot))));
+
+			} catch (AttributeNotFoundException e) {
+
+				// the unknown attributes are left out of the list as the JMX specification says
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException, InvalidAttributeValueException, MBeanException, ReflectionException {
+
+		if(!attribute.getName().equals(_ENABLED)) {
+			throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read only or unknown");
+		}
+
+		if(!(attribute.getValue() instanceof Boolean)) {
+			throw new InvalidAttributeValueException("Attribute " + _ENABLED + " must be a boolean");
+		}
+
+		stockExchange.getMetrics().setEnabled((Boolean) attribute.getValue());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+
+		AttributeList result = new AttributeList();
+
+		for(Attribute attribute: attributes.asList()) {
+
+			try {
+
+				setAttribute(attribute);
+				result.add(attribute);
+
+			} catch (JMException e) {
+
+				// the attributes that can't be set are left out of the list as the JMX specification says
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+
+		if(!actionName.equals(_GET_STOCK_COUNTS) || params==null || params.length!=1 || !(params[0] instanceof String)) {
+			throw new ReflectionException(new NoSuchMethodException(actionName), "Unknown operation " + actionName);
+		}
+
+		String stockSymbol = (String) params[0];
+		MetricsSnapshot snapshot = stockExchange.getMetricsSnapshot();
+		StringBuilder result = new StringBuilder(stockSymbol);
+
+		for(ExchangeMetrics.Operation operation: ExchangeMetrics.Operation.values()) {
+			result.append(' ').append(operation.name()).append('=').append(snapshot.getStockCount(stockSymbol, operation));
+		}
+
+		return result.toString();
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		return info;
+	}
+}
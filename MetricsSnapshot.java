@@ -0,0 +1,89 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copy of the ExchangeMetrics taken at a given time, it doesn't change afterwards so it can be read, compared with a previous snapshot or printed at leisure.
+ * The operation counts are the counts of the latency histograms so both are always coherent
+ * @author nsalgueiro
+ *
+ */
+public class MetricsSnapshot {
+
+	private long timestamp;
+	private Map<ExchangeMetrics.Operation, LatencyHistogram> latencies;
+	private Map<ExchangeMetrics.Lock, LatencyHistogram> lockWaits;
+	private Map<String, long[]> stockCounts;	// Count of each operation of each stock, indexed by the ordinal of the operation
+
+	/**
+	 * Constructor for the class, only used by ExchangeMetrics
+	 * @param timestamp		- Time when the snapshot was taken
+	 * @param latencies		- Latencies of each operation in nanoseconds
+	 * @param lockWaits		- Wait times of each lock in nanoseconds
+	 * @param stockCounts	- Operation counts of each stock
+	 */
+	MetricsSnapshot(long timestamp, Map<ExchangeMetrics.Operation, LatencyHistogram> latencies, Map<ExchangeMetrics.Lock, LatencyHistogram> lockWaits,
+			Map<String, long[]> stockCounts) {
+
+		this.timestamp = timestamp;
+		this.latencies = latencies;
+		this.lockWaits = lockWaits;
+		this.stockCounts = stockCounts;
+	}
+
+	/**
+	 * Method to retrieve the time when the snapshot was taken
+	 * @return the time in milliseconds
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Method to retrieve the number of times an operation was performed
+	 * @param operation	- The operation
+	 * @return the count
+	 */
+	public long getCount(ExchangeMetrics.Operation operation) {
+		return latencies.get(operation).getTotalCount();
+	}
+
+	/**
+	 * Method to retrieve the latencies of an operation
+	 * @param operation	- The operation
+	 * @return histogram with the latencies in nanoseconds
+	 */
+	public LatencyHistogram getLatencies(ExchangeMetrics.Operation operation) {
+		return latencies.get(operation);
+	}
+
+	/**
+	 * Method to retrieve the time waited for a lock
+	 * @param lock	- The lock
+	 * @return histogram with the waits in nanoseconds
+	 */
+	public LatencyHistogram getLockWaits(ExchangeMetrics.Lock lock) {
+		return lockWaits.get(lock);
+	}
+
+	/**
+	 * Method to retrieve the symbols of the stocks included in the snapshot
+	 * @return the symbols
+	 */
+	public Set<String> getStockSymbols() {
+		return Collections.unmodifiableSet(stockCounts.keySet());
+	}
+
+	/**
+	 * Method to retrieve the number of times an operation was performed on a stock
+	 * @param stockSymbol	- Symbol of the stock
+	 * @param operation		- The operation
+	 * @return the count or 0 if the stock is not in the snapshot
+	 */
+	public long getStockCount(String stockSymbol, ExchangeMetrics.Operation operation) {
+
+		long[] counts = stockCounts.get(stockSymbol);
+
+		return (counts!=null ? counts[operation.ordinal()] : 0);
+	}
+}
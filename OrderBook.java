@@ -0,0 +1,611 @@
+import java.util.Arrays;
+
+/**
+ * Limit order book of a stock with price-time priority matching. An incoming order is matched against the best prices of the other side, orders
+ * at the same price are matched in the order they arrived, and what is left of it rests in the book until it is matched, modified or cancelled.
+ * Every match is stored in the stock as a trade at the price of the resting order with the side of the incoming order, so the fills update the
+ * ticker price, the stock price window and the GBCE index like any other trade. The fills of each incoming order are stored with a single lock
+ * acquisition of the stock.
+ * The prices are fixed point values with the scale of the stock. Each side keeps its price levels in a sorted array with the best price at the end,
+ * so the usual case of adding or removing at the best price is a single array access, and the orders of a level are a linked list. The order and
+ * price level objects are reused, and the orders are found by their id in an open addressing table of longs, so once the book has grown to its
+ * working size adding, matching and cancelling orders creates no objects.
+ * All the methods are synchronized, the book is meant to be used by a single matching thread and the lock is never contended
+ * @author nsalgueiro
+ *
+ */
+public class OrderBook {
+
+	/**
+	 * Receiver of the matches of the book, it is called while holding the lock of the book so it must be fast
+	 */
+	public static interface FillListener {
+
+		/**
+		 * Method called for every match
+		 * @param incomingOrderId	- Id of the order that was being added or modified
+		 * @param restingOrderId	- Id of the order that was in the book
+		 * @param incomingSide		- Side of the incoming order
+		 * @param scaledPrice		- Price of the match, the price of the resting order
+		 * @param quantity			- Quantity of the match
+		 */
+		void orderFilled(long incomingOrderId, long restingOrderId, StockTradeAction.actionTypes incomingSide, long scaledPrice, long quantity);
+	}
+
+	private static final int _INITIAL_LEVELS = 64;
+	private static final int _INITIAL_FILLS = 16;
+
+	private StockElement stock;
+	private BookSide bids;		// Buy orders, the best price is the highest one
+	private BookSide asks;		// Sell orders, the best price is the lowest one
+	private OrderIndex orders;	// Resting orders by id
+	private long nextOrderId;
+
+	private Order freeOrders;		// Orders that can be reused, linked with their next field
+	private PriceLevel freeLevels;	// Price levels that can be reused, linked with their next field
+
+	// Fills of the order being matched, they are stored in the stock together once the matching is done
+	private long[] fillQuantities;
+	private long[] fillPrices;
+	private int fillCount;
+
+	private FillListener fillListener;
+
+	/**
+	 * Constructor for the class, usually the book is created by StockElement.getOrderBook
+	 * @param stock	- Stock where the fills are stored
+	 */
+	public OrderBook(StockElement stock) {
+
+		if(stock==null) {
+			throw new IllegalArgumentException("Invalid argument stock, it cannot be null");
+		}
+
+		this.stock = stock;
+		this.bids = new BookSide(true);
+		this.asks = new BookSide(false);
+		this.orders = new OrderIndex();
+		this.nextOrderId = 1;
+
+		this.fillQuantities = new long[_INITIAL_FILLS];
+		this.fillPrices = new long[_INITIAL_FILLS];
+	}
+
+	/**
+	 * Setter method to set the object that receives every match
+	 * @param pFillListener	- The listener or null
+	 */
+	public synchronized void setFillListener(FillListener pFillListener) {
+
+		this.fillListener = pFillListener;
+	}
+
+	/**
+	 * Method to add a limit order, it is matched right away against the orders of the other side and the rest of it stays in the book
+	 * @param side			- BUY or SELL
+	 * @param scaledPrice	- Limit price multiplied by 10^getPriceScale() of the stock
+	 * @param quantity		- Quantity of shares
+	 * @return the id of the order, it is used to modify or cancel it while it is in the book
+	 */
+	public synchronized long addOrder(StockTradeAction.actionTypes side, long scaledPrice, long quantity) {
+
+		checkOrder(side, scaledPrice, quantity);
+
+		long orderId = nextOrderId++;
+		submit(orderId, side, scaledPrice, quantity);
+
+		return orderId;
+	}
+
+	/**
+	 * Method to cancel the rest of an order
+	 * @param orderId	- Id of the order
+	 * @return false if the order is not in the book, it was already filled or cancelled
+	 */
+	public synchronized boolean cancelOrder(long orderId) {
+
+		Order order = orders.remove(orderId);
+
+		if(order==null) {
+			return false;
+		}
+
+		unlink(order);
+		releaseOrder(order);
+
+		return true;
+	}
+
+	/**
+	 * Method to change the price or the quantity of an order. When only the quantity is reduced the order keeps its place in the queue of its price,
+	 * otherwise it goes to the end of the queue of the new price and it can be matched like a new order
+	 * @param orderId		- Id of the order
+	 * @param scaledPrice	- New limit price
+	 * @param quantity		- New quantity still to be filled, 0 cancels the order
+	 * @return false if the order is not in the book
+	 */
+	public synchronized boolean modifyOrder(long orderId, long scaledPrice, long quantity) {
+
+		if(quantity==0) {
+			return cancelOrder(orderId);
+		}
+
+		Order order = orders.get(orderId);
+
+		if(order==null) {
+			return false;
+		}
+
+		StockTradeAction.actionTypes side = (order.level.buy ? StockTradeAction.actionTypes.BUY : StockTradeAction.actionTypes.SELL);
+		checkOrder(side, scaledPrice, quantity);
+
+		if(scaledPrice==order.level.price && quantity<=order.quantity) {	// the order keeps its priority
+
+			order.level.quantity -= order.quantity - quantity;
+			order.quantity = quantity;
+
+			return true;
+		}
+
+		orders.remove(orderId);
+		unlink(order);
+		releaseOrder(order);
+
+		submit(orderId, side, scaledPrice, quantity);
+
+		return true;
+	}
+
+	private static void checkOrder(StockTradeAction.actionTypes side, long scaledPrice, long quantity) {
+
+		if(side==null) {
+			throw new IllegalArgumentException("Invalid argument side, it cannot be null");
+		}
+
+		if(scaledPrice<=0 || scaledPrice==FixedPointPrice.NOT_REPRESENTABLE || quantity<=0) {
+			throw new IllegalArgumentException("Invalid arguments, the price and the quantity must be greater than 0");
+		}
+	}
+
+	/**
+	 * Method to match an order and place the rest of it in the book
+	 */
+	private void submit(long orderId, StockTradeAction.actionTypes side, long scaledPrice, long quantity) {
+
+		boolean buy = (side==StockTradeAction.actionTypes.BUY);
+		BookSide other = (buy ? asks : bids);
+		long remaining = quantity;
+
+		// we match while the best price of the other side is at least as good as the limit of the order
+		while(remaining>0 && other.size>0) {
+
+			PriceLevel level = other.best();
+
+			if(buy ? level.price>scaledPrice : level.price<scaledPrice) {
+				break;
+			}
+
+			while(remaining>0 && level.head!=null) {
+
+				Order resting = level.head;
+				long filled = Math.min(remaining, resting.quantity);
+
+				addFill(level.price, filled);
+
+				if(fillListener!=null) {
+					fillListener.orderFilled(orderId, resting.id, side, level.price, filled);
+				}
+
+				remaining -= filled;
+				resting.quantity -= filled;
+				level.quantity -= filled;
+
+				if(resting.quantity==0) {
+
+					orders.remove(resting.id);
+					unlink(resting);	// it also removes the level once it is empty
+					releaseOrder(resting);
+				}
+			}
+		}
+
+		if(fillCount>0) {
+
+			stock.addFills(stock.getClock().currentTimeMillis(), side, fillQuantities, fillPrices, fillCount);
+			fillCount = 0;
+		}
+
+		if(remaining>0) {
+			rest(orderId, buy, scaledPrice, remaining);
+		}
+	}
+
+	private void addFill(long scaledPrice, long quantity) {
+
+		if(fillCount==fillQuantities.length) {
+
+			fillQuantities = Arrays.copyOf(fillQuantities, fillCount * 2);
+			fillPrices = Arrays.copyOf(fillPrices, fillCount * 2);
+		}
+
+		fillQuantities[fillCount] = quantity;
+		fillPrices[fillCount] = scaledPrice;
+		fillCount++;
+	}
+
+	/**
+	 * Method to place an order at the end of the queue of its price
+	 */
+	private void rest(long orderId, boolean buy, long scaledPrice, long quantity) {
+
+		BookSide side = (buy ? bids : asks);
+		int position = side.search(scaledPrice);
+		PriceLevel level;
+
+		if(position>=0) {
+
+			level = side.levels[position];
+
+		} else {
+
+			level = newLevel(buy, scaledPrice);
+			side.insert(-position - 1, level);
+		}
+
+		Order order = newOrder(orderId, quantity);
+
+		order.level = level;
+		order.previous = level.tail;
+
+		if(level.tail!=null) {
+			level.tail.next = order;
+		} else {
+			level.head = order;
+		}
+
+		level.tail = order;
+		level.quantity += quantity;
+
+		orders.put(order);
+	}
+
+	/**
+	 * Method to remove an order from its price level, the level is removed from the book when it has no more orders
+	 */
+	private void unlink(Order order) {
+
+		PriceLevel level = order.level;
+
+		if(order.previous!=null) {
+			order.previous.next = order.next;
+		} else {
+			level.head = order.next;
+		}
+
+		if(order.next!=null) {
+			order.next.previous = order.previous;
+		} else {
+			level.tail = order.previous;
+		}
+
+		level.quantity -= order.quantity;
+
+		if(level.head==null) {
+
+			(level.buy ? bids : asks).remove(level);
+			level.next = freeLevels;
+			freeLevels = level;
+		}
+	}
+
+	private Order newOrder(long orderId, long quantity) {
+
+		Order order = freeOrders;
+
+		if(order!=null) {
+			freeOrders = order.next;
+		} else {
+			order = new Order();
+		}
+
+		order.id = orderId;
+		order.quantity = quantity;
+		order.next = null;
+		order.previous = null;
+
+		return order;
+	}
+
+	private void releaseOrder(Order order) {
+
+		order.level = null;
+		order.previous = null;
+		order.next = freeOrders;
+		freeOrders = order;
+	}
+
+	private PriceLevel newLevel(boolean buy, long scaledPrice) {
+
+		PriceLevel level = freeLevels;
+
+		if(level!=null) {
+			freeLevels = level.next;
+		} else {
+			level = new PriceLevel();
+		}
+
+		level.buy = buy;
+		level.price = scaledPrice;
+		level.quantity = 0;
+		level.head = null;
+		level.tail = null;
+		level.next = null;
+
+		return level;
+	}
+
+	/**
+	 * Method to retrieve the highest price of the buy orders
+	 * @return the price or 0 if there are no buy orders
+	 */
+	public synchronized long getBestBid() {
+
+		return (bids.size>0 ? bids.best().price : 0);
+	}
+
+	/**
+	 * Method to retrieve the lowest price of the sell orders
+	 * @return the price or 0 if there are no sell orders
+	 */
+	public synchronized long getBestAsk() {
+
+		return (asks.size>0 ? asks.best().price : 0);
+	}
+
+	/**
+	 * Method to retrieve the quantity of all the orders of a side at a price
+	 * @param side			- BUY or SELL
+	 * @param scaledPrice	- The price
+	 * @return the quantity or 0 if there are no orders at that price
+	 */
+	public synchronized long getQuantity(StockTradeAction.actionTypes side, long scaledPrice) {
+
+		BookSide bookSide = (side==StockTradeAction.actionTypes.BUY ? bids : asks);
+		int position = bookSide.search(scaledPrice);
+
+		return (position>=0 ? bookSide.levels[position].quantity : 0);
+	}
+
+	/**
+	 * Method to retrieve the quantity of an order still to be filled
+	 * @param orderId	- Id of the order
+	 * @return the quantity or 0 if the order is not in the book
+	 */
+	public synchronized long getOrderQuantity(long orderId) {
+
+		Order order = orders.get(orderId);
+
+		return (order!=null ? order.quantity : 0);
+	}
+
+	/**
+	 * Method to retrieve the number of orders in the book
+	 * @return number of orders of both sides
+	 */
+	public synchronized int getOrderCount() {
+		return orders.size;
+	}
+
+	/**
+	 * Method to retrieve the number of different prices of a side
+	 * @param side	- BUY or SELL
+	 * @return number of price levels
+	 */
+	public synchronized int getLevelCount(StockTradeAction.actionTypes side) {
+		return (side==StockTradeAction.actionTypes.BUY ? bids : asks).size;
+	}
+
+	/**
+	 * An order in the book, the objects are reused once the order is filled or cancelled
+	 */
+	private static final class Order {
+
+		private long id;
+		private long quantity;		// Quantity still to be filled
+		private PriceLevel level;
+		private Order previous;		// Previous order of the same level, it arrived before this one
+		private Order next;			// Next order of the same level, or next free order
+	}
+
+	/**
+	 * Orders of a side at the same price in the order they arrived
+	 */
+	private static final class PriceLevel {
+
+		private boolean buy;
+		private long price;
+		private long quantity;	// Sum of the quantities of its orders
+		private Order head;		// Oldest order, the first one to be matched
+		private Order tail;
+		private PriceLevel next;	// Next free level
+	}
+
+	/**
+	 * Price levels of a side sorted from the worst price to the best one, so the best level is removed or added at the end of the arrays.
+	 * The keys are the prices for the buy side and the negative prices for the sell side, so both sides are sorted in ascending order of their keys
+	 */
+	private static final class BookSide {
+
+		private boolean buy;
+		private long[] keys;
+		private PriceLevel[] levels;
+		private int size;
+
+		private BookSide(boolean buy) {
+
+			this.buy = buy;
+			this.keys = new long[_INITIAL_LEVELS];
+			this.levels = new PriceLevel[_INITIAL_LEVELS];
+		}
+
+		private long key(long price) {
+			return (buy ? price : -price);
+		}
+
+		private PriceLevel best() {
+			return levels[size - 1];
+		}
+
+		/**
+		 * Method to find a price
+		 * @return the position of the level or -(insertion point) - 1 like Arrays.binarySearch
+		 */
+		private int search(long price) {
+
+			long key = key(price);
+
+			if(size>0 && keys[size - 1]<key) {	// a new best price, the usual case for an order that doesn't match
+				return -size - 1;
+			}
+
+			return Arrays.binarySearch(keys, 0, size, key);
+		}
+
+		private void insert(int position, PriceLevel level) {
+
+			if(size==keys.length) {
+
+				keys = Arrays.copyOf(keys, size * 2);
+				levels = Arrays.copyOf(levels, size * 2);
+			}
+
+			System.arraycopy(keys, position, keys, position + 1, size - position);
+			System.arraycopy(levels, position, levels, position + 1, size - position);
+
+			keys[position] = key(level.price);
+			levels[position] = level;
+			size++;
+		}
+
+		private void remove(PriceLevel level) {
+
+			int position = (levels[size - 1]==level ? size - 1 : search(level.price));	// usually the best level
+
+			System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+			System.arraycopy(levels, position + 1, levels, position, size - position - 1);
+
+			size--;
+			levels[size] = null;
+		}
+	}
+
+	/**
+	 * Open addressing hash table of the resting orders by id with linear probing, the ids are longs so they are never boxed
+	 */
+	private static final class OrderIndex {
+
+		private static final int _INITIAL_CAPACITY = 1024;
+
+		private long[] ids;			// 0 is a free slot, the ids start at 1
+		private Order[] values;
+		private int mask;
+		private int size;
+
+		private OrderIndex() {
+
+			this.ids = new long[_INITIAL_CAPACITY];
+			this.values = new Order[_INITIAL_CAPACITY];
+			this.mask = _INITIAL_CAPACITY - 1;
+		}
+
+		private int slot(long id) {
+
+			return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;	// the ids are consecutive so they are spread with a multiplicative hash
+		}
+
+		private Order get(long id) {
+
+			for(int i=slot(id); ids[i]!=0; i=(i + 1) & mask) {
+
+				if(ids[i]==id) {
+					return values[i];
+				}
+			}
+
+			return null;
+		}
+
+		private void put(Order order) {
+
+			if((size + 1) * 2 > ids.length) {	// the table is kept at most half full
+				resize();
+			}
+
+			int i = slot(order.id);
+
+			while(ids[i]!=0) {
+				i = (i + 1) & mask;
+			}
+
+			ids[i] = order.id;
+			values[i] = order;
+			size++;
+		}
+
+		private Order remove(long id) {
+
+			int i = slot(id);
+
+			while(ids[i]!=id) {
+
+				if(ids[i]==0) {
+					return null;
+				}
+
+				i = (i + 1) & mask;
+			}
+
+			Order order = values[i];
+
+			// the following entries of the same run are moved back so no lookup stops at the free slot
+			int free = i;
+
+			for(int j=(i + 1) & mask; ids[j]!=0; j=(j + 1) & mask) {
+
+				int home = slot(ids[j]);
+
+				// the entry can go to the free slot if its home is not between the free slot and its position
+				if(((j - home) & mask) >= ((j - free) & mask)) {
+
+					ids[free] = ids[j];
+					values[free] = values[j];
+					free = j;
+				}
+			}
+
+			ids[free] = 0;
+			values[free] = null;
+			size--;
+
+			return order;
+		}
+
+		private void resize() {
+
+			long[] oldIds = ids;
+			Order[] oldValues = values;
+
+			ids = new long[oldIds.length * 2];
+			values = new Order[oldIds.length * 2];
+			mask = ids.length - 1;
+			size = 0;
+
+			for(int i=0; i<oldIds.length; i++) {
+
+				if(oldIds[i]!=0) {
+					put(oldValues[i]);
+				}
+			}
+		}
+	}
+}
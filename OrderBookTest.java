@@ -0,0 +1,188 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OrderBookTest {
+
+	StockElement stock;
+	OrderBook book;
+	List<long[]> fills;
+
+	@Before
+	public void setup() {
+
+		stock = new StockElement("ABC", StockElement.StockTypes.COMMON, new BigDecimal(5), new BigDecimal(2), new BigDecimal(100), 2);
+		book = stock.getOrderBook();
+		fills = new ArrayList<long[]>();
+
+		// each fill is {incoming id, resting id, price, quantity}
+		book.setFillListener((incomingOrderId, restingOrderId, incomingSide, scaledPrice, quantity) -> fills.add(new long[] {incomingOrderId, restingOrderId, scaledPrice, quantity}));
+	}
+
+	@Test
+	public void testPriceTimePriority() {
+
+		long sell1 = book.addOrder(StockTradeAction.actionTypes.SELL, 10100, 10);
+		long sell2 = book.addOrder(StockTradeAction.actionTypes.SELL, 10000, 10);
+		long sell3 = book.addOrder(StockTradeAction.actionTypes.SELL, 10000, 10);
+		book.addOrder(StockTradeAction.actionTypes.BUY, 9900, 5);
+
+		assertEquals("Same book ", book, stock.getOrderBook());
+		assertEquals("Best ask ", 10000, book.getBestAsk());
+		assertEquals("Best bid ", 9900, book.getBestBid());
+		assertEquals("Quantity at 100.00 ", 20, book.getQuantity(StockTradeAction.actionTypes.SELL, 10000));
+		assertTrue("Nothing matched ", fills.isEmpty());
+
+		// the buy takes the best price first and the oldest order at that price first, each at its own price
+		long buy = book.addOrder(StockTradeAction.actionTypes.BUY, 10100, 25);
+
+		assertEquals("Fills ", 3, fills.size());
+		assertArrayEquals("First fill ", new long[] {buy, sell2, 10000, 10}, fills.get(0));
+		assertArrayEquals("Second fill ", new long[] {buy, sell3, 10000, 10}, fills.get(1));
+		assertArrayEquals("Third fill ", new long[] {buy, sell1, 10100, 5}, fills.get(2));
+
+		assertEquals("Rest of the partially filled order ", 5, book.getOrderQuantity(sell1));
+		assertEquals("The filled buy is not in the book ", 0, book.getOrderQuantity(buy));
+		assertEquals("Orders in the book ", 2, book.getOrderCount());
+		assertEquals("Sell levels ", 1, book.getLevelCount(StockTradeAction.actionTypes.SELL));
+
+		// the fills are trades of the stock
+		List<StockTradeAction> trades = stock.getTradeActions();
+
+		assertEquals("Trades ", 3, trades.size());
+		assertEquals("Trade side ", StockTradeAction.actionTypes.BUY, trades.get(0).getAction());
+		assertEquals("Ticker price ", 0, new BigDecimal("101").compareTo(stock.getTickerPrice()));
+		assertEquals("Stock price ", new BigDecimal("100.200"), stock.calculateStockPrice());
+	}
+
+	@Test
+	public void testRestingBuyMatchedBySell() {
+
+		long buy = book.addOrder(StockTradeAction.actionTypes.BUY, 10000, 10);
+		long sell = book.addOrder(StockTradeAction.actionTypes.SELL, 9000, 15);
+
+		assertArrayEquals("Fill at the resting price ", new long[] {sell, buy, 10000, 10}, fills.get(0));
+		assertEquals("Rest of the sell ", 5, book.getOrderQuantity(sell));
+		assertEquals("Best ask ", 9000, book.getBestAsk());
+		assertEquals("No bids ", 0, book.getBestBid());
+	}
+
+	@Test
+	public void testCancelAndModify() {
+
+		long first = book.addOrder(StockTradeAction.actionTypes.BUY, 10000, 10);
+		long second = book.addOrder(StockTradeAction.actionTypes.BUY, 10000, 10);
+
+		// reducing the quantity keeps the priority
+		assertTrue("Modify ", book.modifyOrder(first, 10000, 4));
+		assertEquals("Level quantity ", 14, book.getQuantity(StockTradeAction.actionTypes.BUY, 10000));
+
+		book.addOrder(StockTradeAction.actionTypes.SELL, 10000, 4);
+		assertEquals("The first order keeps its place ", first, fills.get(0)[1]);
+
+		// a new price loses the priority and can match
+		long sell = book.addOrder(StockTradeAction.actionTypes.SELL, 10200, 10);
+		assertTrue("Modify price ", book.modifyOrder(second, 10200, 10));
+
+		assertArrayEquals("Modified order matched ", new long[] {second, sell, 10200, 10}, fills.get(1));
+		assertEquals("Empty book ", 0, book.getOrderCount());
+
+		long third = book.addOrder(StockTradeAction.actionTypes.SELL, 10500, 10);
+
+		assertTrue("Cancel ", book.cancelOrder(third));
+		assertFalse("Cancel twice ", book.cancelOrder(third));
+		assertFalse("Modify a cancelled order ", book.modifyOrder(third, 10500, 5));
+		assertEquals("No asks ", 0, book.getBestAsk());
+		assertEquals("No sell levels ", 0, book.getLevelCount(StockTradeAction.actionTypes.SELL));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidOrder() {
+
+		book.addOrder(StockTradeAction.actionTypes.BUY, 0, 10);
+	}
+
+	@Test
+	public void testRandomOrdersAgainstSimpleBook() {
+
+		// the quantities of every price are compared with a simple book kept with TreeMaps
+		TreeMap<Long, Long> bidQuantities = new TreeMap<Long, Long>();
+		TreeMap<Long, Long> askQuantities = new TreeMap<Long, Long>();
+		List<long[]> live = new ArrayList<long[]>();	// {id, buy, price}
+		Random random = new Random(42);
+		long filled = 0;
+
+		for(int i=0; i<20000; i++) {
+
+			if(!live.isEmpty() && random.nextInt(4)==0) {
+
+				long[] order = live.remove(random.nextInt(live.size()));
+				long quantity = book.getOrderQuantity(order[0]);
+
+				if(quantity>0) {
+
+					assertTrue("Cancel ", book.cancelOrder(order[0]));
+					subtract(order[1]==1 ? bidQuantities : askQuantities, order[2], quantity);
+				}
+
+				continue;
+			}
+
+			boolean buy = random.nextBoolean();
+			long price = 9900 + random.nextInt(200);
+			long quantity = 1 + random.nextInt(100);
+			int fillsBefore = fills.size();
+
+			long id = book.addOrder(buy ? StockTradeAction.actionTypes.BUY : StockTradeAction.actionTypes.SELL, price, quantity);
+
+			for(int f=fillsBefore; f<fills.size(); f++) {
+
+				subtract(buy ? askQuantities : bidQuantities, fills.get(f)[2], fills.get(f)[3]);
+				filled += fills.get(f)[3];
+			}
+
+			long rest = book.getOrderQuantity(id);
+
+			if(rest>0) {
+
+				(buy ? bidQuantities : askQuantities).merge(price, rest, Long::sum);
+				live.add(new long[] {id, buy ? 1 : 0, price});
+			}
+
+			// the book is never crossed
+			assertTrue("Crossed book ", book.getBestBid()==0 || book.getBestAsk()==0 || book.getBestBid()<book.getBestAsk());
+		}
+
+		assertTrue("Some orders matched ", filled>0);
+		assertEquals("Best bid ", bidQuantities.isEmpty() ? 0 : (long) bidQuantities.lastKey(), book.getBestBid());
+		assertEquals("Best ask ", askQuantities.isEmpty() ? 0 : (long) askQuantities.firstKey(), book.getBestAsk());
+		assertEquals("Bid levels ", bidQuantities.size(), book.getLevelCount(StockTradeAction.actionTypes.BUY));
+		assertEquals("Ask levels ", askQuantities.size(), book.getLevelCount(StockTradeAction.actionTypes.SELL));
+
+		for(Long price: bidQuantities.keySet()) {
+			assertEquals("Bid quantity at " + price, (long) bidQuantities.get(price), book.getQuantity(StockTradeAction.actionTypes.BUY, price));
+		}
+
+		for(Long price: askQuantities.keySet()) {
+			assertEquals("Ask quantity at " + price, (long) askQuantities.get(price), book.getQuantity(StockTradeAction.actionTypes.SELL, price));
+		}
+	}
+
+	private static void subtract(TreeMap<Long, Long> quantities, long price, long quantity) {
+
+		long remaining = quantities.get(price) - quantity;
+
+		if(remaining==0) {
+			quantities.remove(price);
+		} else {
+			quantities.put(price, remaining);
+		}
+	}
+}
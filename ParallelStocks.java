@@ -0,0 +1,141 @@
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Helper for the calculations that go through all the stocks of an exchange (the index from scratch, the quotes of all the stocks, the stocks whose price expired).
+ * The list of stocks is always split in the same halves down to groups of at most _LEAF_SIZE stocks and the results of the halves are always combined in the same order,
+ * so the result is exactly the same whether the groups are calculated by the threads of the common fork-join pool or one after the other by the calling thread.
+ * The pool is only used when there are at least PARALLEL_THRESHOLD stocks (system property stock.parallelThreshold, 1024 by default) and more than one processor,
+ * with fewer stocks starting the tasks costs more than what they save
+ * @author nsalgueiro
+ *
+ */
+final class ParallelStocks {
+
+	static final int PARALLEL_THRESHOLD = Integer.getInteger("stock.parallelThreshold", 1024);
+
+	private static final int _LEAF_SIZE = 128;	// Maximum number of stocks calculated by each task
+
+	/**
+	 * Calculation of a group of consecutive stocks of the list
+	 */
+	static interface Group<T> {
+
+		T calculate(List<StockElement> stocks, int from, int to);
+	}
+
+	private ParallelStocks() {
+		// only static methods
+	}
+
+	/**
+	 * Method to check if a calculation of a number of stocks uses the fork-join pool
+	 * @param count	- Number of stocks
+	 * @return true if it is calculated in parallel
+	 */
+	static boolean isParallel(int count) {
+
+		return count>=PARALLEL_THRESHOLD && count>_LEAF_SIZE && ForkJoinPool.getCommonPoolParallelism()>1;
+	}
+
+	/**
+	 * Method to calculate a result for a list of stocks
+	 * @param stocks	- The stocks, the list must not change during the calculation
+	 * @param group		- Calculation of a group of consecutive stocks
+	 * @param combine	- Combination of the results of two consecutive groups, the first argument is the result of the first group
+	 * @return the result
+	 */
+	static <T> T reduce(List<StockElement> stocks, Group<T> group, BinaryOperator<T> combine) {
+
+		return reduce(stocks, group, combine, isParallel(stocks.size()));
+	}
+
+	/**
+	 * Method to calculate a result for a list of stocks deciding if the fork-join pool is used
+	 * @param stocks	- The stocks, the list must not change during the calculation
+	 * @param group		- Calculation of a group of consecutive stocks
+	 * @param combine	- Combination of the results of two consecutive groups
+	 * @param parallel	- true to use the fork-join pool
+	 * @return the result
+	 */
+	static <T> T reduce(List<StockElement> stocks, Group<T> group, BinaryOperator<T> combine, boolean parallel) {
+
+		Reduction<T> reduction = new Reduction<T>(stocks, 0, stocks.size(), group, combine, parallel);
+
+		return (parallel ? ForkJoinPool.commonPool().invoke(reduction) : reduction.compute());
+	}
+
+	/**
+	 * Method to calculate a value for each stock of a list
+	 * @param stocks	- The stocks
+	 * @param function	- Calculation of the value of a stock
+	 * @param results	- Array where the value of each stock is written in the same position as the stock
+	 */
+	static <R> void map(List<StockElement> stocks, Function<StockElement, R> function, R[] results) {
+
+		if(results.length<stocks.size()) {
+			throw new IllegalArgumentException("Invalid argument results, it must have a position for each stock");
+		}
+
+		reduce(stocks, (list, from, to) -> {
+
+			for(int i=from; i<to; i++) {
+				results[i] = function.apply(list.get(i));
+			}
+
+			return null;
+
+		}, (first, second) -> null);
+	}
+
+	/**
+	 * Task that splits its range of the list in halves until the groups are small enough
+	 */
+	private static final class Reduction<T> extends RecursiveTask<T> {
+
+		private static final long serialVersionUID = 1L;
+
+		private List<StockElement> stocks;
+		private int from;
+		private int to;
+		private Group<T> group;
+		private BinaryOperator<T> combine;
+		private boolean parallel;
+
+		private Reduction(List<StockElement> stocks, int from, int to, Group<T> group, BinaryOperator<T> combine, boolean parallel) {
+
+			this.stocks = stocks;
+			this.from = from;
+			this.to = to;
+			this.group = group;
+			this.combine = combine;
+			this.parallel = parallel;
+		}
+
+		@Override
+		protected T compute() {
+
+			if(to - from<=_LEAF_SIZE) {
+				return group.calculate(stocks, from, to);
+			}
+
+			int middle = (from + to) >>> 1;
+
+			Reduction<T> first = new Reduction<T>(stocks, from, middle, group, combine, parallel);
+			Reduction<T> second = new Reduction<T>(stocks, middle, to, group, combine, parallel);
+
+			if(!parallel) {
+				return combine.apply(first.compute(), second.compute());
+			}
+
+			second.fork();
+
+			T firstResult = first.compute();
+
+			return combine.apply(firstResult, second.join());
+		}
+	}
+}
@@ -0,0 +1,81 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ParallelStocksTest {
+
+	private static List<StockElement> newStocks(int count) {
+
+		List<StockElement> stocks = new ArrayList<StockElement>();
+
+		for(int i=0; i<count; i++) {
+
+			StockElement stock = new StockElement("S" + i, StockElement.StockTypes.COMMON, BigDecimal.ONE, BigDecimal.ZERO, new BigDecimal(100));
+
+			if(i % 10!=0) {	// some stocks have no trades
+				stock.addTradeAction(10, StockTradeAction.actionTypes.BUY, new BigDecimal(1 + (i * 7919L) % 5000).movePointLeft(2));
+			}
+
+			stocks.add(stock);
+		}
+
+		return stocks;
+	}
+
+	private static double logSum(List<StockElement> stocks, boolean parallel) {
+
+		return ParallelStocks.reduce(stocks, (list, from, to) -> {
+
+			double sum = 0;
+
+			for(int i=from; i<to; i++) {
+
+				BigDecimal price = list.get(i).peekStockPrice();
+
+				if(price!=null) {
+					sum += Math.log(price.doubleValue());
+				}
+			}
+
+			return sum;
+
+		}, (first, second) -> first + second, parallel);
+	}
+
+	@Test
+	public void testParallelResultIsTheSequentialOne() {
+
+		List<StockElement> stocks = newStocks(5000);
+
+		double sequential = logSum(stocks, false);
+
+		// not just close, the same groups are added in the same order
+		for(int run=0; run<5; run++) {
+			assertEquals(Double.doubleToLongBits(sequential), Double.doubleToLongBits(logSum(stocks, true)));
+		}
+	}
+
+	@Test
+	public void testMapKeepsPositions() {
+
+		List<StockElement> stocks = newStocks(1000);
+		String[] symbols = new String[stocks.size()];
+
+		ParallelStocks.map(stocks, StockElement::getStockSymbol, symbols);
+
+		for(int i=0; i<stocks.size(); i++) {
+			assertEquals("S" + i, symbols[i]);
+		}
+	}
+
+	@Test
+	public void testThreshold() {
+
+		assertFalse(ParallelStocks.isParallel(10));
+		assertFalse(ParallelStocks.isParallel(ParallelStocks.PARALLEL_THRESHOLD - 1));
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * Result of the operations of the stock exchange and its stocks, the methods return one of these values instead of printing their errors
+ * and the errors are also sent to the EventSink of the stock exchange
+ * @author nsalgueiro
+ *
+ */
+public enum ResultCode {
+
+	OK("Success"),
+	EMPTY_STOCK_SYMBOL("Stock symbol cannot be empty"),
+	NULL_VALUE("No null values allowed"),
+	STOCK_ALREADY_EXISTS("Stock already exists"),
+	STOCK_NOT_FOUND("No stock found"),
+	SYMBOL_TOO_LONG("Stock symbol is too long for the journal, it cannot be longer than " + TradeJournal.MAX_SYMBOL_LENGTH + " bytes"),
+	INVALID_TIMESTAMP("Invalid argument timestamp, it must be greater than 0"),
+	INVALID_QUANTITY("Invalid argument quantity, it must be greater than 0"),
+	INVALID_VALUE("Invalid argument value, it must be greater than 0"),
+	NULL_ACTION_TYPE("Invalid parameter actionType, it cannot be null"),	// only a warning, the trade is still added
+	ZERO_TICKER_PRICE("Error, the tickerPrice value must not be 0"),
+	ZERO_LAST_DIVIDEND("Error, the lastDividend value must not be 0"),
+	INVALID_STOCK_TYPE("Incorrect stock type found, it should be (C)ommon or (P)referred"),
+	NO_TRADES("No actions for this stock"),
+	JOURNAL_ERROR("Error writing to the journal"),
+	NO_VALUE("The value cannot be calculated"),	// sent by the TradeGateway instead of a null value, the reason is sent to the EventSink
+	TRADE_TOO_LATE("Trade is older than the trades it can still be inserted before"),	// see TradeStore.MAX_LATE_TRADES
+	RETENTION_ERROR("Error removing the expired trades");	// sent by the periodic eviction of the stock exchange
+
+	private final String message;
+
+	private ResultCode(String message) {
+
+		this.message = message;
+	}
+
+	/**
+	 * Method to retrieve the description of the result, the same text that used to be printed
+	 * @return the message
+	 */
+	public String getMessage() {
+		return message;
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * Class defining for how long the trade actions of a stock are kept in memory, trades can be kept for a number of minutes, up to a number of trades or both.
+ * Objects of this class are immutable so the same policy can be shared by all the stocks of an exchange
+ * @author nsalgueiro
+ *
+ */
+public class RetentionPolicy {
+
+	private static final long _NO_LIMIT = -1;
+
+	private long maxMinutes;	// Trades are kept while (now - timestamp)/1000/60 <= maxMinutes, the same rule used by the stock price window
+	private long maxTrades;		// Maximum number of trades kept
+
+	private RetentionPolicy(long maxMinutes, long maxTrades) {
+
+		this.maxMinutes = maxMinutes;
+		this.maxTrades = maxTrades;
+	}
+
+	/**
+	 * Method to create a policy that never removes any trade, this was the behaviour before the retention policies were introduced
+	 * @return the retention policy
+	 */
+	public static RetentionPolicy unbounded() {
+
+		return new RetentionPolicy(_NO_LIMIT, _NO_LIMIT);
+	}
+
+	/**
+	 * Method to create a policy that keeps the trades for a given number of minutes
+	 * @param minutes	- Number of minutes, it must not be negative
+	 * @return the retention policy
+	 */
+	public static RetentionPolicy keepMinutes(long minutes) {
+
+		if(minutes<0) {
+			throw new IllegalArgumentException("Invalid argument minutes, it must not be negative");
+		}
+
+		return new RetentionPolicy(minutes, _NO_LIMIT);
+	}
+
+	/**
+	 * Method to create a policy that keeps up to a given number of trades
+	 * @param trades	- Number of trades, it must be greater than 0
+	 * @return the retention policy
+	 */
+	public static RetentionPolicy keepTrades(long trades) {
+
+		if(trades<=0) {
+			throw new IllegalArgumentException("Invalid argument trades, it must be greater than 0");
+		}
+
+		return new RetentionPolicy(_NO_LIMIT, trades);
+	}
+
+	/**
+	 * Method to create a policy that keeps the trades for a given number of minutes but never more than a given number of trades
+	 * @param minutes	- Number of minutes, it must not be negative
+	 * @param trades	- Number of trades, it must be greater than 0
+	 * @return the retention policy
+	 */
+	public static RetentionPolicy keepMinutesAndTrades(long minutes, long trades) {
+
+		if(minutes<0 || trades<=0) {
+			throw new IllegalArgumentException("Invalid arguments, minutes must not be negative and trades must be greater than 0");
+		}
+
+		return new RetentionPolicy(minutes, trades);
+	}
+
+	/**
+	 * Method to check if a trade with the given timestamp has expired
+	 * @param timestamp	- Timestamp of the trade
+	 * @param now		- Reference time
+	 * @return true if the trade must be removed
+	 */
+	public boolean isExpired(long timestamp, long now) {
+
+		return maxMinutes!=_NO_LIMIT && ((now - timestamp)/1000/60) > maxMinutes;
+	}
+
+	/**
+	 * Method to check if a given number of trades exceeds this policy
+	 * @param trades	- Number of trades currently kept
+	 * @return true if trades must be removed
+	 */
+	public boolean exceedsMaxTrades(long trades) {
+
+		return maxTrades!=_NO_LIMIT && trades > maxTrades;
+	}
+
+	@Override
+	public String toString() {
+		return "RetentionPolicy [maxMinutes=" + (maxMinutes==_NO_LIMIT ? "unbounded" : maxMinutes)
+				+ ", maxTrades=" + (maxTrades==_NO_LIMIT ? "unbounded" : maxTrades) + "]";
+	}
+}
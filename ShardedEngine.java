@@ -0,0 +1,352 @@
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Optional execution engine where the trades are not added by the calling threads but by one worker thread per shard. The symbols are hashed onto the shards,
+ * so all the trades of a stock are added by the same thread and the locks of the stock are never contended nor moved between cores, and the GBCE All Share
+ * Index is split in one partial index per shard that only its worker updates. Reading the index gathers the partial sums of all the shards.
+ * Each shard has a bounded lock free queue like the one of AsyncEventSink, the callers place the trades in it without creating any object and the worker
+ * takes them in order, so the trades of a stock sent by one thread are added in the order they were sent.
+ * The engine must be created before the stocks are traded, afterwards the stocks can still be added and removed through the exchange as usual
+ * @author nsalgueiro
+ *
+ */
+public class ShardedEngine {
+
+	private static final int _SPINS_BEFORE_PARK = 1000;		// Times an idle worker checks its queue before parking
+	private static final long _IDLE_PARK_NANOS = 50000;		// An idle worker checks its queue every 50 microseconds
+	private static final long _FULL_PARK_NANOS = 1000;		// A caller waiting for room in a full queue checks it every microsecond
+	private static final long _CLOSED = 1L << 62;			// Bit set on the tail of a queue by the shutdown, the positions never reach it
+
+	/**
+	 * Queue and worker thread of one shard
+	 */
+	private static class Shard {
+
+		private int mask;						// Capacity - 1, the capacity is a power of two
+		private AtomicLongArray sequences;		// Sequence of each slot, it is equal to the position when the slot is free and to the position + 1 when it is full
+		private String[] symbols;
+		private long[] timestamps;
+		private long[] quantities;
+		private StockTradeAction.actionTypes[] actionTypes;
+		private long[] scaledValues;
+
+		private AtomicLong tail;		// Next position to be written by the callers, with _CLOSED once the queue is closed
+		private long head;				// Next position to be read, only used by the worker
+		private volatile long processed;	// Number of trades taken from the queue and added to their stock
+
+		private Thread worker;
+
+		private Shard(int size) {
+
+			this.mask = size - 1;
+			this.sequences = new AtomicLongArray(size);
+			this.symbols = new String[size];
+			this.timestamps = new long[size];
+			this.quantities = new long[size];
+			this.actionTypes = new StockTradeAction.actionTypes[size];
+			this.scaledValues = new long[size];
+
+			for(int i=0; i<size; i++) {
+				sequences.set(i, i);
+			}
+
+			this.tail = new AtomicLong();
+		}
+	}
+
+	private StockExchange exchange;
+	private Shard[] shards;
+
+	private volatile boolean running;	// False once the engine is shut down, the callers stop waiting for room
+
+	/**
+	 * Constructor for the class, it starts one worker thread per shard. Java can't pin a thread to a core, the worker threads are named
+	 * ShardedEngine-&lt;shard&gt; so they can be pinned from outside (for example with taskset) when the operating system allows it
+	 * @param pExchange		- The stock exchange whose stocks receive the trades, it can only be used by one engine
+	 * @param shardCount	- Number of shards and worker threads, usually the number of cores left for the engine
+	 * @param queueCapacity	- Maximum number of queued trades of each shard, it is rounded up to a power of two
+	 */
+	public ShardedEngine(StockExchange pExchange, int shardCount, int queueCapacity) {
+
+		if(pExchange==null) {
+			throw new IllegalArgumentException("Invalid argument exchange, it cannot be null");
+		}
+
+		if(shardCount<=0) {
+			throw new IllegalArgumentException("Invalid argument shardCount, it must be greater than 0");
+		}
+
+		if(queueCapacity<=0 || queueCapacity>(1 << 30)) {
+			throw new IllegalArgumentException("Invalid argument queueCapacity, it must be between 1 and 2^30");
+		}
+
+		int size = Integer.highestOneBit(queueCapacity);
+		size = (size<queueCapacity ? size << 1 : size);
+
+		this.exchange = pExchange;
+		this.shards = new Shard[shardCount];
+
+		GBCEIndex[] partials = new GBCEIndex[shardCount];
+
+		for(int i=0; i<shardCount; i++) {
+
+			shards[i] = new Shard(size);
+			partials[i] = new GBCEIndex();
+		}
+
+		exchange.useShardIndexes(partials);
+
+		this.running = true;
+
+		for(int i=0; i<shardCount; i++) {
+
+			Shard shard = shards[i];
+
+			shard.worker = new Thread(() -> processTrades(shard), "ShardedEngine-" + i);
+			shard.worker.setDaemon(true);
+			shard.worker.start();
+		}
+	}
+
+	/**
+	 * Method to retrieve the shard of a symbol, the same for the engine and the partial indexes of the exchange
+	 * @param stockSymbol	- Symbol of the stock
+	 * @param shardCount	- Number of shards
+	 * @return the shard between 0 and shardCount - 1
+	 */
+	static int shardOf(String stockSymbol, int shardCount) {
+
+		int hash = stockSymbol.hashCode();
+
+		// the high bits are mixed into the low ones, symbols that only differ in their last letter would otherwise fall on neighbouring shards
+		hash ^= (hash >>> 16);
+
+		return (hash & 0x7fffffff) % shardCount;
+	}
+
+	/**
+	 * Getter method for the number of shards
+	 * @return the number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Method to place a trade in the queue of the shard of its stock without waiting. The trade is checked and added by the worker of the shard,
+	 * the errors are reported to the event sink of the exchange
+	 * @param stockSymbol	- Symbol of the stock
+	 * @param timestamp		- Time of the trade in milliseconds
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- BUY or SELL
+	 * @param scaledValue	- Price per share multiplied by 10^getPriceScale() of the stock
+	 * @return false if the queue of the shard is full or the engine was shut down
+	 */
+	public boolean offerTrade(String stockSymbol, long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue) {
+
+		if(stockSymbol==null) {
+			throw new IllegalArgumentException("Invalid argument stockSymbol, it cannot be null");
+		}
+
+		if(!running) {
+			return false;
+		}
+
+		Shard shard = shards[shardOf(stockSymbol, shards.length)];
+		long position = shard.tail.get();
+
+		while(true) {
+
+			// the shutdown closes the queue changing its tail, so no position can be claimed after the worker saw the last one
+			if((position & _CLOSED)!=0) {
+				return false;
+			}
+
+			int index = (int) (position & shard.mask);
+			long difference = shard.sequences.get(index) - position;
+
+			if(difference==0) {	// the slot is free, we try to claim it
+
+				if(shard.tail.compareAndSet(position, position + 1)) {
+
+					shard.symbols[index] = stockSymbol;
+					shard.timestamps[index] = timestamp;
+					shard.quantities[index] = quantity;
+					shard.actionTypes[index] = actionType;
+					shard.scaledValues[index] = scaledValue;
+					shard.sequences.lazySet(index, position + 1);	// publishes the trade to the worker
+					return true;
+				}
+
+				position = shard.tail.get();	// another thread claimed it
+
+			} else if(difference<0) {	// the slot still has the trade of the previous round, the queue is full
+
+				return false;
+
+			} else {	// another thread claimed this position after we read the tail
+
+				position = shard.tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Method to place a trade in the queue of the shard of its stock, waiting while the queue is full
+	 * @param stockSymbol	- Symbol of the stock
+	 * @param timestamp		- Time of the trade in milliseconds
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- BUY or SELL
+	 * @param scaledValue	- Price per share multiplied by 10^getPriceScale() of the stock
+	 * @return false if the engine was shut down
+	 */
+	public boolean submitTrade(String stockSymbol, long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue) {
+
+		while(!offerTrade(stockSymbol, timestamp, quantity, actionType, scaledValue)) {
+
+			if(!running) {
+				return false;
+			}
+
+			LockSupport.parkNanos(_FULL_PARK_NANOS);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Method to wait until all the trades placed in the queues before the call were added to their stocks
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void flush() throws InterruptedException {
+
+		for(Shard shard: shards) {
+
+			long target = shard.tail.get() & ~_CLOSED;
+
+			while(shard.processed<target) {
+
+				if(Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+
+				if(!shard.worker.isAlive()) {
+					throw new IllegalStateException("The worker of the shard stopped");
+				}
+
+				LockSupport.parkNanos(_IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of trades taken from the queues by the workers, including the ones rejected by their stock
+	 * @return the number of processed trades
+	 */
+	public long getProcessedCount() {
+
+		long count = 0;
+
+		for(Shard shard: shards) {
+			count += shard.processed;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Method to calculate the GBCE All share index gathering the partial indexes of all the shards, the same as calling the exchange
+	 * @return BigDecimal containing the index value or null if there are no trades for any of the stocks
+	 */
+	public BigDecimal calculateGBCEAllShareIndex() {
+		return exchange.calculateGBCEAllShareIndex();
+	}
+
+	/**
+	 * Method to stop the workers, the trades already queued are still added and the new ones are refused
+	 * @throws InterruptedException if the thread is interrupted while waiting for the workers
+	 */
+	public void shutdown() throws InterruptedException {
+
+		running = false;
+
+		// closing the tail fails the claims that didn't happen yet, the ones that succeeded before are below the closed tail and the worker waits for them
+		for(Shard shard: shards) {
+			shard.tail.getAndUpdate(tail -> tail | _CLOSED);
+		}
+
+		for(Shard shard: shards) {
+			shard.worker.join();
+		}
+	}
+
+	/**
+	 * Loop of the worker of a shard
+	 * @param shard	- The shard
+	 */
+	private void processTrades(Shard shard) {
+
+		int idle = 0;
+
+		while(true) {
+
+			if(processNextTrade(shard)) {
+
+				idle = 0;
+
+			} else if(shard.tail.get()==(shard.head | _CLOSED)) {	// the queue is closed and a trade claimed before the shutdown is still waited for
+
+				return;
+
+			} else if(++idle<_SPINS_BEFORE_PARK) {
+
+				Thread.onSpinWait();
+
+			} else {
+
+				LockSupport.parkNanos(_IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Method to add the oldest trade of the queue of a shard to its stock
+	 * @param shard	- The shard
+	 * @return false if the queue is empty
+	 */
+	private boolean processNextTrade(Shard shard) {
+
+		long head = shard.head;
+		int index = (int) (head & shard.mask);
+
+		if(shard.sequences.get(index)!=head + 1) {
+			return false;
+		}
+
+		String stockSymbol = shard.symbols[index];
+		long timestamp = shard.timestamps[index];
+		long quantity = shard.quantities[index];
+		StockTradeAction.actionTypes actionType = shard.actionTypes[index];
+		long scaledValue = shard.scaledValues[index];
+
+		shard.symbols[index] = null;
+		shard.actionTypes[index] = null;
+		shard.sequences.lazySet(index, head + shard.mask + 1);	// the slot is free for the next round
+		shard.head = head + 1;
+
+		// getStock reports the unknown symbols and the stock reports the invalid trades, this worker is the only one adding trades to the stock
+		// so its locks are never contended
+		StockElement stock = exchange.getStock(stockSymbol);
+
+		if(stock!=null) {
+			stock.tryAddTradeAction(timestamp, quantity, actionType, scaledValue);
+		}
+
+		shard.processed = head + 1;
+
+		return true;
+	}
+}
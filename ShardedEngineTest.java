@@ -0,0 +1,188 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class ShardedEngineTest {
+
+	private static final String[] SYMBOLS = {"TEA", "POP", "ALE", "GIN", "JOE", "ABC", "XYZ", "QRS"};
+
+	private static StockExchange newExchange() {
+
+		StockExchange exchange = new StockExchange();
+		exchange.setEventSink(new AsyncEventSink(16, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err));
+
+		for(String symbol: SYMBOLS) {
+			exchange.addStock(symbol, StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+		}
+
+		return exchange;
+	}
+
+	@Test
+	public void testTradesFromSeveralThreads() throws InterruptedException {
+
+		StockExchange sharded = newExchange();
+		StockExchange direct = newExchange();
+
+		// a trade added before the engine exists is moved to the partial index of its shard
+		sharded.getStock("TEA").addTradeAction(10, StockTradeAction.actionTypes.BUY, new BigDecimal("50"));
+		direct.getStock("TEA").addTradeAction(10, StockTradeAction.actionTypes.BUY, new BigDecimal("50"));
+
+		ShardedEngine engine = new ShardedEngine(sharded, 3, 64);
+		CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		long now = System.currentTimeMillis();
+		int tradesPerThread = 5000;
+
+		for(int t=0; t<threads.length; t++) {
+
+			final int thread = t;
+
+			threads[t] = new Thread(() -> {
+
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				// the queues are much smaller than the number of trades so the threads also wait for room
+				for(int i=0; i<tradesPerThread; i++) {
+
+					String symbol = SYMBOLS[(i + thread) % SYMBOLS.length];
+					long scaledValue = FixedPointPrice.toScaled(new BigDecimal(10 + i % 7), FixedPointPrice.DEFAULT_SCALE);
+
+					assertTrue(engine.submitTrade(symbol, now, 1 + thread, StockTradeAction.actionTypes.SELL, scaledValue));
+				}
+			});
+			threads[t].start();
+		}
+
+		start.countDown();
+
+		for(Thread thread: threads) {
+			thread.join();
+		}
+
+		engine.flush();
+
+		assertEquals("Processed trades ", threads.length * tradesPerThread, engine.getProcessedCount());
+
+		// the same trades added directly give the same results
+		for(int t=0; t<threads.length; t++) {
+
+			for(int i=0; i<tradesPerThread; i++) {
+
+				direct.getStock(SYMBOLS[(i + t) % SYMBOLS.length]).addTradeAction(now, 1 + t, StockTradeAction.actionTypes.SELL, new BigDecimal(10 + i % 7));
+			}
+		}
+
+		for(String symbol: SYMBOLS) {
+
+			assertEquals("Trades of " + symbol, direct.getStock(symbol).getTradeActions().size(), sharded.getStock(symbol).getTradeActions().size());
+			assertEquals("Stock price of " + symbol, direct.getStock(symbol).calculateStockPrice(), sharded.getStock(symbol).calculateStockPrice());
+		}
+
+		assertNotNull("Index ", direct.calculateGBCEAllShareIndex());
+		assertEquals("Index gathered from the shards ", direct.calculateGBCEAllShareIndex(), engine.calculateGBCEAllShareIndex());
+
+		engine.shutdown();
+
+		assertFalse("No trades after the shutdown ", engine.offerTrade("TEA", now, 1, StockTradeAction.actionTypes.BUY, 1));
+	}
+
+	@Test
+	public void testStocksAddedAndRemovedWithTheEngine() throws InterruptedException {
+
+		StockExchange exchange = newExchange();
+		AsyncEventSink eventSink = new AsyncEventSink(16, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err);
+		exchange.setEventSink(eventSink);
+
+		ShardedEngine engine = new ShardedEngine(exchange, 2, 16);
+		long now = System.currentTimeMillis();
+
+		assertNull("No prices ", engine.calculateGBCEAllShareIndex());
+
+		exchange.addStock("NEW", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+
+		engine.submitTrade("NEW", now, 10, StockTradeAction.actionTypes.BUY, FixedPointPrice.toScaled(new BigDecimal(4), FixedPointPrice.DEFAULT_SCALE));
+		engine.submitTrade("POP", now, 10, StockTradeAction.actionTypes.BUY, FixedPointPrice.toScaled(new BigDecimal(16), FixedPointPrice.DEFAULT_SCALE));
+		engine.submitTrade("MISSING", now, 10, StockTradeAction.actionTypes.BUY, 1);
+		engine.flush();
+
+		assertEquals("Geometric mean of 4 and 16 ", new BigDecimal("8.000"), engine.calculateGBCEAllShareIndex());
+		assertEquals("Unknown symbol reported ", 1, eventSink.getCount(ResultCode.STOCK_NOT_FOUND));
+
+		exchange.removeStock("NEW");
+
+		assertEquals("Removed from the partial index ", new BigDecimal("16.000"), engine.calculateGBCEAllShareIndex());
+
+		engine.shutdown();
+	}
+
+	@Test
+	public void testShutdownWhileTrading() throws InterruptedException {
+
+		long now = System.currentTimeMillis();
+		long scaledValue = FixedPointPrice.toScaled(new BigDecimal(10), FixedPointPrice.DEFAULT_SCALE);
+
+		// every trade accepted by submitTrade must be added even when the engine is shut down at the same time
+		for(int round=0; round<20; round++) {
+
+			StockExchange exchange = newExchange();
+			ShardedEngine engine = new ShardedEngine(exchange, 2, 16);
+			AtomicLong accepted = new AtomicLong();
+			Thread[] threads = new Thread[3];
+
+			for(int t=0; t<threads.length; t++) {
+
+				final int thread = t;
+
+				threads[t] = new Thread(() -> {
+
+					for(int i=0; engine.submitTrade(SYMBOLS[(i + thread) % SYMBOLS.length], now, 1, StockTradeAction.actionTypes.BUY, scaledValue); i++) {
+						accepted.incrementAndGet();
+					}
+				});
+
+				threads[t].start();
+			}
+
+			Thread.sleep(round % 5);
+			engine.shutdown();
+
+			for(Thread thread: threads) {
+				thread.join();
+			}
+
+			long added = 0;
+
+			for(String symbol: SYMBOLS) {
+				added += exchange.getStock(symbol).getTradeActions().size();
+			}
+
+			assertEquals("Processed trades in round " + round, accepted.get(), engine.getProcessedCount());
+			assertEquals("Added trades in round " + round, accepted.get(), added);
+			assertFalse("No trades after the shutdown ", engine.offerTrade("TEA", now, 1, StockTradeAction.actionTypes.BUY, scaledValue));
+
+			engine.flush();	// nothing left to wait for
+		}
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testOneEnginePerExchange() throws InterruptedException {
+
+		StockExchange exchange = newExchange();
+		ShardedEngine engine = new ShardedEngine(exchange, 1, 16);
+
+		try {
+			new ShardedEngine(exchange, 1, 16);
+		} finally {
+			engine.shutdown();
+		}
+	}
+}
@@ -0,0 +1,619 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of the hot paths of the StockExchange and StockElement classes, unlike Main it doesn't print anything while measuring and it uses System.nanoTime.
+ * Every benchmark is run a few times to warm up the JIT before the measured runs, and besides the time it reports the bytes allocated per operation
+ * and the number of garbage collections and their time during the measured runs, so allocation regressions are visible too.
+ * The suites are:
+ *   trades	- addTradeAction throughput from 1 to maxThreads threads, all the threads on the same stock and each thread on its own stock
+ *   price	- calculateStockPrice latency with histories from 10 to maxHistory trades, calculated every time and read from the cache
+ *   index	- a new trade plus calculateGBCEAllShareIndex with 10 to 10000 symbols
+ *   ratios	- getDividendYield and getPERatio
+ *   lookup	- StockExchange.getStock with 10 to 10000 symbols
+ *   orders	- OrderBook with limit orders around the same prices, a quarter of them cancelled and the rest matched or resting
+ *   engine	- ShardedEngine throughput from 1 to maxThreads shards, with one thread per shard sending trades of 64 symbols
+ *   gateway	- TradeGateway over the loopback, the round trip of single queries and the throughput of pipelined trades
+ *   snapshot	- ExchangeSnapshot write and restore of 10 stocks with 100000 trades each, ns/op is the time of a whole snapshot
+ * Usage: java -Xmx2g StockBenchmark [suite|all] [maxThreads] [maxHistory]
+ * @author nsalgueiro
+ *
+ */
+public class StockBenchmark {
+
+	private static final int _DEFAULT_MAX_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int _DEFAULT_MAX_HISTORY = 1000000;	// 10000000 needs about 2 GB of heap
+
+	private static final int _WARMUP_RUNS = 3;
+	private static final int _MEASURED_RUNS = 5;
+
+	private static volatile long blackhole;	// the results of the operations are added here so the JIT can't remove them
+
+	/**
+	 * One benchmark, it runs the measured operation the given number of times
+	 */
+	private interface Operation {
+
+		void run(int operations);
+	}
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+
+		String suite = (args.length>0 ? args[0] : "all");
+		int maxThreads = (args.length>1 ? Integer.parseInt(args[1]) : _DEFAULT_MAX_THREADS);
+		int maxHistory = (args.length>2 ? Integer.parseInt(args[2]) : _DEFAULT_MAX_HISTORY);
+
+		System.out.println(String.format("%-45s %12s %12s %12s %8s %10s", "Benchmark", "ops/s", "ns/op", "bytes/op", "GCs", "GC ms"));
+
+		if(suite.equals("all") || suite.equals("trades")) {
+			benchmarkTrades(maxThreads);
+		}
+
+		if(suite.equals("all") || suite.equals("price")) {
+			benchmarkStockPrice(maxHistory);
+		}
+
+		if(suite.equals("all") || suite.equals("index")) {
+			benchmarkIndex();
+		}
+
+		if(suite.equals("all") || suite.equals("ratios")) {
+			benchmarkRatios();
+		}
+
+		if(suite.equals("all") || suite.equals("lookup")) {
+			benchmarkLookup();
+		}
+
+		if(suite.equals("all") || suite.equals("orders")) {
+			benchmarkOrders();
+		}
+
+		if(suite.equals("all") || suite.equals("engine")) {
+			benchmarkEngine(maxThreads);
+		}
+
+		if(suite.equals("all") || suite.equals("gateway")) {
+			benchmarkGateway();
+		}
+
+		if(suite.equals("all") || suite.equals("snapshot")) {
+			benchmarkSnapshot();
+		}
+
+		if(blackhole==42) {	// very unlikely, it only keeps the results alive
+			System.out.println();
+		}
+	}
+
+	private static StockElement newStock(String stockSymbol) {
+
+		StockElement stock = new StockElement(stockSymbol, StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100));
+		stock.setRetentionPolicy(RetentionPolicy.keepTrades(100000));	// so the trades benchmark measures adding trades and not the memory they take
+		return stock;
+	}
+
+	private static void benchmarkTrades(int maxThreads) throws InterruptedException {
+
+		// 1, 2, 4... threads and finally maxThreads
+		for(int threads = 1; threads<=maxThreads; threads = (threads<maxThreads ? Math.min(threads * 2, maxThreads) : threads + 1)) {
+
+			// all the threads use the same timestamp so every trade is appended, a trade older than the newest one is inserted in the middle of the history
+			final long now = System.currentTimeMillis();
+			final StockElement shared = newStock("TEA");
+			final StockElement[] own = new StockElement[threads];
+
+			for(int t=0; t<threads; t++) {
+				own[t] = newStock("S" + t);
+			}
+
+			measureThreads("addTradeAction shared stock, " + threads + " threads", threads, 200000, (thread, operations) -> {
+
+				for(int i=0; i<operations; i++) {
+					shared.addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, 95500000L + i % 1000);
+				}
+			});
+
+			measureThreads("addTradeAction own stock, " + threads + " threads", threads, 200000, (thread, operations) -> {
+
+				StockElement stock = own[thread];
+
+				for(int i=0; i<operations; i++) {
+					stock.addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, 95500000L + i % 1000);
+				}
+			});
+		}
+	}
+
+	private static void benchmarkStockPrice(int maxHistory) {
+
+		for(int history = 10; history<=maxHistory; history *= 10) {
+
+			// all the trades are inside the price window and none of them is removed, the worst case for the price calculation
+			final StockElement stock = newStock("TEA");
+			stock.setRetentionPolicy(RetentionPolicy.unbounded());
+
+			long now = System.currentTimeMillis();
+			TradeBatch batch = new TradeBatch(4096, FixedPointPrice.DEFAULT_SCALE);
+
+			for(int i=0; i<history; i++) {
+
+				batch.add(null, now, 1 + i % 100, StockTradeAction.actionTypes.BUY, 95000000L + i % 5000);
+
+				if(batch.size()==4096 || i==history - 1) {
+
+					stock.addTradeActions(batch);
+					batch.clear();
+				}
+			}
+
+			// the cache is discarded before every call so this measures the calculation and how it scales with the history
+			measure("calculateStockPrice uncached, " + history + " trades", 1000000, operations -> {
+
+				long result = 0;
+
+				for(int i=0; i<operations; i++) {
+
+					stock.clearCachedValues();
+					result += stock.calculateStockPrice().scale();
+				}
+
+				blackhole += result;
+			});
+
+			// without new trades every call after the first one is a cache hit
+			measure("calculateStockPrice cached, " + history + " trades", 1000000, operations -> {
+
+				long result = 0;
+
+				for(int i=0; i<operations; i++) {
+					result += stock.calculateStockPrice().scale();
+				}
+
+				blackhole += result;
+			});
+		}
+	}
+
+	private static void benchmarkIndex() {
+
+		for(int symbols = 10; symbols<=10000; symbols *= 10) {
+
+			final StockExchange exchange = new StockExchange();
+			final StockElement[] stocks = new StockElement[symbols];
+			long now = System.currentTimeMillis();
+
+			for(int i=0; i<symbols; i++) {
+
+				exchange.addStock("S" + i, StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100));
+				stocks[i] = exchange.getStock("S" + i);
+				stocks[i].addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, 50000000L + i);
+			}
+
+			measure("trade + GBCE index, " + symbols + " symbols", 200000, operations -> {
+
+				long tradeTime = System.currentTimeMillis();
+				long result = 0;
+
+				for(int i=0; i<operations; i++) {
+
+					// each operation changes one stock price so the index really moves
+					stocks[i % stocks.length].addTradeAction(tradeTime, 10, StockTradeAction.actionTypes.BUY, 50000000L + i % 7919);
+					result += exchange.calculateGBCEAllShareIndex().scale();
+				}
+
+				blackhole += result;
+			});
+		}
+	}
+
+	private static void benchmarkRatios() {
+
+		final StockElement common = newStock("POP");
+		final StockElement preferred = new StockElement("GIN", StockElement.StockTypes.PREFERRED, new BigDecimal(8), new BigDecimal(2), new BigDecimal(100));
+
+		common.addTradeAction(100, StockTradeAction.actionTypes.BUY, new BigDecimal("95.5"));
+		preferred.addTradeAction(100, StockTradeAction.actionTypes.BUY, new BigDecimal("95.5"));
+
+		measure("getDividendYield common", 2000000, operations -> {
+
+			long result = 0;
+
+			for(int i=0; i<operations; i++) {
+				result += common.getDividendYield().scale();
+			}
+
+			blackhole += result;
+		});
+
+		measure("getDividendYield preferred", 2000000, operations -> {
+
+			long result = 0;
+
+			for(int i=0; i<operations; i++) {
+				result += preferred.getDividendYield().scale();
+			}
+
+			blackhole += result;
+		});
+
+		measure("getPERatio", 2000000, operations -> {
+
+			long result = 0;
+
+			for(int i=0; i<operations; i++) {
+				result += common.getPERatio().scale();
+			}
+
+			blackhole += result;
+		});
+	}
+
+	private static void benchmarkLookup() {
+
+		for(int symbols = 10; symbols<=10000; symbols *= 10) {
+
+			final StockExchange exchange = new StockExchange();
+			final String[] names = new String[symbols];
+
+			for(int i=0; i<symbols; i++) {
+
+				names[i] = "S" + i;
+				exchange.addStock(names[i], StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100));
+			}
+
+			measure("getStock, " + symbols + " symbols", 5000000, operations -> {
+
+				long result = 0;
+
+				for(int i=0; i<operations; i++) {
+					result += exchange.getStock(names[i % names.length]).getPriceScale();
+				}
+
+				blackhole += result;
+			});
+		}
+	}
+
+	private static void benchmarkOrders() {
+
+		final OrderBook book = newStock("ORD").getOrderBook();
+		final long[] random = {42};
+
+		measure("OrderBook add/cancel/match", 2000000, operations -> {
+
+			long result = 0;
+			long lastId = 0;
+
+			for(int i=0; i<operations; i++) {
+
+				// xorshift so the benchmark doesn't measure java.util.Random
+				long x = random[0];
+				x ^= x << 13;
+				x ^= x >>> 7;
+				x ^= x << 17;
+				random[0] = x;
+
+				if((x & 3)==0 && lastId>0) {
+
+					result += (book.cancelOrder(lastId) ? 1 : 0);
+
+				} else {
+
+					StockTradeAction.actionTypes side = ((x & 4)==0 ? StockTradeAction.actionTypes.BUY : StockTradeAction.actionTypes.SELL);
+					long price = 99000000L + ((x >>> 8) & 1023) * 2000;	// 1024 prices around 100
+					lastId = book.addOrder(side, price, 1 + ((x >>> 20) & 127));
+				}
+			}
+
+			blackhole += result + book.getOrderCount();
+		});
+	}
+
+	private static void benchmarkEngine(int maxThreads) throws InterruptedException {
+
+		for(int shards = 1; shards<=maxThreads; shards = (shards<maxThreads ? Math.min(shards * 2, maxThreads) : shards + 1)) {
+
+			final StockExchange exchange = new StockExchange();
+			final String[] symbols = new String[64];
+
+			exchange.setRetentionPolicy(RetentionPolicy.keepTrades(100000));
+
+			for(int i=0; i<symbols.length; i++) {
+
+				symbols[i] = "S" + i;
+				exchange.addStock(symbols[i], StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100));
+			}
+
+			final ShardedEngine engine = new ShardedEngine(exchange, shards, 16384);
+			final long now = System.currentTimeMillis();
+
+			// the time includes the workers adding the trades, each thread waits for all the queues to be empty at the end
+			measureThreads("ShardedEngine, " + shards + " shards", shards, 200000, (thread, operations) -> {
+
+				for(int i=0; i<operations; i++) {
+					engine.submitTrade(symbols[(i + thread * 7) & 63], now, 10, StockTradeAction.actionTypes.BUY, 95500000L + i % 1000);
+				}
+
+				try {
+					engine.flush();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+
+			engine.shutdown();
+		}
+	}
+
+	private static void benchmarkGateway() throws IOException {
+
+		StockExchange exchange = new StockExchange();
+
+		exchange.setRetentionPolicy(RetentionPolicy.keepTrades(100000));
+		exchange.addStock("GW", StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100));
+
+		final int stockId = exchange.getStockId("GW");
+		final long now = System.currentTimeMillis();
+
+		try(TradeGateway gateway = new TradeGateway(exchange, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+
+			gateway.start();
+
+			try(TradeGatewayClient client = new TradeGatewayClient(new InetSocketAddress(InetAddress.getLoopbackAddress(), gateway.getPort()))) {
+
+				final TradeGatewayClient.Response response = new TradeGatewayClient.Response();
+
+				client.addTradeAction(stockId, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("95.5"));
+
+				// ns/op is the round trip latency of a query, the client waits for each response before sending the next query
+				measure("TradeGateway round trip, stock price", 20000, operations -> {
+
+					try {
+
+						long result = 0;
+
+						for(int i=0; i<operations; i++) {
+
+							client.sendQuery(TradeGateway.STOCK_PRICE, stockId);
+							client.flush();
+							result += client.readResponse(response).getUnscaledValue();
+						}
+
+						blackhole += result;
+
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+
+				// the trades are sent in batches of 256 and the responses of each batch are read before the next one
+				measure("TradeGateway pipelined trades", 500000, operations -> {
+
+					try {
+
+						long result = 0;
+
+						for(int i=0; i<operations; i++) {
+
+							client.sendTrade(stockId, now, 10, StockTradeAction.actionTypes.BUY, 955000 + i % 1000, 4);
+
+							if(client.getPendingResponses()==256 || i==operations - 1) {
+
+								client.flush();
+
+								while(client.getPendingResponses()>0) {
+									result += client.readResponse(response).getStatus().ordinal();
+								}
+							}
+						}
+
+						blackhole += result;
+
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+		}
+	}
+
+	private static void benchmarkSnapshot() throws IOException {
+
+		final StockExchange exchange = new StockExchange();
+		final long now = System.currentTimeMillis();
+
+		exchange.setRetentionPolicy(RetentionPolicy.keepTrades(100000));
+
+		for(int s=0; s<10; s++) {
+
+			exchange.addStock("S" + s, StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100));
+
+			StockElement stock = exchange.getStock("S" + s);
+
+			for(int i=0; i<100000; i++) {
+				stock.addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, 95500000L + i % 1000);
+			}
+		}
+
+		final Path file = Files.createTempFile("StockBenchmark", ".snapshot");
+
+		try {
+
+			measure("ExchangeSnapshot write, 1M trades", 1, operations -> {
+
+				try {
+
+					for(int i=0; i<operations; i++) {
+						blackhole += ExchangeSnapshot.write(exchange, file);
+					}
+
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+
+			measure("ExchangeSnapshot restore, 1M trades", 1, operations -> {
+
+				try {
+
+					for(int i=0; i<operations; i++) {
+
+						StockExchange restored = new StockExchange();
+						restored.setRetentionPolicy(RetentionPolicy.keepTrades(100000));
+						blackhole += ExchangeSnapshot.restore(restored, file);
+					}
+
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+
+		} finally {
+
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Method to measure a single thread benchmark
+	 * @param name			- Name shown in the results
+	 * @param operations	- Operations of each run
+	 * @param operation		- The benchmark
+	 */
+	private static void measure(String name, int operations, Operation operation) {
+
+		for(int run=0; run<_WARMUP_RUNS; run++) {
+			operation.run(operations);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long allocatedBefore = getAllocatedBytes(threadId);
+		long[] gcBefore = getGarbageCollections();
+		long startTime = System.nanoTime();
+
+		for(int run=0; run<_MEASURED_RUNS; run++) {
+			operation.run(operations);
+		}
+
+		long elapsed = System.nanoTime() - startTime;
+
+		report(name, (long) operations * _MEASURED_RUNS, elapsed, getAllocatedBytes(threadId) - allocatedBefore, gcBefore);
+	}
+
+	/**
+	 * One multi thread benchmark, each thread receives its number
+	 */
+	private interface ThreadOperation {
+
+		void run(int thread, int operations);
+	}
+
+	/**
+	 * Method to measure a benchmark with many threads, all the threads start at the same time and the throughput is the total of all of them
+	 * @param name			- Name shown in the results
+	 * @param threads		- Number of threads
+	 * @param operations	- Operations of each thread in each run
+	 * @param operation		- The benchmark
+	 */
+	private static void measureThreads(String name, final int threads, final int operations, final ThreadOperation operation) throws InterruptedException {
+
+		for(int run=0; run<_WARMUP_RUNS + 1; run++) {
+
+			final boolean measured = (run==_WARMUP_RUNS);
+			final CountDownLatch ready = new CountDownLatch(threads);
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch finished = new CountDownLatch(threads);
+			final AtomicLong allocated = new AtomicLong();
+
+			for(int t=0; t<threads; t++) {
+
+				final int thread = t;
+
+				Thread worker = new Thread(() -> {
+
+					ready.countDown();
+
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+
+					long allocatedBefore = getAllocatedBytes(Thread.currentThread().getId());
+
+					for(int i=0; i<(measured ? _MEASURED_RUNS : 1); i++) {
+						operation.run(thread, operations);
+					}
+
+					allocated.addAndGet(getAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore);
+					finished.countDown();
+				});
+
+				worker.setDaemon(true);
+				worker.start();
+			}
+
+			ready.await();
+
+			long[] gcBefore = getGarbageCollections();
+			long startTime = System.nanoTime();
+			start.countDown();
+			finished.await();
+			long elapsed = System.nanoTime() - startTime;
+
+			if(measured) {
+				report(name, (long) threads * operations * _MEASURED_RUNS, elapsed, allocated.get(), gcBefore);
+			}
+		}
+	}
+
+	private static void report(String name, long operations, long elapsed, long allocated, long[] gcBefore) {
+
+		long[] gcAfter = getGarbageCollections();
+
+		System.out.println(String.format("%-45s %12d %12.1f %12.1f %8d %10d", name, operations * 1000000000L / Math.max(elapsed, 1), (double) elapsed / operations,
+				(allocated<0 ? Double.NaN : (double) allocated / operations), gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]));
+	}
+
+	/**
+	 * Method to retrieve the bytes allocated by a thread, it uses the extension of the HotSpot JVMs
+	 * @return the allocated bytes or a negative value if the JVM can't measure them
+	 */
+	private static long getAllocatedBytes(long threadId) {
+
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Method to retrieve the number of garbage collections and their total time in milliseconds since the JVM started
+	 */
+	private static long[] getGarbageCollections() {
+
+		long[] result = new long[2];
+
+		for(GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()) {
+
+			result[0] += Math.max(collector.getCollectionCount(), 0);
+			result[1] += Math.max(collector.getCollectionTime(), 0);
+		}
+
+		return result;
+	}
+}
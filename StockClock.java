@@ -0,0 +1,32 @@
+/**
+ * Source of the current time used by the trades, the stocks, the GBCE index and the stock exchange to decide which trades are inside the stock price window
+ * and which ones are old enough to be removed. Each operation reads the clock once and uses that time for all its calculations.
+ * The implementations are:
+ *   SYSTEM					- System.currentTimeMillis, the default
+ *   HighResolutionClock	- nanosecond resolution and never goes backwards
+ *   CoarseClock			- the time read by a background thread every few milliseconds, reading it is just reading a volatile field
+ *   ManualClock			- the time set by the caller, for the replay of old trades and the tests
+ * @author nsalgueiro
+ *
+ */
+public interface StockClock {
+
+	/**
+	 * Clock that reads System.currentTimeMillis
+	 */
+	public static final StockClock SYSTEM = System::currentTimeMillis;
+
+	/**
+	 * Method to retrieve the current time
+	 * @return the current time in milliseconds since the epoch
+	 */
+	long currentTimeMillis();
+
+	/**
+	 * Method to retrieve the current time with the resolution of the clock, the clocks without nanosecond resolution return the milliseconds multiplied by 10^6
+	 * @return the current time in nanoseconds since the epoch
+	 */
+	default long currentTimeNanos() {
+		return currentTimeMillis() * 1000000;
+	}
+}
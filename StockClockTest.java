@@ -0,0 +1,89 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class StockClockTest {
+
+	@Test
+	public void testCoarseClockTicks() throws InterruptedException {
+
+		try(CoarseClock clock = new CoarseClock(1)) {
+
+			long first = clock.currentTimeMillis();
+
+			assertTrue(Math.abs(System.currentTimeMillis() - first) < 1000);
+
+			// after a while the ticker thread must have moved the time forward
+			long deadline = System.currentTimeMillis() + 5000;
+
+			while(clock.currentTimeMillis()==first && System.currentTimeMillis()<deadline) {
+				Thread.sleep(5);
+			}
+
+			assertTrue(clock.currentTimeMillis() > first);
+			assertEquals(clock.currentTimeMillis() * 1000000, clock.currentTimeNanos(), 1000000d);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCoarseClockInvalidResolution() {
+		new CoarseClock(0).close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testDefaultCoarseClockCannotBeClosed() {
+		CoarseClock.getDefault().close();
+	}
+
+	@Test
+	public void testHighResolutionClock() {
+
+		HighResolutionClock clock = new HighResolutionClock();
+
+		assertTrue(Math.abs(System.currentTimeMillis() - clock.currentTimeMillis()) < 1000);
+
+		long previous = clock.currentTimeNanos();
+
+		for(int i = 0; i<1000; i++) {
+
+			long current = clock.currentTimeNanos();
+
+			assertTrue(current >= previous);
+			previous = current;
+		}
+
+		assertEquals(clock.currentTimeNanos() / 1000000, clock.currentTimeMillis(), 1d);
+	}
+
+	@Test
+	public void testTradeActionTimestampFromClock() {
+
+		ManualClock clock = new ManualClock(1234L);
+
+		StockTradeAction action = new StockTradeAction(clock, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("5"));
+
+		assertEquals(1234L, action.getTimestamp());
+		assertEquals(1234L * 1000000, clock.currentTimeNanos());
+	}
+
+	@Test
+	public void testExchangeUsesOneClock() {
+
+		ManualClock clock = new ManualClock(System.currentTimeMillis());
+		StockExchange exchange = new StockExchange();
+
+		exchange.setClock(clock);
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		exchange.getStock("TEA").addTradeAction(10, StockTradeAction.actionTypes.BUY, new BigDecimal("5"));
+
+		assertEquals(0, new BigDecimal("5").compareTo(exchange.getStock("TEA").calculateStockPrice()));
+
+		// once the clock leaves the trade out of the window the trade is removed and there's no price
+		clock.advance(60L * 60 * 1000);
+		exchange.evictExpiredTrades();
+
+		assertNull(exchange.getStock("TEA").calculateStockPrice());
+	}
+}
@@ -1,5 +1,12 @@
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.util.Vector;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
 
 public class StockElement {
 
@@ -9,35 +16,98 @@ public class StockElement {
 	private static final int _PRECISION = 3;	// The precision of the division we will use with the BigDecimal operations in this exercise, it could be adjusted
 	private static final int _ROUNDING_MODE = BigDecimal.ROUND_HALF_UP;	// The rounding type of BigDecimal operations
 
+	private static final long _PRICE_WINDOW_MINUTES = 15;	// Trades of the last 15 minutes are used to calculate the stock price
+
 	private String stockSymbol;
-	private StockTypes stockType;
-	private BigDecimal lastDividend;
-	private BigDecimal fixedDividend;
-	private BigDecimal parValue;
-	private BigDecimal tickerPrice;
+	private volatile int stockId = StockSymbolTable.NO_ID;	// ID given by the stock exchange, it changes if the stock is removed
+	private int priceScale;			// Number of decimal places of the fixed point prices
+
+	private volatile StockValues stockValues;	// Type, dividends and par value of the stock, the setters replace the whole object so the readers never need a lock
+
+	// The ticker price is only written while holding the lock on tradeActions, both fields are volatile so the readers always see the last trade
+	private volatile BigDecimal tickerPrice;	// Ticker price or null if the last trade was added with a fixed point value, in that case scaledTickerPrice has it
+	private volatile long scaledTickerPrice;	// Fixed point ticker price or FixedPointPrice.NOT_REPRESENTABLE
+	private StampedLock tickerLock;				// Only used so getTickerPrice reads both fields of the same trade, the readers don't write anything unless a trade is being stored
+
+	private Object stockValuesChangeLock;	// Lock of the setters so two of them can't replace the values at the same time
+
+	// Cache of the derived values, they are only calculated again when the trade version or the stock values changed since they were cached
+	private volatile long tradeVersion;				// Incremented every time a trade is stored or a trade leaves the price window, only written while holding the lock on tradeActions
+	private volatile DerivedValue cachedStockPrice;
+	private volatile DerivedValue cachedDividendYield;
+	private volatile DerivedValue cachedPERatio;
+
+	private volatile OrderBook orderBook;	// Created the first time it is used
+
+	private volatile BarSeries[] barSeries;	// OHLCV bars of each configured interval, the array is replaced when an interval is added or removed and the bars are only used while holding the lock on tradeActions
+
+	private volatile RetentionPolicy retentionPolicy;	// Policy used to remove old trades from memory
+	private volatile TradeJournal journal;			// Journal where the changes of this stock are written or null if they are only kept in memory
+	private byte[] journalSymbol;					// Stock symbol encoded for the journal
+	private volatile TradeArchiver tradeArchiver;		// Optional receiver of the removed trades
+	private volatile EventSink eventSink;			// Receiver of the errors and warnings, they are never printed directly
 
-	private Object stockValuesChangeLock;
+	private TradeStore tradeActions;	// Trades of this stock, the oldest ones are removed according to the retention policy
+	private StockPriceWindow priceWindow;	// Running sums of the trades inside the stock price window, only used while holding the lock on tradeActions
 
-	private Vector<StockTradeAction> tradeActions;
+	private volatile StockPriceListener priceListener;	// Receiver of the changes of the stock price or null if nobody needs them
+	private long notifiedPrice;			// Last price sent to the listener, it is only used while holding the lock on tradeActions
+	private int notifiedScale;			// Scale of the last price sent to the listener
+	private long notifiedValidUntil;	// Last valid until time sent to the listener
+
+	private volatile MarketDataFeed marketDataFeed;	// Feed where the changes of the ticker price and the stock price are published or null if nobody subscribed
+	private long publishedTickerPrice;	// Last values published to the feed, they are only used while holding the lock on tradeActions
+	private int publishedTickerScale;
+	private long publishedStockPrice;
+	private int publishedStockPriceScale;
+
+	private volatile ExchangeMetrics metrics;	// Metrics of the stock exchange of this stock, nothing is recorded until the stock is added to one
+
+	private volatile StockClock clock;	// Source of the current time for the stock price window and the retention policy
+	private LongAdder[] operationCounters;		// Number of operations of this stock, only counted while the metrics are enabled
 
 	public StockElement(String stockSymbol, StockTypes stockType,
 			BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) {
+
+		this(stockSymbol, stockType, lastDividend, fixedDividend, parValue, FixedPointPrice.DEFAULT_SCALE);
+	}
+
+	/**
+	 * Constructor for the class with a specific scale for the fixed point prices
+	 * @param stockSymbol	- The symbol of the stock
+	 * @param stockType		- The stock type (Common or Preferred)
+	 * @param lastDividend	- Value of the last dividend
+	 * @param fixedDividend	- Value of the fixed dividend (in percentage) only used for preferred stocks
+	 * @param parValue		- The par value of the stock
+	 * @param priceScale	- Number of decimal places of the fixed point prices, prices with more decimal places are still accepted but use the slower BigDecimal calculations
+	 */
+	public StockElement(String stockSymbol, StockTypes stockType,
+			BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue, int priceScale) {
 		super();
 
 		this.stockSymbol = stockSymbol;
+		this.priceScale = FixedPointPrice.checkScale(priceScale);
 
-		this.stockType = stockType;
-		this.fixedDividend = fixedDividend;
-		this.lastDividend = lastDividend;
-		this.parValue = parValue;
+		this.stockValues = new StockValues(stockType, lastDividend, fixedDividend, parValue, this.priceScale);
 
 		this.tickerPrice = parValue;	// This assumption to start the ticker with the par value of the share must not be correct but I'm not familiar with stock trading so this seemed the logical value
 		// Beyond this point the ticket price will be updated with the value of the last trade action, once again I assume that this is the correct behaviour
 
-		this.tradeActions = new Vector<StockTradeAction>();
+		this.scaledTickerPrice = stockValues.scaledParValue;
+		this.tickerLock = new StampedLock();
+
+		this.tradeActions = new TradeStore(priceScale);
+		this.priceWindow = new StockPriceWindow(tradeActions, _PRICE_WINDOW_MINUTES);
+		this.eventSink = AsyncEventSink.getDefault();
+		this.metrics = ExchangeMetrics.DISABLED;
+		this.operationCounters = ExchangeMetrics.newCounters();
+		this.clock = StockClock.SYSTEM;
+		this.barSeries = new BarSeries[0];	// no bars until an interval is added so the trades don't pay for them
+		this.retentionPolicy = RetentionPolicy.unbounded();	// By default the whole history is kept, the callers that want less memory choose a policy
 
 		this.stockValuesChangeLock = new Object(); // Lock object that will be used when changes are being made to stockType, lastDividend, fixedDividend or parValue
 		//ticker price will only be changed internally when we call one of the addTradeAction methods and both of them will have a lock on the tradeActions object so a lock in this object will not be required
+		//the readers of these values don't take any lock, they read the current StockValues object once
 		//Stock symbol is just a text reference so any changes to it won't have any impact as well
 	}
 
@@ -49,12 +119,24 @@ public class StockElement {
 		return stockSymbol;
 	}
 
+	/**
+	 * Getter for the ID given to the stock by the stock exchange, it can be used with the methods of the exchange that take an ID instead of the symbol
+	 * @return the ID of the stock or -1 if the stock isn't in a stock exchange
+	 */
+	public int getStockId() {
+		return stockId;
+	}
+
+	void setStockId(int pStockId) {
+		this.stockId = pStockId;
+	}
+
 	/**
 	 * Getter method for retrieving the stock type
 	 * @return current stock type
 	 */
 	public StockTypes getStockType() {
-		return stockType;
+		return stockValues.stockType;
 	}
 
 	/**
@@ -64,7 +146,10 @@ public class StockElement {
 	public void setStockType(StockTypes pStockType) {
 
 		synchronized (stockValuesChangeLock) {
-			this.stockType = pStockType;
+
+			StockValues values = stockValues;
+			this.stockValues = new StockValues(pStockType, values.lastDividend, values.fixedDividend, values.parValue, priceScale);
+			journalStockValues();
 		}
 	}
 
@@ -74,7 +159,7 @@ public class StockElement {
 	 * @return BigDecimal containing the last dividend value
 	 */
 	public BigDecimal getLastDividend() {
-		return lastDividend;
+		return stockValues.lastDividend;
 	}
 
 	/**
@@ -84,7 +169,10 @@ public class StockElement {
 	public void setLastDividend(BigDecimal pLastDividend) {
 
 		synchronized (stockValuesChangeLock) {
-			this.lastDividend = pLastDividend;	
+
+			StockValues values = stockValues;
+			this.stockValues = new StockValues(values.stockType, pLastDividend, values.fixedDividend, values.parValue, priceScale);
+			journalStockValues();
 		}
 	}
 
@@ -94,7 +182,7 @@ public class StockElement {
 	 * @return BigDecimal containing the fixed dividend value
 	 */
 	public BigDecimal getFixedDividend() {
-		return fixedDividend;
+		return stockValues.fixedDividend;
 	}
 
 	/**
@@ -104,7 +192,10 @@ public class StockElement {
 	public void setFixedDividend(BigDecimal pFixedDividend) {
 
 		synchronized (stockValuesChangeLock) {
-			this.fixedDividend = pFixedDividend;
+
+			StockValues values = stockValues;
+			this.stockValues = new StockValues(values.stockType, values.lastDividend, pFixedDividend, values.parValue, priceScale);
+			journalStockValues();
 		}
 	}
 
@@ -114,7 +205,7 @@ public class StockElement {
 	 * @return BigDecimal containing the current par value
 	 */
 	public BigDecimal getParValue() {
-		return parValue;
+		return stockValues.parValue;
 	}
 
 	/**
@@ -124,226 +215,1551 @@ public class StockElement {
 	public void setParValue(BigDecimal pParValue) {
 
 		synchronized (stockValuesChangeLock) {
-			this.parValue = pParValue;
+
+			StockValues values = stockValues;
+			this.stockValues = new StockValues(values.stockType, values.lastDividend, values.fixedDividend, pParValue, priceScale);
+			journalStockValues();
 		}
 	}
 
 
 	/**
-	 * Getter method for the tradeActions variable
-	 * @return Vector of TradeAction objects containing all the trade actions for this stock
+	 * Getter method for the tradeActions variable, it returns a read only snapshot so the trades can be read without holding any lock
+	 * @return List of TradeAction objects containing the trade actions currently kept for this stock, oldest first
 	 */
-	public Vector<StockTradeAction> getTradeActions() {
+	public List<StockTradeAction> getTradeActions() {
 
-		return this.tradeActions;
+		synchronized (tradeActions) {	// we only need the lock while the snapshot is taken, reading it afterwards is safe
+
+			return tradeActions.snapshot();
+		}
 	}
 
 	/**
-	 * Getter method for the tickerPrice variable
-	 * @return BigDecimal containing the current ticker price
+	 * Method to calculate the volume weighted price, volume and number of trades of any time range of the trades kept for this stock.
+	 * The lock is only held while the snapshot of the trades is taken, the range is found with binary searches and calculated from the prefix sums of the store
+	 * so the live trades are never blocked and the time doesn't depend on the number of trades in the range.
+	 * Only the trades kept by the retention policy can be queried, by default the whole history is kept. When older trades of the range were removed
+	 * the values only include the ones that remain and TradeRangeStats.isComplete returns false
+	 * @param from	- Start of the range in milliseconds, included
+	 * @param to	- End of the range in milliseconds, not included
+	 * @return the aggregates of the trades inside the range
 	 */
-	public BigDecimal getTickerPrice() {
+	public TradeRangeStats queryTrades(long from, long to) {
+
+		if(from>to) {
+			throw new IllegalArgumentException("Invalid argument from, it cannot be after to");
+		}
 
-		return tickerPrice;	
+		return TradeStore.query(getTradeActions(), from, to);
 	}
 
 	/**
-	 * Method to retrieve the dividend yield
-	 * @return BigDecimal representing the current dividend yield of the share or null if the ticker price is 0 or if the stockType is different from COMMON or PREFERRED
+	 * Trades, ticker price and stock price window of a stock captured for a snapshot, the trades are a copy on write view of the store
+	 * so they can be written without holding any lock while the stock keeps trading
 	 */
-	public BigDecimal getDividendYield() {
-
-		synchronized (stockValuesChangeLock) {	// We use this lock to prevent changes to the variables used in this method for calculations so we will always have coherent values
+	static final class SnapshotState {
+
+		List<StockTradeAction> trades;			// Only when the state was captured, a restored store is filled directly
+		BigDecimal tickerPrice;					// Ticker price or null if scaledTickerPrice has it
+		long scaledTickerPrice;
+		int windowStart;						// Position of the oldest trade inside the stock price window
+		long quantitySum;						// Sums of the trades inside the stock price window
+		long scaledPriceTimesQuantitySum;
+		BigDecimal priceTimesQuantitySum;
+	}
 
-			switch(this.stockType) {
+	/**
+	 * Method to capture the state of the stock for a snapshot, the lock is only held while the references to the chunks of trades are copied
+	 * @return the state
+	 */
+	SnapshotState captureSnapshot() {
 
-			case COMMON : {
+		SnapshotState state = new SnapshotState();
 
-				if(this.tickerPrice.floatValue()>0) {	// We must ensure that the value is not zero to avoid an Arithmetic exception
+		synchronized (tradeActions) {
 
-					return lastDividend.divide(tickerPrice, _PRECISION, _ROUNDING_MODE);
+			state.trades = tradeActions.snapshot();
+			state.tickerPrice = tickerPrice;
+			state.scaledTickerPrice = scaledTickerPrice;
+			state.windowStart = priceWindow.getStart();
+			state.quantitySum = priceWindow.getQuantitySum();
+			state.scaledPriceTimesQuantitySum = priceWindow.getScaledPriceTimesQuantitySum();
+			state.priceTimesQuantitySum = priceWindow.getExtraPriceTimesQuantitySum();
+		}
 
-				} else {
+		return state;
+	}
 
-					System.err.println("Error, the tickerPrice value must not be 0");
-					return null;
-				}
-			} 
-			case PREFERRED : {
+	/**
+	 * Source of the trades of a stock restored from a snapshot
+	 */
+	static interface TradeLoader {
 
-				if(this.tickerPrice.floatValue()>0) {	// We must ensure that the value is not zero to avoid an Arithmetic exception
+		void load(TradeStore store) throws IOException;
+	}
 
-					return fixedDividend.divide(new BigDecimal(100), _PRECISION, _ROUNDING_MODE).multiply(parValue).divide(tickerPrice, _PRECISION, _ROUNDING_MODE);	// Since we accept the fixed dividend as a percentage we have to divide it's value by 100 for the calculation
+	/**
+	 * Method to restore the state of a new stock from a snapshot before it is added to a stock exchange, the trades are loaded directly into the store
+	 * and the sums of the stock price window are the ones of the snapshot, so nothing is calculated again for each trade.
+	 * The trades that left the window since the snapshot was taken are removed with the next operation
+	 * @param state		- Ticker price and window of the snapshot, its trades are not used
+	 * @param loader	- Source of the trades
+	 */
+	void restoreSnapshot(SnapshotState state, TradeLoader loader) throws IOException {
 
-				} else {
+		synchronized (tradeActions) {
 
-					System.err.println("Error, the tickerPrice value must not be 0");
-					return null;
-				}
+			if(tradeActions.size()>0) {
+				throw new IllegalStateException("Only a stock without trades can be restored");
 			}
 
-			default : {	// We should never get here since the value of stockType has to be one from the enumeration
+			loader.load(tradeActions);
+			priceWindow.restore(state.windowStart, state.quantitySum, state.scaledPriceTimesQuantitySum, state.priceTimesQuantitySum);
+			setTickerPrice(state.tickerPrice, state.scaledTickerPrice);
+			tradeVersion++;
+		}
+	}
+
+	/**
+	 * Method to start keeping OHLCV bars of an interval, they are updated with every trade. The bars of the trades currently kept by the stock are built right away
+	 * @param intervalMillis	- Length of the interval in milliseconds, for example 1000 for 1 second bars
+	 * @param capacity			- Number of intervals kept, the bars of older intervals are overwritten
+	 */
+	public void addBarInterval(long intervalMillis, int capacity) {
 
-				System.err.println("Incorrect stock type found, it should be (C)ommon or (P)referred");
+		BarSeries series = new BarSeries(intervalMillis, capacity, priceScale);
 
-				return null;
+		synchronized (tradeActions) {
+
+			if(findBarSeries(intervalMillis)!=null) {
+				throw new IllegalArgumentException("Invalid argument intervalMillis, the bars of " + intervalMillis + " milliseconds are already kept");
 			}
+
+			for(int i=0; i<tradeActions.size(); i++) {
+				series.add(tradeActions.getTimestamp(i), tradeActions.getQuantity(i), toBarPrice(tradeActions.getScaledValue(i), i));
 			}
+
+			BarSeries[] current = barSeries;
+			BarSeries[] updated = Arrays.copyOf(current, current.length + 1);
+
+			updated[current.length] = series;
+			barSeries = updated;
 		}
 	}
 
 	/**
-	 * Method to get the P/E Ratio of the share
-	 * @return BigDecimal representing the current P/E Ration of the hare or null if the lastDividend value is 0
+	 * Method to stop keeping the bars of an interval
+	 * @param intervalMillis	- Length of the interval in milliseconds
+	 * @return false if the bars of the interval were not kept
 	 */
-	public BigDecimal getPERatio() {
+	public boolean removeBarInterval(long intervalMillis) {
 
-		synchronized (stockValuesChangeLock) {	// We use this lock to prevent changes to the variables used in this method for calculations so we will always have coherent values
+		synchronized (tradeActions) {
 
-			if(this.lastDividend.floatValue()!=0) {	// We must ensure that the value is not zero to avoid an Arithmetic exception
+			BarSeries[] current = barSeries;
+			List<BarSeries> updated = new ArrayList<BarSeries>(Arrays.asList(current));
 
-				return tickerPrice.divide(lastDividend, _PRECISION, _ROUNDING_MODE);
+			if(!updated.removeIf(series -> series.getInterval()==intervalMillis)) {
+				return false;
+			}
 
-			} else {
+			barSeries = updated.toArray(new BarSeries[updated.size()]);
+			return true;
+		}
+	}
+
+	/**
+	 * Method to retrieve the OHLCV bars of an interval that start inside a time range
+	 * @param intervalMillis	- Length of the interval in milliseconds, it must have been added with addBarInterval
+	 * @param from				- Start of the range in milliseconds, included
+	 * @param to				- End of the range in milliseconds, not included
+	 * @return List with the bars sorted by start, the intervals without trades are skipped
+	 */
+	public List<Bar> getBars(long intervalMillis, long from, long to) {
+
+		synchronized (tradeActions) {
+
+			return getBarSeries(intervalMillis).getBars(from, to);
+		}
+	}
+
+	/**
+	 * Method to retrieve the OHLCV bar of the interval of a timestamp
+	 * @param intervalMillis	- Length of the interval in milliseconds, it must have been added with addBarInterval
+	 * @param timestamp			- Any time inside the interval
+	 * @return the bar or null if there were no trades in the interval or it is no longer kept
+	 */
+	public Bar getBar(long intervalMillis, long timestamp) {
+
+		synchronized (tradeActions) {
+
+			return getBarSeries(intervalMillis).getBar(timestamp);
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of trades that were not added to the bars of an interval because they were older than the intervals kept
+	 * @param intervalMillis	- Length of the interval in milliseconds, it must have been added with addBarInterval
+	 * @return the number of dropped trades
+	 */
+	public long getDroppedBarTrades(long intervalMillis) {
+
+		synchronized (tradeActions) {
+
+			return getBarSeries(intervalMillis).getDroppedTrades();
+		}
+	}
+
+	private BarSeries getBarSeries(long intervalMillis) {
+
+		BarSeries series = findBarSeries(intervalMillis);
+
+		if(series==null) {
+			throw new IllegalArgumentException("Invalid argument intervalMillis, the bars of " + intervalMillis + " milliseconds are not kept");
+		}
+
+		return series;
+	}
 
-				System.err.println("Error, the lastDividend value must not be 0");
-				return null;
+	private BarSeries findBarSeries(long intervalMillis) {
+
+		for(BarSeries series: barSeries) {
+
+			if(series.getInterval()==intervalMillis) {
+				return series;
 			}
 		}
+
+		return null;
 	}
 
 	/**
-	 * Method to add a new trade action for this share
-	 * @param timestamp
-	 * @param quantity
-	 * @param actionType
-	 * @param value
-	 * @return Boolean value indicating success or failure adding the trade action
+	 * Method to add a stored trade to the bars of all the intervals, it must be called while holding the lock on tradeActions
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param scaledValue	- Share value multiplied by 10^priceScale or FixedPointPrice.NOT_REPRESENTABLE
+	 * @param position		- Position of the trade in tradeActions, used to read the values that aren't fixed point
 	 */
-	public boolean addTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) {
+	private void updateBars(long timestamp, long quantity, long scaledValue, int position) {
 
-		boolean validationsOK = true;
+		BarSeries[] series = barSeries;
 
-		if(timestamp<=0) {
+		if(series.length==0) {
+			return;
+		}
+
+		long barPrice = toBarPrice(scaledValue, position);
+
+		for(int i=0; i<series.length; i++) {
+			series[i].add(timestamp, quantity, barPrice);
+		}
+	}
 
-			System.err.println("Invalid argument timestamp, it must be greater than 0");
-			validationsOK = false;
+	/**
+	 * Method to retrieve the fixed point price used by the bars, the bars are only for charts so a value with more decimal places than the scale is rounded
+	 * @param scaledValue	- Share value multiplied by 10^priceScale or FixedPointPrice.NOT_REPRESENTABLE
+	 * @param position		- Position of the trade in tradeActions
+	 * @return the rounded value or FixedPointPrice.NOT_REPRESENTABLE if it doesn't fit in a long
+	 */
+	private long toBarPrice(long scaledValue, int position) {
+
+		if(scaledValue!=FixedPointPrice.NOT_REPRESENTABLE) {
+			return scaledValue;
 		}
 
-		if(quantity<=0) {
-			System.err.println("Invalid argument quantity, it must be greater than 0");
-			validationsOK = false;			
+		return FixedPointPrice.toScaled(tradeActions.getValue(position).setScale(priceScale, _ROUNDING_MODE), priceScale);
+	}
+
+	/**
+	 * Getter method for the retention policy
+	 * @return the retention policy used to remove old trades
+	 */
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy;
+	}
+
+	/**
+	 * Setter method to set the retention policy, the new policy will be applied on the next trade or eviction
+	 * @param pRetentionPolicy	- The new retention policy, it cannot be null
+	 */
+	public void setRetentionPolicy(RetentionPolicy pRetentionPolicy) {
+
+		if(pRetentionPolicy==null) {
+			throw new IllegalArgumentException("Invalid argument retentionPolicy, it cannot be null");
 		}
 
-		if(actionType==null) {
+		this.retentionPolicy = pRetentionPolicy;
+	}
+
+	/**
+	 * Setter method to set the object that will receive the trades removed by the retention policy
+	 * @param pTradeArchiver	- The archiver or null if the removed trades can simply be discarded
+	 */
+	public void setTradeArchiver(TradeArchiver pTradeArchiver) {
+
+		this.tradeArchiver = pTradeArchiver;
+	}
+
+	/**
+	 * Setter method to set the object that will receive the errors and warnings of this stock
+	 * @param pEventSink	- The event sink, it cannot be null
+	 */
+	public void setEventSink(EventSink pEventSink) {
 
-			System.err.println("Invalid parameter actionType, it cannot be null");
+		if(pEventSink==null) {
+			throw new IllegalArgumentException("Invalid argument eventSink, it cannot be null");
 		}
 
-		if(value.doubleValue()<=0) {
-			System.err.println("Invalid argument quantity, it must be greater than 0");
-			validationsOK = false;			
+		this.eventSink = pEventSink;
+	}
+
+	/**
+	 * Setter method to set the clock used to decide which trades are inside the stock price window and which ones the retention policy removes,
+	 * it is set by the stock exchange. Changing the clock of a stock with trades takes effect on the next trade or calculation
+	 * @param pClock	- The clock, it cannot be null
+	 */
+	public void setClock(StockClock pClock) {
+
+		if(pClock==null) {
+			throw new IllegalArgumentException("Invalid argument clock, it cannot be null");
 		}
 
-		if(validationsOK) {
-			
-			synchronized (tradeActions) {	// we will place a lock in this object to prevent it from being changed during this operation
-			
-				tradeActions.addElement(new StockTradeAction(timestamp, quantity, actionType, value));
-				this.tickerPrice = value;
+		this.clock = pClock;
+	}
+
+	/**
+	 * Getter method for the clock of the stock
+	 * @return the clock
+	 */
+	public StockClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Setter method to set the metrics where the latencies of the operations of this stock are recorded, it is set by the stock exchange
+	 * @param pMetrics	- The metrics or null to stop recording
+	 */
+	public void setMetrics(ExchangeMetrics pMetrics) {
+
+		this.metrics = (pMetrics!=null ? pMetrics : ExchangeMetrics.DISABLED);
+	}
+
+	/**
+	 * Method used by ExchangeMetrics to read the operation counters of this stock
+	 * @return one counter for each ExchangeMetrics.Operation
+	 */
+	LongAdder[] getOperationCounters() {
+		return operationCounters;
+	}
+
+	/**
+	 * Setter method to set the journal where the trades and the changes to the values of this stock are written, it is set by the stock exchange.
+	 * When this method returns no thread is still writing a record of this stock to the previous journal, so a record written afterwards
+	 * (like the removal of the stock) always comes after all the records of the stock
+	 * @param pJournal	- The journal or null to stop writing to it
+	 */
+	public void setJournal(TradeJournal pJournal) {
+
+		if(pJournal!=null && journalSymbol==null) {
+
+			journalSymbol = TradeJournal.encodeSymbol(stockSymbol);
+
+			if(journalSymbol==null) {
+				throw new IllegalArgumentException("The stock symbol is too long for the journal");
 			}
-		} 
+		}
 
-		return validationsOK;
+		this.journal = pJournal;
+
+		// the records are written while holding these locks, so once we get them the writers that read the previous journal are done
+		synchronized (tradeActions) {
+		}
+
+		synchronized (stockValuesChangeLock) {
+		}
 	}
 
 	/**
-	 * Method similar to the previous one but it uses system time for filling the time stamp data instead of using a parameter
-	 * @param quantity
-	 * @param actionType
-	 * @param value
-	 * @return Boolean value indicating success or failure adding the trade action
+	 * Method to publish the ticker price and the stock price to the market data feed if any of them changed since they were last published,
+	 * it must be called while holding the lock on tradeActions
+	 * @param feed			- The feed
+	 * @param stockPrice	- Unscaled stock price or 0 if there are no trades inside the window
+	 * @param scale			- Scale of the stock price
 	 */
-	public boolean addTradeAction(long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) {
+	private void publishMarketData(MarketDataFeed feed, long stockPrice, int scale) {
+
+		long tickerPrice = scaledTickerPrice;
+		int tickerScale = priceScale;
 
-		boolean validationsOK = true;
+		if(tickerPrice==FixedPointPrice.NOT_REPRESENTABLE) {
 
-		if(quantity<=0) {
-			System.err.println("Invalid argument quantity, it must be greater than 0");
-			validationsOK = false;			
+			// the subscribers only need the 18 most significant digits, the same as the price listener
+			BigDecimal bigTicker = this.tickerPrice.round(new MathContext(18));
+
+			tickerPrice = bigTicker.unscaledValue().longValue();
+			tickerScale = bigTicker.scale();
 		}
 
-		if(actionType==null) {
+		if(tickerPrice!=publishedTickerPrice || tickerScale!=publishedTickerScale || stockPrice!=publishedStockPrice || scale!=publishedStockPriceScale) {
 
-			System.err.println("Invalid parameter actionType, it cannot be null");
+			publishedTickerPrice = tickerPrice;
+			publishedTickerScale = tickerScale;
+			publishedStockPrice = stockPrice;
+			publishedStockPriceScale = scale;
+
+			feed.publishStock(stockSymbol, tickerPrice, tickerScale, stockPrice, scale);
 		}
+	}
+
+	/**
+	 * Setter method to set the object that will receive the changes of the stock price, the current price is sent to it right away
+	 * @param pPriceListener	- The listener or null to stop sending the changes
+	 */
+	public void setPriceListener(StockPriceListener pPriceListener) {
+
+		synchronized (tradeActions) {	// once this method returns the previous listener won't receive more changes
 
-		if(value.doubleValue()<=0) {
-			System.err.println("Invalid argument quantity, it must be greater than 0");
-			validationsOK = false;			
+			this.priceListener = pPriceListener;
+
+			if(pPriceListener!=null) {
+
+				evictFromPriceWindow(clock.currentTimeMillis());
+
+				notifiedValidUntil = -1;	// so the current price is always sent
+				priceWindowChanged();
+			}
 		}
+	}
 
-		if(validationsOK) {
-			
-			synchronized (tradeActions) {	// we will place a lock in this object to prevent it from being changed during this operation
-				
-				tradeActions.addElement(new StockTradeAction(quantity, actionType, value));
-				this.tickerPrice = value;
-				
+	/**
+	 * Setter method to set the feed where the changes of the ticker price and the stock price are published, it is set by the stock exchange
+	 * when its feed is created. The current values are published right away
+	 * @param pMarketDataFeed	- The feed or null to stop publishing
+	 */
+	void setMarketDataFeed(MarketDataFeed pMarketDataFeed) {
+
+		synchronized (tradeActions) {
+
+			if(pMarketDataFeed==marketDataFeed) {
+				return;
 			}
-		} 
 
-		return validationsOK;
+			this.marketDataFeed = pMarketDataFeed;
+
+			if(pMarketDataFeed!=null) {
+
+				publishedTickerScale = -1;	// so the current values are always published
+				priceWindowChanged();
+			}
+		}
 	}
 
 	/**
-	 * Method to calculate the stock price based in the trades of the last 15 minutes
-	 * @return BigDecimal with the current stock price or null if there has been no transactions for this stock
+	 * Method to send the current stock price to the listener if it changed since the last time and to publish the ticker price and the stock price
+	 * to the market data feed if any of them changed, it must be called while holding the lock on tradeActions after every change of the price window.
+	 * In the usual case the prices are the fixed point ones so no objects are created
 	 */
-	public BigDecimal calculateStockPrice() {
+	private void priceWindowChanged() {
 
-		// We will use these two variables to store the values for the operation
-		long stockQuantity = 0;
-		BigDecimal priceTimesQuantitySum = new BigDecimal(0);
+		StockPriceListener listener = priceListener;
+		MarketDataFeed feed = marketDataFeed;
 
-		synchronized (tradeActions) {	// we will place a lock in this object to prevent it from being changed during this operation
+		if(listener==null && feed==null) {
+			return;
+		}
 
-			// We will go through all trade records
-			for (int i=0; i<tradeActions.size(); i++) {
+		long price = priceWindow.getScaledPrice(_PRECISION);
+		int scale = _PRECISION;
 
-				// Check if they are newer than 15 minutes and if so add their value to both variables
-				if (((System.currentTimeMillis()-tradeActions.get(i).getTimestamp())/1000/60)<=15) {
+		if(price==FixedPointPrice.NOT_REPRESENTABLE) {
 
-					stockQuantity += tradeActions.get(i).getQuantity();
-					priceTimesQuantitySum = priceTimesQuantitySum.add(tradeActions.get(i).getValue().multiply(new BigDecimal(tradeActions.get(i).getQuantity())));
-				}
+			if(priceWindow.getQuantitySum()>0) {
+
+				// the price is too big for the fixed point calculation, we keep its 18 most significant digits which is more than the listener can use
+				BigDecimal bigPrice = priceWindow.getPriceTimesQuantitySum().divide(new BigDecimal(priceWindow.getQuantitySum()), _PRECISION, _ROUNDING_MODE).round(new MathContext(18));
+
+				price = bigPrice.unscaledValue().longValue();
+				scale = bigPrice.scale();
+
+			} else {
+
+				price = 0;	// no trades inside the window
 			}
+		}
 
+		if(feed!=null) {
+			publishMarketData(feed, price, scale);
 		}
 
-		// here we will check if we have any stocks traded or give an error otherwise
-		if (stockQuantity>0) {
+		if(listener==null) {
+			return;
+		}
 
-			return priceTimesQuantitySum.divide(new BigDecimal(stockQuantity), _PRECISION, _ROUNDING_MODE);
+		long validUntil = priceWindow.getValidUntil();
 
-		} else {
+		if(price!=notifiedPrice || scale!=notifiedScale || validUntil!=notifiedValidUntil) {
+
+			notifiedPrice = price;
+			notifiedScale = scale;
+			notifiedValidUntil = validUntil;
+
+			listener.stockPriceChanged(this, price, scale, validUntil);
+		}
+	}
+
+	/**
+	 * Method to write the current values of this stock to the journal, it must be called while holding the lock on stockValuesChangeLock
+	 */
+	private void journalStockValues() {
 
-			System.err.println("No actions for this stock");
-			return null;
+		TradeJournal currentJournal = journal;
+
+		if(currentJournal!=null) {
+
+			try {
+
+				StockValues values = stockValues;
+				currentJournal.writeUpdateStock(journalSymbol, values.stockType, values.lastDividend, values.fixedDividend, values.parValue);
+
+			} catch (IOException | IllegalArgumentException e) {
+
+				eventSink.report(ResultCode.JOURNAL_ERROR, stockSymbol, e.getMessage());
+			}
 		}
+	}
+
+	/**
+	 * Method to check if the oldest trade can be removed, it is called after storing trades so they only take the lock again and go through
+	 * the eviction when there is something to remove, it must be called while holding the lock on tradeActions after the price window was updated
+	 * @param now	- Current time
+	 * @return true if evictExpiredTrades would remove at least one trade
+	 */
+	private boolean isEvictionDue(long now) {
 
+		// only the trades before the start of the price window can be removed
+		return priceWindow.getStart()>0
+				&& (retentionPolicy.exceedsMaxTrades(tradeActions.size()) || retentionPolicy.isExpired(tradeActions.getTimestamp(0), now));
 	}
 
-	@Override
-	public String toString() {
-		return "StockElement [stockSymbol=" + stockSymbol 
-				+ ", stockType=" + stockType.name() 
-				+ ", lastDividend=" + lastDividend.setScale(_PRECISION, _ROUNDING_MODE)
-				+ ", fixedDividend=" + fixedDividend.setScale(_PRECISION, _ROUNDING_MODE)
-				+ ", parValue=" + parValue.setScale(_PRECISION, _ROUNDING_MODE)
-				+ ", tickerPrice=" + tickerPrice.setScale(_PRECISION, _ROUNDING_MODE) 
-				+ ", tradeActions=" + tradeActions.size()
-				+ ", stockPrice=" + calculateStockPrice()
-				+ "]";
+	/**
+	 * Method to remove the trades that are no longer allowed by the retention policy, it is called after the trades that made the oldest trade removable
+	 * and periodically by the stock exchange so stocks without new trades also release their old ones
+	 * @return the number of removed trades
+	 */
+	public int evictExpiredTrades() {
+
+		return evictExpiredTrades(clock.currentTimeMillis());
+	}
+
+	/**
+	 * Method to remove the trades that are no longer allowed by the retention policy at a given time, the stock exchange reads its clock once for all the stocks
+	 * @param now	- Current time
+	 * @return the number of removed trades
+	 */
+	int evictExpiredTrades(long now) {
+
+		TradeArchiver archiver = this.tradeArchiver;
+		List<StockTradeAction> evicted = (archiver!=null ? new ArrayList<StockTradeAction>() : null);	// we only keep the removed trades if someone wants them
+		int removed;
+
+		synchronized (tradeActions) {
+
+			// the trades still inside the stock price window are never removed so we first update the window
+			evictFromPriceWindow(now);
+
+			removed = tradeActions.evict(retentionPolicy, now, priceWindow.getStart(), evicted);
+			priceWindow.removedOldest(removed);
+
+			priceWindowChanged();
+		}
+
+		// The archiver is called without holding the lock so a slow archiver doesn't delay the trading
+		if(removed>0 && archiver!=null) {
+
+			archiver.archive(stockSymbol, evicted);
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Getter method for the tickerPrice variable
+	 * @return BigDecimal containing the current ticker price
+	 */
+	public BigDecimal getTickerPrice() {
+
+		// Optimistic read, it only takes the read lock if a trade changed the ticker price while we were reading it
+		long stamp = tickerLock.tryOptimisticRead();
+		BigDecimal price = tickerPrice;
+		long scaledPrice = scaledTickerPrice;
+
+		if(!tickerLock.validate(stamp)) {
+
+			stamp = tickerLock.readLock();
+
+			try {
+
+				price = tickerPrice;
+				scaledPrice = scaledTickerPrice;
+
+			} finally {
+
+				tickerLock.unlockRead(stamp);
+			}
+		}
+
+		return (price!=null ? price : FixedPointPrice.toBigDecimal(scaledPrice, priceScale));	
+	}
+
+	/**
+	 * Method to change the ticker price, it must be called while holding the lock on tradeActions so there is a single writer
+	 * @param price			- BigDecimal price or null if the trade was added with a fixed point value
+	 * @param scaledPrice	- Fixed point price or FixedPointPrice.NOT_REPRESENTABLE
+	 */
+	private void setTickerPrice(BigDecimal price, long scaledPrice) {
+
+		long stamp = tickerLock.writeLock();	// never contended by other writers, it only makes the optimistic readers try again
+
+		this.tickerPrice = price;
+		this.scaledTickerPrice = scaledPrice;
+
+		tickerLock.unlockWrite(stamp);
+	}
+
+	/**
+	 * Getter method for the scale of the fixed point prices of this stock
+	 * @return the number of decimal places of the fixed point prices
+	 */
+	public int getPriceScale() {
+		return priceScale;
+	}
+
+	/**
+	 * Method to retrieve the dividend yield
+	 * @return BigDecimal representing the current dividend yield of the share or null if the ticker price is 0 or if the stockType is different from COMMON or PREFERRED
+	 */
+	public BigDecimal getDividendYield() {
+
+		ExchangeMetrics currentMetrics = metrics;
+		long started = currentMetrics.start();
+
+		try {
+
+			return report(dividendYield());
+
+		} finally {
+
+			currentMetrics.record(ExchangeMetrics.Operation.DIVIDEND_YIELD, started, operationCounters);
+		}
+	}
+
+	/**
+	 * Method to get the dividend yield from the cache or to calculate it if a trade or a setter changed it since it was cached
+	 */
+	private DerivedValue dividendYield() {
+
+		// the version is read before the values so a result calculated while they change is never cached as the new one
+		long currentVersion = tradeVersion;
+		StockValues values = stockValues;
+		DerivedValue cached = cachedDividendYield;
+
+		if(cached==null || !cached.isValid(currentVersion, values, 0)) {
+
+			cached = calculateDividendYield(currentVersion, values);
+			cachedDividendYield = cached;
+		}
+
+		return cached;
+	}
+
+	private DerivedValue calculateDividendYield(long version, StockValues values) {
+
+		// No lock is needed, the values are read once so all the calculations use the same version of them even if a setter or a trade changes them meanwhile
+		long scaledTicker = scaledTickerPrice;
+		BigDecimal ticker = (scaledTicker!=FixedPointPrice.NOT_REPRESENTABLE ? null : getTickerPrice());	// only needed when the ticker has no fixed point value
+
+		switch(values.stockType) {
+
+		case COMMON : {
+
+			if(isPositive(scaledTicker, ticker)) {	// We must ensure that the value is not zero to avoid an Arithmetic exception
+
+				// When all values have a fixed point representation we calculate with longs and only create the BigDecimal of the result
+				long result = divideToPrecision(values.scaledLastDividend, scaledTicker);
+
+				if(result!=FixedPointPrice.NOT_REPRESENTABLE) {
+					return new DerivedValue(version, values, Long.MAX_VALUE, FixedPointPrice.toBigDecimal(result, _PRECISION), null);
+				}
+
+				return new DerivedValue(version, values, Long.MAX_VALUE, values.lastDividend.divide(toBigDecimal(scaledTicker, ticker), _PRECISION, _ROUNDING_MODE), null);
+
+			} else {
+
+				return new DerivedValue(version, values, Long.MAX_VALUE, null, ResultCode.ZERO_TICKER_PRICE);
+			}
+		} 
+		case PREFERRED : {
+
+			if(isPositive(scaledTicker, ticker)) {	// We must ensure that the value is not zero to avoid an Arithmetic exception
+
+				long result = calculatePreferredDividendYield(values, scaledTicker);
+
+				if(result!=FixedPointPrice.NOT_REPRESENTABLE) {
+					return new DerivedValue(version, values, Long.MAX_VALUE, FixedPointPrice.toBigDecimal(result, _PRECISION), null);
+				}
+
+				// Since we accept the fixed dividend as a percentage we have to divide it's value by 100 for the calculation
+				return new DerivedValue(version, values, Long.MAX_VALUE,
+						values.fixedDividend.divide(new BigDecimal(100), _PRECISION, _ROUNDING_MODE).multiply(values.parValue).divide(toBigDecimal(scaledTicker, ticker), _PRECISION, _ROUNDING_MODE), null);
+
+			} else {
+
+				return new DerivedValue(version, values, Long.MAX_VALUE, null, ResultCode.ZERO_TICKER_PRICE);
+			}
+		}
+
+		default : {	// We should never get here since the value of stockType has to be one from the enumeration
+
+			return new DerivedValue(version, values, Long.MAX_VALUE, null, ResultCode.INVALID_STOCK_TYPE);
+		}
+		}
+	}
+
+	/**
+	 * Method to get the P/E Ratio of the share
+	 * @return BigDecimal representing the current P/E Ration of the hare or null if the lastDividend value is 0
+	 */
+	public BigDecimal getPERatio() {
+
+		ExchangeMetrics currentMetrics = metrics;
+		long started = currentMetrics.start();
+
+		try {
+
+			return report(peRatio());
+
+		} finally {
+
+			currentMetrics.record(ExchangeMetrics.Operation.PE_RATIO, started, operationCounters);
+		}
+	}
+
+	/**
+	 * Method to get the P/E ratio from the cache or to calculate it if a trade or a setter changed it since it was cached
+	 */
+	private DerivedValue peRatio() {
+
+		long currentVersion = tradeVersion;
+		StockValues values = stockValues;
+		DerivedValue cached = cachedPERatio;
+
+		if(cached==null || !cached.isValid(currentVersion, values, 0)) {
+
+			cached = calculatePERatio(currentVersion, values);
+			cachedPERatio = cached;
+		}
+
+		return cached;
+	}
+
+	private DerivedValue calculatePERatio(long version, StockValues values) {
+
+		// Like in calculateDividendYield each value is read once instead of taking a lock
+		long scaledTicker = scaledTickerPrice;
+
+		if(values.lastDividend.floatValue()!=0) {	// We must ensure that the value is not zero to avoid an Arithmetic exception
+
+			long result = divideToPrecision(scaledTicker, values.scaledLastDividend);
+
+			if(result!=FixedPointPrice.NOT_REPRESENTABLE) {
+				return new DerivedValue(version, values, Long.MAX_VALUE, FixedPointPrice.toBigDecimal(result, _PRECISION), null);
+			}
+
+			BigDecimal ticker = (scaledTicker!=FixedPointPrice.NOT_REPRESENTABLE ? null : getTickerPrice());
+
+			return new DerivedValue(version, values, Long.MAX_VALUE, toBigDecimal(scaledTicker, ticker).divide(values.lastDividend, _PRECISION, _ROUNDING_MODE), null);
+
+		} else {
+
+			return new DerivedValue(version, values, Long.MAX_VALUE, null, ResultCode.ZERO_LAST_DIVIDEND);
+		}
+	}
+
+	/**
+	 * Method to send to the event sink the error of a derived value, it is sent every time the value is read like when it was calculated on every call
+	 * @param derived	- The derived value
+	 * @return its value
+	 */
+	private BigDecimal report(DerivedValue derived) {
+
+		if(derived.error!=null) {
+			eventSink.report(derived.error, stockSymbol, null);
+		}
+
+		return derived.value;
+	}
+
+	/**
+	 * Method to check if a ticker price read by calculateDividendYield is greater than 0
+	 * @param scaledTicker	- Fixed point ticker price or FixedPointPrice.NOT_REPRESENTABLE
+	 * @param ticker		- BigDecimal ticker price, only used when the fixed point one is not representable
+	 */
+	private static boolean isPositive(long scaledTicker, BigDecimal ticker) {
+
+		return (scaledTicker!=FixedPointPrice.NOT_REPRESENTABLE ? scaledTicker>0 : ticker.floatValue()>0);
+	}
+
+	/**
+	 * Method to get the BigDecimal of a ticker price read by calculateDividendYield or calculatePERatio
+	 * @param scaledTicker	- Fixed point ticker price or FixedPointPrice.NOT_REPRESENTABLE
+	 * @param ticker		- BigDecimal ticker price, only used when the fixed point one is not representable
+	 */
+	private BigDecimal toBigDecimal(long scaledTicker, BigDecimal ticker) {
+
+		return (scaledTicker!=FixedPointPrice.NOT_REPRESENTABLE ? FixedPointPrice.toBigDecimal(scaledTicker, priceScale) : ticker);
+	}
+
+	/**
+	 * Method to divide two fixed point values with the same scale, it gives the same result as BigDecimal.divide with _PRECISION and _ROUNDING_MODE
+	 * @param dividend	- Scaled dividend
+	 * @param divisor	- Scaled divisor, it must not be 0
+	 * @return the quotient multiplied by 10^_PRECISION or FixedPointPrice.NOT_REPRESENTABLE if any of the values is not representable or if it would overflow
+	 */
+	private static long divideToPrecision(long dividend, long divisor) {
+
+		if(dividend==FixedPointPrice.NOT_REPRESENTABLE || divisor==FixedPointPrice.NOT_REPRESENTABLE || divisor==0) {
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+
+		try {
+
+			return FixedPointPrice.divideHalfUp(Math.multiplyExact(dividend, FixedPointPrice.powerOfTen(_PRECISION)), divisor);
+
+		} catch (ArithmeticException e) {
+
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+	}
+
+	/**
+	 * Method to calculate the dividend yield of a preferred stock with fixed point values, it rounds each step exactly like the BigDecimal calculation
+	 * (fixedDividend / 100) * parValue / tickerPrice
+	 * @param values		- Values of the stock
+	 * @param scaledTicker	- Fixed point ticker price
+	 * @return the dividend yield multiplied by 10^_PRECISION or FixedPointPrice.NOT_REPRESENTABLE if it can't be calculated with longs
+	 */
+	private long calculatePreferredDividendYield(StockValues values, long scaledTicker) {
+
+		if(values.scaledParValue==FixedPointPrice.NOT_REPRESENTABLE || scaledTicker==FixedPointPrice.NOT_REPRESENTABLE || scaledTicker==0) {
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+
+		try {
+
+			// fixedDividend / 100 rounded to _PRECISION decimal places, 100 is written with the same scale of the fixed dividend
+			long percentage = divideToPrecision(values.scaledFixedDividend, Math.multiplyExact(100, FixedPointPrice.powerOfTen(priceScale)));
+
+			if(percentage==FixedPointPrice.NOT_REPRESENTABLE) {
+				return FixedPointPrice.NOT_REPRESENTABLE;
+			}
+
+			// (percentage/10^_PRECISION * parValue) / tickerPrice rounded to _PRECISION decimal places, the scales of parValue and tickerPrice cancel each other
+			return FixedPointPrice.divideHalfUp(Math.multiplyExact(percentage, values.scaledParValue), scaledTicker);
+
+		} catch (ArithmeticException e) {
+
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+	}
+
+	/**
+	 * Method to add a new trade action for this share
+	 * @param timestamp
+	 * @param quantity
+	 * @param actionType
+	 * @param value
+	 * @return Boolean value indicating success or failure adding the trade action
+	 */
+	public boolean addTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) {
+
+		return tryAddTradeAction(timestamp, quantity, actionType, value)==ResultCode.OK;
+	}
+
+	/**
+	 * Method to add a new trade action for this share returning the reason of the failure instead of a boolean
+	 * @param timestamp
+	 * @param quantity
+	 * @param actionType
+	 * @param value
+	 * @return ResultCode.OK if the trade action was added or the first validation that failed
+	 */
+	public ResultCode tryAddTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) {
+
+		ExchangeMetrics currentMetrics = metrics;
+		long started = currentMetrics.start();	// the validation takes a few nanoseconds so the same time is used for the lock wait
+
+		ResultCode result = validateTradeAction(timestamp, quantity, actionType, (value!=null && value.signum()>0));
+
+		if(result==ResultCode.OK) {
+
+			long now = clock.currentTimeMillis();	// a single time for the whole operation so the price window and the retention policy agree
+			
+			boolean evictionDue;
+
+			synchronized (tradeActions) {	// we will place a lock in this object to prevent it from being changed during this operation
+
+				currentMetrics.lockAcquired(ExchangeMetrics.Lock.TRADES, started);
+
+				result = recordTradeAction(timestamp, quantity, actionType, value, now);
+
+				evictionDue = isEvictionDue(now);
+			}
+
+			if(evictionDue) {
+				evictExpiredTrades(now);	// the old trades are removed right away so a stock with many trades never keeps more than the policy allows
+			}
+		} 
+
+		currentMetrics.record(ExchangeMetrics.Operation.ADD_TRADE, started, operationCounters);
+
+		return result;
+	}
+
+	/**
+	 * Method to add a new trade action for this share with a fixed point value, this is the fastest way of adding trades since no BigDecimal is created
+	 * @param timestamp
+	 * @param quantity
+	 * @param actionType
+	 * @param scaledValue	- Share value multiplied by 10^getPriceScale()
+	 * @return Boolean value indicating success or failure adding the trade action
+	 */
+	public boolean addTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue) {
+
+		return tryAddTradeAction(timestamp, quantity, actionType, scaledValue)==ResultCode.OK;
+	}
+
+	/**
+	 * Method to add a new trade action for this share with a fixed point value returning the reason of the failure instead of a boolean
+	 * @param timestamp
+	 * @param quantity
+	 * @param actionType
+	 * @param scaledValue	- Share value multiplied by 10^getPriceScale()
+	 * @return ResultCode.OK if the trade action was added or the first validation that failed
+	 */
+	public ResultCode tryAddTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue) {
+
+		ExchangeMetrics currentMetrics = metrics;
+		long started = currentMetrics.start();	// the validation takes a few nanoseconds so the same time is used for the lock wait
+
+		// scaledValue>0 also rejects FixedPointPrice.NOT_REPRESENTABLE
+		ResultCode result = validateTradeAction(timestamp, quantity, actionType, scaledValue>0);
+
+		if(result==ResultCode.OK) {
+
+			long now = clock.currentTimeMillis();	// a single time for the whole operation so the price window and the retention policy agree
+			
+			boolean evictionDue;
+
+			synchronized (tradeActions) {	// we will place a lock in this object to prevent it from being changed during this operation
+
+				currentMetrics.lockAcquired(ExchangeMetrics.Lock.TRADES, started);
+
+				result = recordTradeAction(timestamp, quantity, actionType, scaledValue, now);
+
+				evictionDue = isEvictionDue(now);
+			}
+
+			if(evictionDue) {
+				evictExpiredTrades(now);	// the old trades are removed right away so a stock with many trades never keeps more than the policy allows
+			}
+		} 
+
+		currentMetrics.record(ExchangeMetrics.Operation.ADD_TRADE, started, operationCounters);
+
+		return result;
+	}
+
+	/**
+	 * Method similar to the previous one but it uses system time for filling the time stamp data instead of using a parameter
+	 * @param quantity
+	 * @param actionType
+	 * @param value
+	 * @return Boolean value indicating success or failure adding the trade action
+	 */
+	public boolean addTradeAction(long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) {
+
+		return tryAddTradeAction(quantity, actionType, value)==ResultCode.OK;
+	}
+
+	/**
+	 * Method similar to the previous one but it uses system time for filling the time stamp data instead of using a parameter
+	 * @param quantity
+	 * @param actionType
+	 * @param value
+	 * @return ResultCode.OK if the trade action was added or the first validation that failed
+	 */
+	public ResultCode tryAddTradeAction(long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) {
+
+		ExchangeMetrics currentMetrics = metrics;
+		long started = currentMetrics.start();	// the validation takes a few nanoseconds so the same time is used for the lock wait
+
+		ResultCode result = validateTradeAction(1, quantity, actionType, (value!=null && value.signum()>0));	// the timestamp is always valid
+
+		if(result==ResultCode.OK) {
+
+			long now = clock.currentTimeMillis();	// the timestamp of the trade and the time of the price window and the retention policy
+			
+			boolean evictionDue;
+
+			synchronized (tradeActions) {	// we will place a lock in this object to prevent it from being changed during this operation
+
+				currentMetrics.lockAcquired(ExchangeMetrics.Lock.TRADES, started);
+
+				result = recordTradeAction(now, quantity, actionType, value, now);
+
+				evictionDue = isEvictionDue(now);
+			}
+
+			if(evictionDue) {
+				evictExpiredTrades(now);	// the old trades are removed right away so a stock with many trades never keeps more than the policy allows
+			}
+		} 
+
+		currentMetrics.record(ExchangeMetrics.Operation.ADD_TRADE, started, operationCounters);
+
+		return result;
+	}
+
+	/**
+	 * Method to validate the values of a trade action, the errors are sent to the event sink instead of being printed
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- Action performed, a null value is only reported as a warning
+	 * @param validValue	- true if the share value is greater than 0
+	 * @return ResultCode.OK or the first validation that failed
+	 */
+	private ResultCode validateTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, boolean validValue) {
+
+		ResultCode result = ResultCode.OK;
+
+		if(timestamp<=0) {
+			result = ResultCode.INVALID_TIMESTAMP;
+		} else if(quantity<=0) {
+			result = ResultCode.INVALID_QUANTITY;
+		} else if(!validValue) {
+			result = ResultCode.INVALID_VALUE;
+		}
+
+		if(actionType==null) {
+			eventSink.report(ResultCode.NULL_ACTION_TYPE, stockSymbol, null);
+		}
+
+		if(result!=ResultCode.OK) {
+			eventSink.report(result, stockSymbol, null);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Method to add a batch of trades for this share, the trades are validated in one pass and added with a single lock acquisition
+	 * and a single update of the stock price. The trades of the batch with a symbol different from this stock symbol are not added
+	 * @param batch	- The trades, the symbols can be null
+	 * @return BitSet with the indexes of the trades that were added, nothing is printed for the rejected ones
+	 */
+	public BitSet addTradeActions(TradeBatch batch) {
+
+		int[] indexes = new int[batch.size()];
+		int count = 0;
+
+		for(int index=0; index<batch.size(); index++) {
+
+			String symbol = batch.getStockSymbol(index);
+
+			if(symbol==null || symbol.equals(stockSymbol)) {
+				indexes[count++] = index;
+			}
+		}
+
+		BitSet added = new BitSet(batch.size());
+		addTradeActions(batch, indexes, count, added);
+
+		return added;
+	}
+
+	/**
+	 * Method used by addTradeActions and by StockExchange to add some of the trades of a batch
+	 * @param batch		- The trades
+	 * @param indexes	- Indexes of the trades of the batch to add
+	 * @param count		- Number of indexes
+	 * @param added		- BitSet where the indexes of the added trades are set
+	 * @return the number of added trades
+	 */
+	int addTradeActions(TradeBatch batch, int[] indexes, int count, BitSet added) {
+
+		int valid = 0;
+
+		// First we keep only the valid trades so the lock is held just for adding them
+		for(int i=0; i<count; i++) {
+
+			if(batch.isValid(indexes[i])) {
+				indexes[valid++] = indexes[i];
+			}
+		}
+
+		if(valid==0) {
+			return 0;
+		}
+
+		int addedCount = 0;
+
+		ExchangeMetrics currentMetrics = metrics;
+		long started = currentMetrics.start();
+
+		long now = clock.currentTimeMillis();	// a single time for the whole batch
+		boolean evictionDue;
+
+		synchronized (tradeActions) {	// a single lock for the whole batch
+
+			currentMetrics.lockAcquired(ExchangeMetrics.Lock.TRADES, started);
+
+			evictFromPriceWindow(now);
+
+			for(int i=0; i<valid; i++) {
+
+				int index = indexes[i];
+				long scaledValue = FixedPointPrice.rescale(batch.getScaledValue(index), batch.getScale(), priceScale);
+				boolean stored;
+
+				if(scaledValue!=FixedPointPrice.NOT_REPRESENTABLE) {
+
+					stored = (storeTradeAction(batch.getTimestamp(index), batch.getQuantity(index), batch.getActionType(index), scaledValue, now)==ResultCode.OK);
+
+				} else {
+
+					BigDecimal value = batch.getValue(index);
+
+					if(value==null) {	// a fixed point value with more decimal places than this stock
+						value = FixedPointPrice.toBigDecimal(batch.getScaledValue(index), batch.getScale());
+					}
+
+					stored = (storeTradeAction(batch.getTimestamp(index), batch.getQuantity(index), batch.getActionType(index), value, now)==ResultCode.OK);
+				}
+
+				if(stored) {
+
+					added.set(index);
+					addedCount++;
+				}
+			}
+
+			priceWindowChanged();	// the listener only receives the price after the whole batch
+
+			evictionDue = isEvictionDue(now);
+		}
+
+		if(evictionDue) {
+			evictExpiredTrades(now);
+		}
+
+		currentMetrics.record(ExchangeMetrics.Operation.ADD_TRADE_BATCH, started, operationCounters);
+
+		return addedCount;
+	}
+
+	/**
+	 * Method used by the OrderBook to store the fills of an incoming order, like a batch they are stored with a single lock acquisition and a single
+	 * update of the stock price, and since the prices are fixed point values no objects are created
+	 * @param timestamp		- Time of the fills
+	 * @param actionType	- Side of the incoming order
+	 * @param quantities	- Quantity of each fill
+	 * @param scaledPrices	- Price of each fill multiplied by 10^priceScale
+	 * @param count			- Number of fills
+	 * @return the number of stored fills, a fill is only lost if it can't be written to the journal
+	 */
+	int addFills(long timestamp, StockTradeAction.actionTypes actionType, long[] quantities, long[] scaledPrices, int count) {
+
+		int stored = 0;
+		boolean evictionDue;
+
+		ExchangeMetrics currentMetrics = metrics;
+		long started = currentMetrics.start();
+
+		synchronized (tradeActions) {
+
+			currentMetrics.lockAcquired(ExchangeMetrics.Lock.TRADES, started);
+			evictFromPriceWindow(timestamp);
+
+			for(int i=0; i<count; i++) {
+
+				if(storeTradeAction(timestamp, quantities[i], actionType, scaledPrices[i], timestamp)==ResultCode.OK) {
+					stored++;
+				}
+			}
+
+			priceWindowChanged();	// the listener only receives the price after all the fills
+
+			evictionDue = isEvictionDue(timestamp);
+		}
+
+		if(evictionDue) {
+			evictExpiredTrades(timestamp);
+		}
+
+		currentMetrics.record(ExchangeMetrics.Operation.ADD_TRADE_BATCH, started, operationCounters);
+
+		return stored;
+	}
+
+	/**
+	 * Getter method for the order book of this stock, the matches of its orders are stored as trades of this stock
+	 * @return the order book, it is created the first time this method is called
+	 */
+	public OrderBook getOrderBook() {
+
+		OrderBook book = orderBook;
+
+		if(book==null) {
+
+			synchronized (stockValuesChangeLock) {	// only taken until the book exists
+
+				book = orderBook;
+
+				if(book==null) {
+
+					book = new OrderBook(this);
+					orderBook = book;
+				}
+			}
+		}
+
+		return book;
+	}
+
+	/**
+	 * Method that stores a validated trade and updates the stock price window and the ticker price, it must be called while holding the lock on tradeActions.
+	 * When there is a journal the trade is written to it first, since we hold the lock the trades of this stock are written in the same order they are stored
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- Action performed
+	 * @param value			- Share value
+	 * @param now			- Current time
+	 * @return ResultCode.OK, ResultCode.TRADE_TOO_LATE or ResultCode.JOURNAL_ERROR, the trade is only stored with ResultCode.OK
+	 */
+	private ResultCode recordTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, BigDecimal value, long now) {
+
+		evictFromPriceWindow(now);
+
+		ResultCode result = storeTradeAction(timestamp, quantity, actionType, value, now);
+
+		if(result==ResultCode.OK) {
+			priceWindowChanged();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Method that writes a validated trade to the journal and adds it to the trades, the ticker price and the sums of the price window, it must be called while holding the lock on tradeActions
+	 * after removing the trades that left the price window. The listener is not notified so several trades can be stored with a single notification
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- Action performed
+	 * @param value			- Share value
+	 * @param now			- Current time
+	 * @return ResultCode.OK, ResultCode.TRADE_TOO_LATE or ResultCode.JOURNAL_ERROR, the trade is only stored with ResultCode.OK
+	 */
+	private ResultCode storeTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, BigDecimal value, long now) {
+
+		if(!tradeActions.acceptsTimestamp(timestamp)) {	// checked before the journal so a rejected trade is never replayed
+			eventSink.report(ResultCode.TRADE_TOO_LATE, stockSymbol, null);
+			return ResultCode.TRADE_TOO_LATE;
+		}
+
+		TradeJournal currentJournal = journal;
+
+		if(currentJournal!=null) {
+
+			try {
+
+				currentJournal.writeTrade(journalSymbol, timestamp, quantity, actionType, value);
+
+			} catch (IOException | IllegalArgumentException e) {
+
+				eventSink.report(ResultCode.JOURNAL_ERROR, stockSymbol, e.getMessage());
+				return ResultCode.JOURNAL_ERROR;
+			}
+		}
+
+		int position = tradeActions.add(timestamp, quantity, actionType, value);
+		long scaledValue = FixedPointPrice.toScaled(value, priceScale);
+
+		priceWindow.added(position, now);
+		updateBars(timestamp, quantity, scaledValue, position);
+
+		setTickerPrice(value, scaledValue);
+		tradeVersion++;	// the cached stock price, dividend yield and P/E ratio are calculated again
+
+		return ResultCode.OK;
+	}
+
+	/**
+	 * Method that stores a validated trade with a fixed point value, it works like the previous one without creating any object
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- Action performed
+	 * @param scaledValue	- Share value multiplied by 10^priceScale
+	 * @param now			- Current time
+	 * @return ResultCode.OK, ResultCode.TRADE_TOO_LATE or ResultCode.JOURNAL_ERROR, the trade is only stored with ResultCode.OK
+	 */
+	private ResultCode recordTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue, long now) {
+
+		evictFromPriceWindow(now);
+
+		ResultCode result = storeTradeAction(timestamp, quantity, actionType, scaledValue, now);
+
+		if(result==ResultCode.OK) {
+			priceWindowChanged();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Method that writes and stores a validated trade with a fixed point value, it works like the BigDecimal version without creating any object
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- Action performed
+	 * @param scaledValue	- Share value multiplied by 10^priceScale
+	 * @param now			- Current time
+	 * @return ResultCode.OK, ResultCode.TRADE_TOO_LATE or ResultCode.JOURNAL_ERROR, the trade is only stored with ResultCode.OK
+	 */
+	private ResultCode storeTradeAction(long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue, long now) {
+
+		if(!tradeActions.acceptsTimestamp(timestamp)) {	// checked before the journal so a rejected trade is never replayed
+			eventSink.report(ResultCode.TRADE_TOO_LATE, stockSymbol, null);
+			return ResultCode.TRADE_TOO_LATE;
+		}
+
+		TradeJournal currentJournal = journal;
+
+		if(currentJournal!=null) {
+
+			try {
+
+				currentJournal.writeTrade(journalSymbol, timestamp, quantity, actionType, scaledValue, priceScale);
+
+			} catch (IOException e) {
+
+				eventSink.report(ResultCode.JOURNAL_ERROR, stockSymbol, e.getMessage());
+				return ResultCode.JOURNAL_ERROR;
+			}
+		}
+
+		int position = tradeActions.add(timestamp, quantity, actionType, scaledValue);
+
+		priceWindow.added(position, now);
+		updateBars(timestamp, quantity, scaledValue, position);
+
+		setTickerPrice(null, scaledValue);	// the BigDecimal will be created from scaledTickerPrice only if someone asks for it
+		tradeVersion++;	// the cached stock price, dividend yield and P/E ratio are calculated again
+
+		return ResultCode.OK;
+	}
+
+	/**
+	 * Method to calculate the stock price based in the trades of the last 15 minutes
+	 * @return BigDecimal with the current stock price or null if there has been no transactions for this stock
+	 */
+	public BigDecimal calculateStockPrice() {
+
+		ExchangeMetrics currentMetrics = metrics;
+		long started = currentMetrics.start();
+
+		try {
+
+			return report(stockPrice(currentMetrics, started));
+
+		} finally {
+
+			currentMetrics.record(ExchangeMetrics.Operation.STOCK_PRICE, started, operationCounters);
+		}
+	}
+
+	/**
+	 * Method to calculate the stock price without sending an error for the stocks without trades, used by the calculations that go through all the stocks
+	 * @return BigDecimal containing the stock price or null if there are no trades inside the stock price window
+	 */
+	BigDecimal peekStockPrice() {
+
+		return stockPrice(metrics, 0).value;
+	}
+
+	/**
+	 * Method to discard the cached derived values so the next call calculates them again, used by the benchmarks that measure the calculation itself
+	 */
+	void clearCachedValues() {
+
+		cachedStockPrice = null;
+		cachedDividendYield = null;
+		cachedPERatio = null;
+	}
+
+	/**
+	 * Method to get the stock price from the cache or to calculate it if a trade changed it or a trade left the window since it was cached
+	 */
+	private DerivedValue stockPrice(ExchangeMetrics currentMetrics, long started) {
+
+		long now = clock.currentTimeMillis();
+		DerivedValue cached = cachedStockPrice;
+
+		if(cached==null || !cached.isValid(tradeVersion, null, now)) {
+
+			cached = calculateStockPrice(currentMetrics, started, now);
+			cachedStockPrice = cached;
+		}
+
+		return cached;
+	}
+
+	private DerivedValue calculateStockPrice(ExchangeMetrics currentMetrics, long started, long now) {
+
+		// We will use these two variables to store the values for the operation
+		long stockQuantity;
+		long scaledStockPrice;
+		BigDecimal priceTimesQuantitySum = null;
+		long version;
+		long validUntil;
+
+		synchronized (tradeActions) {	// we will place a lock in this object to prevent it from being changed during this operation
+
+			currentMetrics.lockAcquired(ExchangeMetrics.Lock.TRADES, started);
+
+			// Instead of going through all trade records we only remove the ones that left the window since the last call, the window keeps the sums of the remaining ones
+			evictFromPriceWindow(now);
+			priceWindowChanged();
+
+			stockQuantity = priceWindow.getQuantitySum();
+			scaledStockPrice = priceWindow.getScaledPrice(_PRECISION);
+
+			if(scaledStockPrice==FixedPointPrice.NOT_REPRESENTABLE) {	// the fixed point calculation is not possible so we will need the BigDecimal sum
+				priceTimesQuantitySum = priceWindow.getPriceTimesQuantitySum();
+			}
+
+			// while we hold the lock no trade can change the version, and the price stays the same until the oldest trade leaves the window
+			version = tradeVersion;
+			validUntil = priceWindow.getValidUntil();
+		}
+
+		if(scaledStockPrice!=FixedPointPrice.NOT_REPRESENTABLE) {
+
+			return new DerivedValue(version, null, validUntil, FixedPointPrice.toBigDecimal(scaledStockPrice, _PRECISION), null);
+		}
+
+		// here we will check if we have any stocks traded or give an error otherwise
+		if (stockQuantity>0) {
+
+			return new DerivedValue(version, null, validUntil, priceTimesQuantitySum.divide(new BigDecimal(stockQuantity), _PRECISION, _ROUNDING_MODE), null);
+
+		} else {
+
+			return new DerivedValue(version, null, validUntil, null, ResultCode.NO_TRADES);
+		}
+
+	}
+
+	/**
+	 * Method to get the stock price, dividend yield, P/E ratio and ticker price with a single call, the values come from the cache like in the other methods
+	 * but no errors are sent to the event sink, a value that can't be calculated is simply null. It is used by StockExchange.getStockQuotes
+	 * @return the quote
+	 */
+	public StockQuote getQuote() {
+
+		long version = tradeVersion;
+
+		return new StockQuote(stockSymbol, version, getTickerPrice(), stockPrice(metrics, 0).value, dividendYield().value, peRatio().value);
+	}
+
+	/**
+	 * Method to remove from the price window the trades that left it, it must be called while holding the lock on tradeActions
+	 * @param now	- Current time
+	 */
+	private void evictFromPriceWindow(long now) {
+
+		if(priceWindow.evictExpired(now)>0) {
+			tradeVersion++;	// only written while holding the lock on tradeActions so the increment is safe
+		}
+	}
+
+	@Override
+	public String toString() {
+		StockValues values = stockValues;
+
+		return "StockElement [stockSymbol=" + stockSymbol 
+				+ ", stockType=" + values.stockType.name() 
+				+ ", lastDividend=" + values.lastDividend.setScale(_PRECISION, _ROUNDING_MODE)
+				+ ", fixedDividend=" + values.fixedDividend.setScale(_PRECISION, _ROUNDING_MODE)
+				+ ", parValue=" + values.parValue.setScale(_PRECISION, _ROUNDING_MODE)
+				+ ", tickerPrice=" + getTickerPrice().setScale(_PRECISION, _ROUNDING_MODE) 
+				+ ", tradeActions=" + tradeActions.size()
+				+ ", stockPrice=" + calculateStockPrice()
+				+ "]";
+	}
+
+	/**
+	 * Immutable copy of the values of the stock that are not changed by the trades with their fixed point versions,
+	 * the setters create a new one so the readers always see a coherent set of values without taking a lock
+	 */
+	private static final class StockValues {
+
+		private final StockTypes stockType;
+		private final BigDecimal lastDividend;
+		private final BigDecimal fixedDividend;
+		private final BigDecimal parValue;
+
+		// Fixed point copies of the values above used to calculate the dividend yield and P/E ratio without creating BigDecimal objects
+		private final long scaledLastDividend;
+		private final long scaledFixedDividend;
+		private final long scaledParValue;
+
+		private StockValues(StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue, int priceScale) {
+
+			this.stockType = stockType;
+			this.lastDividend = lastDividend;
+			this.fixedDividend = fixedDividend;
+			this.parValue = parValue;
+
+			this.scaledLastDividend = FixedPointPrice.toScaled(lastDividend, priceScale);
+			this.scaledFixedDividend = FixedPointPrice.toScaled(fixedDividend, priceScale);
+			this.scaledParValue = FixedPointPrice.toScaled(parValue, priceScale);
+		}
+	}
+
+	/**
+	 * Stock price, dividend yield or P/E ratio kept until a trade, a setter or the price window changes it, the setters don't need to invalidate it
+	 * since they replace the StockValues object used to calculate it
+	 */
+	private static final class DerivedValue {
+
+		private final long tradeVersion;	// Trade version when it was calculated
+		private final StockValues values;	// Values used to calculate it or null if it doesn't depend on them
+		private final long validUntil;		// Time when it must be calculated again even if nothing changed
+		private final BigDecimal value;		// The result or null if it couldn't be calculated
+		private final ResultCode error;		// Why it couldn't be calculated or null
+
+		private DerivedValue(long tradeVersion, StockValues values, long validUntil, BigDecimal value, ResultCode error) {
+
+			this.tradeVersion = tradeVersion;
+			this.values = values;
+			this.validUntil = validUntil;
+			this.value = value;
+			this.error = error;
+		}
+
+		private boolean isValid(long currentTradeVersion, StockValues currentValues, long now) {
+
+			return tradeVersion==currentTradeVersion && (values==null || values==currentValues) && now<validUntil;
+		}
 	}
 }
@@ -1,6 +1,9 @@
 import static org.junit.Assert.*;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -148,4 +151,218 @@ public class StockElementTest {
 		assertEquals("Stock value is correct with two transactions ", 0, myStock.calculateStockPrice().compareTo(new BigDecimal("90")));
 	}
 
+	@Test
+	public void testRetentionPolicyAndArchiver() {
+
+		final List<StockTradeAction> archived = new ArrayList<StockTradeAction>();
+		long now = System.currentTimeMillis();
+
+		// keep only the last two trades and collect the removed ones
+		myStock.setRetentionPolicy(RetentionPolicy.keepTrades(2));
+		myStock.setTradeArchiver((stockSymbol, tradeActions) -> archived.addAll(tradeActions));
+
+		// these trades are older than the stock price window so they can be removed
+		myStock.addTradeAction(now - 3600000, 100, StockTradeAction.actionTypes.BUY, new BigDecimal("10"));
+		myStock.addTradeAction(now - 3500000, 200, StockTradeAction.actionTypes.BUY, new BigDecimal("20"));
+		myStock.addTradeAction(now - 3400000, 300, StockTradeAction.actionTypes.BUY, new BigDecimal("30"));
+
+		assertEquals("Trades kept ", 2, myStock.getTradeActions().size());
+		assertEquals("Oldest trade kept ", 200, myStock.getTradeActions().get(0).getQuantity());
+		assertEquals("Archived trades ", 1, archived.size());
+		assertEquals("Archived trade ", 100, archived.get(0).getQuantity());
+
+		// the trades inside the stock price window are never removed even if the policy allows less trades
+		myStock.addTradeAction(now, 400, StockTradeAction.actionTypes.BUY, new BigDecimal("40"));
+		myStock.addTradeAction(now, 500, StockTradeAction.actionTypes.BUY, new BigDecimal("50"));
+		myStock.addTradeAction(now, 600, StockTradeAction.actionTypes.BUY, new BigDecimal("60"));
+
+		assertEquals("Trades kept ", 3, myStock.getTradeActions().size());
+		assertEquals("Archived trades ", 3, archived.size());
+		assertEquals("Stock price with the trades inside the window ", 0, myStock.calculateStockPrice().compareTo(new BigDecimal("51.333")));
+	}
+
+	@Test
+	public void testDefaultRetentionKeepsTheHistory() {
+
+		long now = System.currentTimeMillis();
+
+		// without a policy chosen by the caller no trade is removed, even the ones that left the stock price window long ago
+		myStock.addTradeAction(now - 24 * 3600000, 100, StockTradeAction.actionTypes.BUY, new BigDecimal("10"));
+		myStock.addTradeAction(now, 200, StockTradeAction.actionTypes.BUY, new BigDecimal("20"));
+
+		assertEquals("Trades removed by the retention task ", 0, myStock.evictExpiredTrades());
+		assertEquals("Trades kept ", 2, myStock.getTradeActions().size());
+		assertEquals("Day old trade ", 100, myStock.getTradeActions().get(0).getQuantity());
+	}
+
+	@Test
+	public void testLateTradeLimit() {
+
+		long now = System.currentTimeMillis();
+
+		for(int i=0; i<=TradeStore.MAX_LATE_TRADES; i++) {
+
+			myStock.addTradeAction(now - TradeStore.MAX_LATE_TRADES + i, 10, StockTradeAction.actionTypes.BUY, 1000000L);
+		}
+
+		// a late trade can go before MAX_LATE_TRADES newer trades but not before more of them
+		assertEquals("Trade before the limit ", ResultCode.OK, myStock.tryAddTradeAction(now - TradeStore.MAX_LATE_TRADES, 10, StockTradeAction.actionTypes.SELL, 2000000L));
+		assertEquals("Trade after the limit ", ResultCode.TRADE_TOO_LATE, myStock.tryAddTradeAction(now - TradeStore.MAX_LATE_TRADES - 1, 10, StockTradeAction.actionTypes.SELL, 2000000L));
+		assertEquals("Trades kept ", TradeStore.MAX_LATE_TRADES + 2, myStock.getTradeActions().size());
+	}
+
+	@Test
+	public void testFixedPointResultsMatchBigDecimal() {
+
+		Random random = new Random(54321);
+
+		// the calculations with fixed point values must give exactly the same results as the BigDecimal ones
+		for(int i=0; i<1000; i++) {
+
+			BigDecimal lastDividend = BigDecimal.valueOf(random.nextInt(2000) + 1, 2);
+			BigDecimal fixedDividend = BigDecimal.valueOf(random.nextInt(1000), 1);
+			BigDecimal parValue = BigDecimal.valueOf(random.nextInt(100000) + 1, 2);
+			BigDecimal tradeValue = BigDecimal.valueOf(random.nextInt(1000000) + 1, 4);
+
+			StockElement stock = new StockElement("ABC", StockElement.StockTypes.PREFERRED, lastDividend, fixedDividend, parValue);
+			stock.addTradeAction(System.currentTimeMillis(), 10 + i, StockTradeAction.actionTypes.BUY, FixedPointPrice.toScaled(tradeValue, stock.getPriceScale()));
+
+			assertEquals("Ticker price ", 0, tradeValue.compareTo(stock.getTickerPrice()));
+			assertEquals("Preferred dividend yield ", fixedDividend.divide(new BigDecimal(100), 3, BigDecimal.ROUND_HALF_UP).multiply(parValue).divide(tradeValue, 3, BigDecimal.ROUND_HALF_UP), stock.getDividendYield());
+			assertEquals("P/E ratio ", tradeValue.divide(lastDividend, 3, BigDecimal.ROUND_HALF_UP), stock.getPERatio());
+			assertEquals("Stock price ", tradeValue.setScale(3, BigDecimal.ROUND_HALF_UP), stock.calculateStockPrice());
+
+			stock.setStockType(StockElement.StockTypes.COMMON);
+			assertEquals("Common dividend yield ", lastDividend.divide(tradeValue, 3, BigDecimal.ROUND_HALF_UP), stock.getDividendYield());
+		}
+
+		// a price that can't be represented with the fixed point scale still gives the exact BigDecimal result
+		myStock.addTradeAction(System.currentTimeMillis(), 3, StockTradeAction.actionTypes.BUY, new BigDecimal("10.0000005"));
+		myStock.addTradeAction(System.currentTimeMillis(), 1, StockTradeAction.actionTypes.BUY, 20000000L);
+
+		assertEquals("Stock price with a mix of values ", new BigDecimal("12.500"), myStock.calculateStockPrice());
+	}
+
+	@Test
+	public void testReadersSeeCoherentValues() throws InterruptedException {
+
+		final StockElement stock = new StockElement("XYZ", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+		final long now = System.currentTimeMillis();
+		final long scaledHundred = FixedPointPrice.toScaled(new BigDecimal(100), stock.getPriceScale());
+		final Object changeLock = new Object();
+
+		// the last dividend and the ticker price always change together so the dividend yield is always 0.080
+		Thread writer = new Thread(() -> {
+
+			for(int i=1; i<=20000; i++) {
+
+				synchronized (changeLock) {
+
+					stock.setLastDividend(new BigDecimal(8 * (i % 2 + 1)));
+					stock.addTradeAction(now, 1, StockTradeAction.actionTypes.BUY, scaledHundred * (i % 2 + 1));
+				}
+			}
+		});
+
+		writer.start();
+
+		int reads = 0;
+
+		while(writer.isAlive()) {
+
+			synchronized (changeLock) {	// the reads are done between the changes of the writer
+
+				assertEquals("Dividend yield ", new BigDecimal("0.080"), stock.getDividendYield());
+				reads++;
+			}
+
+			BigDecimal tickerPrice = stock.getTickerPrice();	// and also while they are being done
+			assertTrue("Ticker price " + tickerPrice, tickerPrice.compareTo(new BigDecimal(100))==0 || tickerPrice.compareTo(new BigDecimal(200))==0);
+		}
+
+		writer.join();
+
+		assertTrue("Reads ", reads>0);
+	}
+
+	@Test
+	public void testDerivedValuesCache() throws InterruptedException {
+
+		StockElement stock = new StockElement("XYZ", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+		long now = System.currentTimeMillis();
+
+		stock.addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, new BigDecimal(200));
+
+		BigDecimal dividendYield = stock.getDividendYield();
+		BigDecimal stockPrice = stock.calculateStockPrice();
+
+		assertEquals("Dividend yield ", new BigDecimal("0.040"), dividendYield);
+		assertSame("Cached dividend yield ", dividendYield, stock.getDividendYield());
+		assertSame("Cached stock price ", stockPrice, stock.calculateStockPrice());
+
+		// a setter changes the dividend yield and the P/E ratio but not the stock price
+		stock.setLastDividend(new BigDecimal(20));
+
+		assertEquals("Dividend yield after the setter ", new BigDecimal("0.100"), stock.getDividendYield());
+		assertEquals("P/E ratio after the setter ", new BigDecimal("10.000"), stock.getPERatio());
+		assertSame("Stock price after the setter ", stockPrice, stock.calculateStockPrice());
+
+		// a trade changes all of them
+		stock.addTradeAction(now, 30, StockTradeAction.actionTypes.SELL, new BigDecimal(100));
+
+		assertEquals("Dividend yield after a trade ", new BigDecimal("0.200"), stock.getDividendYield());
+		assertEquals("Stock price after a trade ", new BigDecimal("125.000"), stock.calculateStockPrice());
+
+		// a trade that leaves the window half a second from now, afterwards the stock price is calculated again without any trade or setter
+		stock.addTradeAction(System.currentTimeMillis() - 16 * 60000 + 500, 40, StockTradeAction.actionTypes.BUY, new BigDecimal(50));
+
+		assertEquals("Stock price with the old trade ", new BigDecimal("87.500"), stock.calculateStockPrice());
+
+		Thread.sleep(600);
+
+		assertEquals("Stock price once the old trade left the window ", new BigDecimal("125.000"), stock.calculateStockPrice());
+	}
+
+	@Test
+	public void testBarsUpdatedByTrades() {
+
+		StockElement stock = new StockElement("ABC", StockElement.StockTypes.COMMON, new BigDecimal(5), new BigDecimal(2), new BigDecimal(100), 2);
+		long minute = (System.currentTimeMillis() / 60000 - 5) * 60000;
+
+		// a trade added before the interval is included in its bars
+		stock.addTradeAction(minute + 100, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("10.50"));
+
+		stock.addBarInterval(60000, 60);
+		stock.addBarInterval(1000, 600);
+
+		stock.addTradeAction(minute + 1500, 20, StockTradeAction.actionTypes.SELL, 1200L);
+		stock.addTradeAction(minute + 61000, 5, StockTradeAction.actionTypes.BUY, new BigDecimal("9"));
+
+		// more decimal places than the scale of the stock, the bars round it
+		stock.addTradeAction(minute + 50, 1, StockTradeAction.actionTypes.BUY, new BigDecimal("11.005"));
+
+		List<Bar> minuteBars = stock.getBars(60000, minute, minute + 120000);
+
+		assertEquals("Minute bars ", 2, minuteBars.size());
+		assertEquals("Open of the late trade ", new BigDecimal("11.01"), minuteBars.get(0).getOpen());
+		assertEquals("High ", new BigDecimal("12.00"), minuteBars.get(0).getHigh());
+		assertEquals("Close ", new BigDecimal("12.00"), minuteBars.get(0).getClose());
+		assertEquals("Volume ", 31, minuteBars.get(0).getVolume());
+		assertEquals("Second bar ", new BigDecimal("9.00"), minuteBars.get(1).getOpen());
+
+		assertEquals("Second bars ", 3, stock.getBars(1000, 0, Long.MAX_VALUE).size());
+		assertEquals("Second bar with two trades ", 2, stock.getBar(1000, minute).getTradeCount());
+
+		assertTrue("Removed ", stock.removeBarInterval(1000));
+		assertFalse("Removed twice ", stock.removeBarInterval(1000));
+
+		try {
+
+			stock.getBars(1000, 0, Long.MAX_VALUE);
+			fail("The bars of a removed interval can't be read");
+
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
 }
@@ -1,5 +1,25 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
-import java.util.Hashtable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Class representing a very simple stock exchange that contains a table with the available stocks and some methods to add, remove, get and Calculacte the GBCE All Share index.
@@ -8,19 +28,203 @@ import java.util.Hashtable;
  */
 public class StockExchange {
 
-	// Both of the following values could be read from a configuration file, I'm using this values as I  knowledge regarding stocks is really limited and I don't know what it is usually used
-	private static final int _PRECISION = 3;	// The precision of the division we will use with the BigDecimal operations in this exercise, it could be adjusted
-	private static final int _ROUNDING_MODE = BigDecimal.ROUND_HALF_UP;	// The rounding type of BigDecimal operations
+	private static final long _RETENTION_PERIOD_SECONDS = 60;	// How often the trades that are no longer allowed by the retention policy are removed from all stocks
+
+	// Single daemon thread shared by all the stock exchanges to remove the old trades in the background
+	private static final ScheduledExecutorService retentionScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+
+		Thread thread = new Thread(runnable, "StockExchangeRetention");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Concurrent map that will contain the stocks, readers never block and writers only lock the bin of the symbol they are changing
+	private ConcurrentHashMap<String, StockElement> stocks;
+
+	private StockSymbolTable stockIds;	// ID of each stock in the map, the methods that take an ID reach the stock without hashing its symbol
+
+	private volatile RetentionPolicy retentionPolicy;	// Retention policy for all stocks or null to use the default of each stock
+	private volatile TradeArchiver tradeArchiver;		// Receiver of the trades removed from all stocks or null if they can be discarded
+	private volatile EventSink eventSink;				// Receiver of the errors and warnings of the exchange and all its stocks
+	private volatile TradeJournal journal;				// Journal where all the changes are written or null if they are only kept in memory
+
+	private GBCEIndex gbceIndex;	// GBCE All Share Index updated by the stocks every time their price changes
 
-	// Hashtable that will contain the stocks
-	private Hashtable<String, StockElement> stocks;
+	// Partial indexes of the ShardedEngine, the stocks of each shard update the one of their shard instead of gbceIndex. Null without an engine
+	private volatile GBCEIndex[] shardIndexes;
+
+	private ExchangeMetrics metrics;	// Latencies of the operations of the exchange and all its stocks
+
+	private static final int _MARKET_DATA_CAPACITY = 65536;	// Updates kept by the market data feed for the subscriptions that fall behind
+
+	private volatile MarketDataFeed marketDataFeed;	// Created the first time it is used so the stocks don't publish anything until then
+
+	private volatile StockClock clock = StockClock.SYSTEM;	// Clock of the exchange and all its stocks
 
 	/**
 	 * Constructor for the StockExchange class
 	 */
 	public StockExchange() {
 
-		stocks = new Hashtable<String, StockElement>();
+		stocks = new ConcurrentHashMap<String, StockElement>();
+		stockIds = new StockSymbolTable();
+		gbceIndex = new GBCEIndex();
+		eventSink = AsyncEventSink.getDefault();
+		metrics = new ExchangeMetrics();
+
+		RetentionTask.schedule(this);
+	}
+
+	/**
+	 * Constructor for a StockExchange that writes all its changes to a journal, the stocks and trades already in the journal are loaded first
+	 * so after a crash the exchange is restored with everything that was written before it
+	 * @param pJournal	- The journal, it cannot be null
+	 * @throws IOException if the journal can't be read
+	 */
+	public StockExchange(TradeJournal pJournal) throws IOException {
+
+		this();
+
+		if(pJournal==null) {
+			throw new IllegalArgumentException("Invalid argument journal, it cannot be null");
+		}
+
+		// the journal is only attached after the replay so the replayed changes are not written again
+		pJournal.read(new JournalReplay());
+
+		this.journal = pJournal;
+
+		for(StockElement stock: getAllStocks()) {
+
+			stock.setJournal(pJournal);
+		}
+	}
+
+	/**
+	 * Method to compact a journal that no exchange is using, the journal keeps every change ever written so this is the checkpoint that keeps
+	 * the time to open it bounded. The journal is replayed in an exchange without journal, the trades not allowed by the retention policy are removed
+	 * and a new journal with one record per stock and one per remaining trade replaces the old one. The removed stocks and the updates of the stock values
+	 * disappear, and the new file is written next to the old one and then renamed so a crash never leaves a journal half written
+	 * @param file				- Path of the journal file
+	 * @param pRetentionPolicy	- Retention policy of the trades kept in the new journal
+	 * @return the number of records of the new journal, including the header
+	 * @throws IOException if the journal can't be read or the new one can't be written
+	 */
+	public static long compactJournal(Path file, RetentionPolicy pRetentionPolicy) throws IOException {
+
+		StockExchange exchange = new StockExchange();
+		exchange.setRetentionPolicy(pRetentionPolicy);
+
+		int scale;
+
+		try (TradeJournal journal = TradeJournal.open(file, TradeJournal.SyncPolicy.OS)) {
+
+			scale = journal.getScale();
+			journal.read(exchange.new JournalReplay());
+		}
+
+		exchange.evictExpiredTrades();
+
+		Path compactedFile = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.deleteIfExists(compactedFile);
+
+		long records;
+
+		try (TradeJournal compacted = TradeJournal.open(compactedFile, TradeJournal.SyncPolicy.OS, scale)) {
+
+			for(StockElement stock: exchange.getAllStocks()) {
+
+				byte[] symbol = TradeJournal.encodeSymbol(stock.getStockSymbol());
+
+				compacted.writeAddStock(symbol, stock.getStockType(), stock.getLastDividend(), stock.getFixedDividend(), stock.getParValue());
+
+				for(StockTradeAction trade: stock.getTradeActions()) {
+					compacted.writeTrade(symbol, trade.getTimestamp(), trade.getQuantity(), trade.getAction(), trade.getValue());
+				}
+			}
+
+			records = compacted.getRecordCount();
+		}
+
+		Files.move(compactedFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		return records;
+	}
+
+	/**
+	 * Setter method to set the retention policy of all the stocks, it is applied to the existing stocks and to the ones added later
+	 * @param pRetentionPolicy	- The new retention policy, it cannot be null
+	 */
+	public void setRetentionPolicy(RetentionPolicy pRetentionPolicy) {
+
+		if(pRetentionPolicy==null) {
+			throw new IllegalArgumentException("Invalid argument retentionPolicy, it cannot be null");
+		}
+
+		this.retentionPolicy = pRetentionPolicy;
+
+		for(StockElement stock: getAllStocks()) {
+
+			stock.setRetentionPolicy(pRetentionPolicy);
+		}
+	}
+
+	/**
+	 * Setter method to set the object that will receive the trades removed from all the stocks, it is applied to the existing stocks and to the ones added later
+	 * @param pTradeArchiver	- The archiver or null if the removed trades can simply be discarded
+	 */
+	public void setTradeArchiver(TradeArchiver pTradeArchiver) {
+
+		this.tradeArchiver = pTradeArchiver;
+
+		for(StockElement stock: getAllStocks()) {
+
+			stock.setTradeArchiver(pTradeArchiver);
+		}
+	}
+
+	/**
+	 * Setter method to set the object that will receive the errors and warnings of the exchange and all its stocks, it is applied to the existing stocks and to the ones added later
+	 * @param pEventSink	- The event sink, it cannot be null
+	 */
+	public void setEventSink(EventSink pEventSink) {
+
+		if(pEventSink==null) {
+			throw new IllegalArgumentException("Invalid argument eventSink, it cannot be null");
+		}
+
+		this.eventSink = pEventSink;
+
+		for(StockElement stock: getAllStocks()) {
+
+			stock.setEventSink(pEventSink);
+		}
+	}
+
+	/**
+	 * Method to remove from all the stocks the trades that are no longer allowed by their retention policy, it is called periodically in the background
+	 * @return the number of removed trades
+	 */
+	public int evictExpiredTrades() {
+
+		int removed = 0;
+		long now = clock.currentTimeMillis();	// the same time for all the stocks
+
+		for(StockElement stock: getAllStocks()) {
+
+			removed += stock.evictExpiredTrades(now);
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Method to get a copy of the current stocks, the copy is taken from a weakly consistent view of the map so it never blocks the threads adding or removing stocks
+	 * @return List with the current stocks
+	 */
+	List<StockElement> getAllStocks() {
+
+		return new ArrayList<StockElement>(stocks.values());
 	}
 
 	/**
@@ -34,36 +238,143 @@ public class StockExchange {
 	 */
 	public boolean addStock(String stockSymbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) {
 
+		return tryAddStock(stockSymbol, stockType, lastDividend, fixedDividend, parValue)==ResultCode.OK;
+	}
+
+	/**
+	 * Method to add some stock to the stock exchange returning the reason of the failure instead of a boolean
+	 * @param stockSymbol	- The symbol of the stock
+	 * @param stockType		- The stock type (Common or Preferred)
+	 * @param lastDividend	- Value of the last dividend
+	 * @param fixedDividend	- Value of the fixed dividend (in percentage) only used for preferred stocks
+	 * @param parValue		- The par value of the stock
+	 * @return ResultCode.OK if the stock was added or the reason why it wasn't
+	 */
+	public ResultCode tryAddStock(String stockSymbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) {
+
+		long started = metrics.start();
+
+		try {
+
+			return insertStock(stockSymbol, stockType, lastDividend, fixedDividend, parValue);
+
+		} finally {
+
+			metrics.record(ExchangeMetrics.Operation.ADD_STOCK, started, null);
+		}
+	}
+
+	private ResultCode insertStock(String stockSymbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) {
+
 		// Validation of the stock symbol, we will not allow null or empty values
 		if(stockSymbol==null || stockSymbol.equals("")) {
 
-			System.err.println("Stock symbol cannot be empty");
-			return false;
+			return report(ResultCode.EMPTY_STOCK_SYMBOL, null);
 		}
 
 		// Validation of the other parameters to ensure we have values for each of them
 		if(stockType==null || lastDividend==null || fixedDividend==null || parValue==null) {
 
-			System.err.println("No null values allowed");
-			return false;			
+			return report(ResultCode.NULL_VALUE, stockSymbol);
 		}
 
-		// Check if a stock with that key already exists, if it doesn't exist we will create it and return true, if it does we will show an error message and return false
-		
-		synchronized (stocks) {	// it may look that we don't need to synchronize the add operation but we could have problems of two threads trying to add the same stock (with the same stock symbol) at the same time and we wouldn't know which of them was successful 
-			
-			if(!stocks.containsKey(stockSymbol)) {
+		TradeJournal currentJournal = journal;
+		byte[] journalSymbol = null;
 
-				stocks.put(stockSymbol, new StockElement(stockSymbol, stockType, lastDividend, fixedDividend, parValue));
-				return true;
+		if(currentJournal!=null) {
 
-			} else {
+			journalSymbol = TradeJournal.encodeSymbol(stockSymbol);
+
+			if(journalSymbol==null) {
 
-				System.err.println("Stock already exists");
-				return false;
+				return report(ResultCode.SYMBOL_TOO_LONG, stockSymbol);
 			}
 		}
 
+		// Check if a stock with that key already exists, if it doesn't exist we will add it and return true, if it does we will show an error message and return false
+		StockElement stock = new StockElement(stockSymbol, stockType, lastDividend, fixedDividend, parValue);
+
+		return registerStock(stock, currentJournal, journalSymbol);
+	}
+
+	/**
+	 * Method used by ExchangeSnapshot to add a stock restored with its trades, it is added like the ones created by addStock.
+	 * The trades of the restored stocks aren't in the journal so an exchange with a journal can't restore them
+	 * @param stock	- The restored stock
+	 * @return ResultCode.OK if the stock was added or the reason why it wasn't
+	 */
+	ResultCode addRestoredStock(StockElement stock) {
+
+		if(journal!=null) {
+			throw new IllegalStateException("The stocks can't be restored into a stock exchange with a journal");
+		}
+
+		return registerStock(stock, null, null);
+	}
+
+	/**
+	 * Method to set the settings of the exchange on a new stock and add it to the table
+	 * @param stock				- The new stock
+	 * @param currentJournal	- Journal where the stock is written or null
+	 * @param journalSymbol		- Symbol of the stock encoded for the journal
+	 * @return ResultCode.OK if the stock was added or the reason why it wasn't
+	 */
+	private ResultCode registerStock(StockElement stock, TradeJournal currentJournal, byte[] journalSymbol) {
+
+		String stockSymbol = stock.getStockSymbol();
+
+		if(retentionPolicy!=null) {
+			stock.setRetentionPolicy(retentionPolicy);
+		}
+		stock.setTradeArchiver(tradeArchiver);
+		stock.setEventSink(eventSink);
+		stock.setJournal(currentJournal);
+		stock.setMetrics(metrics);
+		stock.setClock(clock);
+
+		// compute checks and adds in one atomic operation so when two threads add the same stock symbol at the same time only one of them will succeed.
+		// The ID, the index, the feed and the record are set while the symbol is locked, so a removal of the same symbol can't happen between the insertion
+		// and them and no trade of the new stock can be written before its record
+		if(stocks.compute(stockSymbol, (symbol, existing) -> {
+
+			if(existing!=null) {
+				return existing;
+			}
+
+			stockIds.register(stock);	// only the stock that wins the symbol gets an ID
+
+			// the listener receives the price right away, a stock that lost the symbol (a restored one with trades) must not reach the index
+			stock.setPriceListener(indexOf(stockSymbol));
+
+			// a feed created meanwhile sets itself on the stocks of the table once it is visible here, so the stock gets it one way or the other
+			MarketDataFeed feed = marketDataFeed;
+
+			if(feed!=null) {
+				stock.setMarketDataFeed(feed);
+			}
+
+			if(currentJournal!=null) {
+
+				try {
+
+					currentJournal.writeAddStock(journalSymbol, stock.getStockType(), stock.getLastDividend(), stock.getFixedDividend(), stock.getParValue());
+
+				} catch (IOException | IllegalArgumentException e) {
+
+					eventSink.report(ResultCode.JOURNAL_ERROR, stockSymbol, e.getMessage());
+				}
+			}
+
+			return stock;
+
+		})==stock) {
+
+			return ResultCode.OK;
+
+		} else {
+
+			return report(ResultCode.STOCK_ALREADY_EXISTS, stockSymbol);
+		}
 	}
 
 	/**
@@ -73,30 +384,102 @@ public class StockExchange {
 	 */
 	public boolean removeStock(String stockSymbol) {
 
+		return tryRemoveStock(stockSymbol)==ResultCode.OK;
+	}
+
+	/**
+	 * Method to remove a stock from the stock exchange returning the reason of the failure instead of a boolean
+	 * @param stockSymbol - Symbol of the stock to be removed
+	 * @return ResultCode.OK if the stock was removed or the reason why it wasn't
+	 */
+	public ResultCode tryRemoveStock(String stockSymbol) {
+
+		long started = metrics.start();
+
+		try {
+
+			return deleteStock(stockSymbol);
+
+		} finally {
+
+			metrics.record(ExchangeMetrics.Operation.REMOVE_STOCK, started, null);
+		}
+	}
+
+	private ResultCode deleteStock(String stockSymbol) {
+
 		// Check if the symbol is null or empty
 		if(stockSymbol==null || stockSymbol.equals("")) {
 
-			System.err.println("Stock symbol cannot be empty");
-			return false;
+			return report(ResultCode.EMPTY_STOCK_SYMBOL, null);
 
 		} else {
 
-			synchronized (stocks) {	// we will ensure that no other method is changing the stocks while we do this operation
+			StockElement[] removed = new StockElement[1];
+
+			// the stock is detached and its removal written while the symbol is locked, so a stock added again with the same symbol always comes after it
+			stocks.computeIfPresent(stockSymbol, (symbol, stock) -> {
+
+				removed[0] = stock;
+
+				detachStock(stock);
+
+				TradeJournal currentJournal = journal;
 
-				if(stocks.containsKey(stockSymbol)) {	// If the stock symbol exists we will remove it and return true
+				if(currentJournal!=null) {
 
-					stocks.remove(stockSymbol);
-					return true;
+					stock.setJournal(null);	// the stock stops writing before its removal is written
 
-				} else {	// Otherwise we show the error message and return false
+					try {
 
-					System.err.println("No stock found");
-					return false;
+						currentJournal.writeRemoveStock(TradeJournal.encodeSymbol(stockSymbol));
+
+					} catch (IOException e) {
+
+						eventSink.report(ResultCode.JOURNAL_ERROR, stockSymbol, e.getMessage());
+					}
 				}
+
+				return null;
+			});
+
+			if(removed[0]!=null) {	// If the stock symbol existed it was removed in a single atomic operation and we return true
+
+				return ResultCode.OK;
+
+			} else {	// Otherwise we report the error and return it
+
+				return report(ResultCode.STOCK_NOT_FOUND, stockSymbol);
 			}
 		}
 	}
 
+	/**
+	 * Method to disconnect a stock that was removed from the table from the index, the market data feed, the IDs and the metrics of the exchange,
+	 * it is used both when a stock is removed and when its removal is replayed from the journal, always while the symbol is locked by the map
+	 * @param stock	- The removed stock
+	 */
+	private void detachStock(StockElement stock) {
+
+		stock.setPriceListener(null);	// once it stops sending its price it can be removed from the index
+		stock.setMarketDataFeed(null);
+		stockIds.release(stock);	// its ID stops working and the slot can be used by the next stock added
+		indexOf(stock.getStockSymbol()).removeStock(stock);
+		stock.setMetrics(null);
+	}
+
+	/**
+	 * Method to send an error to the event sink
+	 * @param code			- The error
+	 * @param stockSymbol	- Symbol of the stock or null
+	 * @return the same error so it can be returned directly
+	 */
+	private ResultCode report(ResultCode code, String stockSymbol) {
+
+		eventSink.report(code, stockSymbol, null);
+		return code;
+	}
+
 	/**
 	 * Method to retrieve a stock element based on the Stock Symbol
 	 * @param stockSymbol
@@ -104,68 +487,453 @@ public class StockExchange {
 	 */
 	public StockElement getStock(String stockSymbol) {
 
+		long started = metrics.start();
+
+		try {
+
+			return findStock(stockSymbol);
+
+		} finally {
+
+			metrics.record(ExchangeMetrics.Operation.GET_STOCK, started, null);
+		}
+	}
+
+	private StockElement findStock(String stockSymbol) {
+
 		// Check if the symbol is null or empty
 		if(stockSymbol==null || stockSymbol.equals("")) {
 
-			System.err.println("Stock symbol cannot be empty");
+			report(ResultCode.EMPTY_STOCK_SYMBOL, null);
 			return null;
 
 		} else {
 
-			synchronized (stocks) {	// we will ensure that no other method is changing the stocks while we do this operation
+			StockElement stock = stocks.get(stockSymbol);	// a single lookup that never blocks
+
+			if(stock!=null) { // If the stock symbol exists we will return the corresponding object
+
+				return stock;
 
-				if(stocks.containsKey(stockSymbol)) { // If the stock symbol exists we will return the corresponding object
+			} else { // Otherwise we will report the error and return null 
 
-					return (stocks.get(stockSymbol));
+				report(ResultCode.STOCK_NOT_FOUND, stockSymbol);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Method to retrieve the ID of a stock, the ID can be kept by the callers that trade or query the same stock many times
+	 * so the methods that take an ID don't have to look up the symbol every time
+	 * @param stockSymbol	- Symbol of the stock
+	 * @return the ID of the stock or -1 if the stock was not found
+	 */
+	public int getStockId(String stockSymbol) {
+
+		StockElement stock = findStock(stockSymbol);
+
+		return (stock!=null ? stock.getStockId() : StockSymbolTable.NO_ID);
+	}
+
+	/**
+	 * Method to retrieve a stock element based on its ID, it is a single array access. The ID of a removed stock never returns
+	 * the stock added later with the same symbol or in the same slot, its new ID must be retrieved again
+	 * @param stockId	- ID of the stock returned by getStockId
+	 * @return the stock element or null if the element was not found
+	 */
+	public StockElement getStock(int stockId) {
+
+		long started = metrics.start();
 
-				} else { // Otherwise we will show an error message and return null 
+		try {
 
-					System.err.println("No stock found");
-					return null;
-				}				
+			StockElement stock = stockIds.get(stockId);
+
+			if(stock==null) {
+				report(ResultCode.STOCK_NOT_FOUND, null);
 			}
 
+			return stock;
+
+		} finally {
+
+			metrics.record(ExchangeMetrics.Operation.GET_STOCK, started, null);
 		}
 	}
 
 	/**
-	 * Method to calculate the GBCE All share index
+	 * Method to add a trade action to a stock based on its ID, the time of the trade is the current time of the exchange
+	 * @param stockId		- ID of the stock returned by getStockId
+	 * @param quantity		- Quantity of shares bought or sold
+	 * @param actionType	- Action performed (B or S for respectively buy or sale)
+	 * @param value			- Share value
+	 * @return ResultCode.OK if the trade was added or the reason why it wasn't
+	 */
+	public ResultCode tryAddTradeAction(int stockId, long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) {
+
+		StockElement stock = stockIds.get(stockId);
+
+		if(stock==null) {
+			return report(ResultCode.STOCK_NOT_FOUND, null);
+		}
+
+		return stock.tryAddTradeAction(quantity, actionType, value);
+	}
+
+	/**
+	 * Method to add a trade action with a fixed point value to a stock based on its ID
+	 * @param stockId		- ID of the stock returned by getStockId
+	 * @param timestamp		- Time of the trade in milliseconds
+	 * @param quantity		- Quantity of shares bought or sold
+	 * @param actionType	- Action performed (B or S for respectively buy or sale)
+	 * @param scaledValue	- Share value with the price scale of the stock
+	 * @return ResultCode.OK if the trade was added or the reason why it wasn't
+	 */
+	public ResultCode tryAddTradeAction(int stockId, long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue) {
+
+		StockElement stock = stockIds.get(stockId);
+
+		if(stock==null) {
+			return report(ResultCode.STOCK_NOT_FOUND, null);
+		}
+
+		return stock.tryAddTradeAction(timestamp, quantity, actionType, scaledValue);
+	}
+
+	/**
+	 * Method to get the stock price, dividend yield, P/E ratio and ticker price of a stock based on its ID
+	 * @param stockId	- ID of the stock returned by getStockId
+	 * @return the quote or null if the stock was not found
+	 */
+	public StockQuote getStockQuote(int stockId) {
+
+		StockElement stock = stockIds.get(stockId);
+
+		if(stock==null) {
+
+			report(ResultCode.STOCK_NOT_FOUND, null);
+			return null;
+		}
+
+		return stock.getQuote();
+	}
+
+	/**
+	 * Method to calculate the volume weighted price, volume and number of trades of a stock inside a time range, the query never blocks the trades of the stock.
+	 * Only the trades kept by the retention policy are included, TradeRangeStats.isComplete tells if older trades of the range were removed
+	 * @param stockSymbol	- Symbol of the stock
+	 * @param from			- Start of the range in milliseconds, included
+	 * @param to			- End of the range in milliseconds, not included
+	 * @return the aggregates of the range or null if the stock was not found
+	 */
+	public TradeRangeStats queryTrades(String stockSymbol, long from, long to) {
+
+		StockElement stock = findStock(stockSymbol);
+
+		return (stock!=null ? stock.queryTrades(from, to) : null);
+	}
+
+	/**
+	 * Method to calculate the volume weighted price, volume and number of trades of a stock inside a time range based on its ID
+	 * @param stockId	- ID of the stock returned by getStockId
+	 * @param from		- Start of the range in milliseconds, included
+	 * @param to		- End of the range in milliseconds, not included
+	 * @return the aggregates of the range or null if the stock was not found
+	 */
+	public TradeRangeStats queryTrades(int stockId, long from, long to) {
+
+		StockElement stock = stockIds.get(stockId);
+
+		if(stock==null) {
+
+			report(ResultCode.STOCK_NOT_FOUND, null);
+			return null;
+		}
+
+		return stock.queryTrades(from, to);
+	}
+
+	/**
+	 * Method to add a batch of trades for many stocks, instead of looking up the stock and taking its lock for every trade
+	 * the trades are grouped by symbol and each stock adds its group with a single lock acquisition
+	 * @param batch	- The trades with their stock symbols
+	 * @return BitSet with the indexes of the trades that were added, the trades for unknown stocks or with invalid values are rejected without printing anything
+	 */
+	public BitSet addTradeActions(TradeBatch batch) {
+
+		Map<String, TradeGroup> groups = new HashMap<String, TradeGroup>();
+
+		for(int index=0; index<batch.size(); index++) {
+
+			String symbol = batch.getStockSymbol(index);
+
+			if(symbol==null) {
+				continue;
+			}
+
+			TradeGroup group = groups.get(symbol);
+
+			if(group==null) {
+
+				group = new TradeGroup(stocks.get(symbol));	// a single lookup for each symbol of the batch
+				groups.put(symbol, group);
+			}
+
+			group.add(index);
+		}
+
+		BitSet added = new BitSet(batch.size());
+
+		for(TradeGroup group: groups.values()) {
+
+			if(group.stock!=null) {
+				group.stock.addTradeActions(batch, group.indexes, group.count, added);
+			}
+		}
+
+		return added;
+	}
+
+	/**
+	 * Indexes of the trades of a batch for the same stock
+	 */
+	private static class TradeGroup {
+
+		private StockElement stock;		// The stock or null if it doesn't exist
+		private int[] indexes = new int[8];
+		private int count;
+
+		private TradeGroup(StockElement stock) {
+
+			this.stock = stock;
+		}
+
+		private void add(int index) {
+
+			if(count==indexes.length) {
+				indexes = Arrays.copyOf(indexes, count * 2);
+			}
+
+			indexes[count++] = index;
+		}
+	}
+
+	/**
+	 * Method to calculate the GBCE All share index, the index is kept updated by the stocks so this doesn't go through all of them
 	 * @return BigDecimal containing the index value or null if there are no trades for any of the stocks
 	 */
 	public BigDecimal calculateGBCEAllShareIndex() {
 
-		// Variables to store both temporary values for later be used in the nth root calculation
-		BigDecimal aux = new BigDecimal(1);	// This is initially set to 1 since will be used to store the result of the multiplication of all elements
-		int shareSymbolNumber = 0; 			// This variable will hold the number of different stocks to be used in the calculation
+		long started = metrics.start();
+
+		try {
+
+			GBCEIndex[] partials = shardIndexes;
+
+			return (partials==null ? gbceIndex.getValue() : GBCEIndex.combine(partials));
+
+		} finally {
+
+			metrics.record(ExchangeMetrics.Operation.GBCE_INDEX, started, null);
+		}
+	}
+
+	/**
+	 * Method to get the stock price, dividend yield, P/E ratio and ticker price of all the stocks with a single call, it is meant for the dashboards
+	 * that poll all the stocks several times a second. The values are cached by each stock so only the ones changed by a trade are calculated again,
+	 * and no errors are reported for the values that can't be calculated
+	 * @return List with a quote for each stock sorted by symbol
+	 */
+	public List<StockQuote> getStockQuotes() {
+
+		List<StockElement> allStocks = getAllStocks();
+		StockQuote[] quotes = new StockQuote[allStocks.size()];
+
+		// with many stocks the quotes are calculated in parallel, the order of the list doesn't depend on it
+		ParallelStocks.map(allStocks, StockElement::getQuote, quotes);
+
+		List<StockQuote> sorted = new ArrayList<StockQuote>(Arrays.asList(quotes));
+
+		sorted.sort(Comparator.comparing(StockQuote::getStockSymbol));
+
+		return sorted;
+	}
+
+	/**
+	 * Method to calculate the GBCE All Share Index from scratch with the current stock price of every stock instead of the value kept updated by the stocks,
+	 * it can be used to check that value. With many stocks the prices are calculated in parallel and the result is the same as without it
+	 * @return BigDecimal containing the index value or null if there are no trades for any of the stocks
+	 */
+	public BigDecimal recalculateGBCEAllShareIndex() {
+
+		List<StockElement> allStocks = getAllStocks();
+
+		// sorted so the order of the sum, and the last digit of the result, doesn't depend on the order of the map
+		allStocks.sort(Comparator.comparing(StockElement::getStockSymbol));
+
+		return GBCEIndex.calculate(allStocks);
+	}
+
+	/**
+	 * Method to retrieve the index updated by a stock, the one of its shard when the exchange is used by a ShardedEngine
+	 * @param stockSymbol	- Symbol of the stock
+	 * @return the index
+	 */
+	private GBCEIndex indexOf(String stockSymbol) {
+
+		GBCEIndex[] partials = shardIndexes;
+
+		return (partials==null ? gbceIndex : partials[ShardedEngine.shardOf(stockSymbol, partials.length)]);
+	}
+
+	/**
+	 * Method called by a ShardedEngine to make the stocks update one partial index per shard, so the workers never share the lock of the index.
+	 * The stocks already in the exchange are moved to the index of their shard, it can only be done once
+	 * @param partials	- One empty index per shard
+	 */
+	synchronized void useShardIndexes(GBCEIndex[] partials) {
+
+		if(shardIndexes!=null) {
+			throw new IllegalStateException("The stock exchange is already used by a sharded engine");
+		}
+
+		for(GBCEIndex partial: partials) {
+			partial.setClock(clock);
+		}
+
+		shardIndexes = partials;
+
+		for(StockElement stock: stocks.values()) {
+
+			// the stock sends its current price to the new index when the listener is set
+			stock.setPriceListener(partials[ShardedEngine.shardOf(stock.getStockSymbol(), partials.length)]);
+			gbceIndex.removeStock(stock);
+		}
+	}
+
+	/**
+	 * Getter method for the GBCE All Share Index, it can be used to receive the changes of the index value.
+	 * When the exchange is used by a ShardedEngine the stocks update the partial indexes of the shards and this one stays empty
+	 * @return the index
+	 */
+	public GBCEIndex getGBCEIndex() {
+		return gbceIndex;
+	}
+	
+	/**
+	 * Setter method to set the clock of the exchange, all its stocks and the GBCE index, for example a ManualClock to replay the trades of another day.
+	 * It must be set before the stocks are traded
+	 * @param pClock	- The clock, it cannot be null
+	 */
+	public synchronized void setClock(StockClock pClock) {
+
+		if(pClock==null) {
+			throw new IllegalArgumentException("Invalid argument clock, it cannot be null");
+		}
+
+		clock = pClock;
+		gbceIndex.setClock(pClock);
+
+		GBCEIndex[] partials = shardIndexes;
+
+		if(partials!=null) {
+
+			for(GBCEIndex partial: partials) {
+				partial.setClock(pClock);
+			}
+		}
+
+		for(StockElement stock: stocks.values()) {
+			stock.setClock(pClock);
+		}
+	}
+
+	/**
+	 * Getter method for the clock of the exchange
+	 * @return the clock
+	 */
+	public StockClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Method to retrieve the feed where the changes of the ticker prices, the stock prices and the GBCE All Share Index are published, it is created
+	 * the first time this is called and from then on every stock publishes its changes. When the exchange is used by a ShardedEngine the index changes
+	 * are not published, the subscriptions can still read the index with calculateGBCEAllShareIndex
+	 * @return the feed
+	 */
+	public MarketDataFeed getMarketDataFeed() {
+
+		MarketDataFeed feed = marketDataFeed;
+
+		if(feed==null) {
+
+			synchronized (this) {
+
+				feed = marketDataFeed;
 
-		synchronized (stocks) {	// we will ensure that no other method is changing the stocks while we do this operation
+				if(feed==null) {
 
-			// now we will loop through all of the stocks and store the respective values if there is a stock price for that given stock
-			for(String key: stocks.keySet()) {
+					feed = new MarketDataFeed(this, _MARKET_DATA_CAPACITY);
+					marketDataFeed = feed;
 
-				if(stocks.get(key).calculateStockPrice()!=null) {
+					gbceIndex.addListener(feed);
 
-					aux = aux.multiply(stocks.get(key).calculateStockPrice());
-					shareSymbolNumber ++;
+					MarketDataFeed newFeed = feed;
 
-				} else {
+					// set while the symbol is locked and only if the stock is still in the table, so a stock removed meanwhile doesn't get the feed back
+					for(StockElement stock: stocks.values()) {
 
-					System.err.println("No stock value for " + key);
+						stocks.computeIfPresent(stock.getStockSymbol(), (symbol, current) -> {
+
+							if(current==stock) {
+								stock.setMarketDataFeed(newFeed);
+							}
+
+							return current;
+						});
+					}
 				}
 			}
+		}
+
+		return feed;
+	}
+
+	/**
+	 * Getter method for the metrics of the exchange and all its stocks, they can be disabled with setEnabled(false)
+	 * @return the metrics
+	 */
+	public ExchangeMetrics getMetrics() {
+		return metrics;
+	}
 
-		} // Now that we have the values we can release this lock
+	/**
+	 * Method to copy the current metrics of the exchange and all its stocks
+	 * @return the snapshot
+	 */
+	public MetricsSnapshot getMetricsSnapshot() {
 
-		// Variable were the result of the operation will be stored
-		BigDecimal result = null;
+		return metrics.snapshot(getAllStocks());
+	}
 
-		// We must ensure that we have at least the stock value for one kind of stock and if we do we can calculate the value
-		if(shareSymbolNumber>0) {
+	/**
+	 * Method to publish the metrics in the platform MBean server so they can be read with JConsole or any other JMX client
+	 * @param name	- Name of the exchange used in the ObjectName, jptask:type=StockExchange,name=<name>
+	 * @return the ObjectName of the registered MBean, it can be used to unregister it
+	 * @throws JMException if the name is not valid or already registered
+	 */
+	public ObjectName registerMetricsMBean(String name) throws JMException {
 
-			result = new BigDecimal(Math.pow(aux.doubleValue(), 1.0/shareSymbolNumber)).setScale(_PRECISION, _ROUNDING_MODE);
+		if(name==null || name.equals("")) {
+			throw new IllegalArgumentException("Invalid argument name, it cannot be null or empty");
 		}
 
-		return result;
+		ObjectName objectName = new ObjectName("jptask:type=StockExchange,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsDynamicMBean(this), objectName);
+
+		return objectName;
 	}
 	
 	public void displayStatusForAllStocks() {
@@ -174,17 +942,143 @@ public class StockExchange {
 		System.out.println("*** Status for all stocks ***");
 		System.out.println("*****************************");
 		
-		synchronized (stocks) {	// we will ensure that no other method is changing the stocks while we do this operation
-			
-			// now we will loop through all of the stocks and show it's contents
-			for(String key: stocks.keySet()) {
+		// now we will loop through all of the stocks and show it's contents, as above this doesn't block the threads changing the stocks.
+		// With many stocks their contents (which include their stock price) are calculated in parallel and printed afterwards in the same order
+		List<StockElement> allStocks = getAllStocks();
+		String[] status = new String[allStocks.size()];
 
-				System.out.println(stocks.get(key));
-			}
+		ParallelStocks.map(allStocks, StockElement::toString, status);
 
-		} // Now that we have the values we can release this lock
+		for(String stockStatus: status) {
+
+			System.out.println(stockStatus);
+		}
 		
 		System.out.println();
 	}
 
+	/**
+	 * Reader that rebuilds the stocks and their trades from the journal using the same methods used to change them,
+	 * it is used before the journal is attached so nothing is written while replaying
+	 */
+	private class JournalReplay implements TradeJournal.Reader {
+
+		// Trades read before the record of their stock, journals written by older versions can have them because the record was written after the stock was added
+		private Map<String, List<long[]>> pendingTrades = new HashMap<String, List<long[]>>();
+
+		@Override
+		public void stockAdded(String stockSymbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) {
+
+			addStock(stockSymbol, stockType, lastDividend, fixedDividend, parValue);
+
+			List<long[]> trades = pendingTrades.remove(stockSymbol);
+
+			if(trades!=null) {
+
+				for(long[] trade: trades) {
+					tradeAdded(stockSymbol, trade[0], trade[1], (trade[2]<0 ? null : StockTradeAction.actionTypes.values()[(int) trade[2]]), trade[3], (int) trade[4]);
+				}
+			}
+		}
+
+		@Override
+		public void stockUpdated(String stockSymbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) {
+
+			StockElement stock = stocks.get(stockSymbol);
+
+			if(stock!=null) {
+
+				stock.setStockType(stockType);
+				stock.setLastDividend(lastDividend);
+				stock.setFixedDividend(fixedDividend);
+				stock.setParValue(parValue);
+			}
+		}
+
+		@Override
+		public void stockRemoved(String stockSymbol) {
+
+			stocks.computeIfPresent(stockSymbol, (symbol, stock) -> {
+
+				detachStock(stock);
+				return null;
+			});
+
+			pendingTrades.remove(stockSymbol);
+		}
+
+		@Override
+		public void tradeAdded(String stockSymbol, long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue, int scale) {
+
+			StockElement stock = stocks.get(stockSymbol);
+
+			if(stock==null) {
+
+				List<long[]> trades = pendingTrades.get(stockSymbol);
+
+				if(trades==null) {
+
+					trades = new ArrayList<long[]>();
+					pendingTrades.put(stockSymbol, trades);
+				}
+
+				trades.add(new long[] {timestamp, quantity, (actionType==null ? -1 : actionType.ordinal()), scaledValue, scale});
+				return;
+			}
+
+			long stockValue = FixedPointPrice.rescale(scaledValue, scale, stock.getPriceScale());
+
+			if(stockValue!=FixedPointPrice.NOT_REPRESENTABLE) {
+
+				stock.addTradeAction(timestamp, quantity, actionType, stockValue);
+
+			} else {
+
+				stock.addTradeAction(timestamp, quantity, actionType, FixedPointPrice.toBigDecimal(scaledValue, scale));
+			}
+		}
+	}
+
+	/**
+	 * Periodic task that removes the old trades of a stock exchange, it only keeps a weak reference to the exchange
+	 * so an exchange that is no longer used can still be garbage collected and its task is then cancelled
+	 */
+	private static class RetentionTask implements Runnable {
+
+		private WeakReference<StockExchange> stockExchange;
+		private volatile ScheduledFuture<?> future;
+
+		private RetentionTask(StockExchange stockExchange) {
+
+			this.stockExchange = new WeakReference<StockExchange>(stockExchange);
+		}
+
+		private static void schedule(StockExchange stockExchange) {
+
+			RetentionTask task = new RetentionTask(stockExchange);
+			task.future = retentionScheduler.scheduleWithFixedDelay(task, _RETENTION_PERIOD_SECONDS, _RETENTION_PERIOD_SECONDS, TimeUnit.SECONDS);
+		}
+
+		@Override
+		public void run() {
+
+			StockExchange exchange = stockExchange.get();
+
+			if(exchange==null) {
+
+				future.cancel(false);
+				return;
+			}
+
+			try {
+
+				exchange.evictExpiredTrades();
+
+			} catch (RuntimeException e) {	// an exception here would stop the periodic task so we just report it
+
+				exchange.eventSink.report(ResultCode.RETENTION_ERROR, null, e.toString());
+			}
+		}
+	}
+
 }
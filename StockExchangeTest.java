@@ -1,6 +1,9 @@
 import static org.junit.Assert.*;
 
 import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -74,4 +77,138 @@ public class StockExchangeTest {
 		assertEquals("GBCE All share index is correct ", new BigDecimal("28.205"), myStockExchange.calculateGBCEAllShareIndex());
 	}
 
+	@Test
+	public void testConcurrentAddAndRemoveStock() throws InterruptedException {
+
+		final StockExchange myStockExchange = new StockExchange();
+		final AtomicInteger successfulAdds = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		Thread[] threads = new Thread[50];
+
+		// all the threads try to add the same stock at the same time, only one of them can succeed
+		for(int i=0; i<threads.length; i++) {
+
+			threads[i] = new Thread(() -> {
+
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				if(myStockExchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100))) {
+					successfulAdds.incrementAndGet();
+				}
+			});
+			threads[i].start();
+		}
+
+		start.countDown();
+
+		for(Thread thread: threads) {
+			thread.join();
+		}
+
+		assertEquals("Only one thread can add the stock ", 1, successfulAdds.get());
+
+		// the stock can only be removed once
+		assertTrue("First removal ", myStockExchange.removeStock("TEA"));
+		assertFalse("Second removal ", myStockExchange.removeStock("TEA"));
+	}
+
+	@Test
+	public void testGetStockQuotes() {
+
+		StockExchange myStockExchange = new StockExchange();
+		AsyncEventSink eventSink = new AsyncEventSink(16, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err);
+		myStockExchange.setEventSink(eventSink);
+
+		myStockExchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		myStockExchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+		myStockExchange.addStock("GIN", StockElement.StockTypes.PREFERRED, new BigDecimal(8), new BigDecimal(2), new BigDecimal(100));
+
+		myStockExchange.getStock("POP").addTradeAction(System.currentTimeMillis(), 10, StockTradeAction.actionTypes.BUY, new BigDecimal(80));
+
+		List<StockQuote> quotes = myStockExchange.getStockQuotes();
+
+		assertEquals("Number of quotes ", 3, quotes.size());
+		assertEquals("Quotes sorted by symbol ", "GIN", quotes.get(0).getStockSymbol());
+		assertEquals("Quotes sorted by symbol ", "TEA", quotes.get(2).getStockSymbol());
+
+		StockQuote pop = quotes.get(1);
+
+		assertEquals("POP stock price ", new BigDecimal("80.000"), pop.getStockPrice());
+		assertEquals("POP dividend yield ", new BigDecimal("0.100"), pop.getDividendYield());
+		assertEquals("POP P/E ratio ", new BigDecimal("10.000"), pop.getPERatio());
+
+		// the values that can't be calculated are null and nothing is reported
+		assertNull("TEA stock price ", quotes.get(2).getStockPrice());
+		assertNull("TEA P/E ratio ", quotes.get(2).getPERatio());
+		assertEquals("No trades reported ", 0, eventSink.getCount(ResultCode.NO_TRADES));
+		assertEquals("Zero last dividend reported ", 0, eventSink.getCount(ResultCode.ZERO_LAST_DIVIDEND));
+
+		// a new poll without trades gets the same version
+		assertEquals("Same version ", pop.getVersion(), myStockExchange.getStockQuotes().get(1).getVersion());
+	}
+
+	@Test
+	public void testStockIds() {
+
+		StockExchange myStockExchange = new StockExchange();
+
+		myStockExchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		myStockExchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+
+		int tea = myStockExchange.getStockId("TEA");
+		int pop = myStockExchange.getStockId("POP");
+
+		// the first stocks get the first slots
+		assertEquals(0, tea);
+		assertEquals(1, pop);
+		assertEquals(-1, myStockExchange.getStockId("GIN"));
+
+		assertSame(myStockExchange.getStock("POP"), myStockExchange.getStock(pop));
+		assertEquals(ResultCode.OK, myStockExchange.tryAddTradeAction(pop, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("4")));
+		assertEquals(0, new BigDecimal("4").compareTo(myStockExchange.getStockQuote(pop).getStockPrice()));
+
+		// once TEA is removed its ID doesn't work, not even after another stock takes its slot
+		myStockExchange.removeStock("TEA");
+
+		assertNull(myStockExchange.getStock(tea));
+		assertEquals(ResultCode.STOCK_NOT_FOUND, myStockExchange.tryAddTradeAction(tea, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("4")));
+
+		myStockExchange.addStock("GIN", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+
+		int gin = myStockExchange.getStockId("GIN");
+
+		assertEquals(tea, gin & 0xFFFFFF);	// the slot is reused
+		assertNotEquals(tea, gin);
+		assertNull(myStockExchange.getStock(tea));
+		assertSame(myStockExchange.getStock("GIN"), myStockExchange.getStock(gin));
+		assertEquals(-1, myStockExchange.getStockId("TEA"));
+	}
+
+	@Test
+	public void testRecalculateGBCEAllShareIndex() {
+
+		StockExchange myStockExchange = new StockExchange();
+
+		assertNull(myStockExchange.recalculateGBCEAllShareIndex());
+
+		// more stocks than the threshold of the parallel calculation
+		for(int i=0; i<2000; i++) {
+
+			myStockExchange.addStock("S" + i, StockElement.StockTypes.COMMON, BigDecimal.ONE, BigDecimal.ZERO, new BigDecimal(100));
+			myStockExchange.getStock("S" + i).addTradeAction(10, StockTradeAction.actionTypes.BUY, new BigDecimal(1 + (i * 7919L) % 5000).movePointLeft(2));
+		}
+
+		BigDecimal incremental = myStockExchange.calculateGBCEAllShareIndex();
+		BigDecimal recalculated = myStockExchange.recalculateGBCEAllShareIndex();
+
+		// both sums have rounding errors far below the precision of the index, at most the last digit can be rounded the other way
+		assertTrue(incremental.subtract(recalculated).abs().compareTo(new BigDecimal("0.001"))<=0);
+		assertEquals(recalculated, myStockExchange.recalculateGBCEAllShareIndex());
+		assertEquals(2000, myStockExchange.getStockQuotes().size());
+	}
 }
@@ -0,0 +1,17 @@
+/**
+ * Interface for receiving the changes of the volume weighted price of a stock, it is used by the GBCEIndex to keep the index updated without recalculating all the stock prices.
+ * The notifications of a stock are sent while holding its trades lock so they arrive in order, the implementations must be fast and must not call back into the stock
+ * @author nsalgueiro
+ *
+ */
+public interface StockPriceListener {
+
+	/**
+	 * Method called when the price of a stock or the time until it is valid changes
+	 * @param stock			- The stock
+	 * @param unscaledPrice	- The price multiplied by 10^scale or 0 if there are no trades inside the price window
+	 * @param scale			- Scale of the price
+	 * @param validUntil	- Time when the oldest trade inside the window leaves it and the price changes again, Long.MAX_VALUE if there are no trades
+	 */
+	void stockPriceChanged(StockElement stock, long unscaledPrice, int scale, long validUntil);
+}
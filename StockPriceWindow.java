@@ -0,0 +1,274 @@
+import java.math.BigDecimal;
+
+/**
+ * Sliding window used by StockElement to calculate the volume weighted stock price of the last minutes.
+ * Instead of going through the whole trade history every time the price is requested, this class keeps a running sum of price*quantity and of the quantity
+ * of the trades inside the window, trades are added when they are recorded and removed once they become older than the window.
+ * Since the TradeStore keeps the trades ordered by timestamp the window is just the range of positions from the first trade inside it to the newest trade,
+ * when many trades leave the window at once the new start is found with a binary search.
+ * The sum of price*quantity is kept as a fixed point long while the prices can be represented with the scale of the store and the sum doesn't overflow,
+ * only the rest of it is kept in a BigDecimal, so in the usual case no objects are created while adding and removing trades and the total is always exact.
+ * This class is not thread safe, StockElement only uses it while holding the lock on its trade actions
+ * @author nsalgueiro
+ *
+ */
+public class StockPriceWindow {
+
+	private TradeStore tradeStore;	// The trades of the stock
+	private long windowMinutes;		// Size of the window in minutes, a trade is inside the window while (now - timestamp)/1000/60 <= windowMinutes
+	private int scale;				// Scale of the fixed point part of the sum of price*quantity
+
+	private int start;				// Position in the store of the oldest trade inside the window, all the trades from this one to the newest are inside it
+
+	private long quantitySum;					// Sum of the quantities of all trades inside the window
+	private long scaledPriceTimesQuantitySum;	// Fixed point part of the sum of price*quantity of all trades inside the window
+	private BigDecimal priceTimesQuantitySum;	// Part of the sum of price*quantity that can't be kept in the fixed point part
+
+	/**
+	 * Constructor for the class
+	 * @param tradeStore	- The store with the trades of the stock
+	 * @param windowMinutes	- Size of the window in minutes
+	 */
+	public StockPriceWindow(TradeStore tradeStore, long windowMinutes) {
+
+		this.tradeStore = tradeStore;
+		this.windowMinutes = windowMinutes;
+		this.scale = tradeStore.getScale();
+
+		this.start = tradeStore.size();
+
+		this.quantitySum = 0;
+		this.scaledPriceTimesQuantitySum = 0;
+		this.priceTimesQuantitySum = BigDecimal.ZERO;
+	}
+
+	/**
+	 * Method to check if a timestamp is inside the window for a given time, it uses the same rule as the original full scan of the trades
+	 * so a trade remains in the window until it is more than windowMinutes complete minutes old
+	 * @param timestamp	- Timestamp of the trade
+	 * @param now		- Reference time
+	 * @return true if the timestamp is inside the window
+	 */
+	public boolean isInWindow(long timestamp, long now) {
+
+		return ((now - timestamp)/1000/60) <= windowMinutes;
+	}
+
+	/**
+	 * Method to retrieve the oldest timestamp that is still inside the window for a given time
+	 * @param now	- Reference time
+	 * @return the timestamp
+	 */
+	public long getFirstTimestampInWindow(long now) {
+
+		// (now - timestamp)/60000 <= windowMinutes is the same as now - timestamp < (windowMinutes + 1)*60000
+		return now - (windowMinutes + 1) * 60000 + 1;
+	}
+
+	/**
+	 * Method to be called after a trade is added to the store, evictExpired must have been called with the same time before adding it
+	 * @param position	- Position where the trade was added
+	 * @param now		- Reference time
+	 */
+	public void added(int position, long now) {
+
+		if(isInWindow(tradeStore.getTimestamp(position), now)) {
+
+			// all the trades from the start are inside the window so a trade inside it is always added at the start or after it
+			quantitySum += tradeStore.getQuantity(position);
+			addPriceTimesQuantity(position, 1);
+
+		} else {
+
+			// a trade that is already outside the window is older than all the trades inside it so it was added before the start
+			start++;
+		}
+	}
+
+	/**
+	 * Method to be called after trades are removed from the oldest end of the store
+	 * @param count	- Number of removed trades, they can't be inside the window
+	 */
+	public void removedOldest(int count) {
+
+		start -= count;
+	}
+
+	/**
+	 * Method to retrieve the position of the oldest trade inside the window, the trades before it can be removed without changing the stock price
+	 * @return position in the store
+	 */
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 * Method that removes from the window all the trades that are no longer inside it. Each trade is usually added and removed only once,
+	 * but when more trades left the window than the ones that remain, the sums are calculated again from the remaining trades
+	 * @param now	- Reference time
+	 * @return the number of trades that left the window
+	 */
+	public int evictExpired(long now) {
+
+		int size = tradeStore.size();
+
+		if(start>=size || isInWindow(tradeStore.getTimestamp(start), now)) {
+			return 0;	// the usual case, nothing left the window
+		}
+
+		int newStart = tradeStore.lowerBound(getFirstTimestampInWindow(now));
+
+		if(newStart - start <= size - newStart) {
+
+			for(int position = start; position<newStart; position++) {
+
+				quantitySum -= tradeStore.getQuantity(position);
+				addPriceTimesQuantity(position, -1);
+			}
+
+		} else {
+
+			quantitySum = 0;
+			scaledPriceTimesQuantitySum = 0;
+			priceTimesQuantitySum = BigDecimal.ZERO;
+
+			for(int position = newStart; position<size; position++) {
+
+				quantitySum += tradeStore.getQuantity(position);
+				addPriceTimesQuantity(position, 1);
+			}
+		}
+
+		int evicted = newStart - start;
+		start = newStart;
+
+		return evicted;
+	}
+
+	/**
+	 * Method to add or subtract the price*quantity of a trade to the sums, the fixed point part is used whenever possible and the BigDecimal part only
+	 * for prices that can't be represented or when the fixed point part would overflow. Since only the total matters, a trade can be added to one part and later subtracted from the other
+	 * @param position	- Position of the trade in the store
+	 * @param sign		- 1 to add the trade or -1 to subtract it
+	 */
+	private void addPriceTimesQuantity(int position, int sign) {
+
+		long scaledValue = tradeStore.getScaledValue(position);
+		long quantity = tradeStore.getQuantity(position);
+
+		if(scaledValue!=FixedPointPrice.NOT_REPRESENTABLE) {
+
+			try {
+
+				long product = Math.multiplyExact(scaledValue, quantity) * sign;
+				scaledPriceTimesQuantitySum = Math.addExact(scaledPriceTimesQuantitySum, product);
+				return;
+
+			} catch (ArithmeticException e) {
+				// overflow, this trade goes to the BigDecimal part
+			}
+		}
+
+		BigDecimal product = tradeStore.getValue(position).multiply(BigDecimal.valueOf(quantity));
+		priceTimesQuantitySum = (sign>0 ? priceTimesQuantitySum.add(product) : priceTimesQuantitySum.subtract(product));
+	}
+
+	/**
+	 * Method to retrieve the sum of the quantities of the trades inside the window, evictExpired should be called before
+	 * @return the total quantity
+	 */
+	public long getQuantitySum() {
+		return quantitySum;
+	}
+
+	/**
+	 * Method to retrieve the sum of price*quantity of the trades inside the window, evictExpired should be called before.
+	 * This is where the fixed point sum is converted to BigDecimal
+	 * @return BigDecimal with the sum
+	 */
+	public BigDecimal getPriceTimesQuantitySum() {
+
+		BigDecimal scaledPart = FixedPointPrice.toBigDecimal(scaledPriceTimesQuantitySum, scale);
+
+		return (priceTimesQuantitySum.signum()==0 ? scaledPart : scaledPart.add(priceTimesQuantitySum));
+	}
+
+	/**
+	 * Method to retrieve the fixed point part of the sum of price*quantity, used to write snapshots
+	 * @return the sum multiplied by 10^scale
+	 */
+	long getScaledPriceTimesQuantitySum() {
+		return scaledPriceTimesQuantitySum;
+	}
+
+	/**
+	 * Method to retrieve the part of the sum of price*quantity that can't be kept in the fixed point part, used to write snapshots
+	 * @return BigDecimal with the rest of the sum
+	 */
+	BigDecimal getExtraPriceTimesQuantitySum() {
+		return priceTimesQuantitySum;
+	}
+
+	/**
+	 * Method to set the window of a store restored from a snapshot, so the sums don't have to be calculated again from the trades
+	 * @param pStart						- Position of the oldest trade inside the window
+	 * @param pQuantitySum					- Sum of the quantities
+	 * @param pScaledPriceTimesQuantitySum	- Fixed point part of the sum of price*quantity
+	 * @param pPriceTimesQuantitySum		- Rest of the sum of price*quantity
+	 */
+	void restore(int pStart, long pQuantitySum, long pScaledPriceTimesQuantitySum, BigDecimal pPriceTimesQuantitySum) {
+
+		if(pStart<0 || pStart>tradeStore.size()) {
+			throw new IllegalArgumentException("Invalid argument start, it must be between 0 and the number of trades");
+		}
+
+		this.start = pStart;
+		this.quantitySum = pQuantitySum;
+		this.scaledPriceTimesQuantitySum = pScaledPriceTimesQuantitySum;
+		this.priceTimesQuantitySum = pPriceTimesQuantitySum;
+	}
+
+	/**
+	 * Method to calculate the volume weighted price of the window without creating any object, evictExpired should be called before
+	 * @param precision	- Number of decimal places of the result, the result is rounded with the half up rule
+	 * @return the price multiplied by 10^precision or FixedPointPrice.NOT_REPRESENTABLE if the window is empty or the price can't be calculated with longs,
+	 * in that case the BigDecimal sums must be used
+	 */
+	public long getScaledPrice(int precision) {
+
+		if(quantitySum<=0 || priceTimesQuantitySum.signum()!=0 || precision>scale) {
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+
+		try {
+
+			// sum/10^scale/quantity*10^precision = sum/(quantity*10^(scale-precision))
+			return FixedPointPrice.divideHalfUp(scaledPriceTimesQuantitySum, Math.multiplyExact(quantitySum, FixedPointPrice.powerOfTen(scale - precision)));
+
+		} catch (ArithmeticException e) {
+
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+	}
+
+	/**
+	 * Method to retrieve the time when the oldest trade inside the window leaves it, until then the price can only change with new trades
+	 * @return the time or Long.MAX_VALUE if the window is empty
+	 */
+	public long getValidUntil() {
+
+		if(start>=tradeStore.size()) {
+			return Long.MAX_VALUE;
+		}
+
+		return tradeStore.getTimestamp(start) + (windowMinutes + 1) * 60000;
+	}
+
+	/**
+	 * Method to retrieve the number of trades inside the window
+	 * @return number of trades
+	 */
+	public int size() {
+		return tradeStore.size() - start;
+	}
+}
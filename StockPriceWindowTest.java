@@ -0,0 +1,106 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StockPriceWindowTest {
+
+	TradeStore myStore;
+	StockPriceWindow myWindow;
+
+	@Before
+	public void setup() {
+
+		// setup a 15 minutes window like the one used by the StockElement class
+		myStore = new TradeStore(6);
+		myWindow = new StockPriceWindow(myStore, 15);
+	}
+
+	private void addTrade(long timestamp, long quantity, String value, long now) {
+
+		myWindow.evictExpired(now);
+		myWindow.added(myStore.add(timestamp, quantity, StockTradeAction.actionTypes.BUY, new BigDecimal(value)), now);
+	}
+
+	@Test
+	public void testIsInWindow() {
+
+		long now = 10000000;
+
+		// A trade remains in the window until it is more than 15 complete minutes old
+		assertTrue("Trade at the reference time ", myWindow.isInWindow(now, now));
+		assertTrue("Trade 15 minutes old ", myWindow.isInWindow(now - 15*60000, now));
+		assertTrue("Trade almost 16 minutes old ", myWindow.isInWindow(now - 16*60000 + 1, now));
+		assertFalse("Trade 16 minutes old ", myWindow.isInWindow(now - 16*60000, now));
+
+		// the first timestamp inside the window follows the same rule
+		assertEquals("First timestamp inside the window ", now - 16*60000 + 1, myWindow.getFirstTimestampInWindow(now));
+	}
+
+	@Test
+	public void testAddAndEvict() {
+
+		long now = 10000000;
+
+		addTrade(now - 10*60000, 100, "95", now);
+		addTrade(now, 100, "85", now);
+
+		// a trade that is already outside the window must be ignored
+		addTrade(now - 20*60000, 300, "200", now);
+
+		assertEquals("Trades inside the window ", 2, myWindow.size());
+		assertEquals("Start of the window ", 1, myWindow.getStart());
+		assertEquals("Quantity of the window ", 200, myWindow.getQuantitySum());
+		assertEquals("Price times quantity of the window ", 0, myWindow.getPriceTimesQuantitySum().compareTo(new BigDecimal("18000")));
+		assertEquals("Price of the window ", 90000, myWindow.getScaledPrice(3));
+
+		// 7 minutes later the first trade is older than the window so only the second one must remain
+		myWindow.evictExpired(now + 7*60000);
+
+		assertEquals("Trades inside the window after eviction ", 1, myWindow.size());
+		assertEquals("Quantity of the window after eviction ", 100, myWindow.getQuantitySum());
+		assertEquals("Price times quantity of the window after eviction ", 0, myWindow.getPriceTimesQuantitySum().compareTo(new BigDecimal("8500")));
+	}
+
+	@Test
+	public void testOutOfOrderTrades() {
+
+		long now = 10000000;
+
+		// trades may arrive with any timestamp so the oldest one must still be the first to leave the window
+		addTrade(now, 10, "10", now);
+		addTrade(now - 5*60000, 20, "20", now);
+
+		myWindow.evictExpired(now + 12*60000);
+
+		assertEquals("Quantity of the window after eviction ", 10, myWindow.getQuantitySum());
+		assertEquals("Price times quantity of the window after eviction ", 0, myWindow.getPriceTimesQuantitySum().compareTo(new BigDecimal("100")));
+	}
+
+	@Test
+	public void testLargeEviction() {
+
+		long now = 10000000;
+
+		for(int i=0; i<5000; i++) {
+
+			addTrade(now + i, 1, Integer.toString(i), now + i);
+		}
+
+		// moving the window so most of the trades leave it recalculates the sums from the remaining trades
+		long later = now + 4990 + 16*60000;
+		myWindow.evictExpired(later);
+
+		assertEquals("Trades inside the window ", 9, myWindow.size());
+		assertEquals("Quantity of the window ", 9, myWindow.getQuantitySum());
+		assertEquals("Price of the window ", 4995000, myWindow.getScaledPrice(3));
+
+		// a value that can't be represented with fixed point uses the BigDecimal part
+		addTrade(later, 1, "0.0000001", later);
+		assertEquals("Price with a value that is not representable ", FixedPointPrice.NOT_REPRESENTABLE, myWindow.getScaledPrice(3));
+		assertEquals("Price times quantity with a value that is not representable ", 0, myWindow.getPriceTimesQuantitySum().compareTo(new BigDecimal("44955.0000001")));
+	}
+
+}
@@ -0,0 +1,93 @@
+import java.math.BigDecimal;
+
+/**
+ * Derived values of a stock read with a single call, it is what the dashboards poll with StockExchange.getStockQuotes instead of asking each stock
+ * for its stock price, dividend yield and P/E ratio. The values come from the cache of the stock so polling them repeatedly costs almost nothing
+ * @author nsalgueiro
+ *
+ */
+public class StockQuote {
+
+	private String stockSymbol;
+	private long version;
+	private BigDecimal tickerPrice;
+	private BigDecimal stockPrice;
+	private BigDecimal dividendYield;
+	private BigDecimal peRatio;
+
+	/**
+	 * Constructor for the class
+	 * @param stockSymbol	- Symbol of the stock
+	 * @param version		- Trade version of the stock, it changes when a trade is added or leaves the stock price window
+	 * @param tickerPrice	- Ticker price
+	 * @param stockPrice	- Stock price or null if there are no trades in the window
+	 * @param dividendYield	- Dividend yield or null if it can't be calculated
+	 * @param peRatio		- P/E ratio or null if it can't be calculated
+	 */
+	public StockQuote(String stockSymbol, long version, BigDecimal tickerPrice, BigDecimal stockPrice, BigDecimal dividendYield, BigDecimal peRatio) {
+
+		this.stockSymbol = stockSymbol;
+		this.version = version;
+		this.tickerPrice = tickerPrice;
+		this.stockPrice = stockPrice;
+		this.dividendYield = dividendYield;
+		this.peRatio = peRatio;
+	}
+
+	/**
+	 * Getter for the stock symbol
+	 * @return the symbol
+	 */
+	public String getStockSymbol() {
+		return stockSymbol;
+	}
+
+	/**
+	 * Getter for the trade version, two quotes of the same stock with the same version have the same stock price unless a trade left the window meanwhile
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Getter for the ticker price
+	 * @return the ticker price
+	 */
+	public BigDecimal getTickerPrice() {
+		return tickerPrice;
+	}
+
+	/**
+	 * Getter for the stock price
+	 * @return the stock price or null if there are no trades in the window
+	 */
+	public BigDecimal getStockPrice() {
+		return stockPrice;
+	}
+
+	/**
+	 * Getter for the dividend yield
+	 * @return the dividend yield or null if it can't be calculated
+	 */
+	public BigDecimal getDividendYield() {
+		return dividendYield;
+	}
+
+	/**
+	 * Getter for the P/E ratio
+	 * @return the P/E ratio or null if it can't be calculated
+	 */
+	public BigDecimal getPERatio() {
+		return peRatio;
+	}
+
+	@Override
+	public String toString() {
+		return "StockQuote [stockSymbol=" + stockSymbol
+				+ ", tickerPrice=" + tickerPrice
+				+ ", stockPrice=" + stockPrice
+				+ ", dividendYield=" + dividendYield
+				+ ", peRatio=" + peRatio + "]";
+	}
+}
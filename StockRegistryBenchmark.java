@@ -0,0 +1,197 @@
+import java.math.BigDecimal;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Simple contention benchmark that compares the original stock registry of the StockExchange class (a Hashtable with an extra synchronized block around containsKey and get)
+ * with the current one based on a ConcurrentHashMap. A large number of threads look up random symbols while a small part of the operations add and remove stocks.
+ * Usage: java StockRegistryBenchmark [threads] [operationsPerThread]
+ * @author nsalgueiro
+ *
+ */
+public class StockRegistryBenchmark {
+
+	private static final int _DEFAULT_THREADS = 2000;
+	private static final int _DEFAULT_OPERATIONS = 20000;
+	private static final int _SYMBOLS = 100;
+	private static final int _WRITE_PERCENTAGE = 1;	// Percentage of the operations that add or remove a stock
+
+	/**
+	 * The operations of the registry used in this benchmark
+	 */
+	private interface Registry {
+
+		boolean add(String stockSymbol, StockElement stock);
+		boolean remove(String stockSymbol);
+		StockElement get(String stockSymbol);
+	}
+
+	/**
+	 * Registry working like the StockExchange class did before, every operation takes the same global lock
+	 */
+	private static class SynchronizedHashtableRegistry implements Registry {
+
+		private Hashtable<String, StockElement> stocks = new Hashtable<String, StockElement>();
+
+		@Override
+		public boolean add(String stockSymbol, StockElement stock) {
+
+			synchronized (stocks) {
+
+				if(!stocks.containsKey(stockSymbol)) {
+
+					stocks.put(stockSymbol, stock);
+					return true;
+				}
+				return false;
+			}
+		}
+
+		@Override
+		public boolean remove(String stockSymbol) {
+
+			synchronized (stocks) {
+
+				if(stocks.containsKey(stockSymbol)) {
+
+					stocks.remove(stockSymbol);
+					return true;
+				}
+				return false;
+			}
+		}
+
+		@Override
+		public StockElement get(String stockSymbol) {
+
+			synchronized (stocks) {
+
+				if(stocks.containsKey(stockSymbol)) {
+
+					return stocks.get(stockSymbol);
+				}
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Registry working like the StockExchange class does now, with atomic single operations on a concurrent map
+	 */
+	private static class ConcurrentRegistry implements Registry {
+
+		private ConcurrentHashMap<String, StockElement> stocks = new ConcurrentHashMap<String, StockElement>();
+
+		@Override
+		public boolean add(String stockSymbol, StockElement stock) {
+			return stocks.putIfAbsent(stockSymbol, stock)==null;
+		}
+
+		@Override
+		public boolean remove(String stockSymbol) {
+			return stocks.remove(stockSymbol)!=null;
+		}
+
+		@Override
+		public StockElement get(String stockSymbol) {
+			return stocks.get(stockSymbol);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		int threads = (args.length>0 ? Integer.parseInt(args[0]) : _DEFAULT_THREADS);
+		int operations = (args.length>1 ? Integer.parseInt(args[1]) : _DEFAULT_OPERATIONS);
+
+		String[] symbols = new String[_SYMBOLS];
+		StockElement[] elements = new StockElement[_SYMBOLS];
+
+		for(int i=0; i<_SYMBOLS; i++) {
+
+			symbols[i] = "S" + i;
+			elements[i] = new StockElement(symbols[i], StockElement.StockTypes.COMMON, BigDecimal.ONE, BigDecimal.ZERO, BigDecimal.TEN);
+		}
+
+		// Each registry is measured twice and only the second run is reported so both of them are compared after the JIT warm up
+		for(int run=0; run<2; run++) {
+
+			boolean report = (run==1);
+
+			measure("Hashtable + synchronized", new SynchronizedHashtableRegistry(), symbols, elements, threads, operations, report);
+			measure("ConcurrentHashMap", new ConcurrentRegistry(), symbols, elements, threads, operations, report);
+		}
+	}
+
+	private static void measure(String name, final Registry registry, final String[] symbols, final StockElement[] elements, int threads, final int operations, boolean report) throws InterruptedException {
+
+		for(int i=0; i<symbols.length; i++) {
+
+			registry.add(symbols[i], elements[i]);
+		}
+
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(threads);
+
+		for(int t=0; t<threads; t++) {
+
+			Thread thread = new Thread(() -> {
+
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long found = 0;
+
+				ready.countDown();
+
+				try {
+					start.await();	// all the threads start at the same time so they really compete for the registry
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+
+				for(int i=0; i<operations; i++) {
+
+					int index = random.nextInt(symbols.length);
+
+					if(random.nextInt(100)<_WRITE_PERCENTAGE) {
+
+						if(!registry.remove(symbols[index])) {
+							registry.add(symbols[index], elements[index]);
+						}
+
+					} else if(registry.get(symbols[index])!=null) {
+
+						found++;
+					}
+				}
+
+				if(found<0) {	// never true, it only keeps the JIT from removing the lookups
+					System.out.println(found);
+				}
+
+				finished.countDown();
+			});
+
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		ready.await();
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		finished.await();
+		long elapsed = System.nanoTime() - startTime;
+
+		if(report) {
+
+			long totalOperations = (long) threads * operations;
+
+			System.out.println(name + ": " + threads + " threads, " + totalOperations + " operations in " + (elapsed/1000000) + " ms ("
+					+ (totalOperations * 1000000000L / Math.max(elapsed, 1)) + " operations/s)");
+		}
+	}
+
+}
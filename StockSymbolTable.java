@@ -0,0 +1,157 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table that gives each stock of a StockExchange an int ID when it is added so the trades and the queries can reach the stock with an array access
+ * instead of hashing and comparing its symbol. The lower 24 bits of the ID are the slot of the stock in the array, the slots are dense and the slot
+ * of a removed stock is reused by the next one added. The upper 7 bits are a generation that changes every time a slot is reused, so the ID of a removed
+ * stock doesn't reach the stock that took its slot. A slot is only reused 127 times, after that it is retired instead of starting the generations
+ * again, so an old ID never reaches another stock at the cost of one unused slot every 128 stocks added and removed in the same slot.
+ * Readers never block, adding and removing stocks takes the lock of the table
+ * @author nsalgueiro
+ *
+ */
+class StockSymbolTable {
+
+	static final int NO_ID = -1;	// ID of a stock that isn't in the table
+
+	private static final int _SLOT_BITS = 24;
+	private static final int _SLOT_MASK = (1 << _SLOT_BITS) - 1;
+	private static final int _GENERATION_MASK = 0x7F;	// 7 bits so the IDs are never negative
+	private static final int _INITIAL_CAPACITY = 16;
+
+	private volatile AtomicReferenceArray<StockElement> slots;	// Replaced by a bigger copy when it is full, only while holding the lock
+
+	// Only used while holding the lock
+	private int[] generations;	// Generation of each slot
+	private int[] freeSlots;	// Stack of the slots released by removed stocks
+	private int freeCount;
+	private int usedSlots;		// Slots that were ever used, the next new slot
+	private int retiredSlots;	// Slots that used all their generations, they are never used again
+
+	StockSymbolTable() {
+
+		this.slots = new AtomicReferenceArray<StockElement>(_INITIAL_CAPACITY);
+		this.generations = new int[_INITIAL_CAPACITY];
+		this.freeSlots = new int[_INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Method to give a stock an ID, the stock must already be in the map of the exchange so a symbol only gets one ID
+	 * @param stock	- The stock
+	 * @return the ID of the stock
+	 */
+	synchronized int register(StockElement stock) {
+
+		int slot;
+
+		if(freeCount>0) {	// the slots of the removed stocks are reused first so the array stays dense
+
+			slot = freeSlots[--freeCount];
+
+		} else {
+
+			if(usedSlots>_SLOT_MASK) {
+				throw new IllegalStateException("Too many stocks, the limit is " + (_SLOT_MASK + 1));
+			}
+
+			slot = usedSlots++;
+
+			if(slot==slots.length()) {
+				grow();
+			}
+		}
+
+		int stockId = (generations[slot] << _SLOT_BITS) | slot;
+
+		stock.setStockId(stockId);	// before it is visible in the array so a reader that finds it also sees its ID
+		slots.set(slot, stock);
+
+		return stockId;
+	}
+
+	/**
+	 * Method to release the ID of a removed stock, its slot will be used by another stock with a different generation
+	 * @param stock	- The stock
+	 */
+	synchronized void release(StockElement stock) {
+
+		int stockId = stock.getStockId();
+
+		if(stockId==NO_ID) {
+			return;
+		}
+
+		int slot = stockId & _SLOT_MASK;
+
+		if(slots.get(slot)!=stock) {	// already released
+			return;
+		}
+
+		slots.set(slot, null);
+		stock.setStockId(NO_ID);
+
+		if(generations[slot]==_GENERATION_MASK) {	// the next generation would repeat the IDs of the first stocks of the slot
+
+			retiredSlots++;
+			return;
+		}
+
+		generations[slot]++;
+
+		if(freeCount==freeSlots.length) {
+
+			int[] newFreeSlots = new int[freeSlots.length * 2];
+			System.arraycopy(freeSlots, 0, newFreeSlots, 0, freeCount);
+			freeSlots = newFreeSlots;
+		}
+
+		freeSlots[freeCount++] = slot;
+	}
+
+	/**
+	 * Method to retrieve the stock of an ID without taking any lock
+	 * @param stockId	- ID of the stock
+	 * @return the stock or null if the ID isn't valid or the stock was removed
+	 */
+	StockElement get(int stockId) {
+
+		if(stockId<0) {
+			return null;
+		}
+
+		AtomicReferenceArray<StockElement> currentSlots = slots;
+		int slot = stockId & _SLOT_MASK;
+
+		if(slot>=currentSlots.length()) {
+			return null;
+		}
+
+		StockElement stock = currentSlots.get(slot);
+
+		// the slot could have been reused by another stock after the one of this ID was removed
+		return (stock!=null && stock.getStockId()==stockId ? stock : null);
+	}
+
+	/**
+	 * Method to retrieve the number of stocks in the table
+	 * @return the number of stocks
+	 */
+	synchronized int size() {
+		return usedSlots - freeCount - retiredSlots;
+	}
+
+	private void grow() {
+
+		AtomicReferenceArray<StockElement> newSlots = new AtomicReferenceArray<StockElement>(slots.length() * 2);
+
+		for(int i = 0; i<slots.length(); i++) {
+			newSlots.set(i, slots.get(i));
+		}
+
+		int[] newGenerations = new int[newSlots.length()];
+		System.arraycopy(generations, 0, newGenerations, 0, generations.length);
+
+		generations = newGenerations;
+		slots = newSlots;
+	}
+}
@@ -0,0 +1,80 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class StockSymbolTableTest {
+
+	private static StockElement newStock(String stockSymbol) {
+		return new StockElement(stockSymbol, StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+	}
+
+	@Test
+	public void testRegisterGrowsAndReusesSlots() {
+
+		StockSymbolTable table = new StockSymbolTable();
+		StockElement[] stocks = new StockElement[100];
+
+		// more stocks than the initial capacity so the array grows
+		for(int i = 0; i<stocks.length; i++) {
+
+			stocks[i] = newStock("S" + i);
+			assertEquals(i, table.register(stocks[i]));
+		}
+
+		for(int i = 0; i<stocks.length; i++) {
+			assertSame(stocks[i], table.get(i));
+		}
+
+		table.release(stocks[42]);
+		table.release(stocks[42]);	// releasing twice does nothing
+
+		assertEquals(99, table.size());
+		assertEquals(-1, stocks[42].getStockId());
+		assertNull(table.get(42));
+
+		StockElement other = newStock("OTHER");
+		int otherId = table.register(other);
+
+		assertEquals(42, otherId & 0xFFFFFF);
+		assertNotEquals(42, otherId);
+		assertNull(table.get(42));	// the old ID doesn't reach the new stock
+		assertSame(other, table.get(otherId));
+		assertEquals(100, table.size());
+	}
+
+	@Test
+	public void testRetiredSlot() {
+
+		StockSymbolTable table = new StockSymbolTable();
+		int firstId = table.register(newStock("S0"));
+		table.release(table.get(firstId));
+
+		// the same slot is reused with every generation and then retired, no stock added later gets the first ID
+		for(int i = 1; i<200; i++) {
+
+			StockElement stock = newStock("S" + i);
+			int stockId = table.register(stock);
+
+			assertEquals("Slot of stock " + i, (i<128 ? 0 : 1), stockId & 0xFFFFFF);
+			assertNull("Old ID of stock " + i, table.get(firstId));
+			assertSame(stock, table.get(stockId));
+			assertEquals(1, table.size());
+
+			table.release(stock);
+		}
+
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testInvalidIds() {
+
+		StockSymbolTable table = new StockSymbolTable();
+
+		assertNull(table.get(-1));
+		assertNull(table.get(0));
+		assertNull(table.get(1000000));
+	}
+}
@@ -13,7 +13,9 @@ public class StockTradeAction {
 	private long timestamp;		// Timestamp of operation
 	private long quantity;		// Trade quantity
 	private actionTypes action; // Trade type - B or S for respectively buy or sell
-	private BigDecimal value;	// Trade value
+	private BigDecimal value;	// Trade value, for trades created with a scaled value it is only created when someone asks for it
+	private long scaledValue;	// Trade value as a fixed point long or FixedPointPrice.NOT_REPRESENTABLE if it can't be kept this way
+	private int scale;			// Scale of the scaledValue field
 	
 	/**
 	 * Constructor for the class that takes in all of the four values for the trade action
@@ -28,6 +30,25 @@ public class StockTradeAction {
 		this.quantity = quantity;
 		this.action = action;
 		this.value = value;
+		this.scale = FixedPointPrice.DEFAULT_SCALE;
+		this.scaledValue = FixedPointPrice.toScaled(value, scale);
+	}
+
+	/**
+	 * Constructor for the class that takes the value as a fixed point long, no BigDecimal is created unless the getValue method is called
+	 * @param timestamp		- timestamp of the operation
+	 * @param quantity		- Quantity of shares bought or sold
+	 * @param action		- Action performed (B or S for respectively buy or sale)
+	 * @param scaledValue	- Share value multiplied by 10^scale
+	 * @param scale			- Scale of the share value
+	 */
+	public StockTradeAction(long timestamp, long quantity, actionTypes action, long scaledValue, int scale) {
+
+		this.timestamp = timestamp;
+		this.quantity = quantity;
+		this.action = action;
+		this.scaledValue = scaledValue;
+		this.scale = FixedPointPrice.checkScale(scale);
 	}
 	
 	/**
@@ -37,12 +58,26 @@ public class StockTradeAction {
 	 * @param value		- Share value
 	 */
 	public StockTradeAction(long quantity, actionTypes action, BigDecimal value) {
+
+		this(StockClock.SYSTEM, quantity, action, value);
+	}
+
+	/**
+	 * Constructor for the class that takes the timestamp from a clock, usually the one of the stock exchange
+	 * @param clock		- Clock that gives the timestamp
+	 * @param quantity	- Quantity of shares bought or sold
+	 * @param action	- Action performed (B or S for respectively buy or sale)
+	 * @param value		- Share value
+	 */
+	public StockTradeAction(StockClock clock, long quantity, actionTypes action, BigDecimal value) {
 		
-		this.timestamp = System.currentTimeMillis();
+		this.timestamp = clock.currentTimeMillis();
 		
 		this.quantity = quantity;
 		this.action = action;
 		this.value = value;
+		this.scale = FixedPointPrice.DEFAULT_SCALE;
+		this.scaledValue = FixedPointPrice.toScaled(value, scale);
 	}
 	
 	/**
@@ -74,15 +109,39 @@ public class StockTradeAction {
 	 * @return
 	 */
 	public BigDecimal getValue() {
+
+		// BigDecimal is immutable so if two threads create it at the same time both will get an equal value
+		if(value==null) {
+			value = FixedPointPrice.toBigDecimal(scaledValue, scale);
+		}
+
 		return value;
 	}
 
+	/**
+	 * Method to retrieve the value of the shares as a fixed point long
+	 * @param pScale	- The scale of the result
+	 * @return the value multiplied by 10^pScale or FixedPointPrice.NOT_REPRESENTABLE if it can't be represented with that scale
+	 */
+	public long getScaledValue(int pScale) {
+
+		return FixedPointPrice.rescale(scaledValue, scale, pScale);
+	}
+
+	/**
+	 * Method to retrieve the scale of the fixed point value of this trade
+	 * @return the scale
+	 */
+	public int getScale() {
+		return scale;
+	}
+
 	/**
 	 * Method to return the content of this trade action on a readable format
 	 * @return String containing this trade action properties
 	 */
 	@Override
 	public String toString() {
-		return "StockTradeAction [timestamp=" + timestamp + ", action=" + action + ", quantity=" + quantity + ", value=" + value + "]";
+		return "StockTradeAction [timestamp=" + timestamp + ", action=" + action + ", quantity=" + quantity + ", value=" + getValue() + "]";
 	}
 }
@@ -0,0 +1,17 @@
+import java.util.List;
+
+/**
+ * Interface to be implemented by anyone that wants to keep the trade actions removed from memory by the retention policy of a stock,
+ * for example to write them to a file or database
+ * @author nsalgueiro
+ *
+ */
+public interface TradeArchiver {
+
+	/**
+	 * Method called with the trades that were removed from a stock, it is never called while holding the lock on the stock trades
+	 * @param stockSymbol	- Symbol of the stock the trades belong to
+	 * @param tradeActions	- The removed trades, oldest first
+	 */
+	void archive(String stockSymbol, List<StockTradeAction> tradeActions);
+}
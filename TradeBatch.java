@@ -0,0 +1,228 @@
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Batch of trades to be added with a single call, it is used by the feed handlers that receive trades in bursts.
+ * Like the TradeStore the trades are kept in parallel primitive arrays so filling a batch creates no objects when the values are fixed point ones,
+ * a batch can be cleared and filled again to reuse its arrays. The trades can be for many stocks, StockExchange groups them by symbol.
+ * This class is not thread safe, each feed handler should fill its own batch
+ * @author nsalgueiro
+ *
+ */
+public class TradeBatch {
+
+	private static final int _DEFAULT_CAPACITY = 256;
+
+	private static final byte _SIDE_NONE = -1;	// Side used when a trade has no action type
+
+	private int scale;				// Scale of the fixed point values
+
+	private String[] symbols;
+	private long[] timestamps;
+	private long[] quantities;
+	private byte[] sides;			// Ordinal of the action type or _SIDE_NONE
+	private long[] scaledValues;	// Fixed point values or FixedPointPrice.NOT_REPRESENTABLE for the trades added with a BigDecimal value
+	private BigDecimal[] values;	// Only created when a trade is added with a BigDecimal value
+
+	private int size;
+
+	/**
+	 * Constructor for the class using the default fixed point scale
+	 */
+	public TradeBatch() {
+
+		this(_DEFAULT_CAPACITY, FixedPointPrice.DEFAULT_SCALE);
+	}
+
+	/**
+	 * Constructor for the class
+	 * @param capacity	- Initial number of trades, the batch grows if more are added
+	 * @param scale		- Scale of the fixed point values
+	 */
+	public TradeBatch(int capacity, int scale) {
+
+		if(capacity<=0) {
+			throw new IllegalArgumentException("Invalid argument capacity, it must be greater than 0");
+		}
+
+		this.scale = FixedPointPrice.checkScale(scale);
+
+		this.symbols = new String[capacity];
+		this.timestamps = new long[capacity];
+		this.quantities = new long[capacity];
+		this.sides = new byte[capacity];
+		this.scaledValues = new long[capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * Method to add a trade with a BigDecimal value
+	 * @param stockSymbol	- Symbol of the stock or null if the batch is added directly to a stock
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- Action performed
+	 * @param value			- Share value
+	 * @return the index of the trade in the batch, it is the same index used in the results
+	 */
+	public int add(String stockSymbol, long timestamp, long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) {
+
+		int index = add(stockSymbol, timestamp, quantity, actionType, FixedPointPrice.NOT_REPRESENTABLE);
+
+		if(values==null) {
+			values = new BigDecimal[symbols.length];
+		}
+
+		values[index] = value;
+
+		return index;
+	}
+
+	/**
+	 * Method to add a trade with a fixed point value, no objects are created unless the batch needs to grow
+	 * @param stockSymbol	- Symbol of the stock or null if the batch is added directly to a stock
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- Action performed
+	 * @param scaledValue	- Share value multiplied by 10^getScale()
+	 * @return the index of the trade in the batch, it is the same index used in the results
+	 */
+	public int add(String stockSymbol, long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue) {
+
+		if(size==symbols.length) {
+			grow();
+		}
+
+		int index = size++;
+
+		symbols[index] = stockSymbol;
+		timestamps[index] = timestamp;
+		quantities[index] = quantity;
+		sides[index] = (actionType!=null ? (byte) actionType.ordinal() : _SIDE_NONE);
+		scaledValues[index] = scaledValue;
+
+		if(values!=null) {
+			values[index] = null;	// the batch may have been cleared
+		}
+
+		return index;
+	}
+
+	private void grow() {
+
+		int capacity = symbols.length * 2;
+
+		symbols = Arrays.copyOf(symbols, capacity);
+		timestamps = Arrays.copyOf(timestamps, capacity);
+		quantities = Arrays.copyOf(quantities, capacity);
+		sides = Arrays.copyOf(sides, capacity);
+		scaledValues = Arrays.copyOf(scaledValues, capacity);
+
+		if(values!=null) {
+			values = Arrays.copyOf(values, capacity);
+		}
+	}
+
+	/**
+	 * Method to remove all the trades so the batch can be filled again
+	 */
+	public void clear() {
+
+		Arrays.fill(symbols, 0, size, null);	// so the symbols and values can be garbage collected
+
+		if(values!=null) {
+			Arrays.fill(values, 0, size, null);
+		}
+
+		size = 0;
+	}
+
+	/**
+	 * Method to retrieve the number of trades in the batch
+	 * @return number of trades
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Method to retrieve the scale of the fixed point values
+	 * @return the scale
+	 */
+	public int getScale() {
+		return scale;
+	}
+
+	/**
+	 * Method to retrieve the stock symbol of a trade
+	 * @param index	- Index of the trade
+	 * @return the symbol or null
+	 */
+	public String getStockSymbol(int index) {
+		return symbols[index];
+	}
+
+	/**
+	 * Method to retrieve the timestamp of a trade
+	 * @param index	- Index of the trade
+	 * @return the timestamp
+	 */
+	public long getTimestamp(int index) {
+		return timestamps[index];
+	}
+
+	/**
+	 * Method to retrieve the quantity of shares of a trade
+	 * @param index	- Index of the trade
+	 * @return the quantity
+	 */
+	public long getQuantity(int index) {
+		return quantities[index];
+	}
+
+	/**
+	 * Method to retrieve the action type of a trade
+	 * @param index	- Index of the trade
+	 * @return the action type or null
+	 */
+	public StockTradeAction.actionTypes getActionType(int index) {
+		return (sides[index]==_SIDE_NONE ? null : StockTradeAction.actionTypes.values()[sides[index]]);
+	}
+
+	/**
+	 * Method to retrieve the fixed point value of a trade
+	 * @param index	- Index of the trade
+	 * @return the value multiplied by 10^getScale() or FixedPointPrice.NOT_REPRESENTABLE if it was added with a BigDecimal value
+	 */
+	public long getScaledValue(int index) {
+		return scaledValues[index];
+	}
+
+	/**
+	 * Method to retrieve the BigDecimal value of a trade
+	 * @param index	- Index of the trade
+	 * @return the value or null if it was added with a fixed point value
+	 */
+	public BigDecimal getValue(int index) {
+		return (values!=null ? values[index] : null);
+	}
+
+	/**
+	 * Method to check the values of a trade, the same checks done by StockElement.addTradeAction
+	 * @param index	- Index of the trade
+	 * @return true if the trade can be added
+	 */
+	public boolean isValid(int index) {
+
+		if(timestamps[index]<=0 || quantities[index]<=0) {
+			return false;
+		}
+
+		if(scaledValues[index]!=FixedPointPrice.NOT_REPRESENTABLE) {
+			return scaledValues[index]>0;
+		}
+
+		BigDecimal value = getValue(index);
+
+		return (value!=null && value.signum()>0);
+	}
+}
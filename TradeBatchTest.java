@@ -0,0 +1,90 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+public class TradeBatchTest {
+
+	@Test
+	public void testBatchGrowsAndClears() {
+
+		TradeBatch batch = new TradeBatch(2, 6);
+
+		for(int i=0; i<10; i++) {
+			assertEquals("Index ", i, batch.add("TEA", 100 + i, 10, StockTradeAction.actionTypes.BUY, 1000000L * (i + 1)));
+		}
+
+		batch.add("TEA", 200, 10, null, new BigDecimal("12.5"));
+
+		assertEquals("Size ", 11, batch.size());
+		assertEquals("Scaled value ", 3000000L, batch.getScaledValue(2));
+		assertNull("No BigDecimal value ", batch.getValue(2));
+		assertEquals("BigDecimal value ", new BigDecimal("12.5"), batch.getValue(10));
+		assertNull("No action type ", batch.getActionType(10));
+
+		batch.clear();
+		assertEquals("Size after clear ", 0, batch.size());
+
+		batch.add("GIN", 300, 5, StockTradeAction.actionTypes.SELL, 2000000L);
+		assertNull("Value cleared ", batch.getValue(0));
+		assertEquals("Symbol ", "GIN", batch.getStockSymbol(0));
+	}
+
+	@Test
+	public void testExchangeBatchForManyStocks() {
+
+		StockExchange myStockExchange = new StockExchange();
+		myStockExchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		myStockExchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+
+		long now = System.currentTimeMillis();
+		TradeBatch batch = new TradeBatch();
+
+		batch.add("TEA", now, 100, StockTradeAction.actionTypes.BUY, new BigDecimal("80"));		// 0
+		batch.add("POP", now, 200, StockTradeAction.actionTypes.BUY, 1000000L);				// 1
+		batch.add("XXX", now, 100, StockTradeAction.actionTypes.BUY, 1000000L);				// 2 unknown stock
+		batch.add("TEA", now, 100, StockTradeAction.actionTypes.BUY, 90000000L);				// 3
+		batch.add("TEA", now, 0, StockTradeAction.actionTypes.BUY, 90000000L);					// 4 invalid quantity
+		batch.add("POP", now, 200, StockTradeAction.actionTypes.SELL, new BigDecimal("7"));	// 5
+		batch.add("POP", now, 200, StockTradeAction.actionTypes.SELL, new BigDecimal("-7"));	// 6 invalid value
+		batch.add(null, now, 200, StockTradeAction.actionTypes.SELL, new BigDecimal("7"));		// 7 no symbol
+
+		BitSet added = myStockExchange.addTradeActions(batch);
+
+		BitSet expected = new BitSet();
+		expected.set(0);
+		expected.set(1);
+		expected.set(3);
+		expected.set(5);
+		assertEquals("Added trades ", expected, added);
+
+		// the same prices as adding the trades one by one
+		assertEquals("TEA stock price ", 0, myStockExchange.getStock("TEA").calculateStockPrice().compareTo(new BigDecimal("85")));
+		assertEquals("POP stock price ", 0, myStockExchange.getStock("POP").calculateStockPrice().compareTo(new BigDecimal("4")));
+		assertEquals("GBCE index ", 0, myStockExchange.calculateGBCEAllShareIndex().compareTo(new BigDecimal("18.439")));
+		assertEquals("TEA ticker price ", 0, myStockExchange.getStock("TEA").getTickerPrice().compareTo(new BigDecimal("90")));
+		assertEquals("POP trades ", 2, myStockExchange.getStock("POP").getTradeActions().size());
+	}
+
+	@Test
+	public void testStockBatchWithDifferentScale() {
+
+		// a stock with 2 decimal places receiving values with 6 decimal places
+		StockElement stock = new StockElement("ALE", StockElement.StockTypes.COMMON, new BigDecimal(23), new BigDecimal(0), new BigDecimal(60), 2);
+		long now = System.currentTimeMillis();
+		TradeBatch batch = new TradeBatch();
+
+		batch.add("ALE", now, 1, StockTradeAction.actionTypes.BUY, 30000000L);
+		batch.add(null, now, 1, StockTradeAction.actionTypes.BUY, 60123456L);	// more decimal places than the stock
+		batch.add("GIN", now, 1, StockTradeAction.actionTypes.BUY, 30000000L);	// another stock
+
+		BitSet added = stock.addTradeActions(batch);
+
+		assertEquals("Added trades ", 2, added.cardinality());
+		assertFalse("Other stock ", added.get(2));
+		assertEquals("Stock price ", 0, stock.calculateStockPrice().compareTo(new BigDecimal("45.062")));
+		assertEquals("Ticker price ", 0, stock.getTickerPrice().compareTo(new BigDecimal("60.123456")));
+	}
+}
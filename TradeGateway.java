@@ -0,0 +1,513 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * TCP gateway so feed handlers and dashboards in other processes can use a StockExchange. A single thread runs a NIO selector loop that accepts
+ * the connections, reads the requests and writes the responses, the operations of the exchange are called by that thread too.
+ * The clients can send many requests without waiting for their responses (pipelining), the responses are sent in the same order as the requests.
+ *
+ * Every message is a frame with a 4 bytes length followed by that many bytes, all the numbers are big endian:
+ *   request	- int length, byte type, int requestId, body
+ *   response	- int length, byte type, int requestId, byte status (the ordinal of a ResultCode), body only if the status is OK
+ * The prices are sent as a long unscaled value and a byte scale (the price is unscaledValue / 10^scale), the null values as the status NO_VALUE.
+ * The requests are:
+ *   STOCK_ID		- body: byte symbol length, ASCII symbol										response: int stockId
+ *   ADD_STOCK		- body: symbol, byte stock type, price lastDividend, price fixedDividend, price parValue	response: int stockId
+ *   ADD_TRADE		- body: int stockId, long timestamp (0 for the time of the exchange), long quantity, byte action type (-1 for null), price value	response: nothing
+ *   STOCK_PRICE, DIVIDEND_YIELD, PE_RATIO	- body: int stockId											response: price
+ *   GBCE_INDEX		- no body																		response: price
+ * Only the requests with a symbol create objects, the trades and the queries use the IDs of the stocks and are read from and written to
+ * the direct buffers of the connection that are reused for every message. A client that sends an invalid frame is disconnected
+ * @author nsalgueiro
+ *
+ */
+public class TradeGateway implements AutoCloseable {
+
+	static final byte STOCK_ID = 1;
+	static final byte ADD_STOCK = 2;
+	static final byte ADD_TRADE = 3;
+	static final byte STOCK_PRICE = 4;
+	static final byte DIVIDEND_YIELD = 5;
+	static final byte PE_RATIO = 6;
+	static final byte GBCE_INDEX = 7;
+
+	static final int BUFFER_SIZE = 64 * 1024;		// Size of the input and output buffers of each connection
+	static final int MAX_FRAME = 1024;				// Longest request accepted, the longest one is ADD_STOCK with a symbol of 255 characters
+	static final int MAX_RESPONSE = 4 + 1 + 4 + 1 + 9;	// Longest response, the one with a price
+
+	// values() creates a new array every time it is called
+	private static final StockElement.StockTypes[] STOCK_TYPES = StockElement.StockTypes.values();
+	private static final StockTradeAction.actionTypes[] ACTION_TYPES = StockTradeAction.actionTypes.values();
+
+	private StockExchange exchange;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private Thread selectorThread;
+	private volatile boolean running;
+
+	private byte[] symbolBytes;	// Symbol of the request being read, only used by the selector thread
+
+	/**
+	 * Constructor for the class, it binds the address but nothing is accepted until start is called
+	 * @param pExchange	- The stock exchange used by the clients
+	 * @param address	- Address to listen to, port 0 to use any free port
+	 * @throws IOException when the address can't be bound
+	 */
+	public TradeGateway(StockExchange pExchange, InetSocketAddress address) throws IOException {
+
+		if(pExchange==null) {
+			throw new IllegalArgumentException("Invalid argument exchange, it cannot be null");
+		}
+
+		this.exchange = pExchange;
+		this.symbolBytes = new byte[255];
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+
+		try {
+
+			serverChannel.bind(address);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		} catch (IOException e) {
+
+			serverChannel.close();
+			selector.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to start the thread of the selector loop
+	 */
+	public synchronized void start() {
+
+		if(selectorThread!=null) {
+			throw new IllegalStateException("The gateway was already started");
+		}
+
+		running = true;
+		selectorThread = new Thread(this::run, "TradeGateway");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * Getter for the port the gateway listens to, useful when it was created with port 0
+	 * @return the port
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Method to stop the selector loop and close all the connections
+	 */
+	@Override
+	public void close() throws IOException {
+
+		Thread thread;
+
+		synchronized (this) {
+
+			running = false;
+			thread = selectorThread;
+		}
+
+		selector.wakeup();
+
+		if(thread!=null && thread!=Thread.currentThread()) {
+
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		for(SelectionKey key: selector.keys()) {
+			key.channel().close();
+		}
+
+		selector.close();
+	}
+
+	private void run() {
+
+		while(running) {
+
+			try {
+
+				selector.select();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while(keys.hasNext()) {
+
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if(!key.isValid()) {
+						continue;
+					}
+
+					if(key.isAcceptable()) {
+						accept();
+					} else {
+						handle(key);
+					}
+				}
+
+			} catch (IOException e) {
+
+				// the errors of a connection are handled by handle, this is an error of the selector itself and the loop just tries again
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+
+		SocketChannel channel = serverChannel.accept();
+
+		if(channel==null) {
+			return;
+		}
+
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);	// the responses are small and the clients wait for them
+		channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+	}
+
+	/**
+	 * Method to read the requests of a connection and write their responses, a connection whose client closed it or sent an invalid frame is closed
+	 */
+	private void handle(SelectionKey key) {
+
+		Connection connection = (Connection) key.attachment();
+
+		try {
+
+			if(key.isReadable() && connection.channel.read(connection.in)<0) {
+
+				disconnect(key);
+				return;
+			}
+
+			// the requests are processed until the input is empty or the output can't take another response, then as much as possible is sent
+			do {
+
+				if(!process(connection)) {
+
+					disconnect(key);
+					return;
+				}
+
+				connection.out.flip();
+				connection.channel.write(connection.out);
+				connection.out.compact();
+
+			} while(connection.out.position()==0 && connection.hasFrame());
+
+			// we only wait to read while there's room for more requests and to write while there are responses not sent yet
+			int interest = 0;
+
+			if(connection.in.hasRemaining()) {
+				interest |= SelectionKey.OP_READ;
+			}
+
+			if(connection.out.position()>0) {
+				interest |= SelectionKey.OP_WRITE;
+			}
+
+			key.interestOps(interest);
+
+		} catch (IOException e) {
+
+			disconnect(key);
+		}
+	}
+
+	private void disconnect(SelectionKey key) {
+
+		key.cancel();
+
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// nothing else can be done with it
+		}
+	}
+
+	/**
+	 * Method to process the complete requests in the input buffer of a connection while the output buffer has room for their responses
+	 * @return false if a request was invalid
+	 */
+	private boolean process(Connection connection) {
+
+		ByteBuffer in = connection.in;
+		ByteBuffer out = connection.out;
+
+		in.flip();
+
+		try {
+
+			while(in.remaining()>=4 && out.remaining()>=MAX_RESPONSE) {
+
+				int length = in.getInt(in.position());
+
+				if(length<5 || length>MAX_FRAME) {
+					return false;
+				}
+
+				if(in.remaining()<4 + length) {	// the rest of the frame hasn't arrived yet
+					break;
+				}
+
+				int end = in.position() + 4 + length;
+
+				in.position(in.position() + 4);
+
+				byte type = in.get();
+				int requestId = in.getInt();
+
+				if(!execute(type, requestId, in, out) || in.position()!=end) {
+					return false;
+				}
+			}
+
+			return true;
+
+		} finally {
+
+			in.compact();
+		}
+	}
+
+	/**
+	 * Method to execute a request and write its response
+	 * @return false if the request was invalid
+	 */
+	private boolean execute(byte type, int requestId, ByteBuffer in, ByteBuffer out) {
+
+		switch(type) {
+
+			case STOCK_ID: {
+
+				String stockSymbol = readSymbol(in);
+
+				if(stockSymbol==null) {
+					return false;
+				}
+
+				int stockId = exchange.getStockId(stockSymbol);
+
+				writeId(out, type, requestId, stockId);
+				return true;
+			}
+
+			case ADD_STOCK: {
+
+				String stockSymbol = readSymbol(in);
+
+				if(stockSymbol==null || in.remaining()<1 + 3 * 9) {
+					return false;
+				}
+
+				int stockType = in.get();
+
+				if(stockType<0 || stockType>=STOCK_TYPES.length) {
+					return false;
+				}
+
+				BigDecimal lastDividend = readPrice(in);
+				BigDecimal fixedDividend = readPrice(in);
+				BigDecimal parValue = readPrice(in);
+
+				ResultCode result = exchange.tryAddStock(stockSymbol, STOCK_TYPES[stockType], lastDividend, fixedDividend, parValue);
+
+				if(result==ResultCode.OK) {
+					writeId(out, type, requestId, exchange.getStockId(stockSymbol));
+				} else {
+					writeStatus(out, type, requestId, result);
+				}
+
+				return true;
+			}
+
+			case ADD_TRADE: {
+
+				if(in.remaining()<4 + 8 + 8 + 1 + 9) {
+					return false;
+				}
+
+				int stockId = in.getInt();
+				long timestamp = in.getLong();
+				long quantity = in.getLong();
+				int action = in.get();
+				long unscaledValue = in.getLong();
+				int scale = in.get();
+
+				if(action<-1 || action>=ACTION_TYPES.length || scale<0 || scale>FixedPointPrice.MAX_SCALE) {
+					return false;
+				}
+
+				writeStatus(out, type, requestId, addTrade(stockId, timestamp, quantity, (action<0 ? null : ACTION_TYPES[action]), unscaledValue, scale));
+				return true;
+			}
+
+			case STOCK_PRICE:
+			case DIVIDEND_YIELD:
+			case PE_RATIO: {
+
+				if(in.remaining()<4) {
+					return false;
+				}
+
+				StockElement stock = exchange.getStock(in.getInt());
+
+				if(stock==null) {
+
+					writeStatus(out, type, requestId, ResultCode.STOCK_NOT_FOUND);
+					return true;
+				}
+
+				BigDecimal value = (type==STOCK_PRICE ? stock.calculateStockPrice() : (type==DIVIDEND_YIELD ? stock.getDividendYield() : stock.getPERatio()));
+
+				writePrice(out, type, requestId, value);
+				return true;
+			}
+
+			case GBCE_INDEX:
+
+				writePrice(out, type, requestId, exchange.calculateGBCEAllShareIndex());
+				return true;
+
+			default:
+
+				return false;
+		}
+	}
+
+	private ResultCode addTrade(int stockId, long timestamp, long quantity, StockTradeAction.actionTypes actionType, long unscaledValue, int scale) {
+
+		StockElement stock = exchange.getStock(stockId);
+
+		if(stock==null) {
+			return ResultCode.STOCK_NOT_FOUND;
+		}
+
+		if(timestamp==0) {
+			timestamp = stock.getClock().currentTimeMillis();
+		}
+
+		long scaledValue = FixedPointPrice.rescale(unscaledValue, scale, stock.getPriceScale());
+
+		if(scaledValue!=FixedPointPrice.NOT_REPRESENTABLE) {
+			return stock.tryAddTradeAction(timestamp, quantity, actionType, scaledValue);
+		}
+
+		// only the prices with more decimals than the stock or too big for its scale create a BigDecimal
+		return stock.tryAddTradeAction(timestamp, quantity, actionType, BigDecimal.valueOf(unscaledValue, scale));
+	}
+
+	/**
+	 * Method to read the symbol of a request
+	 * @return the symbol or null if the request is too short
+	 */
+	private String readSymbol(ByteBuffer in) {
+
+		if(in.remaining()<1) {
+			return null;
+		}
+
+		int length = in.get() & 0xFF;
+
+		if(in.remaining()<length) {
+			return null;
+		}
+
+		in.get(symbolBytes, 0, length);
+
+		return new String(symbolBytes, 0, length, StandardCharsets.US_ASCII);
+	}
+
+	private static BigDecimal readPrice(ByteBuffer in) {
+
+		long unscaledValue = in.getLong();
+
+		return BigDecimal.valueOf(unscaledValue, in.get());
+	}
+
+	private static void writeHeader(ByteBuffer out, int bodyLength, byte type, int requestId, ResultCode status) {
+
+		out.putInt(1 + 4 + 1 + bodyLength);
+		out.put(type);
+		out.putInt(requestId);
+		out.put((byte) status.ordinal());
+	}
+
+	private static void writeStatus(ByteBuffer out, byte type, int requestId, ResultCode status) {
+		writeHeader(out, 0, type, requestId, status);
+	}
+
+	private static void writeId(ByteBuffer out, byte type, int requestId, int stockId) {
+
+		if(stockId<0) {
+
+			writeHeader(out, 0, type, requestId, ResultCode.STOCK_NOT_FOUND);
+			return;
+		}
+
+		writeHeader(out, 4, type, requestId, ResultCode.OK);
+		out.putInt(stockId);
+	}
+
+	private static void writePrice(ByteBuffer out, byte type, int requestId, BigDecimal value) {
+
+		// the values too big for a long are very unlikely, they are sent as values that can't be calculated
+		if(value==null || value.scale()<0 || value.scale()>Byte.MAX_VALUE || value.unscaledValue().bitLength()>63) {
+
+			writeHeader(out, 0, type, requestId, ResultCode.NO_VALUE);
+			return;
+		}
+
+		writeHeader(out, 9, type, requestId, ResultCode.OK);
+		out.putLong(value.unscaledValue().longValue());
+		out.put((byte) value.scale());
+	}
+
+	/**
+	 * Buffers of a connection, they are created once and reused for all the messages
+	 */
+	private static final class Connection {
+
+		private SocketChannel channel;
+		private ByteBuffer in;	// Requests received and not processed yet, in write mode
+		private ByteBuffer out;	// Responses not sent yet, in write mode
+
+		private Connection(SocketChannel channel) {
+
+			this.channel = channel;
+			this.in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			this.out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+
+		/**
+		 * Method to check if there's a complete request in the input buffer
+		 */
+		private boolean hasFrame() {
+
+			return in.position()>=4 && in.position()>=4 + in.getInt(0);
+		}
+	}
+}
@@ -0,0 +1,460 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Blocking client of a TradeGateway. The simple methods send one request and wait for its response, to pipeline many requests they are sent with
+ * the send methods, which only write them to the output buffer, then flush sends them and readResponse reads the responses in the same order.
+ * The buffers are direct and reused so the trades and the queries don't create any object, the values of each response are read from a Response
+ * reused by the caller. The gateway stops reading while the client doesn't read its responses, so a client that pipelines must read them
+ * every few thousand requests or its writes will block.
+ * Objects of this class are not thread safe, each thread needs its own client
+ * @author nsalgueiro
+ *
+ */
+public class TradeGatewayClient implements AutoCloseable {
+
+	private static final ResultCode[] RESULT_CODES = ResultCode.values();
+
+	private SocketChannel channel;
+	private ByteBuffer out;		// Requests not sent yet, in write mode
+	private ByteBuffer in;		// Responses received and not read yet, in read mode
+	private int nextRequestId;
+	private int pending;		// Requests sent without reading their responses
+	private Response response;	// Response of the simple methods
+
+	/**
+	 * Values of a response, the same object can be used to read all of them
+	 */
+	public static final class Response {
+
+		private byte type;
+		private int requestId;
+		private ResultCode status;
+		private int stockId;
+		private long unscaledValue;
+		private int scale;
+
+		/**
+		 * Getter for the type of the request, one of the constants of TradeGateway
+		 * @return the type
+		 */
+		public byte getType() {
+			return type;
+		}
+
+		/**
+		 * Getter for the ID returned by the send method of the request
+		 * @return the request ID
+		 */
+		public int getRequestId() {
+			return requestId;
+		}
+
+		/**
+		 * Getter for the result of the request
+		 * @return ResultCode.OK or the reason why it failed, ResultCode.NO_VALUE if the value asked for couldn't be calculated
+		 */
+		public ResultCode getStatus() {
+			return status;
+		}
+
+		/**
+		 * Getter for the ID of the stock of STOCK_ID and ADD_STOCK requests
+		 * @return the stock ID or -1 if the request failed
+		 */
+		public int getStockId() {
+			return stockId;
+		}
+
+		/**
+		 * Getter for the unscaled value of the price of a query
+		 * @return the unscaled value
+		 */
+		public long getUnscaledValue() {
+			return unscaledValue;
+		}
+
+		/**
+		 * Getter for the scale of the price of a query
+		 * @return the scale
+		 */
+		public int getScale() {
+			return scale;
+		}
+
+		/**
+		 * Method to retrieve the price of a query as a BigDecimal
+		 * @return the price or null if it couldn't be calculated
+		 */
+		public BigDecimal getValue() {
+			return (status==ResultCode.OK ? BigDecimal.valueOf(unscaledValue, scale) : null);
+		}
+	}
+
+	/**
+	 * Constructor for the class, it connects to the gateway
+	 * @param address	- Address of the gateway
+	 * @throws IOException when the connection fails
+	 */
+	public TradeGatewayClient(InetSocketAddress address) throws IOException {
+
+		this.channel = SocketChannel.open(address);
+		this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		this.out = ByteBuffer.allocateDirect(TradeGateway.BUFFER_SIZE);
+		this.in = ByteBuffer.allocateDirect(TradeGateway.BUFFER_SIZE);
+		this.in.flip();	// empty
+		this.response = new Response();
+	}
+
+	/**
+	 * Method to retrieve the ID of a stock
+	 * @param stockSymbol	- Symbol of the stock
+	 * @return the ID or -1 if the stock was not found
+	 */
+	public int getStockId(String stockSymbol) throws IOException {
+
+		checkIdle();
+
+		sendStockId(stockSymbol);
+		return call().stockId;
+	}
+
+	/**
+	 * Method to add a stock
+	 * @param stockSymbol	- Symbol of the stock
+	 * @param stockType		- Type of the stock
+	 * @param lastDividend	- Value of the last dividend
+	 * @param fixedDividend	- Value of the fixed dividend (in percentage) only used for preferred stocks
+	 * @param parValue		- Par value
+	 * @return ResultCode.OK if the stock was added or the reason why it wasn't
+	 */
+	public ResultCode addStock(String stockSymbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) throws IOException {
+
+		checkIdle();
+
+		sendAddStock(stockSymbol, stockType, lastDividend, fixedDividend, parValue);
+		return call().status;
+	}
+
+	/**
+	 * Method to add a trade action with the current time of the exchange
+	 * @param stockId		- ID of the stock
+	 * @param quantity		- Quantity of shares bought or sold
+	 * @param actionType	- Action performed (B or S for respectively buy or sale)
+	 * @param value			- Share value
+	 * @return ResultCode.OK if the trade was added or the reason why it wasn't
+	 */
+	public ResultCode addTradeAction(int stockId, long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) throws IOException {
+
+		checkIdle();
+
+		if(value==null) {
+			throw new IllegalArgumentException("Invalid argument value, it cannot be null");
+		}
+
+		sendTrade(stockId, 0, quantity, actionType, value.unscaledValue().longValueExact(), value.scale());
+		return call().status;
+	}
+
+	/**
+	 * Method to calculate the stock price of a stock
+	 * @param stockId	- ID of the stock
+	 * @return the stock price or null if it can't be calculated
+	 */
+	public BigDecimal calculateStockPrice(int stockId) throws IOException {
+
+		checkIdle();
+
+		sendQuery(TradeGateway.STOCK_PRICE, stockId);
+		return call().getValue();
+	}
+
+	/**
+	 * Method to calculate the dividend yield of a stock
+	 * @param stockId	- ID of the stock
+	 * @return the dividend yield or null if it can't be calculated
+	 */
+	public BigDecimal getDividendYield(int stockId) throws IOException {
+
+		checkIdle();
+
+		sendQuery(TradeGateway.DIVIDEND_YIELD, stockId);
+		return call().getValue();
+	}
+
+	/**
+	 * Method to calculate the P/E ratio of a stock
+	 * @param stockId	- ID of the stock
+	 * @return the P/E ratio or null if it can't be calculated
+	 */
+	public BigDecimal getPERatio(int stockId) throws IOException {
+
+		checkIdle();
+
+		sendQuery(TradeGateway.PE_RATIO, stockId);
+		return call().getValue();
+	}
+
+	/**
+	 * Method to calculate the GBCE All Share Index
+	 * @return the index or null if there are no prices
+	 */
+	public BigDecimal calculateGBCEAllShareIndex() throws IOException {
+
+		checkIdle();
+
+		sendQuery(TradeGateway.GBCE_INDEX, 0);
+		return call().getValue();
+	}
+
+	/**
+	 * Method to write a STOCK_ID request to the output buffer
+	 * @param stockSymbol	- Symbol of the stock
+	 * @return the request ID
+	 */
+	public int sendStockId(String stockSymbol) throws IOException {
+
+		byte[] symbol = encodeSymbol(stockSymbol);
+		int requestId = startRequest(TradeGateway.STOCK_ID, 1 + symbol.length);
+
+		out.put((byte) symbol.length);
+		out.put(symbol);
+
+		return requestId;
+	}
+
+	/**
+	 * Method to write an ADD_STOCK request to the output buffer
+	 * @return the request ID
+	 */
+	public int sendAddStock(String stockSymbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) throws IOException {
+
+		if(stockType==null || lastDividend==null || fixedDividend==null || parValue==null) {
+			throw new IllegalArgumentException("Invalid arguments, no null values allowed");
+		}
+
+		byte[] symbol = encodeSymbol(stockSymbol);
+		int requestId = startRequest(TradeGateway.ADD_STOCK, 1 + symbol.length + 1 + 3 * 9);
+
+		out.put((byte) symbol.length);
+		out.put(symbol);
+		out.put((byte) stockType.ordinal());
+		putPrice(lastDividend);
+		putPrice(fixedDividend);
+		putPrice(parValue);
+
+		return requestId;
+	}
+
+	/**
+	 * Method to write an ADD_TRADE request to the output buffer
+	 * @param stockId		- ID of the stock
+	 * @param timestamp		- Time of the trade in milliseconds or 0 for the current time of the exchange
+	 * @param quantity		- Quantity of shares bought or sold
+	 * @param actionType	- Action performed (B or S for respectively buy or sale)
+	 * @param unscaledValue	- Unscaled share value
+	 * @param scale			- Scale of the share value, from 0 to FixedPointPrice.MAX_SCALE
+	 * @return the request ID
+	 */
+	public int sendTrade(int stockId, long timestamp, long quantity, StockTradeAction.actionTypes actionType, long unscaledValue, int scale) throws IOException {
+
+		if(scale<0 || scale>FixedPointPrice.MAX_SCALE) {
+			throw new IllegalArgumentException("Invalid argument scale, it must be between 0 and " + FixedPointPrice.MAX_SCALE);
+		}
+
+		int requestId = startRequest(TradeGateway.ADD_TRADE, 4 + 8 + 8 + 1 + 9);
+
+		out.putInt(stockId);
+		out.putLong(timestamp);
+		out.putLong(quantity);
+		out.put((byte) (actionType!=null ? actionType.ordinal() : -1));
+		out.putLong(unscaledValue);
+		out.put((byte) scale);
+
+		return requestId;
+	}
+
+	/**
+	 * Method to write a query to the output buffer
+	 * @param type		- TradeGateway.STOCK_PRICE, DIVIDEND_YIELD, PE_RATIO or GBCE_INDEX
+	 * @param stockId	- ID of the stock, not used by GBCE_INDEX
+	 * @return the request ID
+	 */
+	public int sendQuery(byte type, int stockId) throws IOException {
+
+		if(type==TradeGateway.GBCE_INDEX) {
+			return startRequest(type, 0);
+		}
+
+		if(type!=TradeGateway.STOCK_PRICE && type!=TradeGateway.DIVIDEND_YIELD && type!=TradeGateway.PE_RATIO) {
+			throw new IllegalArgumentException("Invalid argument type, it must be a query");
+		}
+
+		int requestId = startRequest(type, 4);
+
+		out.putInt(stockId);
+
+		return requestId;
+	}
+
+	/**
+	 * Method to send all the requests written to the output buffer
+	 */
+	public void flush() throws IOException {
+
+		out.flip();
+
+		while(out.hasRemaining()) {
+			channel.write(out);
+		}
+
+		out.clear();
+	}
+
+	/**
+	 * Method to read the next response, it waits for it if it hasn't arrived. The requests must have been flushed
+	 * @param pResponse	- Object where the values of the response are read
+	 * @return the same response object
+	 */
+	public Response readResponse(Response pResponse) throws IOException {
+
+		if(pending==0) {
+			throw new IllegalStateException("There are no requests waiting for a response");
+		}
+
+		fill(4);
+
+		int length = in.getInt();
+
+		fill(length);
+
+		int end = in.position() + length;
+
+		pResponse.type = in.get();
+		pResponse.requestId = in.getInt();
+		pResponse.status = RESULT_CODES[in.get()];
+		pResponse.stockId = -1;
+		pResponse.unscaledValue = 0;
+		pResponse.scale = 0;
+
+		if(in.position()<end) {
+
+			if(pResponse.type==TradeGateway.STOCK_ID || pResponse.type==TradeGateway.ADD_STOCK) {
+
+				pResponse.stockId = in.getInt();
+
+			} else {
+
+				pResponse.unscaledValue = in.getLong();
+				pResponse.scale = in.get();
+			}
+		}
+
+		in.position(end);
+		pending--;
+
+		return pResponse;
+	}
+
+	/**
+	 * Getter for the number of requests sent whose responses haven't been read
+	 * @return the number of requests
+	 */
+	public int getPendingResponses() {
+		return pending;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Method to check that no pipelined requests are waiting, otherwise the simple methods would read their responses instead of their own
+	 */
+	private void checkIdle() {
+
+		if(pending>0) {
+			throw new IllegalStateException("The responses of the pipelined requests must be read first");
+		}
+	}
+
+	/**
+	 * Method to send the request written by a simple method and read its response
+	 */
+	private Response call() throws IOException {
+
+		flush();
+
+		return readResponse(response);
+	}
+
+	private int startRequest(byte type, int bodyLength) throws IOException {
+
+		if(out.remaining()<4 + 1 + 4 + bodyLength) {
+			flush();
+		}
+
+		int requestId = nextRequestId++;
+
+		out.putInt(1 + 4 + bodyLength);
+		out.put(type);
+		out.putInt(requestId);
+		pending++;
+
+		return requestId;
+	}
+
+	private void putPrice(BigDecimal value) {
+
+		out.putLong(value.unscaledValue().longValueExact());
+		out.put((byte) value.scale());
+	}
+
+	/**
+	 * Method to wait until the input buffer has at least some bytes
+	 */
+	private void fill(int bytes) throws IOException {
+
+		if(in.remaining()>=bytes) {
+			return;
+		}
+
+		in.compact();
+
+		try {
+
+			while(in.position()<bytes) {
+
+				if(channel.read(in)<0) {
+					throw new EOFException("The gateway closed the connection");
+				}
+			}
+
+		} finally {
+
+			in.flip();
+		}
+	}
+
+	private static byte[] encodeSymbol(String stockSymbol) {
+
+		if(stockSymbol==null || stockSymbol.isEmpty()) {
+			throw new IllegalArgumentException("Invalid argument stockSymbol, it cannot be empty");
+		}
+
+		byte[] symbol = stockSymbol.getBytes(StandardCharsets.US_ASCII);
+
+		if(symbol.length>255) {
+			throw new IllegalArgumentException("Invalid argument stockSymbol, it cannot be longer than 255 characters");
+		}
+
+		return symbol;
+	}
+}
@@ -0,0 +1,132 @@
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TradeGatewayTest {
+
+	private StockExchange exchange;
+	private TradeGateway gateway;
+	private InetSocketAddress address;
+
+	@Before
+	public void setUp() throws IOException {
+
+		exchange = new StockExchange();
+		exchange.setEventSink(new AsyncEventSink(1024, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err));
+		gateway = new TradeGateway(exchange, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		gateway.start();
+		address = new InetSocketAddress(InetAddress.getLoopbackAddress(), gateway.getPort());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		gateway.close();
+	}
+
+	@Test
+	public void testRequests() throws IOException {
+
+		try(TradeGatewayClient client = new TradeGatewayClient(address)) {
+
+			assertEquals(ResultCode.OK, client.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100)));
+			assertEquals(ResultCode.STOCK_ALREADY_EXISTS, client.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), BigDecimal.ZERO, new BigDecimal(100)));
+
+			int pop = client.getStockId("POP");
+
+			assertEquals(exchange.getStockId("POP"), pop);
+			assertEquals(-1, client.getStockId("GIN"));
+
+			// no trades yet, the values can't be calculated
+			assertNull(client.calculateStockPrice(pop));
+			assertNull(client.calculateGBCEAllShareIndex());
+
+			assertEquals(ResultCode.OK, client.addTradeAction(pop, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("4.5")));
+			assertEquals(ResultCode.INVALID_QUANTITY, client.addTradeAction(pop, 0, StockTradeAction.actionTypes.BUY, new BigDecimal("4.5")));
+			assertEquals(ResultCode.STOCK_NOT_FOUND, client.addTradeAction(12345, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("4.5")));
+
+			StockElement stock = exchange.getStock("POP");
+
+			assertEquals(0, stock.calculateStockPrice().compareTo(client.calculateStockPrice(pop)));
+			assertEquals(0, stock.getDividendYield().compareTo(client.getDividendYield(pop)));
+			assertEquals(0, stock.getPERatio().compareTo(client.getPERatio(pop)));
+			assertEquals(0, exchange.calculateGBCEAllShareIndex().compareTo(client.calculateGBCEAllShareIndex()));
+			assertNull(client.calculateStockPrice(12345));
+		}
+	}
+
+	@Test
+	public void testPipelining() throws IOException {
+
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, BigDecimal.ZERO, BigDecimal.ZERO, new BigDecimal(100));
+
+		int tea = exchange.getStockId("TEA");
+		long now = System.currentTimeMillis();
+		int trades = 20000;
+
+		try(TradeGatewayClient client = new TradeGatewayClient(address)) {
+
+			TradeGatewayClient.Response response = new TradeGatewayClient.Response();
+			int expected = 0;
+
+			// more requests than fit in the buffers, the responses are read every 1000 requests
+			for(int i=0; i<trades; i++) {
+
+				assertEquals(i, client.sendTrade(tea, now, 1, StockTradeAction.actionTypes.BUY, 100 + (i % 2), 1));
+
+				if(client.getPendingResponses()==1000) {
+
+					client.flush();
+
+					while(client.getPendingResponses()>0) {
+
+						client.readResponse(response);
+
+						assertEquals(expected++, response.getRequestId());	// in the same order as the requests
+						assertEquals(ResultCode.OK, response.getStatus());
+					}
+				}
+			}
+
+			client.sendQuery(TradeGateway.STOCK_PRICE, tea);
+			client.flush();
+			client.readResponse(response);
+
+			assertEquals(trades, response.getRequestId());
+			assertEquals(0, new BigDecimal("10.05").compareTo(response.getValue()));
+		}
+	}
+
+	@Test
+	public void testInvalidFrameClosesConnection() throws IOException {
+
+		try(SocketChannel channel = SocketChannel.open(address)) {
+
+			ByteBuffer frame = ByteBuffer.allocate(9);
+
+			frame.putInt(5).put((byte) 99).putInt(1).flip();	// unknown request type
+			channel.write(frame);
+
+			assertEquals(-1, channel.read(ByteBuffer.allocate(16)));
+		}
+
+		// the gateway still accepts other clients
+		try(TradeGatewayClient client = new TradeGatewayClient(address)) {
+
+			assertNull(client.calculateGBCEAllShareIndex());
+
+		} catch (EOFException e) {
+
+			fail("The gateway closed a valid connection");
+		}
+	}
+}
@@ -0,0 +1,575 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory mapped journal where the StockExchange writes every stock and trade change so its state can be rebuilt after the process stops.
+ * The file is a sequence of fixed width binary records written directly in the mapped memory, so writing a record creates no objects
+ * and doesn't need a system call. The file is mapped in regions and grows one region at a time.
+ * Several threads can write at the same time, each one claims the position of its record with an atomic counter.
+ * How often the mapped memory is forced to the disk depends on the sync policy, the operating system writes it anyway even if the process dies,
+ * forcing it only matters if the whole machine stops.
+ * Record layout (64 bytes):
+ *   0 type, 1 action type or stock type, 2 scale, 3 symbol length, 4-27 symbol (UTF-8), 28-35, 36-43 and 44-51 values, 52-59 unused, 60-63 checksum
+ * The type and the checksum are written last so a record is only valid once it is complete. The writers claim their records in order but they can finish
+ * them in any order, so when the process dies a record that was never completed can be followed by complete ones that were already acknowledged.
+ * When the journal is opened every complete record is kept, the incomplete ones before the last complete record are replaced by records that are skipped
+ * when reading and only the ones after it are removed.
+ * The journal is never compacted while it is in use, every trade written is replayed when it is opened again, so it should be compacted
+ * with StockExchange.compactJournal from time to time while no exchange is using it.
+ * @author nsalgueiro
+ *
+ */
+public class TradeJournal implements Closeable {
+
+	/**
+	 * Policies to decide when the records are forced to the disk, from the safest and slowest to the fastest
+	 */
+	public static enum SyncPolicy {
+		EVERY_WRITE,	// each record is forced before the write returns
+		BATCHED,		// the records are forced periodically by a background thread
+		OS				// the operating system decides when to write, records are only forced when the journal is closed
+	};
+
+	/**
+	 * Interface to receive the records of the journal when it is read
+	 */
+	public static interface Reader {
+
+		void stockAdded(String stockSymbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue);
+		void stockUpdated(String stockSymbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue);
+		void stockRemoved(String stockSymbol);
+		void tradeAdded(String stockSymbol, long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue, int scale);
+	}
+
+	public static final int RECORD_SIZE = 64;
+	public static final int MAX_SYMBOL_LENGTH = 24;	// Maximum length in bytes of a symbol
+
+	private static final int _DEFAULT_REGION_SIZE = 16 * 1024 * 1024;	// The file grows 16 MB at a time
+	private static final long _DEFAULT_BATCH_MILLIS = 10;
+
+	private static final int _MAGIC = 0x4A50544A;	// "JPTJ", written in the first record of the file
+	private static final int _VERSION = 1;
+
+	private static final byte _TYPE_EMPTY = 0;
+	private static final byte _TYPE_HEADER = 1;
+	private static final byte _TYPE_ADD_STOCK = 2;
+	private static final byte _TYPE_UPDATE_STOCK = 3;
+	private static final byte _TYPE_REMOVE_STOCK = 4;
+	private static final byte _TYPE_TRADE = 5;
+	private static final byte _TYPE_SKIPPED = 6;	// Replaces a record that was never completed
+
+	private static final byte _NO_ACTION = -1;
+
+	private static final int _SYMBOL_OFFSET = 4;
+	private static final int _VALUE1_OFFSET = 28;
+	private static final int _VALUE2_OFFSET = 36;
+	private static final int _VALUE3_OFFSET = 44;
+	private static final int _CHECKSUM_OFFSET = 60;
+
+	private FileChannel channel;
+	private SyncPolicy syncPolicy;
+	private int scale;				// Scale of the fixed point values in the records
+	private int regionSize;
+	private int recordsPerRegion;
+
+	private volatile MappedByteBuffer[] regions;	// Mapped regions of the file, a new array is published every time one is added
+	private AtomicLong nextRecord;					// Number of the next record to be written
+	private long recoveredRecords;					// Number of records up to the last valid one found when the journal was opened
+	private long discardedRecords;					// Number of records before the last valid one that were not complete when the journal was opened
+
+	private ScheduledExecutorService syncScheduler;	// Only used with the BATCHED policy
+
+	/**
+	 * Method to open a journal with the default region size and batch interval, the file is created if it doesn't exist
+	 * @param file			- Path of the journal file
+	 * @param syncPolicy	- When the records are forced to the disk
+	 * @return the journal
+	 * @throws IOException if the file can't be opened or it is not a journal
+	 */
+	public static TradeJournal open(Path file, SyncPolicy syncPolicy) throws IOException {
+
+		return new TradeJournal(file, syncPolicy, FixedPointPrice.DEFAULT_SCALE, _DEFAULT_REGION_SIZE, _DEFAULT_BATCH_MILLIS);
+	}
+
+	/**
+	 * Method to open a journal with the default region size and batch interval and a given scale, the file is created if it doesn't exist
+	 * @param file			- Path of the journal file
+	 * @param syncPolicy	- When the records are forced to the disk
+	 * @param scale			- Scale of the fixed point values of a new journal, an existing one keeps its own scale
+	 * @return the journal
+	 * @throws IOException if the file can't be opened or it is not a journal
+	 */
+	public static TradeJournal open(Path file, SyncPolicy syncPolicy, int scale) throws IOException {
+
+		return new TradeJournal(file, syncPolicy, scale, _DEFAULT_REGION_SIZE, _DEFAULT_BATCH_MILLIS);
+	}
+
+	/**
+	 * Constructor for the class, the file is created if it doesn't exist. If it exists the records that are not complete (for example the ones
+	 * that were being written when the process died) are discarded
+	 * @param file			- Path of the journal file
+	 * @param syncPolicy	- When the records are forced to the disk
+	 * @param scale			- Scale of the fixed point values of a new journal, an existing one keeps its own scale
+	 * @param regionSize	- Size in bytes of each mapped region, it is rounded down to a multiple of the record size
+	 * @param batchMillis	- Interval between forces with the BATCHED policy
+	 * @throws IOException if the file can't be opened or it is not a journal
+	 */
+	public TradeJournal(Path file, SyncPolicy syncPolicy, int scale, int regionSize, long batchMillis) throws IOException {
+
+		if(syncPolicy==null) {
+			throw new IllegalArgumentException("Invalid argument syncPolicy, it cannot be null");
+		}
+
+		if(regionSize<RECORD_SIZE * 2) {
+			throw new IllegalArgumentException("Invalid argument regionSize, it must have space for at least 2 records");
+		}
+
+		this.syncPolicy = syncPolicy;
+		this.scale = FixedPointPrice.checkScale(scale);
+		this.recordsPerRegion = regionSize / RECORD_SIZE;
+		this.regionSize = recordsPerRegion * RECORD_SIZE;
+		this.regions = new MappedByteBuffer[0];
+
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+
+			recover();
+
+		} catch (IOException | RuntimeException e) {
+
+			channel.close();
+			throw e;
+		}
+
+		if(syncPolicy==SyncPolicy.BATCHED) {
+
+			syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+
+				Thread thread = new Thread(runnable, "TradeJournalSync");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+			syncScheduler.scheduleWithFixedDelay(this::force, batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void recover() throws IOException {
+
+		long fileRecords = channel.size() / RECORD_SIZE;
+		long valid = 0;		// position after the last complete record
+
+		// We go through the whole file since a record that is not complete can be followed by complete ones,
+		// the file grows one region at a time so after the last record there is at most the rest of the last region
+		for(long position = 0; position<fileRecords; position++) {
+
+			if(isComplete(position)) {
+				valid = position + 1;
+			}
+		}
+
+		if(fileRecords>0 && !isComplete(0) && (valid>0 || getRegion(0).get(0)!=_TYPE_EMPTY)) {
+			throw new IOException("The file is not a trade journal");
+		}
+
+		if(valid==0) {
+
+			// a new journal, the header keeps the scale of the values
+			nextRecord = new AtomicLong(0);
+			long position = nextRecord.getAndIncrement();
+			MappedByteBuffer region = getRegion(position);
+
+			region.putLong(_VALUE1_OFFSET, _MAGIC);
+			region.putLong(_VALUE2_OFFSET, _VERSION);
+			region.putLong(_VALUE3_OFFSET, scale);
+			commit(region, 0, _TYPE_HEADER);
+			valid = 1;
+
+		} else {
+
+			MappedByteBuffer region = getRegion(0);
+
+			if(region.get(0)!=_TYPE_HEADER || region.getLong(_VALUE1_OFFSET)!=_MAGIC || region.getLong(_VALUE2_OFFSET)!=_VERSION) {
+				throw new IOException("The file is not a trade journal");
+			}
+
+			this.scale = (int) region.getLong(_VALUE3_OFFSET);
+			nextRecord = new AtomicLong(valid);
+		}
+
+		recoveredRecords = valid;
+		discardedRecords = 0;
+
+		// The records that were claimed but not completed before the last complete one are replaced so the reader skips them
+		for(long position = 1; position<valid; position++) {
+
+			if(!isComplete(position)) {
+
+				clearRecord(position);
+				commit(getRegion(position), (int) (position % recordsPerRegion) * RECORD_SIZE, _TYPE_SKIPPED);
+				discardedRecords++;
+			}
+		}
+
+		// Anything after the valid records is cleared so it can't be read again after new records are written,
+		// since the file grows one region at a time this is at most the rest of the last region
+		for(long position = valid; position<fileRecords; position++) {
+			clearRecord(position);
+		}
+	}
+
+	private boolean isComplete(long position) throws IOException {
+
+		MappedByteBuffer region = getRegion(position);
+		int offset = (int) (position % recordsPerRegion) * RECORD_SIZE;
+
+		return region.get(offset)!=_TYPE_EMPTY && region.getInt(offset + _CHECKSUM_OFFSET)==checksum(region, offset);
+	}
+
+	private void clearRecord(long position) throws IOException {
+
+		MappedByteBuffer region = getRegion(position);
+		int offset = (int) (position % recordsPerRegion) * RECORD_SIZE;
+
+		for(int i=0; i<RECORD_SIZE; i++) {
+			region.put(offset + i, (byte) 0);
+		}
+	}
+
+	/**
+	 * Method to retrieve the mapped region where a record is, mapping it if needed
+	 * @param position	- Number of the record
+	 * @return the region
+	 * @throws IOException if the region can't be mapped
+	 */
+	private MappedByteBuffer getRegion(long position) throws IOException {
+
+		int index = (int) (position / recordsPerRegion);
+		MappedByteBuffer[] current = regions;
+
+		if(index<current.length) {
+			return current[index];	// the usual case, no lock needed
+		}
+
+		synchronized (this) {	// only one thread maps new regions
+
+			current = regions;
+
+			if(index>=current.length) {
+
+				MappedByteBuffer[] newRegions = new MappedByteBuffer[index + 1];
+				System.arraycopy(current, 0, newRegions, 0, current.length);
+
+				for(int i=current.length; i<=index; i++) {
+					newRegions[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * regionSize, regionSize);
+				}
+
+				regions = newRegions;
+				current = newRegions;
+			}
+
+			return current[index];
+		}
+	}
+
+	/**
+	 * Method to retrieve the scale of the fixed point values of the journal
+	 * @return the scale
+	 */
+	public int getScale() {
+		return scale;
+	}
+
+	/**
+	 * Method to retrieve the sync policy of the journal
+	 * @return the sync policy
+	 */
+	public SyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+
+	/**
+	 * Method to retrieve the number of records in the journal, including the header
+	 * @return number of records
+	 */
+	public long getRecordCount() {
+		return nextRecord.get();
+	}
+
+	/**
+	 * Method to retrieve the number of records up to the last valid one found when the journal was opened, including the header and the discarded records
+	 * @return number of records
+	 */
+	public long getRecoveredRecordCount() {
+		return recoveredRecords;
+	}
+
+	/**
+	 * Method to retrieve the number of records that were not complete when the journal was opened but were followed by complete ones
+	 * @return number of records
+	 */
+	public long getDiscardedRecordCount() {
+		return discardedRecords;
+	}
+
+	/**
+	 * Method to encode a stock symbol for the journal, StockElement keeps the result so symbols are only encoded once
+	 * @param stockSymbol	- The symbol
+	 * @return the encoded symbol or null if it is longer than MAX_SYMBOL_LENGTH bytes
+	 */
+	public static byte[] encodeSymbol(String stockSymbol) {
+
+		byte[] symbol = stockSymbol.getBytes(StandardCharsets.UTF_8);
+
+		return (symbol.length<=MAX_SYMBOL_LENGTH ? symbol : null);
+	}
+
+	/**
+	 * Method to write a new stock
+	 * @param symbol	- The symbol encoded with encodeSymbol
+	 * @param stockType		- The stock type
+	 * @param lastDividend	- Value of the last dividend
+	 * @param fixedDividend	- Value of the fixed dividend
+	 * @param parValue		- The par value
+	 * @throws IOException if the record can't be written
+	 */
+	public void writeAddStock(byte[] symbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) throws IOException {
+
+		writeStock(_TYPE_ADD_STOCK, symbol, stockType, lastDividend, fixedDividend, parValue);
+	}
+
+	/**
+	 * Method to write the new values of an existing stock
+	 * @param symbol	- The symbol encoded with encodeSymbol
+	 * @param stockType		- The stock type
+	 * @param lastDividend	- Value of the last dividend
+	 * @param fixedDividend	- Value of the fixed dividend
+	 * @param parValue		- The par value
+	 * @throws IOException if the record can't be written
+	 */
+	public void writeUpdateStock(byte[] symbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) throws IOException {
+
+		writeStock(_TYPE_UPDATE_STOCK, symbol, stockType, lastDividend, fixedDividend, parValue);
+	}
+
+	private void writeStock(byte type, byte[] symbol, StockElement.StockTypes stockType, BigDecimal lastDividend, BigDecimal fixedDividend, BigDecimal parValue) throws IOException {
+
+		write(type, symbol, (byte) stockType.ordinal(), toJournalValue(lastDividend), toJournalValue(fixedDividend), toJournalValue(parValue));
+	}
+
+	/**
+	 * Method to write the removal of a stock
+	 * @param symbol	- The symbol encoded with encodeSymbol
+	 * @throws IOException if the record can't be written
+	 */
+	public void writeRemoveStock(byte[] symbol) throws IOException {
+
+		write(_TYPE_REMOVE_STOCK, symbol, (byte) 0, 0, 0, 0);
+	}
+
+	/**
+	 * Method to write a trade, this is the hot path and it creates no objects when the value has the scale of the journal
+	 * @param symbol		- The symbol encoded with encodeSymbol
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- Action performed
+	 * @param scaledValue	- Share value as a fixed point value
+	 * @param valueScale	- Scale of the share value
+	 * @throws IOException if the record can't be written
+	 */
+	public void writeTrade(byte[] symbol, long timestamp, long quantity, StockTradeAction.actionTypes actionType, long scaledValue, int valueScale) throws IOException {
+
+		long journalValue = FixedPointPrice.rescale(scaledValue, valueScale, scale);
+
+		if(journalValue==FixedPointPrice.NOT_REPRESENTABLE) {	// the value has more decimal places than the journal, it is rounded to the scale of the journal
+			journalValue = toJournalValue(FixedPointPrice.toBigDecimal(scaledValue, valueScale));
+		}
+
+		write(_TYPE_TRADE, symbol, (actionType!=null ? (byte) actionType.ordinal() : _NO_ACTION), timestamp, quantity, journalValue);
+	}
+
+	/**
+	 * Method to write a trade with a BigDecimal value
+	 * @param symbol		- The symbol encoded with encodeSymbol
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param actionType	- Action performed
+	 * @param value			- Share value, values with more decimal places than the journal are rounded
+	 * @throws IOException if the record can't be written
+	 */
+	public void writeTrade(byte[] symbol, long timestamp, long quantity, StockTradeAction.actionTypes actionType, BigDecimal value) throws IOException {
+
+		write(_TYPE_TRADE, symbol, (actionType!=null ? (byte) actionType.ordinal() : _NO_ACTION), timestamp, quantity, toJournalValue(value));
+	}
+
+	private long toJournalValue(BigDecimal value) {
+
+		if(value==null) {
+			return FixedPointPrice.NOT_REPRESENTABLE;	// stock values can be null, NOT_REPRESENTABLE is never written for a real value
+		}
+
+		long scaled = FixedPointPrice.toScaled(value, scale);
+
+		if(scaled==FixedPointPrice.NOT_REPRESENTABLE) {
+
+			// the journal only keeps fixed point values so values with more decimal places are rounded, values too big for a long are not accepted
+			scaled = FixedPointPrice.toScaled(value.setScale(scale, BigDecimal.ROUND_HALF_UP), scale);
+
+			if(scaled==FixedPointPrice.NOT_REPRESENTABLE) {
+				throw new IllegalArgumentException("Value " + value + " is too big for the journal");
+			}
+		}
+
+		return scaled;
+	}
+
+	private static BigDecimal fromJournalValue(long value, int recordScale) {
+
+		return (value==FixedPointPrice.NOT_REPRESENTABLE ? null : FixedPointPrice.toBigDecimal(value, recordScale));
+	}
+
+	private void write(byte type, byte[] symbol, byte flags, long value1, long value2, long value3) throws IOException {
+
+		long position = nextRecord.getAndIncrement();	// each writer gets its own record so no lock is needed
+		MappedByteBuffer region = getRegion(position);
+		int offset = (int) (position % recordsPerRegion) * RECORD_SIZE;
+
+		region.put(offset + 1, flags);
+		region.put(offset + 2, (byte) scale);
+		region.put(offset + 3, (byte) symbol.length);
+
+		for(int i=0; i<MAX_SYMBOL_LENGTH; i++) {
+			region.put(offset + _SYMBOL_OFFSET + i, (i<symbol.length ? symbol[i] : 0));
+		}
+
+		region.putLong(offset + _VALUE1_OFFSET, value1);
+		region.putLong(offset + _VALUE2_OFFSET, value2);
+		region.putLong(offset + _VALUE3_OFFSET, value3);
+
+		commit(region, offset, type);
+
+		if(syncPolicy==SyncPolicy.EVERY_WRITE) {
+			region.force(offset, RECORD_SIZE);
+		}
+	}
+
+	private void commit(MappedByteBuffer region, int offset, byte type) {
+
+		region.put(offset, type);
+		region.putInt(offset + _CHECKSUM_OFFSET, checksum(region, offset));
+	}
+
+	/**
+	 * Method to calculate the checksum of a record, it covers all the bytes of the record except the checksum itself
+	 */
+	private static int checksum(MappedByteBuffer region, int offset) {
+
+		int checksum = 1;
+
+		for(int i=0; i<_CHECKSUM_OFFSET; i+=4) {
+			checksum = 31 * checksum + region.getInt(offset + i);
+		}
+
+		return checksum;
+	}
+
+	/**
+	 * Method to read all the records of the journal in the order they were written
+	 * @param reader	- Object that will receive the records
+	 * @throws IOException if the journal can't be read
+	 */
+	public void read(Reader reader) throws IOException {
+
+		long records = nextRecord.get();
+		byte[] symbolBytes = new byte[MAX_SYMBOL_LENGTH];
+
+		for(long position = 1; position<records; position++) {	// the first record is the header
+
+			MappedByteBuffer region = getRegion(position);
+			int offset = (int) (position % recordsPerRegion) * RECORD_SIZE;
+
+			byte type = region.get(offset);
+
+			if(type==_TYPE_EMPTY) {
+				break;	// a record that was claimed but not written yet
+			}
+
+			if(type==_TYPE_SKIPPED) {
+				continue;	// a record that was never completed before the journal was opened again
+			}
+
+			byte flags = region.get(offset + 1);
+			int recordScale = region.get(offset + 2);
+			int symbolLength = region.get(offset + 3);
+
+			for(int i=0; i<symbolLength; i++) {
+				symbolBytes[i] = region.get(offset + _SYMBOL_OFFSET + i);
+			}
+
+			String stockSymbol = new String(symbolBytes, 0, symbolLength, StandardCharsets.UTF_8);
+
+			long value1 = region.getLong(offset + _VALUE1_OFFSET);
+			long value2 = region.getLong(offset + _VALUE2_OFFSET);
+			long value3 = region.getLong(offset + _VALUE3_OFFSET);
+
+			switch(type) {
+
+			case _TYPE_ADD_STOCK :
+				reader.stockAdded(stockSymbol, StockElement.StockTypes.values()[flags], fromJournalValue(value1, recordScale),
+						fromJournalValue(value2, recordScale), fromJournalValue(value3, recordScale));
+				break;
+
+			case _TYPE_UPDATE_STOCK :
+				reader.stockUpdated(stockSymbol, StockElement.StockTypes.values()[flags], fromJournalValue(value1, recordScale),
+						fromJournalValue(value2, recordScale), fromJournalValue(value3, recordScale));
+				break;
+
+			case _TYPE_REMOVE_STOCK :
+				reader.stockRemoved(stockSymbol);
+				break;
+
+			case _TYPE_TRADE :
+				reader.tradeAdded(stockSymbol, value1, value2, (flags==_NO_ACTION ? null : StockTradeAction.actionTypes.values()[flags]), value3, recordScale);
+				break;
+
+			default :
+				throw new IOException("Unknown record type " + type + " at record " + position);
+			}
+		}
+	}
+
+	/**
+	 * Method to force all the records written so far to the disk
+	 */
+	public void force() {
+
+		for(MappedByteBuffer region: regions) {
+			region.force();
+		}
+	}
+
+	/**
+	 * Method to close the journal, all the records are forced to the disk first
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if(syncScheduler!=null) {
+			syncScheduler.shutdown();
+		}
+
+		force();
+		channel.close();
+	}
+}
@@ -0,0 +1,297 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TradeJournalTest {
+
+	private Path journalFile;
+
+	@Before
+	public void setUp() throws IOException {
+
+		journalFile = Files.createTempFile("tradejournal", ".jrn");
+		Files.delete(journalFile);	// the journal creates the file itself
+	}
+
+	@After
+	public void tearDown() throws IOException {
+
+		Files.deleteIfExists(journalFile);
+	}
+
+	private TradeJournal openJournal() throws IOException {
+
+		// small regions so the tests also cover the mapping of new regions
+		return new TradeJournal(journalFile, TradeJournal.SyncPolicy.EVERY_WRITE, 6, 1024, 10);
+	}
+
+	@Test
+	public void testReplayAfterReopen() throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		TradeJournal journal = openJournal();
+		StockExchange exchange = new StockExchange(journal);
+
+		assertTrue("Add TEA ", exchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100)));
+		assertTrue("Add GIN ", exchange.addStock("GIN", StockElement.StockTypes.PREFERRED, new BigDecimal(8), new BigDecimal(2), new BigDecimal(100)));
+		assertTrue("Add POP ", exchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100)));
+
+		// more trades than fit in one region
+		for(int i=0; i<40; i++) {
+
+			assertTrue("Add trade ", exchange.getStock("TEA").addTradeAction(now - i * 1000, 10 + i, StockTradeAction.actionTypes.BUY, new BigDecimal("100.25")));
+			assertTrue("Add scaled trade ", exchange.getStock("GIN").addTradeAction(now - i * 1000, 5, StockTradeAction.actionTypes.SELL, 95500000L));
+		}
+
+		exchange.getStock("GIN").setLastDividend(new BigDecimal("9.5"));
+		assertTrue("Remove POP ", exchange.removeStock("POP"));
+
+		BigDecimal teaPrice = exchange.getStock("TEA").calculateStockPrice();
+		BigDecimal ginPrice = exchange.getStock("GIN").calculateStockPrice();
+		BigDecimal index = exchange.calculateGBCEAllShareIndex();
+
+		journal.close();
+
+		// a new exchange created from the same journal must have the same stocks and trades
+		TradeJournal reopened = openJournal();
+		StockExchange restored = new StockExchange(reopened);
+
+		assertNull("Removed stock ", restored.getStock("POP"));
+		assertEquals("GIN last dividend ", 0, restored.getStock("GIN").getLastDividend().compareTo(new BigDecimal("9.5")));
+		assertEquals("GIN type ", StockElement.StockTypes.PREFERRED, restored.getStock("GIN").getStockType());
+		assertEquals("TEA trades ", 40, restored.getStock("TEA").getTradeActions().size());
+		assertEquals("TEA price ", teaPrice, restored.getStock("TEA").calculateStockPrice());
+		assertEquals("GIN price ", ginPrice, restored.getStock("GIN").calculateStockPrice());
+		assertEquals("Index ", index, restored.calculateGBCEAllShareIndex());
+
+		// new records are appended after the recovered ones
+		assertTrue("Add trade after reopen ", restored.getStock("TEA").addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("101")));
+		reopened.close();
+
+		TradeJournal third = openJournal();
+		assertEquals("TEA trades after second reopen ", 41, new StockExchange(third).getStock("TEA").getTradeActions().size());
+		third.close();
+	}
+
+	@Test
+	public void testRemovedStockLeavesTheIndex() throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		TradeJournal journal = openJournal();
+		StockExchange exchange = new StockExchange(journal);
+
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		exchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+		exchange.getStock("TEA").addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("4"));
+		exchange.getStock("POP").addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("9"));
+
+		// the removed stock had a price so it was part of the index
+		assertTrue("Remove TEA ", exchange.removeStock("TEA"));
+		BigDecimal index = exchange.calculateGBCEAllShareIndex();
+		assertEquals("Index without TEA ", 0, index.compareTo(new BigDecimal("9")));
+		journal.close();
+
+		TradeJournal reopened = openJournal();
+		StockExchange restored = new StockExchange(reopened);
+
+		assertNull("Removed stock ", restored.getStock("TEA"));
+		assertEquals("Stocks in the index ", 1, restored.getGBCEIndex().size());
+		assertEquals("Index after the replay ", index, restored.calculateGBCEAllShareIndex());
+		reopened.close();
+	}
+
+	@Test
+	public void testInterleavedRemoveAndAdd() throws Exception {
+
+		long now = System.currentTimeMillis();
+		StockExchange[] exchange = new StockExchange[1];
+
+		// the stock is added again by another thread right before the removal is written, the addition must wait until the removal is written
+		TradeJournal journal = new TradeJournal(journalFile, TradeJournal.SyncPolicy.EVERY_WRITE, 6, 1024, 10) {
+
+			@Override
+			public void writeRemoveStock(byte[] symbol) throws IOException {
+
+				Thread adder = new Thread(() -> exchange[0].addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100)));
+
+				adder.start();
+
+				try {
+					adder.join(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				super.writeRemoveStock(symbol);
+			}
+		};
+
+		exchange[0] = new StockExchange(journal);
+		exchange[0].addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+
+		assertTrue("Remove TEA ", exchange[0].removeStock("TEA"));
+
+		// wait for the addition and trade the stock added again
+		for(int i=0; i<100 && exchange[0].getStock("TEA")==null; i++) {
+			Thread.sleep(10);
+		}
+
+		assertNotNull("TEA added again ", exchange[0].getStock("TEA"));
+		exchange[0].getStock("TEA").addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("4"));
+		BigDecimal index = exchange[0].calculateGBCEAllShareIndex();
+		journal.close();
+
+		TradeJournal reopened = openJournal();
+		StockExchange restored = new StockExchange(reopened);
+
+		assertNotNull("Stock added again after the replay ", restored.getStock("TEA"));
+		assertEquals("Trades after the replay ", 1, restored.getStock("TEA").getTradeActions().size());
+		assertEquals("Index after the replay ", index, restored.calculateGBCEAllShareIndex());
+		reopened.close();
+	}
+
+	@Test
+	public void testTornRecordIsDiscarded() throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		TradeJournal journal = openJournal();
+		StockExchange exchange = new StockExchange(journal);
+
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		exchange.getStock("TEA").addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("100"));
+		exchange.getStock("TEA").addTradeAction(now, 20, StockTradeAction.actionTypes.BUY, new BigDecimal("200"));
+
+		long records = journal.getRecordCount();
+		journal.close();
+
+		// we simulate a crash in the middle of the last write by corrupting one of its values
+		try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+			channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), (records - 1) * TradeJournal.RECORD_SIZE + 40);
+		}
+
+		TradeJournal reopened = openJournal();
+		assertEquals("Recovered records ", records - 1, reopened.getRecoveredRecordCount());
+
+		List<StockTradeAction> trades = new StockExchange(reopened).getStock("TEA").getTradeActions();
+		assertEquals("Trades ", 1, trades.size());
+		assertEquals("Trade value ", 0, trades.get(0).getValue().compareTo(new BigDecimal("100")));
+		reopened.close();
+	}
+
+	@Test
+	public void testCompleteRecordsAfterATornOneAreKept() throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		TradeJournal journal = openJournal();
+		StockExchange exchange = new StockExchange(journal);
+
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		exchange.getStock("TEA").addTradeAction(now, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("100"));
+		exchange.getStock("TEA").addTradeAction(now, 20, StockTradeAction.actionTypes.BUY, new BigDecimal("200"));
+		exchange.getStock("TEA").addTradeAction(now, 30, StockTradeAction.actionTypes.BUY, new BigDecimal("300"));
+
+		long records = journal.getRecordCount();
+		journal.close();
+
+		// the writer of the second trade died before completing it while the writer of the third one, that claimed its record later, finished
+		try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+			channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}), (records - 2) * TradeJournal.RECORD_SIZE + 40);
+		}
+
+		TradeJournal reopened = openJournal();
+		assertEquals("Recovered records ", records, reopened.getRecoveredRecordCount());
+		assertEquals("Discarded records ", 1, reopened.getDiscardedRecordCount());
+
+		List<StockTradeAction> trades = new StockExchange(reopened).getStock("TEA").getTradeActions();
+		assertEquals("Trades ", 2, trades.size());
+		assertEquals("Trade after the torn one ", 30, trades.get(1).getQuantity());
+		reopened.close();
+
+		// the discarded record stays skipped after opening the journal again
+		TradeJournal third = openJournal();
+		assertEquals("Discarded records after the second reopen ", 0, third.getDiscardedRecordCount());
+		assertEquals("Trades after the second reopen ", 2, new StockExchange(third).getStock("TEA").getTradeActions().size());
+		third.close();
+	}
+
+	@Test
+	public void testCompactJournal() throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		TradeJournal journal = openJournal();
+		StockExchange exchange = new StockExchange(journal);
+
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		exchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+
+		for(int i=0; i<50; i++) {
+
+			exchange.getStock("TEA").addTradeAction(now - i * 1000, 10 + i, StockTradeAction.actionTypes.BUY, new BigDecimal("100.25"));
+			exchange.getStock("POP").addTradeAction(now - i * 1000, 5, StockTradeAction.actionTypes.SELL, new BigDecimal("50"));
+		}
+
+		exchange.getStock("TEA").setLastDividend(new BigDecimal("3"));
+		exchange.removeStock("POP");
+
+		BigDecimal teaPrice = exchange.getStock("TEA").calculateStockPrice();
+		journal.close();
+
+		// the header, one record for TEA and its 50 trades, the updates and the removed stock are gone
+		assertEquals("Records of the compacted journal ", 52, StockExchange.compactJournal(journalFile, RetentionPolicy.keepTrades(1000)));
+
+		TradeJournal compacted = openJournal();
+		StockExchange restored = new StockExchange(compacted);
+
+		assertNull("Removed stock ", restored.getStock("POP"));
+		assertEquals("TEA last dividend ", 0, restored.getStock("TEA").getLastDividend().compareTo(new BigDecimal("3")));
+		assertEquals("TEA trades ", 50, restored.getStock("TEA").getTradeActions().size());
+		assertEquals("TEA price ", teaPrice, restored.getStock("TEA").calculateStockPrice());
+		compacted.close();
+	}
+
+	@Test
+	public void testTradeBeforeStockRecord() throws IOException {
+
+		long now = System.currentTimeMillis();
+
+		// a trade written before the record of its stock is kept until the stock is added
+		TradeJournal journal = openJournal();
+		byte[] symbol = TradeJournal.encodeSymbol("ALE");
+		journal.writeTrade(symbol, now, 10, StockTradeAction.actionTypes.SELL, new BigDecimal("60.123"));
+		journal.writeAddStock(symbol, StockElement.StockTypes.COMMON, new BigDecimal(23), new BigDecimal(0), new BigDecimal(60));
+		journal.close();
+
+		TradeJournal reopened = openJournal();
+		StockElement stock = new StockExchange(reopened).getStock("ALE");
+
+		assertNotNull("Stock ", stock);
+		assertEquals("Trades ", 1, stock.getTradeActions().size());
+		assertEquals("Price ", 0, stock.calculateStockPrice().compareTo(new BigDecimal("60.123")));
+		reopened.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAJournal() throws IOException {
+
+		Files.write(journalFile, "this is not a journal, just some text that is longer than one record of the journal file".getBytes());
+		openJournal();
+	}
+}
@@ -0,0 +1,131 @@
+import java.math.BigDecimal;
+
+/**
+ * Aggregates of the trades of a stock inside a time range [from, to), returned by StockElement.queryTrades and StockExchange.queryTrades.
+ * The values are calculated from the prefix sums kept by the TradeStore so they don't depend on the number of trades in the range.
+ * Only the trades kept by the retention policy of the stock are included, isComplete tells if older trades of the range were already removed
+ * @author nsalgueiro
+ *
+ */
+public class TradeRangeStats {
+
+	private static final int _PRECISION = 3;	// Decimal places of the volume weighted price, the same as the stock price
+
+	private long from;
+	private long to;
+	private int tradeCount;
+	private long volume;
+	private BigDecimal turnover;
+	private long coveredFrom;
+
+	/**
+	 * Constructor for the class for a range of a complete history
+	 * @param from			- Start of the range in milliseconds, included
+	 * @param to			- End of the range in milliseconds, not included
+	 * @param tradeCount	- Number of trades inside the range
+	 * @param volume		- Sum of the quantities of the trades inside the range
+	 * @param turnover		- Sum of price*quantity of the trades inside the range
+	 */
+	public TradeRangeStats(long from, long to, int tradeCount, long volume, BigDecimal turnover) {
+
+		this(from, to, tradeCount, volume, turnover, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Constructor for the class
+	 * @param from			- Start of the range in milliseconds, included
+	 * @param to			- End of the range in milliseconds, not included
+	 * @param tradeCount	- Number of trades inside the range
+	 * @param volume		- Sum of the quantities of the trades inside the range
+	 * @param turnover		- Sum of price*quantity of the trades inside the range
+	 * @param coveredFrom	- Oldest time from which all the trades are still kept or Long.MIN_VALUE if no trade was removed
+	 */
+	public TradeRangeStats(long from, long to, int tradeCount, long volume, BigDecimal turnover, long coveredFrom) {
+
+		this.from = from;
+		this.to = to;
+		this.tradeCount = tradeCount;
+		this.volume = volume;
+		this.turnover = turnover;
+		this.coveredFrom = coveredFrom;
+	}
+
+	/**
+	 * Getter for the start of the range
+	 * @return the start in milliseconds, included
+	 */
+	public long getFrom() {
+		return from;
+	}
+
+	/**
+	 * Getter for the end of the range
+	 * @return the end in milliseconds, not included
+	 */
+	public long getTo() {
+		return to;
+	}
+
+	/**
+	 * Getter for the number of trades
+	 * @return number of trades inside the range
+	 */
+	public int getTradeCount() {
+		return tradeCount;
+	}
+
+	/**
+	 * Getter for the volume
+	 * @return sum of the quantities of the trades inside the range
+	 */
+	public long getVolume() {
+		return volume;
+	}
+
+	/**
+	 * Getter for the turnover
+	 * @return sum of price*quantity of the trades inside the range
+	 */
+	public BigDecimal getTurnover() {
+		return turnover;
+	}
+
+	/**
+	 * Getter for the oldest time from which the history of the stock is complete
+	 * @return the time in milliseconds or Long.MIN_VALUE if no trade was removed by the retention policy
+	 */
+	public long getCoveredFrom() {
+		return coveredFrom;
+	}
+
+	/**
+	 * Method to check if all the trades of the range are still kept, otherwise the values only include the part of the range from getCoveredFrom
+	 * @return true if no trade of the range was removed by the retention policy
+	 */
+	public boolean isComplete() {
+		return from>=coveredFrom;
+	}
+
+	/**
+	 * Method to calculate the volume weighted price of the range, it is rounded the same way as the stock price so the range of the stock price window gives the same value
+	 * @return BigDecimal containing the price or null if there are no trades inside the range
+	 */
+	public BigDecimal getVwap() {
+
+		if(volume<=0) {
+			return null;
+		}
+
+		return turnover.divide(BigDecimal.valueOf(volume), _PRECISION, BigDecimal.ROUND_HALF_UP);
+	}
+
+	@Override
+	public String toString() {
+		return "TradeRangeStats [from=" + from
+				+ ", to=" + to
+				+ ", tradeCount=" + tradeCount
+				+ ", volume=" + volume
+				+ ", vwap=" + getVwap()
+				+ ", complete=" + isComplete() + "]";
+	}
+}
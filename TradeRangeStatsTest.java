@@ -0,0 +1,164 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TradeRangeStatsTest {
+
+	TradeStore myStore;
+
+	@Before
+	public void setup() {
+
+		myStore = new TradeStore(6);
+	}
+
+	/**
+	 * Method that calculates the aggregates of a range going through all the trades, used to check the prefix sums
+	 */
+	private TradeRangeStats scan(List<StockTradeAction> trades, long from, long to) {
+
+		int count = 0;
+		long volume = 0;
+		BigDecimal turnover = BigDecimal.ZERO;
+
+		for(StockTradeAction trade: trades) {
+
+			if(trade.getTimestamp()>=from && trade.getTimestamp()<to) {
+
+				count++;
+				volume += trade.getQuantity();
+				turnover = turnover.add(trade.getValue().multiply(BigDecimal.valueOf(trade.getQuantity())));
+			}
+		}
+
+		return new TradeRangeStats(from, to, count, volume, turnover);
+	}
+
+	private void assertSameStats(String message, TradeRangeStats expected, TradeRangeStats actual) {
+
+		assertEquals(message + " trade count ", expected.getTradeCount(), actual.getTradeCount());
+		assertEquals(message + " volume ", expected.getVolume(), actual.getVolume());
+		assertEquals(message + " turnover ", 0, expected.getTurnover().compareTo(actual.getTurnover()));
+		assertEquals(message + " vwap ", expected.getVwap(), actual.getVwap());
+	}
+
+	@Test
+	public void testRangesMatchAFullScan() {
+
+		Random random = new Random(42);
+
+		// trades out of order over several chunks, some of them with prices that are not representable with 6 decimal places
+		for(int i=0; i<5000; i++) {
+
+			long timestamp = random.nextInt(100000);
+			BigDecimal value = (i%500==0 ? new BigDecimal(0.1) : BigDecimal.valueOf(1 + random.nextInt(100000), 2));
+
+			myStore.add(timestamp, 1 + random.nextInt(1000), StockTradeAction.actionTypes.BUY, value);
+		}
+
+		// the oldest trades are evicted so the sums of the first trade don't start at 0
+		myStore.evict(RetentionPolicy.keepTrades(3500), 0, Integer.MAX_VALUE, null);
+
+		List<StockTradeAction> snapshot = myStore.snapshot();
+
+		for(int i=0; i<200; i++) {
+
+			long from = random.nextInt(110000) - 5000;
+			long to = from + random.nextInt(50000);
+
+			assertSameStats("Range " + from + "-" + to, scan(snapshot, from, to), TradeStore.query(snapshot, from, to));
+		}
+
+		assertSameStats("Whole store", scan(snapshot, Long.MIN_VALUE, Long.MAX_VALUE), TradeStore.query(snapshot, Long.MIN_VALUE, Long.MAX_VALUE));
+
+		// the ranges that start before the newest removed trade are not complete
+		long coveredFrom = TradeStore.query(snapshot, 0, 1).getCoveredFrom();
+
+		assertTrue("History complete before the oldest kept trade ", coveredFrom>Long.MIN_VALUE && coveredFrom<=snapshot.get(0).getTimestamp());
+		assertFalse("Range with removed trades ", TradeStore.query(snapshot, 0, 100000).isComplete());
+		assertTrue("Range after the removed trades ", TradeStore.query(snapshot, coveredFrom, 100000).isComplete());
+
+		// the snapshot doesn't change with the trades added later
+		TradeRangeStats before = TradeStore.query(snapshot, 0, 50000);
+		myStore.add(10, 1000, StockTradeAction.actionTypes.SELL, new BigDecimal(7));
+
+		assertSameStats("Snapshot after an insertion", before, TradeStore.query(snapshot, 0, 50000));
+		assertSameStats("New snapshot after an insertion", scan(myStore.snapshot(), 0, 50000), TradeStore.query(myStore.snapshot(), 0, 50000));
+	}
+
+	@Test
+	public void testEmptyRangesAndTurnoverOverflow() {
+
+		assertEquals("Empty store ", 0, TradeStore.query(myStore.snapshot(), 0, 100).getTradeCount());
+		assertNull("Price of an empty range ", TradeStore.query(myStore.snapshot(), 0, 100).getVwap());
+
+		// each price*quantity almost fills a long so the sum needs more than 64 bits
+		for(int i=0; i<10; i++) {
+
+			myStore.add(i, 1000000000L, StockTradeAction.actionTypes.BUY, 9000000000L);
+		}
+
+		List<StockTradeAction> snapshot = myStore.snapshot();
+		TradeRangeStats stats = TradeStore.query(snapshot, 2, 9);
+
+		assertEquals("Trade count ", 7, stats.getTradeCount());
+		assertEquals("Turnover ", new BigDecimal("63000000000000"), stats.getTurnover().stripTrailingZeros().setScale(0));
+		assertEquals("Price ", new BigDecimal("9000.000"), stats.getVwap());
+
+		assertEquals("Range without trades ", 0, TradeStore.query(snapshot, 20, 30).getTradeCount());
+		assertEquals("Range that ends at its start ", 0, TradeStore.query(snapshot, 5, 5).getTradeCount());
+		assertTrue("Range without removed trades ", TradeStore.query(snapshot, 0, 100).isComplete());
+
+		// once all the trades are removed an old range is empty but not complete
+		myStore.evict(RetentionPolicy.keepMinutes(0), 3600000, Integer.MAX_VALUE, null);
+
+		assertEquals("Trades of an empty store ", 0, TradeStore.query(myStore.snapshot(), 0, 100).getTradeCount());
+		assertFalse("Range of the removed trades ", TradeStore.query(myStore.snapshot(), 0, 100).isComplete());
+		assertTrue("Range after the removed trades ", TradeStore.query(myStore.snapshot(), 10, 100).isComplete());
+	}
+
+	@Test
+	public void testStockQueries() {
+
+		final long now = 10000000;
+		StockExchange exchange = new StockExchange();
+
+		exchange.setClock(() -> now);
+		exchange.setRetentionPolicy(RetentionPolicy.keepTrades(100000));
+		exchange.addStock("ABC", StockElement.StockTypes.COMMON, new BigDecimal(5), BigDecimal.ZERO, new BigDecimal(100));
+
+		StockElement stock = exchange.getStock("ABC");
+
+		stock.addTradeAction(now - 60 * 60000, 100, StockTradeAction.actionTypes.BUY, new BigDecimal(50));
+		stock.addTradeAction(now - 5 * 60000, 100, StockTradeAction.actionTypes.BUY, new BigDecimal(10));
+		stock.addTradeAction(now - 60000, 300, StockTradeAction.actionTypes.SELL, new BigDecimal(20));
+
+		// the range of the stock price window gives the stock price
+		TradeRangeStats window = exchange.queryTrades("ABC", now - 16 * 60000 + 1, now + 1);
+
+		assertEquals("Trades in the window ", 2, window.getTradeCount());
+		assertEquals("Volume in the window ", 400, window.getVolume());
+		assertEquals("Price of the window ", stock.calculateStockPrice(), window.getVwap());
+
+		TradeRangeStats hour = exchange.queryTrades(exchange.getStockId("ABC"), now - 60 * 60000, now);
+
+		assertEquals("Trades in the last hour ", 3, hour.getTradeCount());
+		assertEquals("Price of the last hour ", new BigDecimal("24.000"), hour.getVwap());
+
+		assertNull("Unknown stock ", exchange.queryTrades("XYZ", 0, now));
+
+		try {
+
+			stock.queryTrades(now, 0);
+			fail("A range that ends before its start must be rejected");
+
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,693 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays the trades of a file through the stocks of a StockExchange with their original timestamps, to backtest and to test the capacity of the exchange
+ * with full trading days. The files are read through memory mapped windows and parsed directly from the bytes, so no String is created for each line
+ * (only the first time a symbol is seen) and the fixed point prices go to StockElement.addTradeAction without creating any object.
+ * Two formats are read:
+ *   CSV	- one trade per line: timestamp,symbol,quantity,side,price (for example 1700000000000,TEA,100,BUY,95.5), side is BUY/SELL or B/S and a first
+ *   		  line that doesn't start with a digit is taken as a header
+ *   Binary	- the header JPTR and version 1, then per trade: timestamp (8 bytes), symbol length (1 byte), symbol (ASCII), quantity (8 bytes), side (1 byte,
+ *   		  0 BUY, 1 SELL, 2 none), price scale (1 byte) and unscaled price (8 bytes), all big endian. convertCsvToBinary writes it from a CSV file
+ * The trades can be replayed as fast as possible or paced by their timestamps. When a ManualClock is set it is moved to the time of each trade, so
+ * if the exchange uses the same clock the stock prices are calculated at the time of the trades and not at the time of the replay.
+ * The stocks must be added to the exchange before the replay, the trades of unknown stocks are rejected
+ * @author nsalgueiro
+ *
+ */
+public class TradeReplay {
+
+	/**
+	 * Speed of the replay
+	 */
+	public static enum Pacing {
+		AS_FAST_AS_POSSIBLE,	// each trade right after the previous one
+		WALL_CLOCK				// the trades are separated by the time between their timestamps divided by the speed
+	};
+
+	static final int BINARY_MAGIC = 0x4A505452;	// "JPTR"
+	static final int BINARY_VERSION = 1;
+
+	private static final long _WINDOW_SIZE = 64L * 1024 * 1024;	// Bytes of the file mapped at a time, a record is never longer than a window
+	private static final int _MAX_DIGITS = 18;						// Digits that always fit in a long
+
+	/**
+	 * Receiver of the trades parsed from a file, the symbol is received as bytes of the mapped window
+	 */
+	private interface TradeHandler {
+
+		void trade(long timestamp, ByteBuffer buffer, int symbolStart, int symbolLength, long quantity, StockTradeAction.actionTypes actionType, long unscaledPrice, int scale);
+	}
+
+	private StockExchange exchange;
+	private ManualClock clock;
+	private Pacing pacing;
+	private double speed;
+
+	private SymbolTable symbols;
+
+	private long replayedCount;		// Trades added to their stock
+	private long rejectedCount;		// Trades of unknown stocks or rejected by their stock
+	private long malformedCount;	// Lines or records that couldn't be parsed
+
+	private long firstTimestamp;	// Timestamp of the first trade of the replay, for the WALL_CLOCK pacing
+	private long startNanos;		// Time when the first trade was replayed
+
+	// State of the CSV parser, reused for every line
+	private int[] commas;		// Positions of the 4 commas of the line
+	private int priceScale;		// Scale of the last price parsed by parsePrice
+	private String bigPrice;	// Price with too many digits for a long found by the CSV parser, it is only created for those prices
+
+	/**
+	 * Constructor for the class, the trades are replayed as fast as possible without moving any clock
+	 * @param pExchange	- The exchange whose stocks receive the trades
+	 */
+	public TradeReplay(StockExchange pExchange) {
+
+		if(pExchange==null) {
+			throw new IllegalArgumentException("Invalid argument exchange, it cannot be null");
+		}
+
+		this.exchange = pExchange;
+		this.pacing = Pacing.AS_FAST_AS_POSSIBLE;
+		this.speed = 1;
+		this.symbols = new SymbolTable();
+		this.commas = new int[4];
+	}
+
+	/**
+	 * Constructor used by convertCsvToBinary, it only parses
+	 */
+	private TradeReplay() {
+
+		this.commas = new int[4];
+	}
+
+	/**
+	 * Setter method to set the clock that is moved to the time of each replayed trade, usually the clock of the exchange
+	 * @param pClock	- The clock or null to not move any clock
+	 */
+	public void setClock(ManualClock pClock) {
+
+		this.clock = pClock;
+	}
+
+	/**
+	 * Setter method to set the speed of the replay
+	 * @param pPacing	- AS_FAST_AS_POSSIBLE or WALL_CLOCK
+	 * @param pSpeed	- Only for WALL_CLOCK, 1 replays at the original speed, 10 ten times faster
+	 */
+	public void setPacing(Pacing pPacing, double pSpeed) {
+
+		if(pPacing==null) {
+			throw new IllegalArgumentException("Invalid argument pacing, it cannot be null");
+		}
+
+		if(!(pSpeed>0)) {
+			throw new IllegalArgumentException("Invalid argument speed, it must be greater than 0");
+		}
+
+		this.pacing = pPacing;
+		this.speed = pSpeed;
+	}
+
+	/**
+	 * Getter method for the number of trades added to their stocks
+	 * @return the number of replayed trades
+	 */
+	public long getReplayedCount() {
+		return replayedCount;
+	}
+
+	/**
+	 * Getter method for the number of trades of unknown stocks or rejected by their stock, the reasons are reported to the event sink of the exchange
+	 * @return the number of rejected trades
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * Getter method for the number of lines or records that couldn't be parsed
+	 * @return the number of malformed trades
+	 */
+	public long getMalformedCount() {
+		return malformedCount;
+	}
+
+	/**
+	 * Method to replay the trades of a CSV file
+	 * @param file	- The file
+	 * @return number of trades replayed by this call
+	 * @throws IOException if the file can't be read
+	 */
+	public long replayCsv(Path file) throws IOException {
+
+		long before = replayedCount;
+
+		readCsv(file, this::replay);
+
+		return replayedCount - before;
+	}
+
+	/**
+	 * Method to replay the trades of a binary file
+	 * @param file	- The file
+	 * @return number of trades replayed by this call
+	 * @throws IOException if the file can't be read or it is not a trade file
+	 */
+	public long replayBinary(Path file) throws IOException {
+
+		long before = replayedCount;
+
+		readBinary(file, this::replay);
+
+		return replayedCount - before;
+	}
+
+	/**
+	 * Method to convert a CSV file to the binary format, which is smaller and faster to replay
+	 * @param csvFile		- The CSV file
+	 * @param binaryFile	- The binary file, it is replaced if it exists
+	 * @return number of trades written, the lines that can't be parsed or whose price has more than 18 digits are skipped
+	 * @throws IOException if a file can't be read or written
+	 */
+	public static long convertCsvToBinary(Path csvFile, Path binaryFile) throws IOException {
+
+		try (FileChannel output = FileChannel.open(binaryFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			ByteBuffer out = ByteBuffer.allocateDirect(1 << 16);
+			long[] written = new long[1];
+			IOException[] error = new IOException[1];
+
+			out.putInt(BINARY_MAGIC);
+			out.putInt(BINARY_VERSION);
+
+			TradeReplay parser = new TradeReplay();
+
+			parser.readCsv(csvFile, (timestamp, buffer, symbolStart, symbolLength, quantity, actionType, unscaledPrice, scale) -> {
+
+				// the prices with more than 18 digits don't fit in the format
+				if(error[0]!=null || symbolLength>Byte.MAX_VALUE || unscaledPrice==FixedPointPrice.NOT_REPRESENTABLE) {
+					return;
+				}
+
+				try {
+
+					if(out.remaining()<27 + symbolLength) {
+						flush(output, out);
+					}
+
+					out.putLong(timestamp);
+					out.put((byte) symbolLength);
+
+					for(int i=0; i<symbolLength; i++) {
+						out.put(buffer.get(symbolStart + i));
+					}
+
+					out.putLong(quantity);
+					out.put((byte) (actionType==null ? 2 : actionType.ordinal()));
+					out.put((byte) scale);
+					out.putLong(unscaledPrice);
+					written[0]++;
+
+				} catch (IOException e) {
+
+					error[0] = e;
+				}
+			});
+
+			if(error[0]!=null) {
+				throw error[0];
+			}
+
+			flush(output, out);
+
+			return written[0];
+		}
+	}
+
+	private static void flush(FileChannel output, ByteBuffer out) throws IOException {
+
+		out.flip();
+
+		while(out.hasRemaining()) {
+			output.write(out);
+		}
+
+		out.clear();
+	}
+
+	/**
+	 * Method to add a parsed trade to its stock
+	 */
+	private void replay(long timestamp, ByteBuffer buffer, int symbolStart, int symbolLength, long quantity, StockTradeAction.actionTypes actionType, long unscaledPrice, int scale) {
+
+		StockElement stock = symbols.get(buffer, symbolStart, symbolLength);
+
+		if(stock==null) {
+
+			rejectedCount++;
+			return;
+		}
+
+		pace(timestamp);
+
+		if(clock!=null) {
+			clock.advanceTo(timestamp);
+		}
+
+		ResultCode result;
+
+		if(bigPrice!=null) {	// only for prices with more than 18 digits
+
+			result = stock.tryAddTradeAction(timestamp, quantity, actionType, new BigDecimal(bigPrice));
+			bigPrice = null;
+
+		} else {
+
+			long scaledValue = FixedPointPrice.rescale(unscaledPrice, scale, stock.getPriceScale());
+
+			if(scaledValue!=FixedPointPrice.NOT_REPRESENTABLE) {
+				result = stock.tryAddTradeAction(timestamp, quantity, actionType, scaledValue);
+			} else {
+				result = stock.tryAddTradeAction(timestamp, quantity, actionType, BigDecimal.valueOf(unscaledPrice, scale));
+			}
+		}
+
+		if(result==ResultCode.OK || result==ResultCode.NULL_ACTION_TYPE) {	// a trade without action type is only a warning
+			replayedCount++;
+		} else {
+			rejectedCount++;
+		}
+	}
+
+	/**
+	 * Method to wait until the time of a trade when the replay is paced by the wall clock
+	 * @param timestamp	- Timestamp of the trade
+	 */
+	private void pace(long timestamp) {
+
+		if(pacing!=Pacing.WALL_CLOCK) {
+			return;
+		}
+
+		if(startNanos==0) {
+
+			firstTimestamp = timestamp;
+			startNanos = System.nanoTime();
+			return;
+		}
+
+		long target = startNanos + (long) ((timestamp - firstTimestamp) * 1000000 / speed);
+		long wait;
+
+		// the trades with an older timestamp than the previous ones are replayed right away
+		while((wait = target - System.nanoTime())>0) {
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+	/**
+	 * Method to parse a CSV file window by window, a line that doesn't fit at the end of a window is parsed again at the start of the next one
+	 * @param file		- The file
+	 * @param handler	- Receiver of the trades
+	 */
+	private void readCsv(Path file, TradeHandler handler) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+			long size = channel.size();
+			long position = 0;
+			boolean firstLine = true;
+
+			while(position<size) {
+
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(_WINDOW_SIZE, size - position));
+				boolean lastWindow = (position + buffer.limit()==size);
+				int lineStart = 0;
+
+				while(lineStart<buffer.limit()) {
+
+					int lineEnd = lineStart;
+
+					while(lineEnd<buffer.limit() && buffer.get(lineEnd)!='\n') {
+						lineEnd++;
+					}
+
+					if(lineEnd==buffer.limit() && !lastWindow) {	// the rest of the line is in the next window
+						break;
+					}
+
+					int contentEnd = (lineEnd>lineStart && buffer.get(lineEnd - 1)=='\r' ? lineEnd - 1 : lineEnd);
+
+					if(contentEnd>lineStart && !(firstLine && !isDigit(buffer.get(lineStart)))) {
+						parseCsvLine(buffer, lineStart, contentEnd, handler);
+					}
+
+					firstLine = false;
+					lineStart = lineEnd + 1;
+				}
+
+				if(lineStart==0 && !lastWindow) {
+					throw new IOException("Line longer than " + _WINDOW_SIZE + " bytes at position " + position);
+				}
+
+				position += Math.min(lineStart, buffer.limit());
+			}
+		}
+	}
+
+	private static boolean isDigit(byte b) {
+		return b>='0' && b<='9';
+	}
+
+	/**
+	 * Method to parse a line of a CSV file, the values are read directly from the bytes
+	 * @param buffer	- Window of the file
+	 * @param start		- First byte of the line
+	 * @param end		- Byte after the line
+	 * @param handler	- Receiver of the trade
+	 */
+	private void parseCsvLine(ByteBuffer buffer, int start, int end, TradeHandler handler) {
+
+		int found = 0;
+
+		for(int i=start; i<end && found<4; i++) {
+
+			if(buffer.get(i)==',') {
+				commas[found++] = i;
+			}
+		}
+
+		if(found<4) {
+
+			malformedCount++;
+			return;
+		}
+
+		long timestamp = parseLong(buffer, start, commas[0]);
+		int symbolStart = commas[0] + 1;
+		int symbolLength = commas[1] - symbolStart;
+		long quantity = parseLong(buffer, commas[1] + 1, commas[2]);
+		StockTradeAction.actionTypes actionType = parseSide(buffer, commas[2] + 1, commas[3]);
+		long unscaledPrice = parsePrice(buffer, commas[3] + 1, end);
+
+		if(timestamp==FixedPointPrice.NOT_REPRESENTABLE || quantity==FixedPointPrice.NOT_REPRESENTABLE || symbolLength<=0
+				|| (unscaledPrice==FixedPointPrice.NOT_REPRESENTABLE && bigPrice==null)) {
+
+			malformedCount++;
+			bigPrice = null;
+			return;
+		}
+
+		handler.trade(timestamp, buffer, symbolStart, symbolLength, quantity, actionType, unscaledPrice, priceScale);
+		bigPrice = null;
+	}
+
+	/**
+	 * Method to parse an integer
+	 * @return the value or FixedPointPrice.NOT_REPRESENTABLE if it is not a number or it has more than 18 digits
+	 */
+	private static long parseLong(ByteBuffer buffer, int start, int end) {
+
+		boolean negative = (start<end && buffer.get(start)=='-');
+		int first = (negative ? start + 1 : start);
+
+		if(first==end || end - first>_MAX_DIGITS) {
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+
+		long value = 0;
+
+		for(int i=first; i<end; i++) {
+
+			byte b = buffer.get(i);
+
+			if(!isDigit(b)) {
+				return FixedPointPrice.NOT_REPRESENTABLE;
+			}
+
+			value = value * 10 + (b - '0');
+		}
+
+		return (negative ? -value : value);
+	}
+
+	/**
+	 * Method to parse the side of a trade, BUY or SELL are recognized by their first letter
+	 * @return the action type or null if it is empty or unknown, the stock reports it as a warning
+	 */
+	private static StockTradeAction.actionTypes parseSide(ByteBuffer buffer, int start, int end) {
+
+		if(start==end) {
+			return null;
+		}
+
+		switch(buffer.get(start)) {
+
+			case 'B': case 'b':
+				return StockTradeAction.actionTypes.BUY;
+
+			case 'S': case 's':
+				return StockTradeAction.actionTypes.SELL;
+
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Method to parse a decimal price as an unscaled long, the scale is left in priceScale. A valid price with more than 18 digits is kept
+	 * in bigPrice as a String
+	 * @return the unscaled value or FixedPointPrice.NOT_REPRESENTABLE if it is not a number or it has more than 18 digits
+	 */
+	private long parsePrice(ByteBuffer buffer, int start, int end) {
+
+		boolean negative = (start<end && buffer.get(start)=='-');
+		int first = (negative ? start + 1 : start);
+		int digits = 0;
+		int scale = -1;	// -1 until the decimal point is found
+		long value = 0;
+
+		if(first==end) {
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+
+		for(int i=first; i<end; i++) {
+
+			byte b = buffer.get(i);
+
+			if(b=='.' && scale<0) {
+
+				scale = 0;
+
+			} else if(isDigit(b)) {
+
+				value = value * 10 + (b - '0');
+				digits++;
+
+				if(scale>=0) {
+					scale++;
+				}
+
+			} else {
+
+				return FixedPointPrice.NOT_REPRESENTABLE;
+			}
+		}
+
+		if(digits==0) {
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+
+		if(digits>_MAX_DIGITS) {	// the value overflowed, the slow path creates the BigDecimal from the text
+
+			byte[] text = new byte[end - start];
+
+			for(int i=0; i<text.length; i++) {
+				text[i] = buffer.get(start + i);
+			}
+
+			bigPrice = new String(text, StandardCharsets.US_ASCII);
+			return FixedPointPrice.NOT_REPRESENTABLE;
+		}
+
+		priceScale = Math.max(scale, 0);
+
+		return (negative ? -value : value);
+	}
+
+	/**
+	 * Method to read a binary file window by window, a record that doesn't fit at the end of a window is read again at the start of the next one
+	 * @param file		- The file
+	 * @param handler	- Receiver of the trades
+	 */
+	private void readBinary(Path file, TradeHandler handler) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+			long size = channel.size();
+
+			if(size<8) {
+				throw new IOException("Not a trade file: " + file);
+			}
+
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+
+			if(header.getInt(0)!=BINARY_MAGIC || header.getInt(4)!=BINARY_VERSION) {
+				throw new IOException("Not a trade file or unsupported version: " + file);
+			}
+
+			long position = 8;
+
+			while(position<size) {
+
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(_WINDOW_SIZE, size - position));
+				buffer.order(ByteOrder.BIG_ENDIAN);
+
+				int offset = 0;
+				int limit = buffer.limit();
+
+				while(limit - offset>=9) {
+
+					int symbolLength = buffer.get(offset + 8);
+					int recordLength = 27 + symbolLength;
+
+					if(limit - offset<recordLength) {	// the rest of the record is in the next window
+						break;
+					}
+
+					long timestamp = buffer.getLong(offset);
+					long quantity = buffer.getLong(offset + 9 + symbolLength);
+					int side = buffer.get(offset + 17 + symbolLength);
+					int scale = buffer.get(offset + 18 + symbolLength);
+					long unscaledPrice = buffer.getLong(offset + 19 + symbolLength);
+
+					if(symbolLength<=0 || side<0 || side>2 || scale<0 || scale>FixedPointPrice.MAX_SCALE) {
+						throw new IOException("Corrupted trade file at position " + (position + offset));
+					}
+
+					handler.trade(timestamp, buffer, offset + 9, symbolLength, quantity, (side==2 ? null : StockTradeAction.actionTypes.values()[side]), unscaledPrice, scale);
+
+					offset += recordLength;
+				}
+
+				if(offset==0) {
+					throw new IOException("Truncated trade file at position " + position);
+				}
+
+				position += offset;
+			}
+		}
+	}
+
+	/**
+	 * Table from the bytes of a symbol to its stock, so the symbols of the file are only turned into Strings the first time they are seen.
+	 * Open addressing with linear probing, the symbols of unknown stocks are kept too with a null stock
+	 */
+	private class SymbolTable {
+
+		private byte[][] keys = new byte[64][];
+		private StockElement[] stocks = new StockElement[64];
+		private int size;
+
+		private StockElement get(ByteBuffer buffer, int start, int length) {
+
+			int hash = 0;
+
+			for(int i=0; i<length; i++) {
+				hash = hash * 31 + buffer.get(start + i);
+			}
+
+			int mask = keys.length - 1;
+
+			for(int index = (hash ^ (hash >>> 16)) & mask; ; index = (index + 1) & mask) {
+
+				byte[] key = keys[index];
+
+				if(key==null) {
+
+					key = new byte[length];
+
+					for(int i=0; i<length; i++) {
+						key[i] = buffer.get(start + i);
+					}
+
+					// getStock reports the unknown symbols, only once since the result is kept
+					StockElement stock = exchange.getStock(new String(key, StandardCharsets.US_ASCII));
+
+					keys[index] = key;
+					stocks[index] = stock;
+
+					if(++size * 2>keys.length) {
+						grow();
+					}
+
+					return stock;
+				}
+
+				if(matches(key, buffer, start, length)) {
+					return stocks[index];
+				}
+			}
+		}
+
+		private boolean matches(byte[] key, ByteBuffer buffer, int start, int length) {
+
+			if(key.length!=length) {
+				return false;
+			}
+
+			for(int i=0; i<length; i++) {
+
+				if(key[i]!=buffer.get(start + i)) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private void grow() {
+
+			byte[][] oldKeys = keys;
+			StockElement[] oldStocks = stocks;
+
+			keys = new byte[oldKeys.length * 2][];
+			stocks = new StockElement[oldKeys.length * 2];
+
+			int mask = keys.length - 1;
+
+			for(int i=0; i<oldKeys.length; i++) {
+
+				if(oldKeys[i]!=null) {
+
+					int hash = 0;
+
+					for(byte b: oldKeys[i]) {
+						hash = hash * 31 + b;
+					}
+
+					int index = (hash ^ (hash >>> 16)) & mask;
+
+					while(keys[index]!=null) {
+						index = (index + 1) & mask;
+					}
+
+					keys[index] = oldKeys[i];
+					stocks[index] = oldStocks[i];
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TradeReplayTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final long DAY = 1700000000000L;	// a day long before the tests run
+
+	Path csv;
+
+	@Before
+	public void setup() throws IOException {
+
+		csv = folder.newFile("trades.csv").toPath();
+
+		String content = "timestamp,symbol,quantity,side,price\n"
+				+ DAY + ",TEA,100,BUY,80\n"
+				+ (DAY + 1000) + ",POP,200,S,7.25\r\n"
+				+ (DAY + 2000) + ",TEA,100,SELL,90.000\n"
+				+ (DAY + 3000) + ",ZZZ,100,BUY,1\n"				// unknown stock
+				+ (DAY + 4000) + ",TEA,-5,BUY,1\n"				// rejected by the stock
+				+ "not a trade\n"
+				+ (DAY + 5000) + ",POP,200,BUY,12345678901234567890.5\n"	// too many digits for a long
+				+ (DAY + 6000) + ",TEA,100,,100";				// no action type and no new line at the end
+
+		Files.write(csv, content.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private static StockExchange newExchange(ManualClock clock) {
+
+		StockExchange exchange = new StockExchange();
+		exchange.setEventSink(new AsyncEventSink(16, AsyncEventSink.DropPolicy.COUNT_ONLY, System.err));
+		exchange.setClock(clock);
+		exchange.addStock("TEA", StockElement.StockTypes.COMMON, new BigDecimal(0), new BigDecimal(0), new BigDecimal(100));
+		exchange.addStock("POP", StockElement.StockTypes.COMMON, new BigDecimal(8), new BigDecimal(0), new BigDecimal(100));
+		return exchange;
+	}
+
+	@Test
+	public void testReplayCsv() throws IOException {
+
+		ManualClock clock = new ManualClock(DAY);
+		StockExchange exchange = newExchange(clock);
+		TradeReplay replay = new TradeReplay(exchange);
+		replay.setClock(clock);
+
+		assertEquals("Replayed trades ", 5, replay.replayCsv(csv));
+		assertEquals("Rejected trades ", 2, replay.getRejectedCount());
+		assertEquals("Malformed lines ", 1, replay.getMalformedCount());
+		assertEquals("Clock at the last trade ", DAY + 6000, clock.currentTimeMillis());
+
+		// the trades of another day are inside the stock price window because the exchange uses the clock of the replay
+		assertEquals("TEA price ", new BigDecimal("90.000"), exchange.getStock("TEA").calculateStockPrice());
+		assertEquals("POP ticker price ", 0, new BigDecimal("12345678901234567890.5").compareTo(exchange.getStock("POP").getTickerPrice()));
+		assertNotNull("Index ", exchange.calculateGBCEAllShareIndex());
+
+		// once the clock moves past the window the prices expire
+		clock.advance(16 * 60000);
+		assertNull("TEA price after the window ", exchange.getStock("TEA").calculateStockPrice());
+	}
+
+	@Test
+	public void testReplayBinary() throws IOException {
+
+		Path binary = folder.newFile("trades.bin").toPath();
+
+		// the price with more than 18 digits can't be converted
+		assertEquals("Converted trades ", 6, TradeReplay.convertCsvToBinary(csv, binary));
+
+		ManualClock csvClock = new ManualClock(DAY);
+		StockExchange csvExchange = newExchange(csvClock);
+		TradeReplay csvReplay = new TradeReplay(csvExchange);
+		csvReplay.setClock(csvClock);
+		csvReplay.replayCsv(csv);
+
+		ManualClock binaryClock = new ManualClock(DAY);
+		StockExchange binaryExchange = newExchange(binaryClock);
+		TradeReplay binaryReplay = new TradeReplay(binaryExchange);
+		binaryReplay.setClock(binaryClock);
+
+		assertEquals("Replayed trades ", 4, binaryReplay.replayBinary(binary));
+		assertEquals("Same TEA trades ", csvExchange.getStock("TEA").getTradeActions().size(), binaryExchange.getStock("TEA").getTradeActions().size());
+		assertEquals("Same TEA price ", csvExchange.getStock("TEA").calculateStockPrice(), binaryExchange.getStock("TEA").calculateStockPrice());
+		assertEquals("POP trade ", 1, binaryExchange.getStock("POP").getTradeActions().size());
+	}
+
+	@Test(expected=IOException.class)
+	public void testNotABinaryFile() throws IOException {
+
+		new TradeReplay(newExchange(new ManualClock(DAY))).replayBinary(csv);
+	}
+
+	@Test
+	public void testWallClockPacing() throws IOException {
+
+		Path paced = folder.newFile("paced.csv").toPath();
+		Files.write(paced, (DAY + ",TEA,1,BUY,1\n" + (DAY + 2000) + ",TEA,1,BUY,2\n").getBytes(StandardCharsets.US_ASCII));
+
+		TradeReplay replay = new TradeReplay(newExchange(new ManualClock(DAY)));
+		replay.setPacing(TradeReplay.Pacing.WALL_CLOCK, 20);
+
+		long started = System.nanoTime();
+		replay.replayCsv(paced);
+		long elapsedMillis = (System.nanoTime() - started) / 1000000;
+
+		// 2 seconds 20 times faster
+		assertTrue("Paced replay took " + elapsedMillis + " ms", elapsedMillis>=95);
+	}
+}
@@ -0,0 +1,820 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Columnar storage for the trade actions of a stock, instead of one StockTradeAction object per trade the values are kept in parallel primitive arrays
+ * (timestamps, quantities, fixed point prices and sides) split in fixed size chunks, so going through the trades reads contiguous memory and creates no objects.
+ * StockTradeAction objects are only created when someone asks for them.
+ * The trades are kept ordered by timestamp so the first trade of a time window can be found with a binary search, trades arriving with an older timestamp
+ * than the newest one are inserted in their position. An insertion moves every newer trade one position, copies their chunks and calculates their prefix sums
+ * again, so its cost grows with the number of newer trades and StockElement doesn't accept trades that would go before more than MAX_LATE_TRADES of them.
+ * Trades are only removed from the oldest end by the retention policy.
+ * A position of a chunk that a snapshot can see is never written again: new trades are added after the last position and an insertion in the middle
+ * copies the chunks it changes, so a snapshot only needs to copy the chunk references and can be read without any lock.
+ * Every trade also keeps the sums of the quantity and of price*quantity of all the trades up to it, so the aggregates of any time range of a snapshot
+ * are the difference of the sums of its last and first trades, found with two binary searches. The sums take 28 bytes per trade, about as much as the trade itself.
+ * This class is not thread safe, StockElement only uses it while holding the lock on it
+ * @author nsalgueiro
+ *
+ */
+public class TradeStore {
+
+	private static final int _CHUNK_SHIFT = 10;
+	private static final int _CHUNK_SIZE = 1 << _CHUNK_SHIFT;	// Number of trades in each chunk
+	private static final int _CHUNK_MASK = _CHUNK_SIZE - 1;
+
+	private static final byte _SIDE_NONE = -1;	// Side used when a trade has no action type
+
+	// Maximum number of newer trades a late trade can be inserted before, with the default value an insertion copies at most 8 chunks
+	static final int MAX_LATE_TRADES = Integer.getInteger("stock.maxLateTrades", 8 * _CHUNK_SIZE);
+
+	/**
+	 * Bulk transfer of the columns of the trades used by ExchangeSnapshot, the same interface is used to write them from a snapshot and to read them into an empty store.
+	 * The columns are transferred one after the other (timestamps, quantities, prices, sides and value scales) each one in one or more calls
+	 */
+	static interface Columns {
+
+		void longs(long[] values, int offset, int length) throws IOException;
+		void bytes(byte[] values, int offset, int length) throws IOException;
+	}
+
+	/**
+	 * One chunk of trades, the arrays are only created full size so the chunk never grows
+	 */
+	private static class Chunk {
+
+		private long[] timestamps = new long[_CHUNK_SIZE];
+		private long[] quantities = new long[_CHUNK_SIZE];
+		private long[] prices = new long[_CHUNK_SIZE];			// Fixed point prices or FixedPointPrice.NOT_REPRESENTABLE
+		private byte[] sides = new byte[_CHUNK_SIZE];			// Ordinal of the action type or _SIDE_NONE
+		private byte[] valueScales = new byte[_CHUNK_SIZE];		// Scale of the original value so the same BigDecimal can be created again
+		private BigDecimal[] values;							// Only created when the chunk has a price that is not representable as a fixed point value
+
+		// Prefix sums of the trades from the oldest one in the store up to each trade, including it
+		private long[] quantitySums = new long[_CHUNK_SIZE];
+		private long[] turnoverSumsHigh = new long[_CHUNK_SIZE];	// High 64 bits of the 128 bit sum of the fixed point price*quantity
+		private long[] turnoverSumsLow = new long[_CHUNK_SIZE];		// Low 64 bits, unsigned
+		private int[] notRepresentableCounts = new int[_CHUNK_SIZE];	// Trades whose price is not included in the turnover sums
+
+		private Chunk copy() {
+
+			Chunk copy = new Chunk();
+
+			System.arraycopy(timestamps, 0, copy.timestamps, 0, _CHUNK_SIZE);
+			System.arraycopy(quantities, 0, copy.quantities, 0, _CHUNK_SIZE);
+			System.arraycopy(prices, 0, copy.prices, 0, _CHUNK_SIZE);
+			System.arraycopy(sides, 0, copy.sides, 0, _CHUNK_SIZE);
+			System.arraycopy(valueScales, 0, copy.valueScales, 0, _CHUNK_SIZE);
+			System.arraycopy(quantitySums, 0, copy.quantitySums, 0, _CHUNK_SIZE);
+			System.arraycopy(turnoverSumsHigh, 0, copy.turnoverSumsHigh, 0, _CHUNK_SIZE);
+			System.arraycopy(turnoverSumsLow, 0, copy.turnoverSumsLow, 0, _CHUNK_SIZE);
+			System.arraycopy(notRepresentableCounts, 0, copy.notRepresentableCounts, 0, _CHUNK_SIZE);
+
+			if(values!=null) {
+				copy.values = values.clone();
+			}
+
+			return copy;
+		}
+	}
+
+	private int scale;			// Scale of the fixed point prices
+
+	private Chunk[] chunks;		// The chunks with the trades, oldest first, only the first chunkCount positions are used
+	private int chunkCount;
+	private int headOffset;		// Position of the oldest trade in the first chunk
+	private int size;			// Number of trades in the store
+	private long evictedUntil;	// Timestamp of the newest trade removed from the store or Long.MIN_VALUE if none was removed
+
+	/**
+	 * Constructor for the class using the default fixed point scale
+	 */
+	public TradeStore() {
+
+		this(FixedPointPrice.DEFAULT_SCALE);
+	}
+
+	/**
+	 * Constructor for the class
+	 * @param scale	- Scale of the fixed point prices
+	 */
+	public TradeStore(int scale) {
+
+		this.scale = FixedPointPrice.checkScale(scale);
+		this.chunks = new Chunk[4];
+		this.chunkCount = 0;
+		this.headOffset = 0;
+		this.size = 0;
+		this.evictedUntil = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Method to retrieve the scale of the fixed point prices
+	 * @return the scale
+	 */
+	public int getScale() {
+		return scale;
+	}
+
+	/**
+	 * Method to add a trade with a BigDecimal value to the store
+	 * @param timestamp	- Timestamp of the trade
+	 * @param quantity	- Quantity of shares
+	 * @param action	- Action performed
+	 * @param value		- Share value
+	 * @return the position where the trade was added
+	 */
+	public int add(long timestamp, long quantity, StockTradeAction.actionTypes action, BigDecimal value) {
+
+		long scaledValue = FixedPointPrice.toScaled(value, scale);
+
+		// The original scale is kept so getValue gives back a BigDecimal equal to the one received, values whose scale doesn't fit in a byte are kept as they are
+		if(scaledValue!=FixedPointPrice.NOT_REPRESENTABLE && value.scale()>=Byte.MIN_VALUE && value.scale()<=Byte.MAX_VALUE) {
+
+			return insert(timestamp, quantity, action, scaledValue, (byte) value.scale(), null);
+
+		} else {
+
+			return insert(timestamp, quantity, action, FixedPointPrice.NOT_REPRESENTABLE, (byte) 0, value);
+		}
+	}
+
+	/**
+	 * Method to add a trade with a fixed point value to the store, no objects are created
+	 * @param timestamp		- Timestamp of the trade
+	 * @param quantity		- Quantity of shares
+	 * @param action		- Action performed
+	 * @param scaledValue	- Share value multiplied by 10^getScale()
+	 * @return the position where the trade was added
+	 */
+	public int add(long timestamp, long quantity, StockTradeAction.actionTypes action, long scaledValue) {
+
+		return insert(timestamp, quantity, action, scaledValue, (byte) scale, null);
+	}
+
+	/**
+	 * Method to add a StockTradeAction to the store
+	 * @param tradeAction	- The trade
+	 * @return the position where the trade was added
+	 */
+	public int add(StockTradeAction tradeAction) {
+
+		long scaledValue = tradeAction.getScaledValue(scale);
+
+		// Trades created with a fixed point value are added without creating their BigDecimal value
+		if(scaledValue!=FixedPointPrice.NOT_REPRESENTABLE && tradeAction.getScale()==scale) {
+
+			return add(tradeAction.getTimestamp(), tradeAction.getQuantity(), tradeAction.getAction(), scaledValue);
+		}
+
+		return add(tradeAction.getTimestamp(), tradeAction.getQuantity(), tradeAction.getAction(), tradeAction.getValue());
+	}
+
+	/**
+	 * Method to check if a trade can be added without moving more than MAX_LATE_TRADES newer trades, a trade that is not older than the newest one is always accepted
+	 * @param timestamp	- Timestamp of the trade
+	 * @return true if the trade can be added
+	 */
+	public boolean acceptsTimestamp(long timestamp) {
+
+		return size==0 || timestamp>=getTimestamp(size - 1) || size - upperBound(timestamp)<=MAX_LATE_TRADES;
+	}
+
+	private int insert(long timestamp, long quantity, StockTradeAction.actionTypes action, long scaledValue, byte valueScale, BigDecimal value) {
+
+		// Usually trades arrive in order and are added at the end, otherwise they go after the last trade with the same or an older timestamp
+		int position = (size==0 || timestamp>=getTimestamp(size - 1) ? size : upperBound(timestamp));
+
+		int last = headOffset + size;	// absolute position of the new last trade
+
+		if((last >> _CHUNK_SHIFT)==chunkCount) {
+
+			if(chunkCount==chunks.length) {
+
+				Chunk[] newChunks = new Chunk[chunks.length * 2];
+				System.arraycopy(chunks, 0, newChunks, 0, chunkCount);
+				chunks = newChunks;
+			}
+
+			chunks[chunkCount++] = new Chunk();
+		}
+
+		if(position<size) {
+
+			// The trades after the position must move one place, the chunks where this happens are copied first since a snapshot may be reading them
+			int from = headOffset + position;
+
+			for(int c = from >> _CHUNK_SHIFT; c<chunkCount; c++) {
+				chunks[c] = chunks[c].copy();
+			}
+
+			for(int p = last; p>from; p--) {
+				moveTrade(p - 1, p);
+			}
+		}
+
+		int absolute = headOffset + position;
+		Chunk chunk = chunks[absolute >> _CHUNK_SHIFT];
+		int offset = absolute & _CHUNK_MASK;
+
+		chunk.timestamps[offset] = timestamp;
+		chunk.quantities[offset] = quantity;
+		chunk.prices[offset] = scaledValue;
+		chunk.sides[offset] = (action!=null ? (byte) action.ordinal() : _SIDE_NONE);
+		chunk.valueScales[offset] = valueScale;
+
+		if(value!=null || chunk.values!=null) {
+
+			if(chunk.values==null) {
+				chunk.values = new BigDecimal[_CHUNK_SIZE];
+			}
+			chunk.values[offset] = value;
+		}
+
+		size++;
+
+		// an insertion in the middle changes the sums of all the trades after it, they are in the chunks copied above
+		updatePrefixSums(position);
+
+		return position;
+	}
+
+	/**
+	 * Method to calculate the prefix sums of the trades from a position to the newest one, the sums of the previous trade must be right
+	 * @param from	- Position of the first trade to calculate
+	 */
+	private void updatePrefixSums(int from) {
+
+		long quantitySum = 0;
+		long turnoverHigh = 0;
+		long turnoverLow = 0;
+		int notRepresentable = 0;
+
+		// the sums start again from 0 at the oldest trade, only the differences between the sums of the same store matter
+		if(from>0) {
+
+			int previous = headOffset + from - 1;
+			Chunk chunk = chunks[previous >> _CHUNK_SHIFT];
+			int offset = previous & _CHUNK_MASK;
+
+			quantitySum = chunk.quantitySums[offset];
+			turnoverHigh = chunk.turnoverSumsHigh[offset];
+			turnoverLow = chunk.turnoverSumsLow[offset];
+			notRepresentable = chunk.notRepresentableCounts[offset];
+		}
+
+		for(int absolute = headOffset + from; absolute<headOffset + size; absolute++) {
+
+			Chunk chunk = chunks[absolute >> _CHUNK_SHIFT];
+			int offset = absolute & _CHUNK_MASK;
+			long quantity = chunk.quantities[offset];
+			long price = chunk.prices[offset];
+
+			quantitySum += quantity;
+
+			if(price!=FixedPointPrice.NOT_REPRESENTABLE) {
+
+				// 128 bit addition so the sum never overflows, prices and quantities are positive
+				long low = turnoverLow + price * quantity;
+				turnoverHigh += Math.multiplyHigh(price, quantity) + (Long.compareUnsigned(low, turnoverLow)<0 ? 1 : 0);
+				turnoverLow = low;
+
+			} else {
+
+				notRepresentable++;
+			}
+
+			chunk.quantitySums[offset] = quantitySum;
+			chunk.turnoverSumsHigh[offset] = turnoverHigh;
+			chunk.turnoverSumsLow[offset] = turnoverLow;
+			chunk.notRepresentableCounts[offset] = notRepresentable;
+		}
+	}
+
+	private void moveTrade(int fromAbsolute, int toAbsolute) {
+
+		Chunk from = chunks[fromAbsolute >> _CHUNK_SHIFT];
+		Chunk to = chunks[toAbsolute >> _CHUNK_SHIFT];
+		int fromOffset = fromAbsolute & _CHUNK_MASK;
+		int toOffset = toAbsolute & _CHUNK_MASK;
+
+		to.timestamps[toOffset] = from.timestamps[fromOffset];
+		to.quantities[toOffset] = from.quantities[fromOffset];
+		to.prices[toOffset] = from.prices[fromOffset];
+		to.sides[toOffset] = from.sides[fromOffset];
+		to.valueScales[toOffset] = from.valueScales[fromOffset];
+
+		BigDecimal value = (from.values!=null ? from.values[fromOffset] : null);
+
+		if(value!=null || to.values!=null) {
+
+			if(to.values==null) {
+				to.values = new BigDecimal[_CHUNK_SIZE];
+			}
+			to.values[toOffset] = value;
+		}
+	}
+
+	/**
+	 * Method to retrieve the number of trades in the store
+	 * @return number of trades
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Method to retrieve the timestamp of a trade
+	 * @param position	- Position of the trade, 0 is the oldest one
+	 * @return the timestamp
+	 */
+	public long getTimestamp(int position) {
+
+		int absolute = headOffset + position;
+		return chunks[absolute >> _CHUNK_SHIFT].timestamps[absolute & _CHUNK_MASK];
+	}
+
+	/**
+	 * Method to retrieve the quantity of a trade
+	 * @param position	- Position of the trade, 0 is the oldest one
+	 * @return the quantity
+	 */
+	public long getQuantity(int position) {
+
+		int absolute = headOffset + position;
+		return chunks[absolute >> _CHUNK_SHIFT].quantities[absolute & _CHUNK_MASK];
+	}
+
+	/**
+	 * Method to retrieve the fixed point value of a trade
+	 * @param position	- Position of the trade, 0 is the oldest one
+	 * @return the value multiplied by 10^getScale() or FixedPointPrice.NOT_REPRESENTABLE if it has to be read with getValue
+	 */
+	public long getScaledValue(int position) {
+
+		int absolute = headOffset + position;
+		return chunks[absolute >> _CHUNK_SHIFT].prices[absolute & _CHUNK_MASK];
+	}
+
+	/**
+	 * Method to retrieve the value of a trade as a BigDecimal, it is created on demand for the fixed point values
+	 * @param position	- Position of the trade, 0 is the oldest one
+	 * @return the value
+	 */
+	public BigDecimal getValue(int position) {
+
+		int absolute = headOffset + position;
+		return getValue(chunks[absolute >> _CHUNK_SHIFT], absolute & _CHUNK_MASK);
+	}
+
+	private BigDecimal getValue(Chunk chunk, int offset) {
+
+		if(chunk.prices[offset]==FixedPointPrice.NOT_REPRESENTABLE) {
+			return chunk.values[offset];
+		}
+
+		return FixedPointPrice.toBigDecimal(chunk.prices[offset], scale).setScale(chunk.valueScales[offset]);
+	}
+
+	/**
+	 * Method to create a StockTradeAction for a trade of the store
+	 * @param position	- Position of the trade, 0 is the oldest one
+	 * @return the trade action
+	 */
+	public StockTradeAction getTradeAction(int position) {
+
+		int absolute = headOffset + position;
+		return createTradeAction(chunks[absolute >> _CHUNK_SHIFT], absolute & _CHUNK_MASK);
+	}
+
+	private StockTradeAction createTradeAction(Chunk chunk, int offset) {
+
+		StockTradeAction.actionTypes action = (chunk.sides[offset]==_SIDE_NONE ? null : StockTradeAction.actionTypes.values()[chunk.sides[offset]]);
+
+		// trades that had the same scale of the store are created with their fixed point value so their BigDecimal is only created if needed
+		if(chunk.prices[offset]!=FixedPointPrice.NOT_REPRESENTABLE && chunk.valueScales[offset]==scale) {
+
+			return new StockTradeAction(chunk.timestamps[offset], chunk.quantities[offset], action, chunk.prices[offset], scale);
+		}
+
+		return new StockTradeAction(chunk.timestamps[offset], chunk.quantities[offset], action, getValue(chunk, offset));
+	}
+
+	/**
+	 * Method to find the first trade with a timestamp equal or newer than the given one
+	 * @param timestamp	- The timestamp to look for
+	 * @return the position of the trade or size() if all trades are older
+	 */
+	public int lowerBound(long timestamp) {
+
+		int low = 0;
+		int high = size;
+
+		while(low<high) {
+
+			int middle = (low + high) >>> 1;
+
+			if(getTimestamp(middle)<timestamp) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Method to find the first trade with a timestamp newer than the given one
+	 * @param timestamp	- The timestamp to look for
+	 * @return the position of the trade or size() if all trades are older or equal
+	 */
+	public int upperBound(long timestamp) {
+
+		int low = 0;
+		int high = size;
+
+		while(low<high) {
+
+			int middle = (low + high) >>> 1;
+
+			if(getTimestamp(middle)<=timestamp) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Method to remove the trades that are not allowed by the retention policy, trades are removed from the oldest end until the first one that can be kept
+	 * @param policy		- The retention policy to apply
+	 * @param now			- Reference time
+	 * @param maxRemovals	- Maximum number of trades that can be removed, the trades still used by the stock price window are never removed
+	 * @param evicted		- List where the removed trades will be added or null if they are not needed
+	 * @return the number of removed trades
+	 */
+	public int evict(RetentionPolicy policy, long now, int maxRemovals, List<StockTradeAction> evicted) {
+
+		int removed = 0;
+
+		while(removed<maxRemovals && size>0 && (policy.exceedsMaxTrades(size) || policy.isExpired(getTimestamp(0), now))) {
+
+			if(evicted!=null) {
+				evicted.add(getTradeAction(0));
+			}
+
+			removeOldest();
+			removed++;
+		}
+
+		return removed;
+	}
+
+	private void removeOldest() {
+
+		// We don't clear the position in the chunk since a snapshot may still be reading it, the whole chunk is released once it is no longer used
+		evictedUntil = Math.max(evictedUntil, getTimestamp(0));
+		headOffset++;
+		size--;
+
+		if(headOffset==_CHUNK_SIZE || size==0) {
+
+			int released = (size==0 ? chunkCount : 1);
+
+			System.arraycopy(chunks, released, chunks, 0, chunkCount - released);
+
+			for(int c = chunkCount - released; c<chunkCount; c++) {
+				chunks[c] = null;
+			}
+
+			chunkCount -= released;
+			headOffset = 0;
+		}
+	}
+
+	/**
+	 * Method to fill an empty store with trades read column by column, the trades must be ordered by timestamp.
+	 * The chunks are created full size and filled directly so no trade is inserted one by one
+	 * @param count		- Number of trades
+	 * @param columns	- Source of the columns
+	 */
+	void readColumns(int count, Columns columns) throws IOException {
+
+		if(size!=0) {
+			throw new IllegalStateException("The store must be empty");
+		}
+
+		int newChunkCount = (count + _CHUNK_SIZE - 1) >> _CHUNK_SHIFT;
+		Chunk[] newChunks = new Chunk[Math.max(newChunkCount, 4)];
+
+		for(int c = 0; c<newChunkCount; c++) {
+			newChunks[c] = new Chunk();
+		}
+
+		for(int column = 0; column<5; column++) {
+
+			for(int c = 0; c<newChunkCount; c++) {
+
+				Chunk chunk = newChunks[c];
+				int length = Math.min(_CHUNK_SIZE, count - (c << _CHUNK_SHIFT));
+
+				switch(column) {
+					case 0: columns.longs(chunk.timestamps, 0, length); break;
+					case 1: columns.longs(chunk.quantities, 0, length); break;
+					case 2: columns.longs(chunk.prices, 0, length); break;
+					case 3: columns.bytes(chunk.sides, 0, length); break;
+					default: columns.bytes(chunk.valueScales, 0, length); break;
+				}
+			}
+		}
+
+		chunks = newChunks;
+		chunkCount = newChunkCount;
+		headOffset = 0;
+		size = count;
+
+		updatePrefixSums(0);
+	}
+
+	/**
+	 * Method to set the value of a trade whose price is not representable as a fixed point value after the store was filled by readColumns
+	 * @param position	- Position of the trade
+	 * @param value		- Share value
+	 */
+	void restoreValue(int position, BigDecimal value) {
+
+		int absolute = headOffset + position;
+		Chunk chunk = chunks[absolute >> _CHUNK_SHIFT];
+
+		if(chunk.values==null) {
+			chunk.values = new BigDecimal[_CHUNK_SIZE];
+		}
+
+		chunk.values[absolute & _CHUNK_MASK] = value;
+	}
+
+	/**
+	 * Method to write the trades of a list returned by snapshot column by column, it reads the chunks captured by the snapshot so it doesn't need any lock
+	 * @param snapshot	- List returned by snapshot
+	 * @param columns	- Destination of the columns
+	 */
+	static void writeColumns(List<StockTradeAction> snapshot, Columns columns) throws IOException {
+
+		if(snapshot.isEmpty()) {
+			return;
+		}
+
+		Snapshot trades = (Snapshot) snapshot;
+
+		for(int column = 0; column<5; column++) {
+
+			int absolute = trades.offset;
+			int end = trades.offset + trades.snapshotSize;
+
+			while(absolute<end) {
+
+				Chunk chunk = trades.snapshotChunks[absolute >> _CHUNK_SHIFT];
+				int offset = absolute & _CHUNK_MASK;
+				int length = Math.min(_CHUNK_SIZE - offset, end - absolute);
+
+				switch(column) {
+					case 0: columns.longs(chunk.timestamps, offset, length); break;
+					case 1: columns.longs(chunk.quantities, offset, length); break;
+					case 2: columns.longs(chunk.prices, offset, length); break;
+					case 3: columns.bytes(chunk.sides, offset, length); break;
+					default: columns.bytes(chunk.valueScales, offset, length); break;
+				}
+
+				absolute += length;
+			}
+		}
+	}
+
+	/**
+	 * Method to find the trades of a list returned by snapshot whose prices are not representable as fixed point values
+	 * @param snapshot	- List returned by snapshot
+	 * @return the positions of the trades, usually none
+	 */
+	static int[] findNotRepresentable(List<StockTradeAction> snapshot) {
+
+		int[] positions = new int[0];
+
+		if(snapshot.isEmpty()) {
+			return positions;
+		}
+
+		Snapshot trades = (Snapshot) snapshot;
+		int count = 0;
+
+		for(int index = 0; index<trades.snapshotSize; index++) {
+
+			int absolute = trades.offset + index;
+
+			if(trades.snapshotChunks[absolute >> _CHUNK_SHIFT].prices[absolute & _CHUNK_MASK]==FixedPointPrice.NOT_REPRESENTABLE) {
+
+				if(count==positions.length) {
+					positions = Arrays.copyOf(positions, Math.max(count * 2, 8));
+				}
+
+				positions[count++] = index;
+			}
+		}
+
+		return Arrays.copyOf(positions, count);
+	}
+
+	/**
+	 * Method to calculate the aggregates of the trades of a list returned by snapshot inside a time range, it reads the chunks captured by the snapshot
+	 * so it doesn't need any lock
+	 * @param snapshot	- List returned by snapshot
+	 * @param from		- Start of the range in milliseconds, included
+	 * @param to		- End of the range in milliseconds, not included
+	 * @return the aggregates of the range
+	 */
+	static TradeRangeStats query(List<StockTradeAction> snapshot, long from, long to) {
+
+		if(!(snapshot instanceof Snapshot)) {
+			return new TradeRangeStats(from, to, 0, 0, BigDecimal.ZERO);	// a store that never had any trade
+		}
+
+		return ((Snapshot) snapshot).query(from, to);
+	}
+
+	/**
+	 * Method to convert a 128 bit fixed point sum to BigDecimal
+	 * @param high	- High 64 bits
+	 * @param low	- Low 64 bits, unsigned
+	 * @param scale	- Scale of the sum
+	 * @return BigDecimal with the sum
+	 */
+	private static BigDecimal toBigDecimal(long high, long low, int scale) {
+
+		if(high==0 && low>=0) {
+			return FixedPointPrice.toBigDecimal(low, scale);	// the usual case, the sum fits in a long
+		}
+
+		BigInteger unsignedLow = BigInteger.valueOf(low & Long.MAX_VALUE);
+
+		if(low<0) {
+			unsignedLow = unsignedLow.setBit(63);
+		}
+
+		return new BigDecimal(BigInteger.valueOf(high).shiftLeft(64).add(unsignedLow), scale);
+	}
+
+	/**
+	 * Method to get a read only snapshot of the trades currently in the store, later changes to the store will not be visible in the snapshot
+	 * @return List with the trades, oldest first, the StockTradeAction objects are created when they are read
+	 */
+	public List<StockTradeAction> snapshot() {
+
+		if(size==0 && evictedUntil==Long.MIN_VALUE) {
+			return Collections.emptyList();
+		}
+
+		Chunk[] snapshotChunks = new Chunk[chunkCount];
+		System.arraycopy(chunks, 0, snapshotChunks, 0, chunkCount);
+
+		return new Snapshot(snapshotChunks, headOffset, size, evictedUntil);
+	}
+
+	/**
+	 * Read only list over the chunks captured when the snapshot was taken
+	 */
+	private class Snapshot extends AbstractList<StockTradeAction> implements RandomAccess {
+
+		private Chunk[] snapshotChunks;
+		private int offset;
+		private int snapshotSize;
+		private long snapshotEvictedUntil;
+
+		private Snapshot(Chunk[] snapshotChunks, int offset, int snapshotSize, long snapshotEvictedUntil) {
+
+			this.snapshotChunks = snapshotChunks;
+			this.offset = offset;
+			this.snapshotSize = snapshotSize;
+			this.snapshotEvictedUntil = snapshotEvictedUntil;
+		}
+
+		@Override
+		public StockTradeAction get(int index) {
+
+			if(index<0 || index>=snapshotSize) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + snapshotSize);
+			}
+
+			int absolute = offset + index;
+
+			return createTradeAction(snapshotChunks[absolute >> _CHUNK_SHIFT], absolute & _CHUNK_MASK);
+		}
+
+		@Override
+		public int size() {
+			return snapshotSize;
+		}
+
+		private long getTimestamp(int index) {
+
+			int absolute = offset + index;
+			return snapshotChunks[absolute >> _CHUNK_SHIFT].timestamps[absolute & _CHUNK_MASK];
+		}
+
+		/**
+		 * Method to find the first trade of the snapshot with a timestamp equal or newer than the given one
+		 */
+		private int lowerBound(long timestamp) {
+
+			int low = 0;
+			int high = snapshotSize;
+
+			while(low<high) {
+
+				int middle = (low + high) >>> 1;
+
+				if(getTimestamp(middle)<timestamp) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+
+			return low;
+		}
+
+		/**
+		 * Method to calculate the aggregates of a time range as the difference of the prefix sums of its last trade and of the trade before the first one.
+		 * The trade before the first one may have been evicted, so its sums are calculated by taking the first trade out of its own sums.
+		 * Only the trades whose price is not representable as a fixed point value are read one by one, usually there are none.
+		 * The result tells from when the history is complete, the trades older than that were removed by the retention policy
+		 */
+		private TradeRangeStats query(long from, long to) {
+
+			long coveredFrom = (snapshotEvictedUntil==Long.MIN_VALUE ? Long.MIN_VALUE : snapshotEvictedUntil + 1);
+
+			int start = lowerBound(from);
+			int end = (to>from ? lowerBound(to) : start);
+
+			if(start>=end) {
+				return new TradeRangeStats(from, to, 0, 0, BigDecimal.ZERO, coveredFrom);
+			}
+
+			int first = offset + start;
+			Chunk firstChunk = snapshotChunks[first >> _CHUNK_SHIFT];
+			int firstOffset = first & _CHUNK_MASK;
+
+			int last = offset + end - 1;
+			Chunk lastChunk = snapshotChunks[last >> _CHUNK_SHIFT];
+			int lastOffset = last & _CHUNK_MASK;
+
+			long firstQuantity = firstChunk.quantities[firstOffset];
+			long firstPrice = firstChunk.prices[firstOffset];
+
+			// sums before the first trade
+			long beforeQuantity = firstChunk.quantitySums[firstOffset] - firstQuantity;
+			long beforeHigh = firstChunk.turnoverSumsHigh[firstOffset];
+			long beforeLow = firstChunk.turnoverSumsLow[firstOffset];
+			int beforeNotRepresentable = firstChunk.notRepresentableCounts[firstOffset];
+
+			if(firstPrice!=FixedPointPrice.NOT_REPRESENTABLE) {
+
+				long low = beforeLow - firstPrice * firstQuantity;
+				beforeHigh -= Math.multiplyHigh(firstPrice, firstQuantity) + (Long.compareUnsigned(beforeLow, low)<0 ? 1 : 0);
+				beforeLow = low;
+
+			} else {
+
+				beforeNotRepresentable--;
+			}
+
+			long lastLow = lastChunk.turnoverSumsLow[lastOffset];
+			long turnoverLow = lastLow - beforeLow;
+			long turnoverHigh = lastChunk.turnoverSumsHigh[lastOffset] - beforeHigh - (Long.compareUnsigned(lastLow, beforeLow)<0 ? 1 : 0);
+
+			BigDecimal turnover = toBigDecimal(turnoverHigh, turnoverLow, scale);
+
+			if(lastChunk.notRepresentableCounts[lastOffset]>beforeNotRepresentable) {
+
+				for(int absolute = first; absolute<=last; absolute++) {
+
+					Chunk chunk = snapshotChunks[absolute >> _CHUNK_SHIFT];
+					int chunkOffset = absolute & _CHUNK_MASK;
+
+					if(chunk.prices[chunkOffset]==FixedPointPrice.NOT_REPRESENTABLE) {
+						turnover = turnover.add(chunk.values[chunkOffset].multiply(BigDecimal.valueOf(chunk.quantities[chunkOffset])));
+					}
+				}
+			}
+
+			return new TradeRangeStats(from, to, end - start, lastChunk.quantitySums[lastOffset] - beforeQuantity, turnover, coveredFrom);
+		}
+	}
+}
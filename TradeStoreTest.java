@@ -0,0 +1,150 @@
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TradeStoreTest {
+
+	TradeStore myStore;
+
+	@Before
+	public void setup() {
+
+		myStore = new TradeStore(6);
+	}
+
+	@Test
+	public void testAddAndSnapshot() {
+
+		// we add enough trades to use more than one chunk
+		for(int i=1; i<=3000; i++) {
+
+			myStore.add(i, i, StockTradeAction.actionTypes.BUY, new BigDecimal(i));
+		}
+
+		List<StockTradeAction> snapshot = myStore.snapshot();
+
+		assertEquals("Size of the store ", 3000, myStore.size());
+		assertEquals("Size of the snapshot ", 3000, snapshot.size());
+		assertEquals("First trade of the snapshot ", 1, snapshot.get(0).getQuantity());
+		assertEquals("Last trade of the snapshot ", 3000, snapshot.get(2999).getQuantity());
+
+		// later changes must not be visible in the snapshot
+		myStore.add(3001, 3001, StockTradeAction.actionTypes.BUY, new BigDecimal(3001));
+		assertEquals("Size of the snapshot after a new trade ", 3000, snapshot.size());
+
+		// and the snapshot can't be changed
+		try {
+
+			snapshot.add(new StockTradeAction(1, 1, StockTradeAction.actionTypes.BUY, new BigDecimal(1)));
+			fail("The snapshot must be read only");
+
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testValuesAreKeptAsReceived() {
+
+		myStore.add(1, 10, StockTradeAction.actionTypes.BUY, new BigDecimal("50.5"));
+		myStore.add(2, 20, StockTradeAction.actionTypes.SELL, new BigDecimal(0.1));	// not representable with 6 decimal places
+		myStore.add(3, 30, null, 1500000L);
+
+		// the fixed point values are kept in the columns and the BigDecimal values are created again with their original scale
+		assertEquals("Fixed point value ", 50500000, myStore.getScaledValue(0));
+		assertEquals("Value with the original scale ", new BigDecimal("50.5"), myStore.getValue(0));
+		assertEquals("Value that is not representable ", FixedPointPrice.NOT_REPRESENTABLE, myStore.getScaledValue(1));
+		assertEquals("Value that is not representable ", new BigDecimal(0.1), myStore.getValue(1));
+
+		StockTradeAction tradeAction = myStore.getTradeAction(1);
+
+		assertEquals("Timestamp ", 2, tradeAction.getTimestamp());
+		assertEquals("Quantity ", 20, tradeAction.getQuantity());
+		assertEquals("Action ", StockTradeAction.actionTypes.SELL, tradeAction.getAction());
+
+		assertNull("Trade without action type ", myStore.getTradeAction(2).getAction());
+		assertEquals("Value added as fixed point ", 0, myStore.getTradeAction(2).getValue().compareTo(new BigDecimal("1.5")));
+	}
+
+	@Test
+	public void testOutOfOrderTradesAndBinarySearch() {
+
+		for(int i=0; i<2000; i++) {
+
+			myStore.add(i*10, 1, StockTradeAction.actionTypes.BUY, 1000000L);
+		}
+
+		List<StockTradeAction> snapshot = myStore.snapshot();
+
+		// a trade older than the newest one is inserted in its position so the trades stay ordered by timestamp
+		assertEquals("Position of the old trade ", 51, myStore.add(505, 2, StockTradeAction.actionTypes.SELL, 2000000L));
+
+		assertEquals("Size after the old trade ", 2001, myStore.size());
+		assertEquals("Timestamp of the old trade ", 505, myStore.getTimestamp(51));
+		assertEquals("Timestamp after the old trade ", 510, myStore.getTimestamp(52));
+		assertEquals("Newest timestamp ", 19990, myStore.getTimestamp(2000));
+
+		// the snapshot taken before the insertion must not change
+		assertEquals("Timestamp in the previous snapshot ", 510, snapshot.get(51).getTimestamp());
+
+		// trades with the same timestamp are kept in the order they were added
+		assertEquals("Position of a trade with an existing timestamp ", 52, myStore.add(505, 3, StockTradeAction.actionTypes.SELL, 3000000L));
+
+		assertEquals("Lower bound ", 51, myStore.lowerBound(505));
+		assertEquals("Upper bound ", 53, myStore.upperBound(505));
+		assertEquals("Lower bound before all trades ", 0, myStore.lowerBound(-5));
+		assertEquals("Lower bound after all trades ", 2002, myStore.lowerBound(20000));
+	}
+
+	@Test
+	public void testEvictByNumberOfTrades() {
+
+		for(int i=1; i<=2500; i++) {
+
+			myStore.add(i, i, StockTradeAction.actionTypes.BUY, new BigDecimal(i));
+		}
+
+		List<StockTradeAction> snapshot = myStore.snapshot();
+		List<StockTradeAction> evicted = new ArrayList<StockTradeAction>();
+
+		assertEquals("Number of removed trades ", 1500, myStore.evict(RetentionPolicy.keepTrades(1000), 0, Integer.MAX_VALUE, evicted));
+
+		assertEquals("Size after eviction ", 1000, myStore.size());
+		assertEquals("Oldest trade kept ", 1501, myStore.getQuantity(0));
+		assertEquals("Removed trades ", 1500, evicted.size());
+		assertEquals("First removed trade ", 1, evicted.get(0).getQuantity());
+
+		// a snapshot taken before the eviction must still have all of its trades
+		assertEquals("Oldest trade in the previous snapshot ", 1, snapshot.get(0).getQuantity());
+		assertEquals("Newest trade in the previous snapshot ", 2500, snapshot.get(2499).getQuantity());
+
+		// the maximum number of removals is respected
+		assertEquals("Number of removed trades with a limit ", 10, myStore.evict(RetentionPolicy.keepTrades(1), 0, 10, null));
+	}
+
+	@Test
+	public void testEvictByAge() {
+
+		long now = 100000000;
+
+		myStore.add(now - 30*60000, 1, StockTradeAction.actionTypes.BUY, new BigDecimal(1));
+		myStore.add(now - 20*60000, 2, StockTradeAction.actionTypes.BUY, new BigDecimal(2));
+		myStore.add(now - 10*60000, 3, StockTradeAction.actionTypes.BUY, new BigDecimal(3));
+
+		assertEquals("Number of removed trades ", 2, myStore.evict(RetentionPolicy.keepMinutes(15), now, Integer.MAX_VALUE, null));
+		assertEquals("Oldest trade kept ", 3, myStore.getQuantity(0));
+
+		// removing everything must leave the store ready to be used again
+		assertEquals("Number of removed trades ", 1, myStore.evict(RetentionPolicy.keepMinutes(5), now, Integer.MAX_VALUE, null));
+		assertEquals("Size after removing everything ", 0, myStore.size());
+
+		myStore.add(now, 4, StockTradeAction.actionTypes.BUY, new BigDecimal(4));
+		assertEquals("Size after a new trade ", 1, myStore.snapshot().size());
+	}
+
+}